@@ -37,6 +37,21 @@ public final class Commodore64
     private static Logger LOG = Logger.getLogger(
             Commodore64.class.getName() );
 
+    /**
+     * The system property that enables skipping the ROM's cold start.
+     *
+     * @see C64Core#fastBoot()
+     */
+    private static final String FAST_BOOT = "route64.fastBoot";
+
+    /**
+     * The system property that names the 1541 ROM file.  If set the drive
+     * is emulated.
+     *
+     * @see C64Core#enableDrive(java.io.File)
+     */
+    private static final String DRIVE_ROM = "route64.driveRom";
+
     /**
      * The actual emulator instance tied to this UI.
      */
@@ -126,6 +141,29 @@ public final class Commodore64
               this::imageFileChanged );
 
         addActions( _toolbar );
+
+        String driveRom = System.getProperty( DRIVE_ROM );
+        if ( driveRom != null ) try
+        {
+            _emulator.enableDrive( new File( driveRom ) );
+        }
+        catch ( IOException e )
+        {
+            LOG.log( Level.WARNING, "Drive ROM failed: " + driveRom, e );
+            System.exit( 1 );
+        }
+
+        if ( Boolean.getBoolean( FAST_BOOT ) ) try
+        {
+            _emulator.fastBoot();
+        }
+        catch ( IOException e )
+        {
+            // The cache is dropped, boot normally from a reset.
+            LOG.log( Level.WARNING, "Fast boot failed, booting normally.", e );
+            _emulator.reset( true );
+        }
+
         _emulator.start();
 
         if ( argv.length > 0 ) try
@@ -22,6 +22,10 @@ import java.util.ArrayList;
  * performed through an instance of <code>Clock.ClockHandle</code> created by
  * a call to <code>register()</code>.</p>
  *
+ * <p>Besides clients that run on their own thread the clock dispatches
+ * <code>ClockEvent</code>s.  An event fires as soon as all clients reached
+ * its due time.</p>
+ *
  * TODO debugging, in this case emulation is *much* slower, so sync is
  * meaningless.
  *
@@ -53,7 +57,8 @@ public class Clock
 
 
   /**
-   * A handle for the internal throttling client.
+   * A handle for the internal throttling client.  This is <code>null</code>
+   * if the clock is not synchronised with real time.
    *
    * @see #throttle()
    */
@@ -61,6 +66,23 @@ public class Clock
 
 
 
+  /**
+   * The scheduled events.  Modifications have to be guarded with a lock on
+   * this list.
+   */
+  private final ArrayList<ClockEvent> _events =
+    new ArrayList<ClockEvent>();
+
+
+
+  /**
+   * The time of the earliest scheduled event.  Allows to check for due
+   * events with a single comparison.
+   */
+  private volatile long _nextDue = Long.MAX_VALUE;
+
+
+
   /**
    * Has the clock been started yet?  Used as a base for illegal state
    * detection:  After the clock started, registration is no longer
@@ -71,15 +93,63 @@ public class Clock
 
 
   /**
-   * Creates a clock with the specified frequency.
+   * The thread that currently fires events.  All other clients wait for
+   * the clock while an event fires.
+   */
+  private volatile Thread _eventThread = null;
+
+
+
+  /**
+   * Set if an event changed the time.  The events that were due at the old
+   * time are not due any longer.
+   */
+  private boolean _timeChanged = false;
+
+
+
+  /**
+   * Set when the clock is stopped.  Scheduling ends then, the clients
+   * are no longer blocked and are expected to end their threads.
+   *
+   * @see #stop()
+   */
+  private volatile boolean _isStopped = false;
+
+
+
+  /**
+   * Creates a clock with the specified frequency that is synchronised with
+   * real time.
    *
    * @param ticksPerSecond This clock's frequency.
    */
   public Clock( long ticksPerSecond )
+  {
+    this( ticksPerSecond, true );
+  }
+
+
+
+  /**
+   * Creates a clock with the specified frequency.
+   *
+   * @param ticksPerSecond This clock's frequency.
+   * @param realTime If <code>true</code> the emulation is throttled to
+   *        real time.  If <code>false</code> the emulation runs as fast as
+   *        possible.  This is used for batch processing.
+   */
+  public Clock( long ticksPerSecond, boolean realTime )
   {
     _ticksPerSecond = ticksPerSecond;
     _ticksPerMillisecond = _ticksPerSecond / 1000;
 
+    if ( ! realTime )
+    {
+      _throttleHandle = null;
+      return;
+    }
+
     _throttleHandle = register();
     Thread _throttle = new Thread( new Runnable()
     {
@@ -108,7 +178,7 @@ public class Clock
     // prepared.
     synchronized ( _clients )
     {
-      while ( _remainingPreparations > 0 )
+      while ( _remainingPreparations > 0 && ! _isStopped )
       {
         try
         {
@@ -120,6 +190,9 @@ public class Clock
       }
     }
 
+    if ( _isStopped )
+      return;
+
     // Perform the initial schedule on one of our clients.
     ClockHandle initial = _clients.get( 0 );
     synchronized ( initial )
@@ -130,6 +203,51 @@ public class Clock
 
 
 
+  /**
+   * Stops the clock.  Scheduling ends and all clients that wait for the
+   * clock are released.  From then on <code>advance()</code> returns
+   * immediately and the clients end their threads when they find
+   * <code>ClockHandle.isStopped()</code> set.  A stopped clock can't be
+   * restarted.
+   *
+   * @see ClockHandle#isStopped()
+   */
+  public void stop()
+  {
+    _isStopped = true;
+
+    ArrayList<ClockHandle> clients;
+
+    synchronized ( _clients )
+    {
+      clients = new ArrayList<ClockHandle>( _clients );
+      _clients.notifyAll();
+    }
+
+    for ( ClockHandle c : clients )
+    {
+      synchronized ( c )
+      {
+        c.notifyAll();
+      }
+    }
+  }
+
+
+
+  /**
+   * Check whether the clock is stopped.
+   *
+   * @return <code>true</code> if the clock is stopped.
+   * @see #stop()
+   */
+  public boolean isStopped()
+  {
+    return _isStopped;
+  }
+
+
+
   /**
    * A counter that holds the number of outstanding preparations.  It is
    * incremented on each call to <code>register()</code> and decremented
@@ -171,6 +289,49 @@ public class Clock
 
 
 
+  /**
+   * Set the local time of all clients.  Used to continue an emulation from
+   * a snapshot at the time the snapshot was taken.  Only allowed
+   * <i>before</i> the clock has been started or from a clock event.
+   *
+   * @param time The new time.
+   * @throws IllegalStateException When the clock has been started yet and
+   *         the caller is not a clock event.
+   */
+  public synchronized void setTime( long time )
+  {
+    checkTimeChange();
+
+    synchronized ( _clients )
+    {
+      for ( ClockHandle c : _clients )
+        c._time = time;
+    }
+  }
+
+
+
+  /**
+   * Ensure that the time may be changed.  This is the case before the
+   * clock is started and while an event fires.  A change while an event
+   * fires ends the dispatching of the events that were due at the old
+   * time.  The caller has to hold the lock on the clock.
+   *
+   * @throws IllegalStateException If the time must not be changed.
+   */
+  private void checkTimeChange()
+  {
+    if ( ! _isStarted )
+      return;
+
+    if ( Thread.currentThread() != _eventThread )
+      throw new IllegalStateException( "Clock is started." );
+
+    _timeChanged = true;
+  }
+
+
+
   /**
    * Performs a new schedule of the calling thread.  The thread with the
    * earliest local time is scheduled, all other threads are blocked.
@@ -181,10 +342,22 @@ public class Clock
   private void schedule( ClockHandle cc )
     throws InterruptedException
   {
+    if ( _isStopped )
+      return;
+
     // Select the next client to run.  This is the client that
     // has the earliest local time.
     ClockHandle minCc = minimumTime();
 
+    // All clients reached this time, fire the events that are due.  An
+    // event may have changed the time, so the next client is selected
+    // again.
+    if ( minCc._time >= _nextDue )
+    {
+      dispatchEvents( minCc._time );
+      minCc = minimumTime();
+    }
+
     // Perform the actual thread switch.  If the current client is
     // the next one to schedule then...
     if ( minCc == cc )
@@ -200,13 +373,130 @@ public class Clock
         minCc.notify();
       }
       // ...and the original caller now goes into a wait until the others
-      // have caught up.
-      cc.wait();
+      // have caught up.  The check is done holding the lock, so a stop
+      // can't slip in before the wait.
+      if ( ! _isStopped )
+        cc.wait();
+    }
+  }
+
+
+
+  /**
+   * Schedule an event.  If the event is already scheduled it is moved to
+   * the new time.
+   *
+   * @param event The event to schedule.
+   * @param due The time the event is due.
+   */
+  public void schedule( ClockEvent event, long due )
+  {
+    synchronized ( _events )
+    {
+      if ( ! event._scheduled )
+        _events.add( event );
+
+      event._due = due;
+      event._scheduled = true;
+
+      if ( due < _nextDue )
+        _nextDue = due;
+    }
+  }
+
+
+
+  /**
+   * Remove an event from the schedule.  Nothing happens if the event is
+   * not scheduled.
+   *
+   * @param event The event to cancel.
+   */
+  public void cancel( ClockEvent event )
+  {
+    synchronized ( _events )
+    {
+      if ( ! event._scheduled )
+        return;
+
+      event._scheduled = false;
+      _events.remove( event );
+      _nextDue = computeNextDue();
+    }
+  }
+
+
+
+  /**
+   * Fire all events that are due at the passed time in the order of their
+   * due times.  Events are fired outside of the lock on the event list,
+   * so they are free to schedule events.
+   *
+   * @param now The current time.
+   */
+  private void dispatchEvents( long now )
+  {
+    while ( true )
+    {
+      ClockEvent next = null;
+
+      synchronized ( _events )
+      {
+        for ( ClockEvent c : _events )
+        {
+          if ( c._due <= now && (next == null || c._due < next._due) )
+            next = c;
+        }
+
+        if ( next == null )
+          return;
+
+        next._scheduled = false;
+        _events.remove( next );
+        _nextDue = computeNextDue();
+      }
+
+      _eventThread = Thread.currentThread();
+      try
+      {
+        next.fire( next._due );
+      }
+      finally
+      {
+        _eventThread = null;
+      }
+
+      if ( _timeChanged )
+      {
+        _timeChanged = false;
+        return;
+      }
     }
   }
 
 
 
+  /**
+   * Compute the earliest due time of the scheduled events.  The caller has
+   * to hold the lock on the event list.
+   *
+   * @return The earliest due time.
+   */
+  private long computeNextDue()
+  {
+    long result = Long.MAX_VALUE;
+
+    for ( ClockEvent c : _events )
+    {
+      if ( c._due < result )
+        result = c._due;
+    }
+
+    return result;
+  }
+
+
+
   /**
    * Get the clock's current time.  This is the minimum time across all
    * associated chips.
@@ -286,15 +576,27 @@ public class Clock
 
     _throttleHandle.prepare();
 
-    // This is our local time on the first call.
-    long startCycles = 0;
+    // This is our local time on the first call.  Not necessarily zero if
+    // the emulation continues from a snapshot.
+    long startCycles = _throttleHandle.currentLocalTime();
     long startTime = System.currentTimeMillis();
+    long lastCycles = startCycles;
 
-    while ( true )
+    while ( ! _isStopped )
     {
       long cycleNow = _throttleHandle.advance( throttleWait );
       long now = System.currentTimeMillis();
 
+      // The time jumps back if the emulation is rewound.  Synchronise from
+      // here on, otherwise the emulation would run unthrottled until it
+      // caught up.
+      if ( cycleNow < lastCycles )
+      {
+        startCycles = cycleNow;
+        startTime = now;
+      }
+      lastCycles = cycleNow;
+
       // Compute our age.
       long realtimeAgeMs = now - startTime;
 
@@ -396,7 +698,8 @@ public class Clock
       // Finally block and expect a wakeup when thread scheduling starts.
       try
       {
-        wait();
+        if ( ! _isStopped )
+          wait();
       }
       catch ( InterruptedException e )
       {
@@ -483,6 +786,28 @@ public class Clock
 
 
 
+    /**
+     * Set the client's local time.  Used by clients that continue from a
+     * snapshot.  Only allowed <i>before</i> the clock has been started or
+     * from a clock event.
+     *
+     * @param time The new local time.
+     * @throws IllegalStateException When the clock has been started yet and
+     *         the caller is not a clock event.
+     * @see Clock#setTime(long)
+     */
+    public void setLocalTime( long time )
+    {
+      synchronized ( _home )
+      {
+        _home.checkTimeChange();
+
+        _time = time;
+      }
+    }
+
+
+
     /**
      * Returns the client's local time.  Note that <code>advance()</code>
      * also returns the local time.
@@ -497,6 +822,20 @@ public class Clock
 
 
 
+    /**
+     * Check whether the clock is stopped.  A client ends its thread when
+     * this is set.
+     *
+     * @return <code>true</code> if the clock is stopped.
+     * @see Clock#stop()
+     */
+    public boolean isStopped()
+    {
+      return _home._isStopped;
+    }
+
+
+
     /**
      * Returns the current time of the <code>Clock<code>.  This represents
      * overall clock time which is different and normally earlier than
@@ -0,0 +1,72 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator;
+
+
+
+/**
+ * An event that is scheduled on the <code>Clock</code> for a certain time.
+ * Events are the lightweight alternative to a clock client for chip
+ * functions that only act at well known points in time, like a timer
+ * underflow.  An event does not need a thread, it is dispatched by the
+ * clock on the thread that happens to be running when all clock clients
+ * reached the event's time.
+ *
+ * @see Clock#schedule(ClockEvent, long)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public abstract class ClockEvent
+{
+  /**
+   * The time the event is due.  Only valid while the event is scheduled.
+   */
+  long _due;
+
+
+
+  /**
+   * True while the event is scheduled.
+   */
+  boolean _scheduled = false;
+
+
+
+  /**
+   * Called when the event is due.  The event is no longer scheduled at this
+   * point, so the implementation can reschedule it.
+   *
+   * @param time The time the event was due.
+   */
+  public abstract void fire( long time );
+
+
+
+  /**
+   * Check whether the event is scheduled.
+   *
+   * @return <code>true</code> if the event is scheduled.
+   */
+  public final boolean isScheduled()
+  {
+    return _scheduled;
+  }
+
+
+
+  /**
+   * Get the time the event is due.
+   *
+   * @return The time the event is due.  Only valid if the event is
+   *         scheduled.
+   */
+  public final long getDue()
+  {
+    return _due;
+  }
+}
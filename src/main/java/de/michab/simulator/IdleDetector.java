@@ -0,0 +1,144 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator;
+
+
+
+/**
+ * Detects that a peripheral's processor spins in a wait loop.  The
+ * peripheral declares the address range of the loop and reports the
+ * activity on its bus.  It is idle if the processor executes in the loop
+ * and the bus was quiet for a given time.
+ *
+ * <p>Stepping an idle peripheral only burns host time.  Its owner can
+ * instead advance the peripheral's time and timers arithmetically up to
+ * the next bus access, which wakes the peripheral.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class IdleDetector
+{
+  /**
+   * The wait loop's address range, inclusive.
+   */
+  private final int _loopStart;
+  private final int _loopEnd;
+
+
+
+  /**
+   * The time the bus has to be quiet.
+   */
+  private final long _quietTime;
+
+
+
+  /**
+   * The time of the last bus activity.
+   */
+  private long _lastActivity = 0;
+
+
+
+  /**
+   * The total time skipped.
+   */
+  private long _skipped = 0;
+
+
+
+  private boolean _isEnabled = true;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param loopStart The first address of the wait loop.
+   * @param loopEnd The last address of the wait loop.
+   * @param quietTime The time the bus has to be quiet, in the peripheral's
+   *        time unit.
+   */
+  public IdleDetector( int loopStart, int loopEnd, long quietTime )
+  {
+    if ( loopStart > loopEnd || quietTime < 0 )
+      throw new IllegalArgumentException();
+
+    _loopStart = loopStart;
+    _loopEnd = loopEnd;
+    _quietTime = quietTime;
+  }
+
+
+
+  /**
+   * Report activity on the bus.
+   *
+   * @param time The peripheral's time.
+   */
+  public synchronized void activity( long time )
+  {
+    _lastActivity = time;
+  }
+
+
+
+  /**
+   * Check whether the peripheral is idle.
+   *
+   * @param pc The peripheral's program counter.
+   * @param time The peripheral's time.
+   * @return <code>true</code> if the peripheral may be fast forwarded.
+   */
+  public synchronized boolean isIdle( int pc, long time )
+  {
+    return
+      _isEnabled &&
+      pc >= _loopStart &&
+      pc <= _loopEnd &&
+      time - _lastActivity >= _quietTime;
+  }
+
+
+
+  /**
+   * Report that the peripheral was fast forwarded.
+   *
+   * @param time The time skipped.
+   */
+  public synchronized void skipped( long time )
+  {
+    _skipped += time;
+  }
+
+
+
+  /**
+   * Get the total time the peripheral was fast forwarded.
+   *
+   * @return The time skipped.
+   */
+  public synchronized long getSkipped()
+  {
+    return _skipped;
+  }
+
+
+
+  /**
+   * Enable or disable the detection.  A disabled detector never reports
+   * the peripheral idle, this is used for comparison benchmarks.
+   *
+   * @param what <code>true</code> to enable the detection.
+   */
+  public synchronized void setEnabled( boolean what )
+  {
+    _isEnabled = what;
+  }
+}
@@ -0,0 +1,255 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+
+/**
+ * <p>Collects the interrupt lines of a processor.  Each interrupt source
+ * gets its own <code>InterruptLine</code> that is represented by a bit in a
+ * single atomic integer.  Setting and clearing a line does not need a lock
+ * and the processor polls the state of all lines with a single volatile
+ * read per instruction.</p>
+ *
+ * <p>The IRQ lines are wired-OR and level triggered:  An IRQ is signalled as
+ * long as at least one line is set.  The NMI lines are wired-OR as well but
+ * edge triggered:  An NMI is signalled when the first NMI line is set, and
+ * only once until all NMI lines were cleared again.</p>
+ *
+ * @see InterruptLine
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class InterruptController
+{
+  /**
+   * The bits used for IRQ lines.
+   */
+  private static final int IRQ_MASK = 0x0000ffff;
+
+
+
+  /**
+   * The bits used for NMI lines.
+   */
+  private static final int NMI_MASK = 0x3fff0000;
+
+
+
+  /**
+   * Set on the positive edge of the wired-OR NMI lines, cleared when the
+   * processor takes the NMI.
+   */
+  private static final int NMI_EDGE = 0x40000000;
+
+
+
+  /**
+   * The state of all lines.
+   */
+  private final AtomicInteger _lines = new AtomicInteger();
+
+
+
+  /**
+   * The next free IRQ and NMI line bits.
+   */
+  private int _nextIrq = 0x00000001;
+  private int _nextNmi = 0x00010000;
+
+
+
+  /**
+   * Create a new IRQ line.
+   *
+   * @param name The name of the line for debug purposes.
+   * @return The new line.
+   * @throws IllegalStateException If no more lines are available.
+   */
+  public synchronized InterruptLine createIrqLine( String name )
+  {
+    if ( (_nextIrq & IRQ_MASK) == 0 )
+      throw new IllegalStateException( "No IRQ line left." );
+
+    InterruptLine result = new InterruptLine( this, _nextIrq, name );
+    _nextIrq <<= 1;
+    return result;
+  }
+
+
+
+  /**
+   * Create a new NMI line.
+   *
+   * @param name The name of the line for debug purposes.
+   * @return The new line.
+   * @throws IllegalStateException If no more lines are available.
+   */
+  public synchronized InterruptLine createNmiLine( String name )
+  {
+    if ( (_nextNmi & NMI_MASK) == 0 )
+      throw new IllegalStateException( "No NMI line left." );
+
+    InterruptLine result = new InterruptLine( this, _nextNmi, name );
+    _nextNmi <<= 1;
+    return result;
+  }
+
+
+
+  /**
+   * Get the state of all lines.  The result is evaluated with
+   * <code>isIrq()</code> and <code>isNmi()</code>.
+   *
+   * @return The state of all lines.  Zero if no interrupt is signalled.
+   */
+  public int poll()
+  {
+    return _lines.get();
+  }
+
+
+
+  /**
+   * Set the state of all lines.  Used to restore the state returned by
+   * <code>poll()</code> when a snapshot is restored.
+   *
+   * @param state The state of all lines.
+   */
+  public void setState( int state )
+  {
+    _lines.set( state );
+  }
+
+
+
+  /**
+   * Check whether an IRQ is signalled.
+   *
+   * @param state The result of a call to <code>poll()</code>.
+   * @return <code>true</code> if at least one IRQ line is set.
+   */
+  public static boolean isIrq( int state )
+  {
+    return (state & IRQ_MASK) != 0;
+  }
+
+
+
+  /**
+   * Check whether an NMI is signalled.
+   *
+   * @param state The result of a call to <code>poll()</code>.
+   * @return <code>true</code> if an NMI edge is pending.
+   */
+  public static boolean isNmi( int state )
+  {
+    return (state & NMI_EDGE) != 0;
+  }
+
+
+
+  /**
+   * Take a pending NMI.
+   *
+   * @return <code>true</code> if an NMI was pending.
+   */
+  public boolean acknowledgeNmi()
+  {
+    while ( true )
+    {
+      int old = _lines.get();
+
+      if ( (old & NMI_EDGE) == 0 )
+        return false;
+
+      if ( _lines.compareAndSet( old, old & ~NMI_EDGE ) )
+        return true;
+    }
+  }
+
+
+
+  /**
+   * Signal a single NMI independent of the NMI lines.  Used for sources that
+   * only generate a short pulse, like the restore key.
+   */
+  public void pulseNmi()
+  {
+    while ( true )
+    {
+      int old = _lines.get();
+
+      if ( _lines.compareAndSet( old, old | NMI_EDGE ) )
+        return;
+    }
+  }
+
+
+
+  /**
+   * Set a line.
+   *
+   * @param bit The line's bit.
+   */
+  void set( int bit )
+  {
+    while ( true )
+    {
+      int old = _lines.get();
+
+      if ( (old & bit) != 0 )
+        return;
+
+      int state = old | bit;
+
+      // The first NMI line that is set generates the edge.
+      if ( (bit & NMI_MASK) != 0 && (old & NMI_MASK) == 0 )
+        state |= NMI_EDGE;
+
+      if ( _lines.compareAndSet( old, state ) )
+        return;
+    }
+  }
+
+
+
+  /**
+   * Clear a line.
+   *
+   * @param bit The line's bit.
+   */
+  void clear( int bit )
+  {
+    while ( true )
+    {
+      int old = _lines.get();
+
+      if ( (old & bit) == 0 )
+        return;
+
+      if ( _lines.compareAndSet( old, old & ~bit ) )
+        return;
+    }
+  }
+
+
+
+  /**
+   * Check whether a line is set.
+   *
+   * @param bit The line's bit.
+   * @return <code>true</code> if the line is set.
+   */
+  boolean isSet( int bit )
+  {
+    return (_lines.get() & bit) != 0;
+  }
+}
@@ -0,0 +1,100 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator;
+
+
+
+/**
+ * A single interrupt line of a chip.  The chip sets the line as long as it
+ * requests an interrupt and clears it when the request is acknowledged.
+ * Lines are created by the <code>InterruptController</code>.
+ *
+ * @see InterruptController
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class InterruptLine
+{
+  /**
+   * The controller the line is connected to.
+   */
+  private final InterruptController _controller;
+
+
+
+  /**
+   * The line's bit in the controller.
+   */
+  private final int _bit;
+
+
+
+  /**
+   * The line's name for debug purposes.
+   */
+  private final String _name;
+
+
+
+  /**
+   * Create an instance.
+   *
+   * @param controller The controller the line is connected to.
+   * @param bit The line's bit in the controller.
+   * @param name The line's name.
+   */
+  InterruptLine( InterruptController controller, int bit, String name )
+  {
+    _controller = controller;
+    _bit = bit;
+    _name = name;
+  }
+
+
+
+  /**
+   * Set the line.  Nothing happens if the line is already set.
+   */
+  public void set()
+  {
+    _controller.set( _bit );
+  }
+
+
+
+  /**
+   * Clear the line.  Nothing happens if the line is already cleared.
+   */
+  public void clear()
+  {
+    _controller.clear( _bit );
+  }
+
+
+
+  /**
+   * Check whether the line is set.
+   *
+   * @return <code>true</code> if the line is set.
+   */
+  public boolean isSet()
+  {
+    return _controller.isSet( _bit );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  @Override
+  public String toString()
+  {
+    return _name;
+  }
+}
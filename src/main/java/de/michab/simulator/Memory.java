@@ -7,6 +7,8 @@
  */
 package de.michab.simulator;
 
+import java.nio.ByteBuffer;
+
 
 
 /**
@@ -58,4 +60,30 @@ public interface Memory
    * @return The 16 bit address located at the passed memory position.
    */
   int getVectorAt( int adr );
+
+
+
+  /**
+   * Write a block of bytes starting at the passed address.  The result is the
+   * same as writing the bytes one by one, so mapped ports receive their
+   * bytes.  This default implementation does exactly that, implementations
+   * are expected to copy the bytes that end up in plain memory in bulk.
+   *
+   * @param adr The address of the first byte.
+   * @param data The bytes to write, from the buffer's position to its limit.
+   *        The buffer's position is not changed.
+   * @return The address following the last byte written.
+   * @exception IndexOutOfBoundsException If the block does not fit into the
+   *            memory.
+   */
+  default int write( int adr, ByteBuffer data )
+  {
+    if ( adr < 0 || adr + data.remaining() > getSize() )
+      throw new IndexOutOfBoundsException( "adr" );
+
+    for ( int i = data.position() ; i < data.limit() ; i++ )
+      write( adr++, data.get( i ) );
+
+    return adr;
+  }
 }
@@ -0,0 +1,52 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+
+/**
+ * Implemented by components whose state can be saved into a snapshot and
+ * restored from it.  The state is written as plain binary data in a fixed
+ * order and read back in the same order.  Times in the state are absolute
+ * clock times.  A snapshot is restored by setting the clock to the time the
+ * snapshot was taken before the components are restored, components that
+ * are clock clients restore their local time.
+ *
+ * @see Clock#setTime(long)
+ * @see Clock.ClockHandle#setLocalTime(long)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public interface Persistent
+{
+  /**
+   * Write the component's state.  Called on the emulation's schedule, i.e.
+   * from a clock event.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException;
+
+
+
+  /**
+   * Read the component's state.  Called before the emulation is started
+   * or from a clock event.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed or the state is invalid.
+   */
+  void restoreState( DataInput in )
+    throws IOException;
+}
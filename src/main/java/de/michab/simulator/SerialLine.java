@@ -0,0 +1,30 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator;
+
+
+
+/**
+ * The remote end of a chip's serial port, i.e. a device connected to the
+ * chip's serial data and clock pins.  Transfers are handled on a per byte
+ * base: the line is called once a complete byte has been shifted out, not
+ * on each bit.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public interface SerialLine
+{
+  /**
+   * Called when the chip shifted out a complete byte.
+   *
+   * @param value The byte transmitted.
+   * @param time The clock time the last bit was shifted out.
+   */
+  void transmit( byte value, long time );
+}
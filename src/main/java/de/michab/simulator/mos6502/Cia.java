@@ -7,14 +7,20 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.michab.simulator.ArrayPort;
 import de.michab.simulator.DefaultChip;
 import de.michab.simulator.Forwarder;
+import de.michab.simulator.InterruptLine;
+import de.michab.simulator.Persistent;
 import de.michab.simulator.Port;
 import de.michab.simulator.Processor;
+import de.michab.simulator.SerialLine;
 
 
 
@@ -30,6 +36,8 @@ import de.michab.simulator.Processor;
 public final class Cia
   extends
     DefaultChip
+  implements
+    Persistent
 {
   private final static Logger _log =
       Logger.getLogger( Cia.class.getName() );
@@ -114,6 +122,13 @@ public final class Cia
   private final Clock _clock;
 
 
+
+  /**
+   * This CIA's serial port.
+   */
+  private final SerialPort _serial;
+
+
   private final Forwarder[] _ioPort = new Forwarder[2];
   private static final int A=0;
   private static final int B=1;
@@ -126,10 +141,10 @@ public final class Cia
 
 
   /**
-   * A reference to our cpu for interrupt purposes.  TODO This has to change to be
-   * able to connect a CIA to IRQ or NMI as done in the 64.
+   * The interrupt line this CIA drives.  This is an IRQ or an NMI line
+   * depending on how the CIA is wired.
    */
-  private final Cpu6510 _cpu;
+  private final InterruptLine _interrupt;
 
 
 
@@ -158,33 +173,36 @@ public final class Cia
 
 
   /**
-   * Creates a CIA.  The passed CPU reference is used for interrupt purposes.
+   * Creates a CIA.
    *
-   * @param cpu The CPU receiving the interrupts.
+   * @param interrupt The interrupt line the CIA drives.
+   * @param clock The system clock.
    */
-  public Cia( Cpu6510 cpu, de.michab.simulator.Clock clock )
+  public Cia( InterruptLine interrupt, de.michab.simulator.Clock clock )
   {
     _name = "CIA-" + (++_ciaCount);
 
-    // Save the CPU reference.
-    _cpu = cpu;
+    _interrupt = interrupt;
 
-    // Create our Timers.
-    // TODO check which one counts the underflows of the other.
-    _timerA = new Timer(
-        this,
-        null,
-        clock,
-        _name + "TA" );
+    // Create our Timers.  Timer B is able to count the underflows of
+    // timer A.
     _timerB = new Timer(
         this,
         null,
         clock,
         _name + "TB" );
+    _timerA = new Timer(
+        this,
+        _timerB,
+        clock,
+        _name + "TA" );
 
-    // Create our real time clock.
+    // Create our time of day clock.
     _clock = new Clock( this, clock, _name + "C" );
 
+    // Create our serial port.  Output is clocked by timer A.
+    _serial = new SerialPort( this, _timerA, clock, _name + "SP" );
+
     // Create this CIA's ports.
     _ports = createPorts( _registers.length );
 
@@ -215,6 +233,19 @@ public final class Cia
 
 
 
+  /**
+   * Connects a device to the serial port.  The device receives the bytes
+   * shifted out in output mode.
+   *
+   * @param line The device, <code>null</code> to disconnect.
+   */
+  public synchronized void connectSerialLine( SerialLine line )
+  {
+    _serial.connect( line );
+  }
+
+
+
   /**
    * Get a writable reference to port A.  The returned forwarder can be
    * connected to bus systems.
@@ -258,6 +289,9 @@ public final class Cia
       {
         if ( null != _ioPort[B] )
           result = _ioPort[B].read();
+        // The timers may drive PB6 and PB7.
+        result = timerOutput( result, _timerA, Processor.BIT_6 );
+        result = timerOutput( result, _timerB, Processor.BIT_7 );
         break;
 // This is the right code, but is not working currently:
 //        int DDR_OFFSET = DDRA-PRA;
@@ -271,8 +305,15 @@ public final class Cia
       case DDRA:
       case DDRB:
       case SDR:
+        break;
+
+      // CRA, CRB -- Control registers.  Bit 0 reflects whether the timer
+      // is running, a one shot timer stops on underflow.
       case CRA:
+        result = controlRegister( result, _timerA );
+        break;
       case CRB:
+        result = controlRegister( result, _timerB );
         break;
 
       // TA-LO -- Timer A - low byte.  R:
@@ -310,29 +351,21 @@ public final class Cia
         result = integerToBcd( _clock.getMinutes() );
         break;
 
-      // TOD hour -- Clock hours in BCD.  R:
+      // TOD hour -- Clock hours in BCD, 1 to 12, bit 7 is the PM flag.
+      // Reading the hours latches the time until the tenth seconds are
+      // read.  R:
       case TODHR:
       {
         int hours = _clock.getHours();
-        boolean ten = false;
-        boolean pm = false;
-
-        if ( hours > 12 )
-        {
-          hours -= 12;
-          pm = true;
-        }
-        if ( hours > 10 )
-        {
-          hours -= 10;
-          ten = true;
-        }
-        //
+        boolean pm = hours >= 12;
+
+        hours %= 12;
+        if ( hours == 0 )
+          hours = 12;
+
         result = integerToBcd( hours );
         if ( pm )
           result |= Processor.BIT_7;
-        if ( ten )
-          result |= Processor.BIT_4;
 
         break;
       }
@@ -387,19 +420,25 @@ public final class Cia
       // The registers that rely fully on the default handling.
       case DDRA:
       case DDRB:
+        _registers[ portId ] = value;
+        break;
+
+      // SDR -- Serial data register.  W: Starts a transfer in output mode.
       case SDR:
-      case CRB:
         _registers[ portId ] = value;
+        _serial.write( value );
         break;
 
       // TA-LO -- Timer A - low byte.  W: new value.
       case TALO:
         _timerA.setStartValueLo( value );
+        _serial.timerChanged();
         break;
 
       // TA-HI -- Timer A - hi byte.  W: new value.
       case TAHI:
         _timerA.setStartValueHi( value );
+        _serial.timerChanged();
         break;
 
       // TB-LO -- Timer B - low byte.  W: new value.
@@ -433,12 +472,20 @@ public final class Cia
           0 != (_registers[ CRB ] & Processor.BIT_7) );
         break;
 
-      // TOD hour -- Clock hours in BCD.  W: Set alarm time
+      // TOD hour -- Clock hours in BCD, bit 7 is the PM flag.  W: Set alarm
+      // time.  Setting the time stops the clock until the tenth seconds are
+      // written.
       case TODHR:
+      {
+        int hours = bcdToInteger( (byte)(value & 0x1f) ) % 12;
+        if ( (value & Processor.BIT_7) != 0 )
+          hours += 12;
+
         _clock.setHours(
-          bcdToInteger( value ),
+          hours,
           0 != (_registers[ CRB ] & Processor.BIT_7) );
         break;
+      }
 
       // ICR -- Interrupt control register.  W: Interrupt mask.
       case ICR:
@@ -447,26 +494,31 @@ public final class Cia
 
       // CRA -- Control register A.  W:
       case CRA:
-        // Note that the actual start of the timer comes last in the sequence of
-        // handled bits.
-
-        // Bit 3: If set then oneshot, else cyclic.
-        _timerA.setOneshot( (value & Processor.BIT_3 ) != 0 );
-        // Bit 4: If set then force load.
-        if ( (value & Processor.BIT_4 ) != 0 )
-          _timerA.forceLoad();
-        // Bit 0: Start timer if set.
-        if ( ( value & Processor.BIT_0 ) != 0 )
-          _timerA.start();
+        // Bit 5: Count system clock cycles or positive CNT edges.
+        _timerA.setInput( (value & Processor.BIT_5) != 0 ?
+            Timer.INPUT_CNT :
+            Timer.INPUT_PHI2 );
+        controlTimer( value, _timerA );
+        // Bit 6: Serial port output if set, input otherwise.
+        _serial.setOutput( (value & Processor.BIT_6) != 0 );
+        _serial.timerChanged();
 
         // This is the list of bits that we don't handle at the moment.
-        // Bit 1: Output pin PB6 handling - not supported.
-        // Bit 2: Output pin PB6 handling - not supported.
-        // Bit 5: Select timer driver:  System clock or CNT?
-        // Bit 6: SP input/output.
         // Bit 7: TOD 60/50 Hz.
         break;
 
+      // CRB -- Control register B.  W:
+      case CRB:
+        // Bits 5-6: Count system clock cycles, positive CNT edges, timer A
+        // underflows or timer A underflows while CNT is high.  The values
+        // of the bits match the timer's input constants.
+        _timerB.setInput( (value >> 5) & 0x3 );
+        controlTimer( value, _timerB );
+
+        // Bit 7: Writes to the TOD registers set the alarm.  This is
+        // evaluated on TOD writes.
+        break;
+
       default:
         _log.severe( _name + ": Invalid Port written: " + portId );
         System.exit( 1 );
@@ -475,6 +527,119 @@ public final class Cia
 
 
 
+  /**
+   * Handle the bits that are common to both control registers.  The
+   * register is stored without the force load strobe.
+   *
+   * @param value The value written to the control register.
+   * @param timer The timer controlled by the register.
+   */
+  private void controlTimer( byte value, Timer timer )
+  {
+    _registers[ timer == _timerA ? CRA : CRB ] =
+      (byte)(value & ~Processor.BIT_4);
+
+    // Bit 1: Timer output on PB6 (PB7 for timer B).
+    // Bit 2: Output toggles if set, pulses otherwise.
+    timer.setOutput(
+        (value & Processor.BIT_1) != 0,
+        (value & Processor.BIT_2) != 0 );
+    // Bit 3: If set then oneshot, else cyclic.
+    timer.setOneshot( (value & Processor.BIT_3 ) != 0 );
+    // Bit 4: If set then force load.
+    if ( (value & Processor.BIT_4 ) != 0 )
+      timer.forceLoad();
+    // Bit 0: Start timer if set, stop it otherwise.  Note that the actual
+    // start of the timer comes last in the sequence of handled bits.
+    if ( ( value & Processor.BIT_0 ) != 0 )
+      timer.start();
+    else
+      timer.stop();
+  }
+
+
+
+  /**
+   * Compute the value read from a control register.
+   *
+   * @param value The stored register value.
+   * @param timer The timer controlled by the register.
+   * @return The register value with the start bit reflecting the timer.
+   */
+  private static int controlRegister( int value, Timer timer )
+  {
+    if ( timer.isRunning() )
+      return value | Processor.BIT_0;
+
+    return value & ~Processor.BIT_0;
+  }
+
+
+
+  /**
+   * Replace a bit in a port B value by the timer's output if the timer
+   * drives the pin.
+   *
+   * @param value The port value.
+   * @param timer The timer.
+   * @param bit The port bit driven by the timer.
+   * @return The resulting port value.
+   */
+  private static int timerOutput( int value, Timer timer, int bit )
+  {
+    if ( ! timer.isOutputOn() )
+      return value;
+
+    if ( timer.getOutput() )
+      return value | bit;
+
+    return value & ~bit;
+  }
+
+
+
+  /**
+   * Set the level of the CNT pin.  The timers count positive edges if
+   * configured to do so.
+   *
+   * @param level The new level of the pin.
+   */
+  public synchronized void setCnt( boolean level )
+  {
+    _timerA.setCnt( level );
+    _timerB.setCnt( level );
+    _serial.setCnt( level );
+  }
+
+
+
+  /**
+   * Set the level of the SP pin.  In input mode the level is shifted in on
+   * the next positive edge of the CNT pin.
+   *
+   * @param level The new level of the pin.
+   */
+  public synchronized void setSp( boolean level )
+  {
+    _serial.setSp( level );
+  }
+
+
+
+  /**
+   * Receive a complete byte on the serial port.  This replaces eight
+   * CNT pulses for devices that transfer whole bytes.  Ignored if the
+   * serial port is in output mode.
+   *
+   * @param value The byte received.
+   */
+  public synchronized void receiveSerial( byte value )
+  {
+    _serial.receive( value );
+  }
+
+
+
   /**
    * Called if the real time clock reached alarm time.
    */
@@ -487,7 +652,36 @@ public final class Cia
     // If we have any bits set in interrupt data as well as in the interrupt
     // mask then send an IRQ to the CPU.
     if ( (mask & _interruptData) != 0 )
-      _cpu.IRQ();
+      _interrupt.set();
+  }
+
+
+
+  /**
+   * Called if the serial port finished shifting out a byte.
+   */
+  void serialFinished()
+  {
+    byte mask = _registers[ ICR ];
+
+    _interruptData |= Processor.BIT_3;
+
+    if ( (mask & _interruptData) != 0 )
+      _interrupt.set();
+  }
+
+
+
+  /**
+   * Called if the serial port received a byte.
+   *
+   * @param value The byte received.
+   */
+  void serialReceived( byte value )
+  {
+    _registers[ SDR ] = value;
+
+    serialFinished();
   }
 
 
@@ -496,8 +690,9 @@ public final class Cia
    * This is called if a timer ran down to zero.
    *
    * @param whichOne A reference to the timer that finished.
+   * @param time The time of the underflow.
    */
-  void timerFinished( Timer whichOne )
+  void timerFinished( Timer whichOne, long time )
   {
     byte mask = _registers[ ICR ];
 
@@ -506,6 +701,8 @@ public final class Cia
     {
       // Set bit 0 in interrupt data.
       _interruptData |= Processor.BIT_0;
+      // Timer A clocks the serial port.
+      _serial.timerUnderflow( time );
     }
     else
     {
@@ -516,7 +713,7 @@ public final class Cia
     // If we have any bits set in interrupt data as well as in the interrupt
     // mask then send an IRQ to the cpu.
     if ( (mask & _interruptData) != 0 )
-      _cpu.IRQ();
+      _interrupt.set();
   }
 
 
@@ -534,7 +731,7 @@ public final class Cia
   /**
    * Resets the Chip.
    */
-  public void reset()
+  public synchronized void reset()
   {
     _clock.reset(); // Off in 11
 
@@ -543,9 +740,45 @@ public final class Cia
 
     _timerA.forceLoad();
     _timerB.forceLoad(); // Off in 11
+
+    _serial.reset();
+  }
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void saveState( DataOutput out )
+    throws IOException
+  {
+    out.write( _registers );
+    out.writeByte( _interruptData );
+    _timerA.saveState( out );
+    _timerB.saveState( out );
+    _clock.saveState( out );
+    _serial.saveState( out );
+  }
+
+
+
+  /**
+   * Read the chip's state.  The timers, the alarm and the serial port
+   * schedule their events on the clock.  The state of the interrupt line is
+   * restored with the processor.
+   */
+  public synchronized void restoreState( DataInput in )
+    throws IOException
+  {
+    in.readFully( _registers );
+    _interruptData = in.readByte();
+    _timerA.restoreState( in );
+    _timerB.restoreState( in );
+    _clock.restoreState( in );
+    _serial.restoreState( in );
   }
 
 
+
   /**
    * Returns the CIA's name for debugging purposes.
    */
@@ -584,15 +817,15 @@ public final class Cia
     {
       // Clear the bits in the interrupt mask where a 1 bit was written and
       // don't touch the rest.
-      // Set bit 7...
-      value |= Processor.BIT_7;
-      // ...flip all bits...
-      value = ~value;
-      // ...and or that into the interrupt mask.
-      interruptMask |= value;
+      interruptMask &= ~value;
     }
 
     _registers[ ICR ] = (byte)interruptMask;
+
+    // An interrupt that is already flagged is signalled as soon as it gets
+    // enabled.
+    if ( (interruptMask & _interruptData) != 0 )
+      _interrupt.set();
   }
 
 
@@ -612,8 +845,10 @@ public final class Cia
       // ...set bit 7 in our result.
       id |= Processor.BIT_7;
 
-    // Delete the interrupt data register.
+    // Delete the interrupt data register.  This acknowledges the
+    // interrupt.
     _interruptData = 0;
+    _interrupt.clear();
 
     return (byte)id;
   }
@@ -632,7 +867,7 @@ public final class Cia
   private static int bcdToInteger( byte bcd )
   {
     // Get the msb digit...
-    int result = bcd & 0xf0;
+    int result = (bcd >> 4) & 0xf;
     // ...multiply that by ten (decimal shift left)...
     result *= 10;
     // ...and add the lsb digit.
@@ -7,17 +7,28 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import de.michab.simulator.ClockEvent;
+
 
 
 /**
- * Represents a CIA's internal time of day clock.
+ * Represents a CIA's internal time of day clock.  The clock has no thread
+ * of its own.  The time of day is computed from the system clock's cycle
+ * count relative to the point in time the clock was set.  The alarm is a
+ * single event scheduled on the system clock for the time it is due.
+ *
+ * <p>All methods have to be called with the lock on the host CIA held.</p>
  *
  * @see de.michab.simulator.mos6502.Cia
  * @version $Revision: 11 $
  * @author Michael G. Binz
  */
 final class Clock
-  implements Runnable
+  extends ClockEvent
 {
   private static final int TENTH_PER_SEC = 10;
   private static final int TENTH_PER_MIN = 60 * TENTH_PER_SEC;
@@ -25,30 +36,37 @@ final class Clock
   private static final int TENTH_PER_DAY = 24 * TENTH_PER_HOUR;
 
   /**
-   * 
+   *
    */
   private final static boolean _debug = false;
 
 
 
   /**
-   * The thread driving this unit.
+   * A name for this unit for debugging purposes.
    */
-  private final Thread _worker;
+  private final String _name;
 
 
 
   /**
-   * A name for this unit for debugging purposes.
+   * The home CIA.
    */
-  private final String _name;
+  private final Cia _home;
 
 
 
   /**
-   * The home CIA.
+   * The system clock.
    */
-  private final Cia _home;
+  private final de.michab.simulator.Clock _systemClock;
+
+
+
+  /**
+   * The number of system clock ticks per tenth of a second.
+   */
+  private final int ticksPerTenthSecond;
 
 
 
@@ -65,10 +83,26 @@ final class Clock
   private int _alarmTenthSecs = 0;
 
 
+
+  /**
+   * The time in tenth of seconds at <code>_baseCycle</code>.
+   */
+  private int _baseTime = 0;
+
+
+
   /**
-   * The current time in tenth of seconds.
+   * The system clock cycle the clock was last set.
    */
-  private int _currentTime = 0;
+  private long _baseCycle = 0;
+
+
+
+  /**
+   * The clock stops while it is set.  Writing the hours stops the clock,
+   * writing the tenth of seconds restarts it.
+   */
+  private boolean _stopped = false;
 
 
 
@@ -87,48 +121,96 @@ final class Clock
 
 
 
-  private final de.michab.simulator.Clock.ClockHandle _clockHandle;
-  private final int ticksPerTenthSecond;
-
-
   /**
    * Creates an instance of a CIAs real time clock.
    *
    * @param home A reference to the CIA the Clock is part of.
-   * @param name A name for the internal thread.  Used for debug purposes.
+   * @param systemClock The system clock.
+   * @param name A name used for debug purposes.
    */
   Clock( Cia home, de.michab.simulator.Clock systemClock, String name )
   {
-    _clockHandle = systemClock.register();
+    _systemClock = systemClock;
     ticksPerTenthSecond = (int)systemClock.getResolution() / 10;
 
     _home = home;
     _name = name;
-    _worker = new Thread( this, _name );
-    _worker.setDaemon( true );
-    _worker.start();
   }
 
 
 
   /**
-   * Implements the alarm functionality.
+   * Compute the current time.
+   *
+   * @param now The current system clock cycle.
+   * @return The time in tenth of seconds.
+   */
+  private int currentTime( long now )
+  {
+    if ( _stopped )
+      return _baseTime;
+
+    long elapsed = (now - _baseCycle) / ticksPerTenthSecond;
+
+    return (int)((_baseTime + elapsed) % TENTH_PER_DAY);
+  }
+
+
+
+  /**
+   * Get the current time.  If a time has been latched by reading the hours
+   * that is returned.
+   *
+   * @return The time in tenth of seconds.
+   */
+  private int readTime()
+  {
+    if ( _readBuffer >= 0 )
+      return _readBuffer;
+
+    return currentTime( _systemClock.currentTime() );
+  }
+
+
+
+  /**
+   * Schedule the alarm event for the next time the clock reaches the
+   * alarm time.
    */
-  public void run()
+  private void scheduleAlarm()
   {
-    _clockHandle.prepare();
+    if ( _stopped || _alarmTime < 0 || _alarmTime >= TENTH_PER_DAY )
+    {
+      _systemClock.cancel( this );
+      return;
+    }
+
+    long now = _systemClock.currentTime();
+    long elapsed = (now - _baseCycle) / ticksPerTenthSecond;
 
-    while ( true )
+    // The number of tenth of seconds after the base time the clock shows
+    // the alarm time the next time.
+    long ahead = (_alarmTime - _baseTime) % TENTH_PER_DAY;
+    if ( ahead < 0 )
+      ahead += TENTH_PER_DAY;
+    if ( ahead <= elapsed )
+      ahead += TENTH_PER_DAY * ((elapsed - ahead) / TENTH_PER_DAY + 1);
+
+    _systemClock.schedule( this, _baseCycle + ahead * ticksPerTenthSecond );
+  }
+
+
+
+  /**
+   * Called by the system clock when the alarm time is reached.
+   */
+  @Override
+  public void fire( long time )
+  {
+    synchronized ( _home )
     {
-      _clockHandle.advance( ticksPerTenthSecond );
-      
-      if ( _currentTime < TENTH_PER_DAY )
-        _currentTime++;
-      else
-        _currentTime = 0;
-      
-      if ( _currentTime == _alarmTime )
-        _home.alarm();
+      _home.alarm();
+      scheduleAlarm();
     }
   }
 
@@ -136,12 +218,13 @@ final class Clock
 
   /**
    * Set tenth of seconds.  In case the alarm bit is true then the alarm time
-   * is set else the start time.
+   * is set else the start time.  Setting the start time restarts the
+   * clock.
    *
    * @param value Tenth of seconds value.
    * @param alarm If true then alarm time is set else start time.
    */
-  public synchronized void setTenthSeconds( int value, boolean alarm )
+  void setTenthSeconds( int value, boolean alarm )
   {
     if ( _debug )
       System.err.println( _name + " tenth: " + value );
@@ -162,24 +245,28 @@ final class Clock
     }
     else
     {
-      _currentTime =
+      _baseTime =
         (_hours * TENTH_PER_HOUR) +
         (_minutes * TENTH_PER_MIN) +
         (_seconds * TENTH_PER_SEC) +
         _tenthSecs;
+      _baseCycle = _systemClock.currentTime();
+      _stopped = false;
     }
+
+    scheduleAlarm();
   }
 
 
 
   /**
    * Set seconds field.
-   * 
+   *
    * @param value The seconds value.
    * @param alarm If <code>true</code> the alarm time is set, otherwise the
    *        start time.
    */
-  public synchronized void setSeconds( int value, boolean alarm )
+  void setSeconds( int value, boolean alarm )
   {
     if ( _debug )
       System.err.println( _name + " seconds: " + value );
@@ -194,12 +281,12 @@ final class Clock
 
   /**
    * Set minutes field.
-   * 
+   *
    * @param value The minutes value.
    * @param alarm If <code>true</code> the alarm time is set, otherwise the
    *        start time.
    */
-  public synchronized void setMinutes( int value, boolean alarm )
+  void setMinutes( int value, boolean alarm )
   {
     if ( _debug )
       System.err.println( _name + " minutes: " + value );
@@ -213,36 +300,45 @@ final class Clock
 
 
   /**
-   * Set hours field.
-   * 
+   * Set hours field.  Setting the start time stops the clock until the
+   * tenth of seconds are written.
+   *
    * @param value The hours value.
    * @param alarm If <code>true</code> the alarm time is set, otherwise the
    *        start time.
    */
-  public synchronized void setHours( int value, boolean alarm )
+  void setHours( int value, boolean alarm )
   {
     if ( _debug )
       System.err.println( _name + " hours: " + value );
 
     if ( alarm )
+    {
       _alarmHours = value;
-    else
-      _hours = value;
+      return;
+    }
+
+    _hours = value;
+
+    if ( ! _stopped )
+    {
+      _baseTime = currentTime( _systemClock.currentTime() );
+      _stopped = true;
+      scheduleAlarm();
+    }
   }
 
 
 
   /**
-   * Read the current tenth of seconds value.
-   * 
+   * Read the current tenth of seconds value.  This releases a time latched
+   * by reading the hours.
+   *
    * @return The contents of the tenth of seconds register.
    */
-  public synchronized int getTenthSeconds()
+  int getTenthSeconds()
   {
-    int currentTime =
-      (_readBuffer < 0) ?
-        _currentTime :
-        _readBuffer;
+    int currentTime = readTime();
 
     // Free the intermediate time buffer.
     _readBuffer = -1;
@@ -254,59 +350,110 @@ final class Clock
 
   /**
    * Read the current seconds value.
-   * 
+   *
    * @return The contents of the seconds register.
    */
-  public synchronized int getSeconds()
+  int getSeconds()
   {
-    int currentTime =
-      (_readBuffer < 0) ?
-        _currentTime :
-        _readBuffer;
-
-    return (currentTime/TENTH_PER_SEC) % 60;
+    return (readTime()/TENTH_PER_SEC) % 60;
   }
 
 
 
   /**
    * Read the current minutes value.
-   * 
+   *
    * @return The contents of the minutes register.
    */
-  public synchronized int getMinutes()
+  int getMinutes()
   {
-    int currentTime =
-      (_readBuffer < 0) ?
-        _currentTime :
-        _readBuffer;
-
-    return (currentTime/TENTH_PER_MIN) % 60;
+    return (readTime()/TENTH_PER_MIN) % 60;
   }
 
 
 
   /**
    * Returns the clock's current hour value.  Result is in range [0..23].
+   * Reading the hours latches the time until the tenth of seconds are
+   * read.
    */
-  public synchronized int getHours()
+  int getHours()
   {
-    _readBuffer = _currentTime;
+    _readBuffer = readTime();
 
     return _readBuffer/TENTH_PER_HOUR;
   }
 
 
 
+  /**
+   * Write the clock's state.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeByte( _hours );
+    out.writeByte( _minutes );
+    out.writeByte( _seconds );
+    out.writeByte( _tenthSecs );
+    out.writeByte( _alarmHours );
+    out.writeByte( _alarmMinutes );
+    out.writeByte( _alarmSeconds );
+    out.writeByte( _alarmTenthSecs );
+    out.writeInt( _baseTime );
+    out.writeLong( _baseCycle );
+    out.writeBoolean( _stopped );
+    out.writeInt( _alarmTime );
+    out.writeInt( _readBuffer );
+  }
+
+
+
+  /**
+   * Read the clock's state and schedule the alarm.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    _hours = in.readUnsignedByte();
+    _minutes = in.readUnsignedByte();
+    _seconds = in.readUnsignedByte();
+    _tenthSecs = in.readUnsignedByte();
+    _alarmHours = in.readUnsignedByte();
+    _alarmMinutes = in.readUnsignedByte();
+    _alarmSeconds = in.readUnsignedByte();
+    _alarmTenthSecs = in.readUnsignedByte();
+    _baseTime = in.readInt();
+    _baseCycle = in.readLong();
+    _stopped = in.readBoolean();
+    _alarmTime = in.readInt();
+    _readBuffer = in.readInt();
+
+    scheduleAlarm();
+  }
+
+
+
   /*
    * Inherit Javadoc.
    */
-  synchronized void reset()
+  void reset()
   {
     _alarmHours = _alarmMinutes = _alarmSeconds = _alarmTenthSecs = 0;
     _hours = _minutes = _seconds = _tenthSecs = 0;
 
-    _currentTime = 0;
+    _baseTime = 0;
+    _baseCycle = _systemClock.currentTime();
+    _stopped = false;
+    _readBuffer = -1;
     _alarmTime = -1;
+
+    scheduleAlarm();
   }
 }
@@ -11,6 +11,10 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 import de.michab.simulator.Clock;
 import de.michab.simulator.*;
 
@@ -33,7 +37,7 @@ public class Cpu6510
   extends
     DefaultChip
   implements
-    Processor
+    Processor, Persistent
 {
   // TODO(MB) class has to be split up into 6502 and 6510.
   public static final int STATUS_FLAG_CARRY = BIT_0;
@@ -69,6 +73,12 @@ public class Cpu6510
 
 
 
+  /**
+   * The processor's handle on the system clock.  <code>null</code> if the
+   * processor is driven by its owner.
+   *
+   * @see #step()
+   */
   private final Clock.ClockHandle _clockId;
 
 
@@ -280,6 +290,13 @@ public class Cpu6510
 
 
 
+  /**
+   * The interrupt lines connected to this processor.
+   */
+  private final InterruptController _interrupts = new InterruptController();
+
+
+
   /**
    * Interrupt pending address.  Set if an interrupt is signalled.  Jump is
    * executed in the main decode/execute loop after finishing the current
@@ -326,6 +343,25 @@ public class Cpu6510
 
 
 
+  /**
+   * Create a processor that is driven by its owner.  No thread is started,
+   * the owner executes the instructions by calling <code>step()</code> and
+   * keeps the time.  This is used for the processors of peripheral devices
+   * that run in lockstep with the host system.
+   *
+   * @param mem The memory to attach to the new processor instance.
+   * @see #step()
+   */
+  public Cpu6510( Memory mem )
+  {
+    _clockId = null;
+    _ports = createPorts( _portMemory.length );
+    _memory = mem;
+    reset();
+  }
+
+
+
   /**
    * Get the <code>Memory</code> this <code>CPU</code> is attached to.
    *
@@ -502,31 +538,25 @@ public class Cpu6510
 
 
   /**
-   * Handles the IRQ interrupt.  This method will be the entry point for
-   * threads controlling other chips in the simulation, hence needs to be
-   * synchronised.
+   * Get the controller for this processor's interrupt lines.  Chips that
+   * generate interrupts create their lines here.
+   *
+   * @return The interrupt controller.
    */
-  public synchronized void IRQ()
+  public InterruptController getInterruptController()
   {
-    if ( ! _interrupt )
-    {
-      // Set the interrupt pending address.  TODO what to do if this is
-      // set yet??
-      _interruptPending = _memory.getVectorAt( IRQ_VECTOR );
-      _interruptPendingType = INT_IRQ;
-    }
+    return _interrupts;
   }
 
 
 
   /**
-   * Handles the NMI interrupt.
+   * Signals a single NMI.  Used for sources that generate a short pulse
+   * instead of holding an interrupt line.
    */
-  public synchronized void NMI()
+  public void NMI()
   {
-    // Set the interrupt pending address.  TODO what to do if this is set yet??
-    _interruptPending = _memory.getVectorAt( NMI_VECTOR );
-    _interruptPendingType = INT_NMI;
+    _interrupts.pulseNmi();
   }
 
 
@@ -537,7 +567,53 @@ public class Cpu6510
    */
   public void stealCycles( int count )
   {
-    _clockId.stealTicks( count );
+    if ( _clockId != null )
+      _clockId.stealTicks( count );
+  }
+
+
+
+  /**
+   * Execute a single instruction.  Only allowed for processors that are
+   * driven by their owner.
+   *
+   * @return The number of cycles the instruction took.
+   * @throws IllegalStateException If the processor runs on the system clock.
+   * @see #Cpu6510(Memory)
+   */
+  public int step()
+  {
+    if ( _clockId != null )
+      throw new IllegalStateException( "Runs on the system clock." );
+
+    tick();
+
+    return _cycles;
+  }
+
+
+
+  /**
+   * Get the processor's local time.  During a memory access this is the
+   * time the current instruction started.
+   *
+   * @return The local time in clock ticks, zero for a processor that is
+   *         driven by its owner.
+   */
+  public long getLocalTime()
+  {
+    return _clockId == null ? 0 : _clockId.currentLocalTime();
+  }
+
+
+
+  /**
+   * Set the overflow flag.  This is the processor's SO pin, a falling edge
+   * sets the flag.  Has to be called on the processor's thread.
+   */
+  public void setOverflow()
+  {
+    _overflow = true;
   }
 
 
@@ -569,11 +645,11 @@ public class Cpu6510
 
 
   /**
-   * The processor driver loop.
+   * The processor driver loop.  Ends when the clock is stopped.
    */
   private void dispatchTicks()
   {
-    while ( true )
+    while ( ! _clockId.isStopped() )
     {
       tick();
     }
@@ -586,6 +662,24 @@ public class Cpu6510
    */
   private void tick()
   {
+    // Poll the interrupt lines.  This is a single volatile read as long as
+    // no interrupt is signalled.
+    int lines = _interrupts.poll();
+    if ( lines != 0 && _interruptPending == Integer.MIN_VALUE )
+    {
+      if ( InterruptController.isNmi( lines ) &&
+          _interrupts.acknowledgeNmi() )
+      {
+        _interruptPending = _memory.getVectorAt( NMI_VECTOR );
+        _interruptPendingType = INT_NMI;
+      }
+      else if ( InterruptController.isIrq( lines ) && ! _interrupt )
+      {
+        _interruptPending = _memory.getVectorAt( IRQ_VECTOR );
+        _interruptPendingType = INT_IRQ;
+      }
+    }
+
     // Check for pending interrupt.  If there is an interrupt pending...
     if ( _interruptPending != Integer.MIN_VALUE )
     {
@@ -1755,7 +1849,8 @@ public class Cpu6510
           reset();
     }
     
-    _clockId.advance( _cycles );
+    if ( _clockId != null )
+      _clockId.advance( _cycles );
   }
 
 
@@ -1880,6 +1975,52 @@ public class Cpu6510
 
 
 
+  /**
+   * Write the processor's local time, its registers, the pending interrupt
+   * and the state of the interrupt lines.  The processor is between two
+   * instructions when this is called from a clock event.
+   */
+  public void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeLong( getLocalTime() );
+    out.writeShort( _pc );
+    out.writeByte( _accu );
+    out.writeByte( _x );
+    out.writeByte( _y );
+    out.writeByte( _stack );
+    out.writeByte( getStatusRegister() );
+    out.writeInt( _interruptPending );
+    out.writeByte( _interruptPendingType );
+    out.write( _portMemory );
+    out.writeInt( _interrupts.poll() );
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public void restoreState( DataInput in )
+    throws IOException
+  {
+    long time = in.readLong();
+    if ( _clockId != null )
+      _clockId.setLocalTime( time );
+    _pc = in.readUnsignedShort();
+    _accu = in.readByte();
+    _x = in.readByte();
+    _y = in.readByte();
+    _stack = in.readByte();
+    setStatusRegister( in.readByte() );
+    _interruptPending = in.readInt();
+    _interruptPendingType = in.readUnsignedByte();
+    in.readFully( _portMemory );
+    _interrupts.setState( in.readInt() );
+  }
+
+
+
   /**
    * Push the program counter onto the stack.
    */
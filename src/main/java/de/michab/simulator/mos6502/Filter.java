@@ -0,0 +1,230 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import de.michab.simulator.Processor;
+
+
+
+/**
+ * The SID's multi mode filter.  Implemented as a fixed point state variable
+ * filter that processes a run of samples at once.
+ *
+ * <p>The filter coefficients for all possible values of the cutoff and
+ * resonance registers are precomputed.  Register writes therefore cost
+ * nothing, the registers are read in <code>prepare()</code> only after
+ * writes were applied.
+ * The cost per sample is constant: three multiplications and a handful of
+ * additions, independent of the register settings.</p>
+ *
+ * @see de.michab.simulator.mos6502.Sid
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Filter
+{
+  /**
+   * Register offsets in the SID's register set.
+   */
+  private static final int FC_LO = 0x15;
+  private static final int FC_HI = 0x16;
+  private static final int RES_FILT = 0x17;
+  private static final int MODE_VOL = 0x18;
+
+
+
+  /**
+   * The filter coefficients are 16.16 fixed point values.
+   */
+  private static final int SHIFT = 16;
+
+
+
+  /**
+   * The cutoff frequency at register value zero in Hz.
+   */
+  private static final double CUTOFF_MIN = 30.0;
+
+
+
+  /**
+   * The cutoff frequency increment per register step in Hz.
+   */
+  private static final double CUTOFF_STEP = 5.8;
+
+
+
+  /**
+   * The frequency coefficient for each of the 2048 cutoff register values.
+   * The coefficient is <code>2 sin(pi fc / fs)</code>.
+   */
+  private static final int[] CUTOFF = new int[ 2048 ];
+
+
+
+  /**
+   * The damping coefficient for each of the 16 resonance register values.
+   * The damping is the reciprocal of the filter's quality.
+   */
+  private static final int[] DAMPING = new int[ 16 ];
+
+
+
+  /**
+   * The filter state.
+   */
+  private int _lowPass = 0;
+  private int _bandPass = 0;
+
+
+
+  /**
+   * The coefficients for the current run of samples.
+   */
+  private int _cutoff = CUTOFF[ 0 ];
+  private int _damping = DAMPING[ 0 ];
+
+
+
+  /**
+   * The output modes selected for the current run of samples.
+   */
+  private boolean _lowPassOn = false;
+  private boolean _bandPassOn = false;
+  private boolean _highPassOn = false;
+
+
+
+  /**
+   * Read the filter registers and set up the coefficients for the next
+   * run of samples.
+   *
+   * @param registers The SID's registers.
+   */
+  void prepare( int[] registers )
+  {
+    int cutoff =
+      (registers[ FC_LO ] & 0x7) |
+      ((registers[ FC_HI ] & 0xff) << 3);
+
+    _cutoff = CUTOFF[ cutoff ];
+    _damping = DAMPING[ (registers[ RES_FILT ] >> 4) & 0xf ];
+
+    int mode = registers[ MODE_VOL ];
+    _lowPassOn = (mode & Processor.BIT_4) != 0;
+    _bandPassOn = (mode & Processor.BIT_5) != 0;
+    _highPassOn = (mode & Processor.BIT_6) != 0;
+  }
+
+
+
+  /**
+   * Filter a run of samples in place.
+   *
+   * @param samples The samples to filter.
+   * @param from The index of the first sample to filter.
+   * @param to The index after the last sample to filter.
+   */
+  void process( int[] samples, int from, int to )
+  {
+    int lowPass = _lowPass;
+    int bandPass = _bandPass;
+    long cutoff = _cutoff;
+    long damping = _damping;
+
+    for ( int i = from ; i < to ; i++ )
+    {
+      lowPass += (int)((cutoff * bandPass) >> SHIFT);
+      int highPass =
+        samples[i] - lowPass - (int)((damping * bandPass) >> SHIFT);
+      bandPass += (int)((cutoff * highPass) >> SHIFT);
+
+      int output = 0;
+      if ( _lowPassOn )
+        output += lowPass;
+      if ( _bandPassOn )
+        output += bandPass;
+      if ( _highPassOn )
+        output += highPass;
+
+      samples[i] = output;
+    }
+
+    _lowPass = lowPass;
+    _bandPass = bandPass;
+  }
+
+
+
+  /**
+   * Write the filter's state.  The coefficients are not written, they are
+   * computed from the registers.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeInt( _lowPass );
+    out.writeInt( _bandPass );
+  }
+
+
+
+  /**
+   * Read the filter's state.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    _lowPass = in.readInt();
+    _bandPass = in.readInt();
+  }
+
+
+
+  /**
+   * Clear the filter's state.
+   */
+  void reset()
+  {
+    _lowPass = 0;
+    _bandPass = 0;
+  }
+
+
+
+  static
+  {
+    // The state variable filter gets unstable if the cutoff frequency gets
+    // close to half the sample rate.  Limit it to a quarter.
+    double maximum = Sid.SAMPLE_RATE / 4.0;
+
+    for ( int i = 0 ; i < CUTOFF.length ; i++ )
+    {
+      double fc = Math.min( CUTOFF_MIN + i * CUTOFF_STEP, maximum );
+      double f = 2.0 * Math.sin( Math.PI * fc / Sid.SAMPLE_RATE );
+      CUTOFF[i] = (int)(f * (1 << SHIFT));
+    }
+
+    // Quality ranges from 0.707 (no resonance) to about 2.4.
+    for ( int i = 0 ; i < DAMPING.length ; i++ )
+    {
+      double q = 0.707 + (1.7 * i) / 15.0;
+      DAMPING[i] = (int)((1.0 / q) * (1 << SHIFT));
+    }
+  }
+}
@@ -0,0 +1,237 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import de.michab.simulator.Processor;
+
+
+
+/**
+ * <p>A cycle exact model of the oscillator of voice 3.  This is the source
+ * of the SID's OSC3 register that programs read as a random number
+ * generator.</p>
+ *
+ * <p>The rendering voices run ahead of the processor in blocks, so their
+ * state can't be read.  This model is updated on register writes with the
+ * processor's time instead and computes the accumulator arithmetically from
+ * the cycles elapsed.  The result only depends on the written registers
+ * and the cycle count, i.e. it is the same on each run.  Ring modulation
+ * and sync are not modelled.</p>
+ *
+ * <p>All methods have to be called with the lock on the host SID held.</p>
+ *
+ * @see de.michab.simulator.mos6502.Sid
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Oscillator3
+{
+  private static final int ACC_MASK = 0xffffff;
+  private static final int ACC_MSB = 0x800000;
+
+
+
+  /**
+   * The noise register is shifted on each rising edge of accumulator
+   * bit 19.
+   */
+  private static final int NOISE_CLOCK = 0x80000;
+
+
+
+  /**
+   * The initial noise register and its period.
+   */
+  private static final int NOISE_INIT = 0x7ffff8;
+  private static final int NOISE_MASK = 0x7fffff;
+  private static final int NOISE_PERIOD = NOISE_MASK;
+
+
+
+  /**
+   * The voice's frequency, pulse width and control registers.
+   */
+  private int _frequency = 0;
+  private int _pulseWidth = 0;
+  private int _control = 0;
+
+
+
+  /**
+   * The accumulator at <code>_time</code>.
+   */
+  private int _accumulator = 0;
+
+
+
+  /**
+   * The noise register at <code>_time</code>.
+   */
+  private int _noise = NOISE_INIT;
+
+
+
+  /**
+   * The time the oscillator was last brought up to date.
+   */
+  private long _time = 0;
+
+
+
+  /**
+   * Called on a write to one of the voice's registers.
+   *
+   * @param register The register relative to the voice's base.
+   * @param value The value written.
+   * @param now The current time.
+   */
+  void write( int register, int value, long now )
+  {
+    advance( now );
+
+    switch ( register )
+    {
+      case 0:
+        _frequency = (_frequency & 0xff00) | value;
+        break;
+      case 1:
+        _frequency = (_frequency & 0xff) | (value << 8);
+        break;
+      case 2:
+        _pulseWidth = (_pulseWidth & 0xf00) | value;
+        break;
+      case 3:
+        _pulseWidth = (_pulseWidth & 0xff) | ((value & 0xf) << 8);
+        break;
+      case 4:
+        _control = value;
+        // The test bit holds the accumulator at zero and resets the noise
+        // register.
+        if ( (value & Processor.BIT_3) != 0 )
+        {
+          _accumulator = 0;
+          _noise = NOISE_INIT;
+        }
+        break;
+      default:
+        break;
+    }
+  }
+
+
+
+  /**
+   * Compute the upper eight bits of the waveform output at the passed
+   * time.  If more than one waveform is selected the outputs are combined
+   * with a logical and.
+   *
+   * @param now The current time.
+   * @return The OSC3 register value.
+   */
+  int read( long now )
+  {
+    advance( now );
+
+    int waveform = _control & 0xf0;
+
+    if ( waveform == 0 )
+      return 0;
+
+    int result = 0xfff;
+
+    if ( (waveform & Processor.BIT_4) != 0 )
+    {
+      int acc = (_accumulator & ACC_MSB) != 0 ?
+        ~_accumulator :
+        _accumulator;
+      result &= (acc >> 11) & 0xfff;
+    }
+    if ( (waveform & Processor.BIT_5) != 0 )
+      result &= _accumulator >> 12;
+    if ( (waveform & Processor.BIT_6) != 0 )
+      result &= (_accumulator >> 12) >= _pulseWidth ? 0xfff : 0;
+    if ( (waveform & Processor.BIT_7) != 0 )
+      result &= Voice.noiseOutput( _noise );
+
+    return result >> 4;
+  }
+
+
+
+  /**
+   * Write the oscillator's state.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeShort( _frequency );
+    out.writeShort( _pulseWidth );
+    out.writeByte( _control );
+    out.writeInt( _accumulator );
+    out.writeInt( _noise );
+    out.writeLong( _time );
+  }
+
+
+
+  /**
+   * Read the oscillator's state.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    _frequency = in.readUnsignedShort();
+    _pulseWidth = in.readUnsignedShort();
+    _control = in.readUnsignedByte();
+    _accumulator = in.readInt();
+    _noise = in.readInt();
+    _time = in.readLong();
+  }
+
+
+
+  /**
+   * Bring the accumulator and the noise register up to the passed time.
+   *
+   * @param now The current time.
+   */
+  private void advance( long now )
+  {
+    long cycles = now - _time;
+    _time = now;
+
+    if ( cycles <= 0 || (_control & Processor.BIT_3) != 0 )
+      return;
+
+    long start = _accumulator;
+    long end = start + cycles * _frequency;
+
+    // Count the rising edges of bit 19 in (start, end].
+    long shifts =
+      Math.floorDiv( end - NOISE_CLOCK, 2 * NOISE_CLOCK ) -
+      Math.floorDiv( start - NOISE_CLOCK, 2 * NOISE_CLOCK );
+
+    _accumulator = (int)(end & ACC_MASK);
+
+    for ( long i = shifts % NOISE_PERIOD ; i > 0 ; i-- )
+    {
+      int feedback = ((_noise >> 22) ^ (_noise >> 17)) & 1;
+      _noise = ((_noise << 1) | feedback) & NOISE_MASK;
+    }
+  }
+}
@@ -12,6 +12,9 @@ import de.michab.simulator.*;
 
 import java.awt.*;
 import java.awt.image.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
 
@@ -232,6 +235,15 @@ final class RasterDisplay
 
 
 
+  /**
+   * The raster line that is drawn next.  At the start of a frame this is
+   * only different from zero if the emulation continues from a snapshot
+   * that was taken in the middle of a frame.
+   */
+  private int _nextRasterLine = 0;
+
+
+
   /**
    *
    */
@@ -255,11 +267,12 @@ final class RasterDisplay
 
   /**
    * The graphics object used for drawing.  The instance is injected by paint
-   * calls from our UI context.
+   * calls from our UI context.  Until the first paint the frames are
+   * computed but not drawn.
    *
    * @see RasterDisplay#paint(Graphics)
    */
-  private Graphics _graphics = null;
+  private volatile Graphics _graphics = null;
 
 
 
@@ -363,7 +376,8 @@ final class RasterDisplay
 
 
   /**
-   * Shuts down the raster thread.
+   * Shuts down the raster thread.  The thread also ends when the clock
+   * is stopped.
    */
   void terminate()
   {
@@ -380,12 +394,10 @@ final class RasterDisplay
     _clockId.prepare();
     try
     {
-      // We unschedule the repaint thread until we are actually receiving
-      // the first paint notification.  For the reschedule() operation
-      // see the paint() implementation.
-      _clockId.unschedule();
-
-      while ( ! _repaintThread.isInterrupted() )
+      // The raster runs from the start, independent of whether the display
+      // is visible yet.  Raster interrupts and bad lines thus happen at the
+      // same cycles on each run.
+      while ( ! _repaintThread.isInterrupted() && ! _clockId.isStopped() )
       {
         _currentVideoMode.startFrame(
           _characterSetAdr,
@@ -423,9 +435,14 @@ final class RasterDisplay
         _currentRasterLine < rasterMax ;
         _currentRasterLine++ )
     {
+      // Lines before the next line to draw are skipped, only their bad
+      // lines are handled to bring the rasterer up to date.
+      boolean skip = _currentRasterLine < _nextRasterLine;
+
       if ( isBadLine( _currentRasterLine ) )
       {
-        _vic.stealCycles( 40 );
+        if ( ! skip )
+          _vic.stealCycles( 40 );
 
         if ( _scheduledVideoMode != null )
         {
@@ -440,10 +457,21 @@ final class RasterDisplay
         _currentVideoMode.badLine( _currentRasterLine );
       }
 
+      if ( skip )
+        continue;
+
       drawRasterLine( _currentRasterLine );
+      _nextRasterLine = _currentRasterLine + 1;
       _clockId.advance( 64 );
     }
 
+    _nextRasterLine = 0;
+
+    // Nothing to draw on until the display is shown.
+    Graphics graphics = _graphics;
+    if ( graphics == null )
+      return;
+
     // Raster screen is complete and up to date, now beam the whole thing into
     // the image...
     _bufferedImage.getRaster().setDataElements(
@@ -454,7 +482,8 @@ final class RasterDisplay
       _screen );
 
     // ...and bang out the data to where the sun always shines.
-    _graphics.drawImage(
+
+    graphics.drawImage(
       _bufferedImage,
       0,
       0,
@@ -632,6 +661,40 @@ final class RasterDisplay
 
 
 
+  /**
+   * Write the raster's local time and position.  Only valid while the
+   * raster thread waits for the clock, e.g. in a clock event.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeLong( _clockId.currentLocalTime() );
+    out.writeShort( _currentRasterLine );
+    out.writeShort( _nextRasterLine );
+  }
+
+
+
+  /**
+   * Read the raster's local time and position.  The raster continues with
+   * the next line when the emulation is started.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    _clockId.setLocalTime( in.readLong() );
+    _currentRasterLine = in.readUnsignedShort();
+    _nextRasterLine = in.readUnsignedShort();
+  }
+
+
+
   /**
    * Get the raster line that will trigger an interrupt on drawing.
    *
@@ -781,9 +844,5 @@ final class RasterDisplay
 
     if ( oldGfx != null )
       oldGfx.dispose();
-    else
-      // We had no previous graphics object, so this must be the very first
-      // paint.  Start the raster thread.
-      _clockId.reschedule();
   }
 }
@@ -0,0 +1,32 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+
+
+/**
+ * Receives the samples generated by the <code>Sid</code>.  Samples are
+ * delivered as 16 bit signed little endian mono samples at
+ * <code>Sid.SAMPLE_RATE</code>.
+ *
+ * @see de.michab.simulator.mos6502.Sid
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public interface SampleSink
+{
+  /**
+   * Called for each block of generated samples.  Called on the SID's
+   * thread, the emulation is blocked until the call returns.
+   *
+   * @param samples The buffer holding the samples.
+   * @param offset The offset of the first sample byte in the buffer.
+   * @param length The number of bytes to write.
+   */
+  void write( byte[] samples, int offset, int length );
+}
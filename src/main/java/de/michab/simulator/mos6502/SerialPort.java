@@ -0,0 +1,484 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import de.michab.simulator.Clock;
+import de.michab.simulator.ClockEvent;
+import de.michab.simulator.SerialLine;
+
+
+
+/**
+ * <p>Implements the CIA's serial port, the shift register behind the SDR
+ * register and the SP and CNT pins.</p>
+ *
+ * <p>In output mode a byte is shifted out clocked by the underflows of
+ * timer A, a bit takes two underflows.  If timer A runs on the system clock
+ * the time the last bit is out is computed when the transfer starts and a
+ * single event is scheduled for it.  Otherwise the underflows are counted.
+ * In input mode a bit is shifted in on each positive edge of the CNT pin,
+ * alternatively a connected device can pass a complete byte.</p>
+ *
+ * <p>All methods have to be called with the lock on the host CIA held.</p>
+ *
+ * @see de.michab.simulator.mos6502.Cia
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class SerialPort
+  extends ClockEvent
+{
+  /**
+   * The number of timer underflows needed to shift out a byte.
+   */
+  private static final int UNDERFLOWS_PER_BYTE = 16;
+
+
+
+  /**
+   * A name for this unit for debugging purposes.
+   */
+  private final String _name;
+
+
+
+  /**
+   * The home CIA.
+   */
+  private final Cia _cia;
+
+
+
+  /**
+   * The timer clocking the output.
+   */
+  private final Timer _timer;
+
+
+
+  /**
+   * The system clock.
+   */
+  private final Clock _clock;
+
+
+
+  /**
+   * The device connected to the port.  May be <code>null</code>.
+   */
+  private SerialLine _line = null;
+
+
+
+  /**
+   * True if the port shifts out, false if it shifts in.
+   */
+  private boolean _output = false;
+
+
+
+  /**
+   * The shift register.
+   */
+  private int _shift = 0;
+
+
+
+  /**
+   * The number of bits shifted in.
+   */
+  private int _bits = 0;
+
+
+
+  /**
+   * The level of the SP and CNT pins in input mode.
+   */
+  private boolean _sp = true;
+  private boolean _cnt = true;
+
+
+
+  /**
+   * True while a byte is shifted out.
+   */
+  private boolean _active = false;
+
+
+
+  /**
+   * A byte written while a transfer was in progress.  Negative if empty.
+   */
+  private int _buffer = -1;
+
+
+
+  /**
+   * The number of timer underflows until the current transfer is
+   * complete.
+   */
+  private int _remaining;
+
+
+
+  /**
+   * True if the end of the current transfer is scheduled on the clock.  In
+   * that case the timer underflows are described by the time of the first
+   * one and the period.
+   */
+  private boolean _predicted = false;
+  private long _first;
+  private long _period;
+
+
+
+  /**
+   * Creates a serial port.
+   *
+   * @param home The port's host CIA.
+   * @param timer The timer clocking the output.
+   * @param clock The system clock.
+   * @param name A name used for debug purposes.
+   */
+  SerialPort( Cia home, Timer timer, Clock clock, String name )
+  {
+    _cia = home;
+    _timer = timer;
+    _clock = clock;
+    _name = name;
+  }
+
+
+
+  /**
+   * Connect a device to the port.
+   *
+   * @param line The device, <code>null</code> to disconnect.
+   */
+  void connect( SerialLine line )
+  {
+    _line = line;
+  }
+
+
+
+  /**
+   * Select the direction of the port.  Changing the direction aborts a
+   * transfer in progress.
+   *
+   * @param output <code>true</code> for output.
+   */
+  void setOutput( boolean output )
+  {
+    if ( output == _output )
+      return;
+
+    _output = output;
+    _active = false;
+    _predicted = false;
+    _buffer = -1;
+    _bits = 0;
+    _clock.cancel( this );
+  }
+
+
+
+  /**
+   * Called on a write to the SDR register.  In output mode this starts a
+   * transfer, or buffers the byte if a transfer is in progress.
+   *
+   * @param value The value written.
+   */
+  void write( byte value )
+  {
+    if ( ! _output )
+      return;
+
+    if ( _active )
+      _buffer = value & 0xff;
+    else
+      start( value & 0xff, _clock.currentTime() );
+  }
+
+
+
+  /**
+   * Called after the timing of timer A changed.  The progress of the
+   * current transfer is computed with the old timing, the remaining
+   * transfer is scheduled with the new one.
+   */
+  void timerChanged()
+  {
+    if ( ! _active )
+      return;
+
+    long now = _clock.currentTime();
+
+    if ( _predicted && now >= _first )
+    {
+      long elapsed = 1 + (now - _first) / _period;
+
+      if ( elapsed >= _remaining )
+      {
+        finish( _first + (_remaining - 1) * _period );
+        return;
+      }
+
+      _remaining -= (int)elapsed;
+    }
+
+    resync( now );
+  }
+
+
+
+  /**
+   * Called on each underflow of timer A.  Only used if the end of the
+   * transfer could not be scheduled.
+   *
+   * @param time The time of the underflow.
+   */
+  void timerUnderflow( long time )
+  {
+    if ( _active && ! _predicted && --_remaining <= 0 )
+      finish( time );
+  }
+
+
+
+  /**
+   * Called by the clock when the last bit is shifted out.
+   */
+  @Override
+  public void fire( long time )
+  {
+    synchronized ( _cia )
+    {
+      if ( _active && _predicted && time == dueTime() )
+        finish( time );
+    }
+  }
+
+
+
+  /**
+   * Set the level of the CNT pin.  In input mode a positive edge shifts in
+   * the level of the SP pin.
+   *
+   * @param level The new level.
+   */
+  void setCnt( boolean level )
+  {
+    boolean rising = level && ! _cnt;
+
+    _cnt = level;
+
+    if ( _output || ! rising )
+      return;
+
+    _shift = ((_shift << 1) | (_sp ? 1 : 0)) & 0xff;
+
+    if ( ++_bits == 8 )
+    {
+      _bits = 0;
+      _cia.serialReceived( (byte)_shift );
+    }
+  }
+
+
+
+  /**
+   * Set the level of the SP pin.
+   *
+   * @param level The new level.
+   */
+  void setSp( boolean level )
+  {
+    _sp = level;
+  }
+
+
+
+  /**
+   * Receive a complete byte.  Ignored in output mode.
+   *
+   * @param value The byte received.
+   */
+  void receive( byte value )
+  {
+    if ( _output )
+      return;
+
+    _bits = 0;
+    _cia.serialReceived( value );
+  }
+
+
+
+  /**
+   * Reset the port to input mode.
+   */
+  void reset()
+  {
+    setOutput( false );
+  }
+
+
+
+  /**
+   * Write the port's state.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeBoolean( _output );
+    out.writeByte( _shift );
+    out.writeByte( _bits );
+    out.writeBoolean( _sp );
+    out.writeBoolean( _cnt );
+    out.writeBoolean( _active );
+    out.writeShort( _buffer );
+    out.writeByte( _remaining );
+    out.writeBoolean( _predicted );
+    out.writeLong( _first );
+    out.writeLong( _period );
+  }
+
+
+
+  /**
+   * Read the port's state and schedule the end of a transfer in progress.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    _output = in.readBoolean();
+    _shift = in.readUnsignedByte();
+    _bits = in.readUnsignedByte();
+    _sp = in.readBoolean();
+    _cnt = in.readBoolean();
+    _active = in.readBoolean();
+    _buffer = in.readShort();
+    _remaining = in.readUnsignedByte();
+    _predicted = in.readBoolean();
+    _first = in.readLong();
+    _period = in.readLong();
+
+    if ( _active && _predicted )
+      _clock.schedule( this, dueTime() );
+    else
+      _clock.cancel( this );
+  }
+
+
+
+  /**
+   * Start shifting out a byte.
+   *
+   * @param value The byte.
+   * @param now The current time.
+   */
+  private void start( int value, long now )
+  {
+    _shift = value;
+    _active = true;
+    _remaining = UNDERFLOWS_PER_BYTE;
+
+    resync( now );
+  }
+
+
+
+  /**
+   * Schedule the end of the current transfer if the timer underflows are
+   * predictable.
+   *
+   * @param now The current time.
+   */
+  private void resync( long now )
+  {
+    _predicted = false;
+
+    if ( _timer.isPredictable() )
+    {
+      long first = _timer.nextUnderflowAfter( now );
+
+      if ( first >= 0 && (_remaining == 1 || _timer.isCyclic()) )
+      {
+        _first = first;
+        _period = _timer.getPeriod();
+        _predicted = true;
+        _clock.schedule( this, dueTime() );
+        return;
+      }
+    }
+
+    _clock.cancel( this );
+  }
+
+
+
+  /**
+   * Get the time the current transfer ends.  Only valid if the transfer is
+   * predicted.
+   *
+   * @return The time of the last underflow of the transfer.
+   */
+  private long dueTime()
+  {
+    return _first + (_remaining - 1) * _period;
+  }
+
+
+
+  /**
+   * The current transfer is complete.  The byte is passed to the connected
+   * device and a buffered byte is started.
+   *
+   * @param time The time the last bit was shifted out.
+   */
+  private void finish( long time )
+  {
+    _active = false;
+    _predicted = false;
+    _clock.cancel( this );
+
+    if ( _line != null )
+      _line.transmit( (byte)_shift, time );
+
+    _cia.serialFinished();
+
+    if ( _buffer >= 0 )
+    {
+      int value = _buffer;
+      _buffer = -1;
+      start( value, Math.max( time, _clock.currentTime() ) );
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  @Override
+  public String toString()
+  {
+    return _name;
+  }
+}
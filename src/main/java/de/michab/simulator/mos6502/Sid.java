@@ -7,25 +7,56 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.management.ObjectName;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.SourceDataLine;
+
 import de.michab.simulator.*;
+import de.michab.simulator.Clock;
 
 
 
 /**
  * <p>The MOS 6581 Sound Interface Device.</p>
  *
+ * <p>The SID is a client of the system clock and generates sound in blocks
+ * of <code>GENLEN</code> samples on its own thread.  Register writes are
+ * not applied immediately but recorded with their emulated cycle time in a
+ * preallocated queue.  While a block is rendered the writes are applied at
+ * the sample position that corresponds to their time.  This makes sample
+ * playback by rapid writes to the volume register work and keeps the cost
+ * of a single write constant.</p>
+ *
+ * <p>The three voices are computed in a single loop and mixed into one 16
+ * bit mono output line.</p>
+ *
+ * <p>Statistics on the audio output path are available from
+ * <code>getStatistics()</code>.  The statistics of a SID playing on the
+ * audio line are registered as an MXBean named
+ * <code>de.michab.simulator:type=Sid,name=SID-n</code>, those of a SID
+ * writing to a sink only if <code>registerStatistics()</code> is called.
+ * The MXBean is unregistered by <code>shutdown()</code>.</p>
+ *
  * @see de.michab.simulator.mos6502.Voice
  * @version $Revision: 11 $
  * @author Michael G. Binz
  */
-public final class Sid 
-  extends 
+public final class Sid
+  extends
     DefaultChip
+  implements
+    Persistent
 {
-  private static Logger log = 
+  private static Logger log =
     Logger.getLogger( Sid.class.getName() );
 
   /**
@@ -56,6 +87,14 @@ public final class Sid
 
 
 
+  /**
+   * The model of voice 3's oscillator that is read from the OSC3
+   * register.
+   */
+  private final Oscillator3 _osc3 = new Oscillator3();
+
+
+
   /**
    * If this flag is false sound is not played.
    */
@@ -71,26 +110,226 @@ public final class Sid
 
 
   /**
-   * Create an instance.
+   * The output sample rate.
+   */
+  public static final int SAMPLE_RATE = 44100;
+
+
+
+  /**
+   * The number of samples generated in a single block.
+   */
+  private static final int GENLEN = 440;
+
+
+
+  /**
+   * The size of the audio line's buffer in bytes.
+   */
+  private static final int LINE_BUFFER_SIZE = 16384;
+
+
+
+  /**
+   * Scales the sum of the voices multiplied with the master volume down to
+   * the 16 bit sample range.
+   */
+  private static final int MIX_SHIFT = 10;
+
+
+
+  /**
+   * The capacity of the write queue.  A block covers less than 10000
+   * cycles and the fastest register write takes four cycles, so a queue of
+   * this size never overflows in practice.
+   */
+  private static final int QUEUE_SIZE = 4096;
+
+
+
+  /**
+   * The sink receiving the generated samples.
+   */
+  private final SampleSink _sink;
+
+
+
+  /**
+   * The audio output statistics.
+   */
+  private final SidStatistics _statistics = new SidStatistics();
+
+
+
+  /**
+   * Counts the instances for naming the statistics MXBean.
+   */
+  private static int _sidCount = 0;
+
+
+
+  /**
+   * The name the statistics are registered with, <code>null</code> if they
+   * are not registered.
+   */
+  private ObjectName _statisticsName = null;
+
+
+
+  /**
+   * The sample buffer.  Holds a block of 16 bit little endian samples.
+   */
+  private final byte[] _buffer = new byte[ 2 * GENLEN ];
+
+
+
+  /**
+   * The filter stage.
+   */
+  private final Filter _filter = new Filter();
+
+
+
+  /**
+   * Collects the sum of the voices routed through the filter for a block.
+   */
+  private final int[] _filtered = new int[ GENLEN ];
+
+
+
+  /**
+   * Collects the sum of the voices bypassing the filter for a block.
+   */
+  private final int[] _direct = new int[ GENLEN ];
+
+
+
+  /**
+   * The number of chip clock cycles per output sample as a 16.16 fixed
+   * point value.
+   */
+  private final long _cyclesPerSample;
+
+
+
+  /**
+   * The system clock.  Used to time stamp register writes.
+   */
+  private final Clock _clock;
+
+
+
+  /**
+   * This chip's handle on the system clock.
+   */
+  private final Clock.ClockHandle _clockHandle;
+
+
+
+  /**
+   * The cycle times of the queued register writes.
+   */
+  private final long[] _queueTime = new long[ QUEUE_SIZE ];
+
+
+
+  /**
+   * The queued register writes.  Holds the register number in the upper
+   * and the value in the lower eight bits.
+   */
+  private final int[] _queueWrite = new int[ QUEUE_SIZE ];
+
+
+
+  /**
+   * The index of the oldest entry in the write queue.
+   */
+  private int _queueHead = 0;
+
+
+
+  /**
+   * The index of the next free entry in the write queue.
    */
-  public Sid()
+  private int _queueTail = 0;
+
+
+
+  /**
+   * The time of the next sample to render in chip cycles as a 16.16 fixed
+   * point value.
+   */
+  private long _sampleTime = 0;
+
+
+
+  /**
+   * The mixing parameters for the current run of samples.  These are set
+   * up by <code>prepareRun()</code>.
+   */
+  private int _volume;
+  private int _filter0;
+  private int _filter1;
+  private int _filter2;
+  private int _voice3;
+  private boolean _filterOn;
+
+
+
+  /**
+   * Create an instance that plays its sound on the system's audio line.
+   *
+   * @param clock The system clock.
+   */
+  public Sid( Clock clock )
+  {
+    this( clock, null );
+  }
+
+
+
+  /**
+   * Create an instance that writes its sound to the passed sink.
+   *
+   * @param clock The system clock.
+   * @param sink The sink receiving the samples.  If <code>null</code> is
+   *        passed the sound is played on the system's audio line and the
+   *        statistics are registered.
+   * @see #registerStatistics()
+   */
+  public Sid( Clock clock, SampleSink sink )
   {
     _ports = createPorts( _registers.length );
 
-    try
+    _clock = clock;
+    _clockHandle = clock.register();
+    _cyclesPerSample = (clock.getResolution() << 16) / SAMPLE_RATE;
+
+    _voices[0] = new Voice( _registers, 0 );
+    _voices[1] = new Voice( _registers, 7 );
+    _voices[2] = new Voice( _registers, 14 );
+    _voices[0].setNext( _voices[2] );
+    _voices[1].setNext( _voices[0] );
+    _voices[2].setNext( _voices[1] );
+
+    if ( sink != null )
+      _sink = sink;
+    else
     {
-      _voices[0] = new Voice( _registers, 0 );
-      _voices[1] = new Voice( _registers, 7 );
-      _voices[2] = new Voice( _registers, 14 );
-      _voices[0].setNext( _voices[2] );
-      _voices[1].setNext( _voices[0] );
-      _voices[2].setNext( _voices[1] );
+      _sink = openLine();
+      registerStatistics();
     }
-    catch ( Exception e )
+
+    Thread worker = new Thread( new Runnable()
     {
-      log.log( Level.SEVERE, "Error while initializing SID chip.", e );
-      _error = true;
-    }
+      public void run()
+      {
+        generate();
+      }
+    }, "SID" );
+
+    worker.setDaemon( true );
+    worker.start();
   }
 
 
@@ -104,10 +343,10 @@ public final class Sid
 
     switch ( portId )
     {
-      // Offers a random value from noise generator 3.  The current
-      // implementation simply returns random values.
+      // The upper bits of voice 3's waveform output.  Programs use this
+      // as a random number generator.
       case 27:
-        result = (int)(Math.random() * 256.0);
+        result = _osc3.read( _clock.currentTime() );
         break;
 
       // AD converter registers.  Currently a dummy implementation, in a real
@@ -138,8 +377,9 @@ public final class Sid
 
 
 
-  /*
-   * Inherit javadoc.
+  /**
+   * Queues the write with the current emulation time.  The write takes
+   * effect when the sample at that time is rendered.
    */
   public synchronized void write( int portId, byte value )
   {
@@ -149,42 +389,25 @@ public final class Sid
     if ( log.isLoggable( Level.FINE ) )
       log.fine( "Sid: write: " + portId + " = " + data );
 
-    if ( ! isSoundOn() )
-      return;
+    int next = (_queueTail + 1) % QUEUE_SIZE;
 
-    switch ( portId )
+    // If the queue is full the oldest write is applied right away.  This
+    // loses its timing but not the write.
+    if ( next == _queueHead )
     {
-      case 0x4:
-      {
-        _voices[0].updateVoice( data );
-        break;
-      } 
-      case 0xb:
-      {
-        _voices[1].updateVoice( data );
-        break;
-      }
-      case 0x12:
-      {
-        _voices[2].updateVoice( data );
-        break;
-      }
+      applyWrite( _queueWrite[ _queueHead ] );
+      _queueHead = (_queueHead + 1) % QUEUE_SIZE;
+    }
 
-      // Volume.
-      case 0x18:
-      {
-        _voices[0].setVolume(data & 0xf);
-        _voices[1].setVolume(data & 0xf);
-        _voices[2].setVolume(data & 0xf);
-        break;
-      }
+    long now = _clock.currentTime();
 
-      default:
-        _registers[ portId ] = data;
-        break;
-    }
+    _queueTime[ _queueTail ] = now;
+    _queueWrite[ _queueTail ] = (portId << 8) | data;
+    _queueTail = next;
 
-    updateSound();
+    // Voice 3's registers also drive the OSC3 register.
+    if ( portId >= 14 && portId <= 18 )
+      _osc3.write( portId - 14, data, now );
   }
 
 
@@ -202,8 +425,140 @@ public final class Sid
   /*
    * Inherit Javadoc.
    */
-  public void reset()
+  public synchronized void reset()
+  {
+    _filter.reset();
+  }
+
+
+
+  /**
+   * Write the chip's state.  The voices are rendered in blocks, so the
+   * state is the one at the start of the next block.  The register writes
+   * that are not yet rendered are written with their times.
+   */
+  public synchronized void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeLong( _clockHandle.currentLocalTime() );
+    for ( int r : _registers )
+      out.writeByte( r );
+    for ( Voice v : _voices )
+      v.saveState( out );
+    _filter.saveState( out );
+    _osc3.saveState( out );
+    out.writeLong( _sampleTime );
+
+    out.writeShort( (_queueTail - _queueHead + QUEUE_SIZE) % QUEUE_SIZE );
+    for ( int i = _queueHead ; i != _queueTail ; i = (i + 1) % QUEUE_SIZE )
+    {
+      out.writeLong( _queueTime[ i ] );
+      out.writeShort( _queueWrite[ i ] );
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void restoreState( DataInput in )
+    throws IOException
+  {
+    _clockHandle.setLocalTime( in.readLong() );
+    for ( int i = 0 ; i < _registers.length ; i++ )
+      _registers[ i ] = in.readUnsignedByte();
+    for ( Voice v : _voices )
+      v.restoreState( in );
+    _filter.restoreState( in );
+    _osc3.restoreState( in );
+    _sampleTime = in.readLong();
+
+    int count = in.readUnsignedShort();
+    if ( count >= QUEUE_SIZE )
+      throw new IOException( "Invalid SID state." );
+
+    _queueHead = 0;
+    _queueTail = count;
+    for ( int i = 0 ; i < count ; i++ )
+    {
+      _queueTime[ i ] = in.readLong();
+      _queueWrite[ i ] = in.readUnsignedShort();
+    }
+  }
+
+
+
+  /**
+   * Get the statistics on the audio output path.
+   *
+   * @return The statistics.
+   */
+  public SidStatistics getStatistics()
+  {
+    return _statistics;
+  }
+
+
+
+  /**
+   * Register the statistics with the platform MBean server.  Nothing
+   * happens if they are registered already.  A failure is logged but
+   * otherwise ignored.
+   *
+   * @see #shutdown()
+   */
+  public synchronized void registerStatistics()
   {
+    if ( _statisticsName != null )
+      return;
+
+    int count;
+
+    synchronized ( Sid.class )
+    {
+      count = ++_sidCount;
+    }
+
+    try
+    {
+      ObjectName name =
+        new ObjectName( "de.michab.simulator:type=Sid,name=SID-" + count );
+
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+        _statistics,
+        name );
+
+      _statisticsName = name;
+    }
+    catch ( Exception e )
+    {
+      log.log( Level.WARNING, "Could not register SID statistics.", e );
+    }
+  }
+
+
+
+  /**
+   * Shut the SID down.  Unregisters the statistics from the platform MBean
+   * server.  Called when the emulation the SID is part of ends.
+   */
+  public synchronized void shutdown()
+  {
+    if ( _statisticsName == null )
+      return;
+
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+        _statisticsName );
+    }
+    catch ( Exception e )
+    {
+      log.log( Level.WARNING, "Could not unregister SID statistics.", e );
+    }
+
+    _statisticsName = null;
   }
 
 
@@ -235,12 +590,365 @@ public final class Sid
 
 
   /**
-   * Simply propagate the sound update to the three voices.
+   * The SID's thread body.  Advances the chip's clock by one block and
+   * renders the block once the rest of the system caught up, that is, all
+   * register writes for the block are in the queue.  Ends when the clock
+   * is stopped and closes the audio line then.
+   */
+  private void generate()
+  {
+    _clockHandle.prepare();
+
+    long blockCycles16 = GENLEN * _cyclesPerSample;
+
+    while ( ! _clockHandle.isStopped() )
+    {
+      long start = _sampleTime;
+      long end = start + blockCycles16;
+
+      _clockHandle.advance( (int)((end >> 16) - (start >> 16)) );
+
+      boolean soundOn;
+
+      synchronized ( this )
+      {
+        // The state may have been restored from a snapshot while waiting
+        // for the clock.  Render the block that follows the restored
+        // state then.
+        start = _sampleTime;
+        end = start + blockCycles16;
+
+        soundOn = isSoundOn();
+
+        if ( soundOn )
+        {
+          renderBlock( _buffer, GENLEN, start );
+          _statistics.generated( GENLEN );
+        }
+        else
+          applyWrites( end );
+
+        _sampleTime = end;
+      }
+
+      if ( soundOn )
+        _sink.write( _buffer, 0, _buffer.length );
+    }
+
+    if ( _sink instanceof LineSink )
+      ((LineSink)_sink).close();
+  }
+
+
+
+  /**
+   * Open the system's audio line.
+   *
+   * @return A sink writing to the audio line or <code>null</code> if the
+   *         line could not be opened.  In that case the error flag is set.
+   */
+  private SampleSink openLine()
+  {
+    try
+    {
+      AudioFormat af = new AudioFormat( SAMPLE_RATE, 16, 1, true, false );
+      DataLine.Info dli =
+        new DataLine.Info( SourceDataLine.class, af, LINE_BUFFER_SIZE );
+
+      SourceDataLine line = (SourceDataLine)AudioSystem.getLine( dli );
+      line.open( af, LINE_BUFFER_SIZE );
+      line.start();
+
+      return new LineSink( line );
+    }
+    catch ( Exception e )
+    {
+      log.log( Level.SEVERE, "Error while initializing SID chip.", e );
+      _error = true;
+      return null;
+    }
+  }
+
+
+
+  /**
+   * Apply a single queued register write.
+   *
+   * @param write The queued write holding register and value.
+   */
+  private void applyWrite( int write )
+  {
+    int portId = write >> 8;
+    int data = write & 0xff;
+
+    _registers[ portId ] = data;
+
+    switch ( portId )
+    {
+      case 0x4:
+      {
+        _voices[0].updateVoice( data );
+        break;
+      }
+      case 0xb:
+      {
+        _voices[1].updateVoice( data );
+        break;
+      }
+      case 0x12:
+      {
+        _voices[2].updateVoice( data );
+        break;
+      }
+
+      default:
+        break;
+    }
+  }
+
+
+
+  /**
+   * Apply all queued writes that are due before the passed time without
+   * rendering.  Used while sound is off.
+   *
+   * @param time The time in chip cycles as a 16.16 fixed point value.
    */
-  private void updateSound()
+  private void applyWrites( long time )
   {
-      _voices[0].updateSound();
-      _voices[1].updateSound();
-      _voices[2].updateSound();
+    while ( _queueHead != _queueTail )
+    {
+      if ( _queueTime[ _queueHead ] << 16 >= time )
+        break;
+
+      applyWrite( _queueWrite[ _queueHead ] );
+      _queueHead = (_queueHead + 1) % QUEUE_SIZE;
+    }
+  }
+
+
+
+  /**
+   * Render a block of samples.  Queued writes are applied at the sample
+   * position that corresponds to their time.  The block is split into runs
+   * of samples between writes, each run is rendered with fixed
+   * parameters.
+   *
+   * @param buffer The target buffer receiving 16 bit little endian samples.
+   * @param length The number of samples to render.
+   * @param start The time of the first sample in chip cycles as a 16.16
+   *        fixed point value.
+   */
+  private void renderBlock( byte[] buffer, int length, long start )
+  {
+    prepareRun();
+
+    int position = 0;
+
+    while ( position < length )
+    {
+      int end = length;
+      boolean changed = false;
+
+      while ( _queueHead != _queueTail )
+      {
+        long due = (_queueTime[ _queueHead ] << 16) - start;
+
+        // The index of the first sample at or after the write.
+        long index = due <= 0 ?
+          0 :
+          (due + _cyclesPerSample - 1) / _cyclesPerSample;
+
+        if ( index > position )
+        {
+          end = (int)Math.min( index, length );
+          break;
+        }
+
+        applyWrite( _queueWrite[ _queueHead ] );
+        _queueHead = (_queueHead + 1) % QUEUE_SIZE;
+        changed = true;
+      }
+
+      if ( changed )
+        prepareRun();
+
+      renderRun( buffer, position, end );
+      position = end;
+    }
+  }
+
+
+
+  /**
+   * Read the registers and set up the voices, the filter and the mixing
+   * parameters for the next run of samples.
+   */
+  private void prepareRun()
+  {
+    _voices[0].prepare( _cyclesPerSample );
+    _voices[1].prepare( _cyclesPerSample );
+    _voices[2].prepare( _cyclesPerSample );
+
+    int routing = _registers[ 0x17 ];
+    int modeVolume = _registers[ 0x18 ];
+    _volume = modeVolume & 0xf;
+
+    // Masks selecting the filter path for each voice.  All bits set if the
+    // voice is routed through the filter.
+    _filter0 = -(routing & Processor.BIT_0);
+    _filter1 = -((routing & Processor.BIT_1) >> 1);
+    _filter2 = -((routing & Processor.BIT_2) >> 2);
+
+    // Voice three can be disconnected from the output if it is not routed
+    // through the filter.
+    _voice3 =
+      (modeVolume & Processor.BIT_7) != 0 && _filter2 == 0 ? 0 : -1;
+
+    _filterOn = (routing & 0x7) != 0;
+
+    if ( _filterOn )
+      _filter.prepare( _registers );
+  }
+
+
+
+  /**
+   * Render a run of samples with fixed parameters.  This is the fused loop
+   * that clocks all three voices and splits their output into a filtered
+   * and a direct sum.  The filtered part is then run through the filter as
+   * a whole and finally both parts are mixed with the master volume.
+   *
+   * @param buffer The target buffer receiving 16 bit little endian samples.
+   * @param from The index of the first sample to render.
+   * @param to The index after the last sample to render.
+   */
+  private void renderRun( byte[] buffer, int from, int to )
+  {
+    Voice v0 = _voices[0];
+    Voice v1 = _voices[1];
+    Voice v2 = _voices[2];
+
+    int filter0 = _filter0;
+    int filter1 = _filter1;
+    int filter2 = _filter2;
+    int voice3 = _voice3;
+
+    int[] filtered = _filtered;
+    int[] direct = _direct;
+
+    for ( int i = from ; i < to ; i++ )
+    {
+      v0.clock();
+      v1.clock();
+      v2.clock();
+
+      v0.synchronize();
+      v1.synchronize();
+      v2.synchronize();
+
+      int o0 = v0.output();
+      int o1 = v1.output();
+      int o2 = v2.output() & voice3;
+
+      filtered[i] = (o0 & filter0) + (o1 & filter1) + (o2 & filter2);
+      direct[i] = (o0 & ~filter0) + (o1 & ~filter1) + (o2 & ~filter2);
+    }
+
+    if ( _filterOn )
+      _filter.process( filtered, from, to );
+
+    int volume = _volume;
+
+    for ( int i = from, b = 2 * from ; i < to ; i++ )
+    {
+      int sample = ((direct[i] + filtered[i]) * volume) >> MIX_SHIFT;
+
+      if ( sample > Short.MAX_VALUE )
+        sample = Short.MAX_VALUE;
+      else if ( sample < Short.MIN_VALUE )
+        sample = Short.MIN_VALUE;
+
+      buffer[b++] = (byte)sample;
+      buffer[b++] = (byte)(sample >> 8);
+    }
+  }
+
+
+
+  /**
+   * Writes the samples to the system's audio line.  Never blocks the
+   * emulation, if the line has no room for a block the block is dropped.
+   * Records the line's state in the statistics.
+   */
+  private final class LineSink
+    implements SampleSink
+  {
+    /**
+     * The audio line.
+     */
+    private final SourceDataLine _line;
+
+
+
+    /**
+     * The number of samples written to the line.
+     */
+    private long _written = 0;
+
+
+
+    /**
+     * Create an instance.
+     *
+     * @param line The audio line to write to.
+     */
+    LineSink( SourceDataLine line )
+    {
+      _line = line;
+    }
+
+
+
+    /*
+     * Inherit javadoc.
+     */
+    public void write( byte[] samples, int offset, int length )
+    {
+      int available = _line.available();
+      int bufferSize = _line.getBufferSize();
+
+      // The line's buffer is empty on the first write, this is not an
+      // underrun.
+      if ( _written > 0 )
+      {
+        long queued = _written - _line.getLongFramePosition();
+
+        // A register write is heard after the rest of its block has been
+        // rendered and the line played what is queued before it.
+        double latency = ((queued + GENLEN) * 1000.0) / SAMPLE_RATE;
+
+        _statistics.lineState( bufferSize, bufferSize - available, latency );
+      }
+
+      if ( available < length )
+      {
+        _statistics.dropped( length / 2 );
+        return;
+      }
+
+      _line.write( samples, offset, length );
+      _written += length / 2;
+    }
+
+
+
+    /**
+     * Close the audio line.
+     */
+    void close()
+    {
+      _line.close();
+    }
   }
 }
@@ -0,0 +1,200 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * Statistics on the SID's audio output path.  Written by the SID's thread
+ * and readable from any thread, either directly or through JMX.
+ *
+ * @see de.michab.simulator.mos6502.Sid#getStatistics()
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class SidStatistics
+  implements SidStatisticsMXBean
+{
+  /**
+   * The number of buckets in the fill level histogram.
+   */
+  private static final int BUCKETS = 8;
+
+
+
+  private final AtomicLong _generated = new AtomicLong();
+  private final AtomicLong _dropped = new AtomicLong();
+  private final AtomicLong _underruns = new AtomicLong();
+  private final AtomicLongArray _histogram = new AtomicLongArray( BUCKETS );
+
+
+
+  /**
+   * The latest latency estimate.
+   */
+  private volatile double _latency = 0;
+
+
+
+  /**
+   * The size of the audio line's buffer in bytes.
+   */
+  private volatile int _bufferSize = 0;
+
+
+
+  /**
+   * Create an instance.
+   */
+  SidStatistics()
+  {
+  }
+
+
+
+  /**
+   * Record generated samples.
+   *
+   * @param count The number of samples.
+   */
+  void generated( int count )
+  {
+    _generated.addAndGet( count );
+  }
+
+
+
+  /**
+   * Record dropped samples.
+   *
+   * @param count The number of samples.
+   */
+  void dropped( int count )
+  {
+    _dropped.addAndGet( count );
+  }
+
+
+
+  /**
+   * Record the state of the audio line on a block write.
+   *
+   * @param bufferSize The size of the line's buffer in bytes.
+   * @param filled The number of bytes waiting in the line's buffer.
+   * @param latency The estimated latency in milliseconds.
+   */
+  void lineState( int bufferSize, int filled, double latency )
+  {
+    _bufferSize = bufferSize;
+    _latency = latency;
+
+    if ( filled <= 0 )
+      _underruns.incrementAndGet();
+
+    int bucket = (int)(((long)filled * BUCKETS) / bufferSize);
+    _histogram.incrementAndGet( Math.max( 0, Math.min( bucket, BUCKETS-1 ) ) );
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public long getSamplesGenerated()
+  {
+    return _generated.get();
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public long getSamplesDropped()
+  {
+    return _dropped.get();
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public long getUnderruns()
+  {
+    return _underruns.get();
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public int getBufferSize()
+  {
+    return _bufferSize;
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public long[] getFillHistogram()
+  {
+    long[] result = new long[ BUCKETS ];
+
+    for ( int i = 0 ; i < result.length ; i++ )
+      result[i] = _histogram.get( i );
+
+    return result;
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public double getLatencyMillis()
+  {
+    return _latency;
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  public void reset()
+  {
+    _generated.set( 0 );
+    _dropped.set( 0 );
+    _underruns.set( 0 );
+
+    for ( int i = 0 ; i < BUCKETS ; i++ )
+      _histogram.set( i, 0 );
+  }
+
+
+
+  /*
+   * Inherit javadoc.
+   */
+  @Override
+  public String toString()
+  {
+    return
+      "generated=" + getSamplesGenerated() +
+      " dropped=" + getSamplesDropped() +
+      " underruns=" + getUnderruns() +
+      " latency=" + getLatencyMillis() + "ms";
+  }
+}
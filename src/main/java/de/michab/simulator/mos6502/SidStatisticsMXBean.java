@@ -0,0 +1,60 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+
+
+/**
+ * The management interface of the SID's audio statistics.
+ *
+ * @see de.michab.simulator.mos6502.SidStatistics
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public interface SidStatisticsMXBean
+{
+  /**
+   * @return The number of samples generated.
+   */
+  long getSamplesGenerated();
+
+  /**
+   * @return The number of generated samples that were dropped since the
+   *         audio line had no room for them.
+   */
+  long getSamplesDropped();
+
+  /**
+   * @return The number of times the audio line ran empty.
+   */
+  long getUnderruns();
+
+  /**
+   * @return The size of the audio line's buffer in bytes.
+   */
+  int getBufferSize();
+
+  /**
+   * @return The fill level of the audio line's buffer sampled on each
+   *         block write.  Entry <code>i</code> counts the writes that found
+   *         the buffer filled between <code>i</code> and <code>i+1</code>
+   *         eighths.
+   */
+  long[] getFillHistogram();
+
+  /**
+   * @return The estimated time in milliseconds from a register write to
+   *         the resulting sound reaching the speaker.
+   */
+  double getLatencyMillis();
+
+  /**
+   * Reset all counters.
+   */
+  void reset();
+}
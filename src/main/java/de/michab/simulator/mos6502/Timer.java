@@ -7,22 +7,40 @@
  */
 package de.michab.simulator.mos6502;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import de.michab.simulator.Clock;
+import de.michab.simulator.ClockEvent;
 
 
 
 /**
- * Implements a single CIA timer.
+ * <p>Implements a single CIA timer.  The timer has no thread of its own.
+ * While running it is scheduled as an event on the system clock for the
+ * time of its next underflow, the current counter value is computed from the
+ * clock on each read.</p>
+ *
+ * <p>The timer counts the events of its input.  This is either the system
+ * clock, pulses on the CNT pin or the underflows of the other timer.  If the
+ * input events happen at predictable times -- the system clock or the
+ * underflows of a timer counting the system clock -- they are described by
+ * the time of the first event and a period.  Counter values and the time of
+ * the next underflow are then computed arithmetically, so a cascaded timer
+ * costs nothing between its underflows.  CNT pulses are counted one by
+ * one.</p>
+ *
+ * <p>All methods have to be called with the lock on the host CIA held.</p>
  *
  * @see de.michab.simulator.mos6502.Cia
  * @version $Revision: 410 $
  * @author Michael G. Binz
  */
 final class Timer
-  implements Runnable
+  extends ClockEvent
 {
   // The logger for this class.
   private static final Logger _log =
@@ -31,9 +49,37 @@ final class Timer
 
 
   /**
-   * The thread driving this unit.
+   * Input mode: Count system clock cycles.
+   */
+  static final int INPUT_PHI2 = 0;
+
+
+
+  /**
+   * Input mode: Count positive edges on the CNT pin.
+   */
+  static final int INPUT_CNT = 1;
+
+
+
+  /**
+   * Input mode: Count underflows of the source timer.
+   */
+  static final int INPUT_UNDERFLOW = 2;
+
+
+
+  /**
+   * Input mode: Count underflows of the source timer while CNT is high.
    */
-  private Thread _worker = null;
+  static final int INPUT_UNDERFLOW_CNT = 3;
+
+
+
+  /**
+   * The timer's name for logging purposes.
+   */
+  private final String _name;
 
 
 
@@ -46,15 +92,23 @@ final class Timer
 
 
   /**
-   * This is the time of day when we started waiting.  Needed for computing
-   * the current timer value for intermediate requests.
+   * The time the counter was loaded with <code>_value</code>.  Needed for
+   * computing the current timer value for intermediate requests.
    */
   private long _startWait;
 
 
 
   /**
-   * Sleep time.
+   * The counter value at <code>_startWait</code> if the timer is running,
+   * the current counter value if the timer is stopped.
+   */
+  private int _value;
+
+
+
+  /**
+   * The timer's latch.  This is the value the counter is loaded with.
    */
   private int _countdownValue;
 
@@ -67,6 +121,58 @@ final class Timer
 
 
 
+  /**
+   * The selected input.
+   */
+  private int _input = INPUT_PHI2;
+
+
+
+  /**
+   * The level of the CNT pin.  The pin has a pull up resistor.
+   */
+  private boolean _cnt = true;
+
+
+
+  /**
+   * The time of the next underflow or -1 if none is scheduled.
+   */
+  private long _nextUnderflow = -1;
+
+
+
+  /**
+   * Describes the input events after <code>_startWait</code>.  If
+   * <code>_inputPredictable</code> is set the events happen at
+   * <code>_inputFirst</code> and, if <code>_inputCyclic</code> is set,
+   * every <code>_inputPeriod</code> cycles after that.
+   */
+  private boolean _inputPredictable = false;
+  private long _inputFirst;
+  private long _inputPeriod;
+  private boolean _inputCyclic;
+
+
+
+  /**
+   * Set if the input events are underflows of the source timer that cannot
+   * be predicted.  These are then counted one by one.
+   */
+  private boolean _countUnderflows = false;
+
+
+
+  /**
+   * Output on the PB pin.
+   */
+  private boolean _outputOn = false;
+  private boolean _outputToggle = false;
+  private boolean _toggle = false;
+  private long _lastUnderflow = -1;
+
+
+
   /**
    * Our host CIA.
    */
@@ -75,16 +181,23 @@ final class Timer
 
 
   /**
-   *
+   * The system clock.
    */
-  private final Clock.ClockHandle _clock;
+  private final Clock _clock;
 
 
 
   /**
    * A reference to a timer that receives timer underflow notifications.
    */
-// TODO activate  private final Timer _coTimer;
+  private final Timer _coTimer;
+
+
+
+  /**
+   * The timer whose underflows are counted in the cascade input modes.
+   */
+  private Timer _source = null;
 
 
 
@@ -93,30 +206,23 @@ final class Timer
    *
    * @param host The timer's host CIA.
    * @param coTimer A reference to a timer object that is to receive
-   *        timer underflow notifications.
+   *        timer underflow notifications.  May be <code>null</code>.
    * @param clock A reference to the system clock.
-   * @param threadName A name to use for the internal thread for debug
-   *        purposes.
+   * @param name A name to use for debug purposes.
    */
   Timer(
       Cia host,
       Timer coTimer,
-      de.michab.simulator.Clock clock,
-      String threadName )
+      Clock clock,
+      String name )
   {
     _cia = host;
-    // TODO
-    // _coTimer = coTimer;
+    _coTimer = coTimer;
+    if ( coTimer != null )
+      coTimer._source = this;
 
-    // Register with the central system clock.
-    _clock = clock.register();
-
-    // Init our thread.
-    _worker = new Thread( this, threadName );
-    _worker.setDaemon( true );
-
-    // Start the timer thread...
-    _worker.start();
+    _clock = clock;
+    _name = name;
   }
 
 
@@ -126,33 +232,41 @@ final class Timer
    *
    * @param loByte The low byte of this timer's start value.
    */
-  synchronized void setStartValueLo( byte loByte )
+  void setStartValueLo( byte loByte )
   {
     if (  _log.isLoggable( Level.FINE ) )
-      _log.fine( _worker.getName() + ":startValueLo:" + loByte );
+      _log.fine( _name + ":startValueLo:" + loByte );
 
     int orable = loByte;
     orable &= 0xff;
     _countdownValue &= 0xff00;
     _countdownValue |= orable;
+
+    notifyCoTimer( _clock.currentTime() );
   }
 
 
 
   /**
-   * Set the high byte of this timer's start value.
+   * Set the high byte of this timer's start value.  If the timer is stopped
+   * the value is loaded into the counter.
    *
    * @param hiByte The high byte of this timer's start value.
    */
-  synchronized void setStartValueHi( byte hiByte )
+  void setStartValueHi( byte hiByte )
   {
     if ( _log.isLoggable( Level.FINE ) )
-      _log.fine( _worker.getName() + ":startValueHi:" + hiByte );
+      _log.fine( _name + ":startValueHi:" + hiByte );
     int orable = hiByte;
     orable &= 0xff;
     orable <<= 8;
     _countdownValue &= 0xff;
     _countdownValue |= orable;
+
+    if ( ! _running )
+      _value = _countdownValue;
+
+    notifyCoTimer( _clock.currentTime() );
   }
 
 
@@ -164,124 +278,571 @@ final class Timer
    *
    * @param value If <code>true</code> this means one-shot mode on.
    */
-  synchronized void setOneshot( boolean value )
+  void setOneshot( boolean value )
   {
+    if ( _cyclicTimer == ! value )
+      return;
+
     _cyclicTimer = ! value;
+
+    notifyCoTimer( _clock.currentTime() );
   }
 
 
 
   /**
+   * Select the timer's input.
    *
+   * @param input One of the <code>INPUT_</code> constants.
    */
-  synchronized void forceLoad()
+  void setInput( int input )
+  {
+    if ( _input == input )
+      return;
+
+    long now = _clock.currentTime();
+
+    fold( now );
+    _input = input;
+    resync( now );
+
+    notifyCoTimer( now );
+  }
+
+
+
+  /**
+   * Configure the timer's output on its PB pin.
+   *
+   * @param on If <code>true</code> the timer drives its PB pin.
+   * @param toggle If <code>true</code> the pin toggles on each underflow,
+   *        otherwise it is pulsed high for a single cycle.
+   */
+  void setOutput( boolean on, boolean toggle )
+  {
+    _outputOn = on;
+    _outputToggle = toggle;
+  }
+
+
+
+  /**
+   * Check whether the timer drives its PB pin.
+   *
+   * @return <code>true</code> if the timer drives its PB pin.
+   */
+  boolean isOutputOn()
+  {
+    return _outputOn;
+  }
+
+
+
+  /**
+   * Get the level of the timer's PB pin.
+   *
+   * @return <code>true</code> if the pin is high.
+   */
+  boolean getOutput()
+  {
+    if ( _outputToggle )
+      return _toggle;
+
+    return _lastUnderflow == _clock.currentTime();
+  }
+
+
+
+  /**
+   * Load the latch into the counter.
+   */
+  void forceLoad()
   {
     if ( _log.isLoggable( Level.FINE ) )
-      _log.fine( _worker.getName() + ":forceLoad:" + _running );
+      _log.fine( _name + ":forceLoad:" + _running );
+
+    long now = _clock.currentTime();
+
+    _value = _countdownValue;
+    _startWait = now;
 
     if ( _running )
-    {
-      _clock.reschedule();
-    }
+      resync( now );
+
+    notifyCoTimer( now );
   }
 
 
 
   /**
-   * Start this timer.  As a result, the thread starts to count down the
-   * currently set sleep time and triggers an interrupt.  This method is called
-   * from some other thread, not the one that controls this unit's internals.
-   * Note that this method has nothing to do with the Thread start() method.
+   * Start this timer.  As a result the timer counts down the current
+   * counter value and triggers an interrupt.  Nothing happens if the timer
+   * is already running.
    */
-  synchronized void start()
+  void start()
   {
     if ( _log.isLoggable( Level.FINE ) )
-      _log.fine(
-          _worker.getName() +
-          ":start:" +
-          _countdownValue );
-		if  (_countdownValue == 0 )
-			return;
-    _clock.reschedule();
+      _log.fine( _name + ":start:" + _value );
+
+    if ( _running || (_value == 0 && _countdownValue == 0) )
+      return;
+
+    long now = _clock.currentTime();
+
+    _running = true;
+    _toggle = true;
+    _startWait = now;
+    resync( now );
+
+    notifyCoTimer( now );
+  }
+
+
+
+  /**
+   * Stop this timer.  The counter keeps its current value.
+   */
+  void stop()
+  {
+    if ( ! _running )
+      return;
+
+    long now = _clock.currentTime();
+
+    fold( now );
+    _running = false;
+    resync( now );
+
+    notifyCoTimer( now );
   }
 
 
 
   /**
-   * Calculates the remaining wait time.
+   * Check whether the timer restarts after an underflow.
    *
-   * @return The remaining wait time.
+   * @return <code>true</code> if the timer is cyclic.
    */
-  private int getCurrentValue()
+  boolean isCyclic()
   {
-      return
-        // Overall wait time...
-        _countdownValue -
-        // ...minus the time we waited so far.
-        (int)(_clock.currentTime() - _startWait);
+    return _cyclicTimer;
   }
 
 
 
   /**
-   * Get the lower byte of the currently remaining wait time.
+   * Check whether the timer is running.
    *
-   * @return The lower byte of the remaining wait time.
-   * @see #getCurrentValueHi()
+   * @return <code>true</code> if the timer is running.
    */
-  synchronized byte getCurrentValueLo()
+  boolean isRunning()
   {
-    return (byte)getCurrentValue();
+    return _running;
   }
 
 
 
   /**
-   * Get the higher byte of the remaining wait time.
+   * Set the level of the CNT pin.  A positive edge is counted if the timer
+   * counts CNT pulses.
    *
-   * @return The high yte of the remaining wait time.
-   * @see #getCurrentValueLo()
+   * @param level The new level.
    */
-  synchronized byte getCurrentValueHi()
+  void setCnt( boolean level )
   {
-    int cv = getCurrentValue();
-    cv >>= 8;
-    return (byte)cv;
+    if ( level == _cnt )
+      return;
+
+    long now = _clock.currentTime();
+
+    if ( _input == INPUT_UNDERFLOW_CNT )
+    {
+      fold( now );
+      _cnt = level;
+      resync( now );
+      return;
+    }
+
+    _cnt = level;
+
+    if ( level && _input == INPUT_CNT )
+      count( now );
+  }
+
+
+
+  /**
+   * Called by the source timer on each underflow.
+   *
+   * @param time The time of the underflow.
+   */
+  private void sourceUnderflow( long time )
+  {
+    if ( _countUnderflows )
+      count( time );
+  }
+
+
+
+  /**
+   * Called by the source timer before its timing changes.  The counter is
+   * brought up to date with the old timing and then synchronised with the
+   * new one.
+   *
+   * @param now The current time.
+   */
+  private void sourceChanged( long now )
+  {
+    if ( _input != INPUT_UNDERFLOW && _input != INPUT_UNDERFLOW_CNT )
+      return;
+
+    fold( now );
+    resync( now );
   }
 
 
 
-  /*
-   * Parent javadoc.
+  /**
+   * Count a single input event.
+   *
+   * @param time The time of the event.
    */
-  public void run()
+  private void count( long time )
   {
-    _clock.prepare();
+    if ( ! _running )
+      return;
+
+    if ( --_value <= 0 )
+      underflow( time );
+  }
+
+
 
-    while ( true )
+  /**
+   * Called by the clock on underflow.
+   */
+  @Override
+  public void fire( long time )
+  {
+    synchronized ( _cia )
+    {
+      if ( _running && time == _nextUnderflow )
+        underflow( time );
+    }
+  }
+
+
+
+  /**
+   * Handle an underflow.  The counter is reloaded from the latch.  A cyclic
+   * timer continues counting, a one shot timer stops.
+   *
+   * @param time The time of the underflow.
+   */
+  private void underflow( long time )
+  {
+    _lastUnderflow = time;
+    _toggle = ! _toggle;
+
+    _value = _countdownValue;
+    _startWait = time;
+
+    if ( _cyclicTimer && _value != 0 )
+    {
+      advanceInput( time );
+      reschedule();
+    }
+    else
     {
       _running = false;
-      try
-      {
-        if ( _log.isLoggable( Level.FINE ) )
-          _log.fine( _worker.getName() + ":unschedule" );
+      resync( time );
+    }
+
+    // Notify our home CIA of the timer finish.
+    _cia.timerFinished( this, time );
 
-        _clock.unschedule();
+    if ( _coTimer != null )
+      _coTimer.sourceUnderflow( time );
+  }
 
-        _running = true;
 
-        do
+
+  /**
+   * Bring the counter value up to date.  Used before the input or the
+   * running state changes.
+   *
+   * @param now The current time.
+   */
+  private void fold( long now )
+  {
+    if ( ! _running )
+      return;
+
+    _value = getCurrentValue( now );
+    _startWait = now;
+    advanceInput( now );
+  }
+
+
+
+  /**
+   * Compute the description of the input events after the passed time and
+   * reschedule the next underflow.
+   *
+   * @param now The current time.
+   */
+  private void resync( long now )
+  {
+    _inputPredictable = false;
+    _countUnderflows = false;
+
+    switch ( _input )
+    {
+      case INPUT_PHI2:
+        _inputPredictable = true;
+        _inputFirst = now + 1;
+        _inputPeriod = 1;
+        _inputCyclic = true;
+        break;
+
+      case INPUT_UNDERFLOW_CNT:
+      case INPUT_UNDERFLOW:
+        // Underflows gated by CNT are only counted while CNT is high.
+        if ( _input == INPUT_UNDERFLOW_CNT && ! _cnt )
+          break;
+
+        if ( _source != null && _source.isPredictable() )
         {
-          _startWait = _clock.currentLocalTime();
-          _clock.advance( _countdownValue );
-          // Notify our home CIA of the timer finish.
-          _cia.timerFinished( this );
+          long first = _source.nextUnderflowAfter( now );
+          _inputPredictable = first >= 0;
+          _inputFirst = first;
+          _inputPeriod = _source.getPeriod();
+          _inputCyclic = _source._cyclicTimer;
         }
-        while ( _cyclicTimer );
-      }
-      catch ( InterruptedException e )
-      {
-      }
+        else
+          _countUnderflows = true;
+        break;
+
+      default:
+        break;
+    }
+
+    reschedule();
+  }
+
+
+
+  /**
+   * Move the first input event behind the passed time.
+   *
+   * @param time The time.
+   */
+  private void advanceInput( long time )
+  {
+    if ( ! _inputPredictable || _inputFirst > time )
+      return;
+
+    if ( _inputCyclic )
+      _inputFirst += _inputPeriod * ((time - _inputFirst) / _inputPeriod + 1);
+    else
+      _inputPredictable = false;
+  }
+
+
+
+  /**
+   * Schedule the next underflow on the clock.
+   */
+  private void reschedule()
+  {
+    _nextUnderflow = -1;
+
+    if ( _running && _inputPredictable )
+    {
+      int n = Math.max( _value, 1 );
+
+      if ( n == 1 )
+        _nextUnderflow = _inputFirst;
+      else if ( _inputCyclic )
+        _nextUnderflow = _inputFirst + (n - 1) * _inputPeriod;
     }
+
+    if ( _nextUnderflow >= 0 )
+      _clock.schedule( this, _nextUnderflow );
+    else
+      _clock.cancel( this );
+  }
+
+
+
+  /**
+   * Notify the timer counting our underflows that our timing changes.
+   *
+   * @param now The current time.
+   */
+  private void notifyCoTimer( long now )
+  {
+    if ( _coTimer != null )
+      _coTimer.sourceChanged( now );
+  }
+
+
+
+  /**
+   * Check whether the underflows of this timer can be predicted.
+   *
+   * @return <code>true</code> if this timer is running on the system clock.
+   */
+  boolean isPredictable()
+  {
+    return _running && _input == INPUT_PHI2;
+  }
+
+
+
+  /**
+   * Get the time of the first underflow after the passed time.
+   *
+   * @param now The time.
+   * @return The time of the underflow or -1 if there is none.
+   */
+  long nextUnderflowAfter( long now )
+  {
+    long result = _nextUnderflow;
+
+    if ( result < 0 || result > now )
+      return result;
+
+    if ( ! _cyclicTimer )
+      return -1;
+
+    long period = getPeriod();
+
+    return result + period * ((now - result) / period + 1);
+  }
+
+
+
+  /**
+   * Get the number of cycles between underflows of a cyclic timer.
+   *
+   * @return The period.
+   */
+  long getPeriod()
+  {
+    return Math.max( _countdownValue, 1 );
+  }
+
+
+
+  /**
+   * Write the timer's state.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeBoolean( _running );
+    out.writeLong( _startWait );
+    out.writeInt( _value );
+    out.writeInt( _countdownValue );
+    out.writeBoolean( _cyclicTimer );
+    out.writeByte( _input );
+    out.writeBoolean( _cnt );
+    out.writeLong( _nextUnderflow );
+    out.writeBoolean( _inputPredictable );
+    out.writeLong( _inputFirst );
+    out.writeLong( _inputPeriod );
+    out.writeBoolean( _inputCyclic );
+    out.writeBoolean( _countUnderflows );
+    out.writeBoolean( _outputOn );
+    out.writeBoolean( _outputToggle );
+    out.writeBoolean( _toggle );
+    out.writeLong( _lastUnderflow );
+  }
+
+
+
+  /**
+   * Read the timer's state and schedule the next underflow.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    _running = in.readBoolean();
+    _startWait = in.readLong();
+    _value = in.readInt();
+    _countdownValue = in.readInt();
+    _cyclicTimer = in.readBoolean();
+    _input = in.readUnsignedByte();
+    _cnt = in.readBoolean();
+    _nextUnderflow = in.readLong();
+    _inputPredictable = in.readBoolean();
+    _inputFirst = in.readLong();
+    _inputPeriod = in.readLong();
+    _inputCyclic = in.readBoolean();
+    _countUnderflows = in.readBoolean();
+    _outputOn = in.readBoolean();
+    _outputToggle = in.readBoolean();
+    _toggle = in.readBoolean();
+    _lastUnderflow = in.readLong();
+
+    if ( _nextUnderflow >= 0 )
+      _clock.schedule( this, _nextUnderflow );
+    else
+      _clock.cancel( this );
+  }
+
+
+
+  /**
+   * Calculates the current counter value.
+   *
+   * @param now The current time.
+   * @return The current counter value.
+   */
+  private int getCurrentValue( long now )
+  {
+    if ( ! _running || ! _inputPredictable || _inputFirst > now )
+      return _value;
+
+    long counted = _inputCyclic ?
+      1 + (now - _inputFirst) / _inputPeriod :
+      1;
+
+    return (int)Math.max( _value - counted, 0 );
+  }
+
+
+
+  /**
+   * Get the lower byte of the currently remaining wait time.
+   *
+   * @return The lower byte of the remaining wait time.
+   * @see #getCurrentValueHi()
+   */
+  byte getCurrentValueLo()
+  {
+    return (byte)getCurrentValue( _clock.currentTime() );
+  }
+
+
+
+  /**
+   * Get the higher byte of the remaining wait time.
+   *
+   * @return The high yte of the remaining wait time.
+   * @see #getCurrentValueLo()
+   */
+  byte getCurrentValueHi()
+  {
+    int cv = getCurrentValue( _clock.currentTime() );
+    cv >>= 8;
+    return (byte)cv;
   }
 }
@@ -0,0 +1,567 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502;
+
+import de.michab.simulator.DefaultChip;
+import de.michab.simulator.Forwarder;
+import de.michab.simulator.InterruptLine;
+import de.michab.simulator.Port;
+import de.michab.simulator.Processor;
+
+
+
+/**
+ * <p>Represents a 6522 <i>V</i>ersatile <i>I</i>nterface <i>A</i>dapter as
+ * used in the 1541 floppy drive.  Implements the two ports, the control
+ * lines CA1, CA2 and CB2, both timers and the interrupt logic.  The shift
+ * register only holds its value, timer 2 does not count pulses on PB6 and
+ * the timers do not drive PB7.</p>
+ *
+ * <p>Unlike the <code>Cia</code> the VIA does not run on the system clock.
+ * The owner passes the cycles executed by calling <code>tick()</code>, this
+ * allows the VIA to run in lockstep with a processor that is driven by its
+ * owner.</p>
+ *
+ * @see Cpu6510#step()
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class Via
+  extends
+    DefaultChip
+{
+  private static final int ORB = 0;
+  private static final int ORA = 1;
+  private static final int DDRB = 2;
+  private static final int DDRA = 3;
+  private static final int T1CL = 4;
+  private static final int T1CH = 5;
+  private static final int T1LL = 6;
+  private static final int T1LH = 7;
+  private static final int T2CL = 8;
+  private static final int T2CH = 9;
+  private static final int SR = 10;
+  private static final int ACR = 11;
+  private static final int PCR = 12;
+  private static final int IFR = 13;
+  private static final int IER = 14;
+  private static final int ORA_NH = 15;
+
+
+
+  /**
+   * Interrupt flags.
+   */
+  private static final int IF_CA2 = Processor.BIT_0;
+  private static final int IF_CA1 = Processor.BIT_1;
+  private static final int IF_CB2 = Processor.BIT_3;
+  private static final int IF_CB1 = Processor.BIT_4;
+  private static final int IF_T2 = Processor.BIT_5;
+  private static final int IF_T1 = Processor.BIT_6;
+  private static final int IF_ANY = Processor.BIT_7;
+
+
+
+  /**
+   * The ACR bit selecting free running mode for timer 1.
+   */
+  private static final int ACR_T1_FREE = Processor.BIT_6;
+
+
+
+  /**
+   * This chip's name for debug and logging purposes.
+   */
+  private final String _name;
+
+
+
+  /**
+   * The interrupt line the VIA drives.
+   */
+  private final InterruptLine _interrupt;
+
+
+
+  /**
+   * The chip's registers.  The timer counters are held separately.
+   */
+  private final byte[] _registers = new byte[ 16 ];
+
+
+
+  /**
+   * The chip's ports.
+   */
+  private final Port[] _ports;
+
+
+
+  /**
+   * The devices connected to the ports.  Read for the input pins and
+   * written with the output pins.  May be <code>null</code>.
+   */
+  private Forwarder _portA = null;
+  private Forwarder _portB = null;
+
+
+
+  /**
+   * The timer counters and latches.
+   */
+  private int _t1Counter = 0xffff;
+  private int _t1Latch = 0xffff;
+  private int _t2Counter = 0xffff;
+  private int _t2LatchLo = 0xff;
+
+
+
+  /**
+   * True if the next underflow of a timer sets its interrupt flag.
+   */
+  private boolean _t1Armed = false;
+  private boolean _t2Armed = false;
+
+
+
+  /**
+   * The level of the CA1 and CB1 inputs.
+   */
+  private boolean _ca1 = true;
+  private boolean _cb1 = true;
+
+
+
+  /**
+   * Create a VIA.
+   *
+   * @param interrupt The interrupt line the VIA drives.
+   * @param name The chip's name for logging purposes.
+   */
+  public Via( InterruptLine interrupt, String name )
+  {
+    _interrupt = interrupt;
+    _name = name;
+    _ports = createPorts( _registers.length );
+  }
+
+
+
+  /**
+   * Connect a device to port A.  The device is read for the input pins and
+   * written with the output pins on each change.  Pins that are not driven
+   * by the VIA are high.
+   *
+   * @param device The device, <code>null</code> to disconnect.
+   */
+  public synchronized void connectPortA( Forwarder device )
+  {
+    _portA = device;
+  }
+
+
+
+  /**
+   * Connect a device to port B.
+   *
+   * @param device The device, <code>null</code> to disconnect.
+   * @see #connectPortA(Forwarder)
+   */
+  public synchronized void connectPortB( Forwarder device )
+  {
+    _portB = device;
+  }
+
+
+
+  /**
+   * Set the level of the CA1 input.  An edge selected in the PCR sets the
+   * interrupt flag.
+   *
+   * @param level The new level.
+   */
+  public synchronized void setCa1( boolean level )
+  {
+    if ( level == _ca1 )
+      return;
+
+    _ca1 = level;
+
+    if ( level == ((_registers[PCR] & Processor.BIT_0) != 0) )
+      setFlags( IF_CA1 );
+  }
+
+
+
+  /**
+   * Set the level of the CB1 input.
+   *
+   * @param level The new level.
+   * @see #setCa1(boolean)
+   */
+  public synchronized void setCb1( boolean level )
+  {
+    if ( level == _cb1 )
+      return;
+
+    _cb1 = level;
+
+    if ( level == ((_registers[PCR] & Processor.BIT_4) != 0) )
+      setFlags( IF_CB1 );
+  }
+
+
+
+  /**
+   * Get the level of the CA2 output.  Only the manual output modes drive
+   * the line, in all other modes it is high.
+   *
+   * @return The level.
+   */
+  public synchronized boolean getCa2()
+  {
+    return (_registers[PCR] & 0x0e) != 0x0c;
+  }
+
+
+
+  /**
+   * Get the level of the CB2 output.
+   *
+   * @return The level.
+   * @see #getCa2()
+   */
+  public synchronized boolean getCb2()
+  {
+    return (_registers[PCR] & 0xe0) != 0xc0;
+  }
+
+
+
+  /**
+   * Get the output pins of port B.  Pins that are not driven are high.
+   *
+   * @return The pins.
+   */
+  public synchronized int getPortB()
+  {
+    return (_registers[ORB] | ~_registers[DDRB]) & 0xff;
+  }
+
+
+
+  /**
+   * Get the output pins of port A.
+   *
+   * @return The pins.
+   * @see #getPortB()
+   */
+  public synchronized int getPortA()
+  {
+    return (_registers[ORA] | ~_registers[DDRA]) & 0xff;
+  }
+
+
+
+  /**
+   * Check whether the CA1 interrupt is enabled.
+   *
+   * @return <code>true</code> if the CA1 interrupt is enabled.
+   */
+  public synchronized boolean isCa1Enabled()
+  {
+    return (_registers[IER] & IF_CA1) != 0;
+  }
+
+
+
+  /**
+   * Advance the timers.
+   *
+   * @param cycles The number of cycles passed.
+   */
+  public synchronized void tick( int cycles )
+  {
+    _t1Counter -= cycles;
+
+    if ( _t1Counter < 0 )
+    {
+      if ( _t1Armed )
+      {
+        setFlags( IF_T1 );
+        _t1Armed = (_registers[ACR] & ACR_T1_FREE) != 0;
+      }
+
+      // In free running mode the latch is reloaded after the counter
+      // reached -1, the period is two cycles longer than the latch value.
+      // The counter is advanced arithmetically, an idle owner passes the
+      // cycles of many periods at once.
+      int period = (_registers[ACR] & ACR_T1_FREE) != 0 ?
+          _t1Latch + 2 :
+          0x10000;
+      _t1Counter = Math.floorMod( _t1Counter, period );
+    }
+
+    _t2Counter -= cycles;
+
+    if ( _t2Counter < 0 )
+    {
+      if ( _t2Armed )
+      {
+        setFlags( IF_T2 );
+        _t2Armed = false;
+      }
+
+      _t2Counter = Math.floorMod( _t2Counter, 0x10000 );
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized byte read( int portId )
+  {
+    switch ( portId )
+    {
+      case ORB:
+        clearFlags( IF_CB1 | cb2Flag() );
+        return readPort( _portB, ORB, DDRB );
+
+      case ORA:
+        clearFlags( IF_CA1 | ca2Flag() );
+        return readPort( _portA, ORA, DDRA );
+
+      case ORA_NH:
+        return readPort( _portA, ORA, DDRA );
+
+      case T1CL:
+        clearFlags( IF_T1 );
+        return (byte)_t1Counter;
+
+      case T1CH:
+        return (byte)(_t1Counter >> 8);
+
+      case T1LL:
+        return (byte)_t1Latch;
+
+      case T1LH:
+        return (byte)(_t1Latch >> 8);
+
+      case T2CL:
+        clearFlags( IF_T2 );
+        return (byte)_t2Counter;
+
+      case T2CH:
+        return (byte)(_t2Counter >> 8);
+
+      case IER:
+        return (byte)(_registers[IER] | IF_ANY);
+
+      default:
+        return _registers[ portId ];
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void write( int portId, byte value )
+  {
+    int v = value & 0xff;
+
+    switch ( portId )
+    {
+      case ORB:
+        clearFlags( IF_CB1 | cb2Flag() );
+        _registers[ORB] = value;
+        writePort( _portB, getPortB() );
+        break;
+
+      case ORA:
+        clearFlags( IF_CA1 | ca2Flag() );
+        _registers[ORA] = value;
+        writePort( _portA, getPortA() );
+        break;
+
+      case ORA_NH:
+        _registers[ORA] = value;
+        writePort( _portA, getPortA() );
+        break;
+
+      case DDRB:
+        _registers[DDRB] = value;
+        writePort( _portB, getPortB() );
+        break;
+
+      case DDRA:
+        _registers[DDRA] = value;
+        writePort( _portA, getPortA() );
+        break;
+
+      case T1CL:
+      case T1LL:
+        _t1Latch = (_t1Latch & 0xff00) | v;
+        break;
+
+      case T1CH:
+        _t1Latch = (_t1Latch & 0xff) | (v << 8);
+        _t1Counter = _t1Latch;
+        _t1Armed = true;
+        clearFlags( IF_T1 );
+        break;
+
+      case T1LH:
+        _t1Latch = (_t1Latch & 0xff) | (v << 8);
+        clearFlags( IF_T1 );
+        break;
+
+      case T2CL:
+        _t2LatchLo = v;
+        break;
+
+      case T2CH:
+        _t2Counter = (v << 8) | _t2LatchLo;
+        _t2Armed = true;
+        clearFlags( IF_T2 );
+        break;
+
+      case IFR:
+        clearFlags( v & ~IF_ANY );
+        break;
+
+      case IER:
+        if ( (v & IF_ANY) != 0 )
+          _registers[IER] |= v & ~IF_ANY;
+        else
+          _registers[IER] &= ~v;
+        updateInterrupt();
+        break;
+
+      default:
+        _registers[ portId ] = value;
+        break;
+    }
+  }
+
+
+
+  /*
+   * Inherit Javadoc.
+   */
+  public Port[] getPorts()
+  {
+    return _ports;
+  }
+
+
+
+  /**
+   * Reset the chip.  All registers are cleared, so all pins are inputs.
+   */
+  public synchronized void reset()
+  {
+    for ( int i = 0 ; i < _registers.length ; i++ )
+      _registers[i] = 0;
+
+    _t1Armed = false;
+    _t2Armed = false;
+
+    updateInterrupt();
+    writePort( _portA, getPortA() );
+    writePort( _portB, getPortB() );
+  }
+
+
+
+  /**
+   * Returns the VIA's name for debugging purposes.
+   */
+  public String toString()
+  {
+    return _name;
+  }
+
+
+
+  /**
+   * Read a port.  Output pins return the output register, input pins the
+   * connected device.
+   */
+  private byte readPort( Forwarder device, int or, int ddr )
+  {
+    int pins = device == null ? 0xff : device.read();
+
+    return (byte)((_registers[or] & _registers[ddr]) |
+        (pins & ~_registers[ddr]));
+  }
+
+
+
+  private void writePort( Forwarder device, int pins )
+  {
+    if ( device != null )
+      device.write( (byte)pins );
+  }
+
+
+
+  /**
+   * Get the CA2 interrupt flag if it is cleared by port accesses.  This
+   * is not the case in the independent input modes.
+   */
+  private int ca2Flag()
+  {
+    return (_registers[PCR] & 0x0a) == 0x02 ? 0 : IF_CA2;
+  }
+
+
+
+  private int cb2Flag()
+  {
+    return (_registers[PCR] & 0xa0) == 0x20 ? 0 : IF_CB2;
+  }
+
+
+
+  private void setFlags( int flags )
+  {
+    _registers[IFR] |= flags;
+    updateInterrupt();
+  }
+
+
+
+  private void clearFlags( int flags )
+  {
+    _registers[IFR] &= ~flags;
+    updateInterrupt();
+  }
+
+
+
+  /**
+   * Compute bit 7 of the IFR and drive the interrupt line.
+   */
+  private void updateInterrupt()
+  {
+    if ( (_registers[IFR] & _registers[IER] & ~IF_ANY) != 0 )
+    {
+      _registers[IFR] |= IF_ANY;
+      _interrupt.set();
+    }
+    else
+    {
+      _registers[IFR] &= ~IF_ANY;
+      _interrupt.clear();
+    }
+  }
+}
@@ -10,6 +10,9 @@ package de.michab.simulator.mos6502;
 import de.michab.simulator.Clock;
 import java.awt.*;
 import de.michab.simulator.*;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 
 
@@ -23,6 +26,8 @@ import java.util.Arrays;
 public class Vic
   extends
     DefaultChip
+  implements
+    Persistent
 {
   /**
    * <code>True</code> means debug output is on.
@@ -122,6 +127,13 @@ public class Vic
 
 
 
+  /**
+   * The interrupt line this chip drives.
+   */
+  private final InterruptLine _irq;
+
+
+
   /* TODO collision checking
    * A single raster line used for sprite backgound collision checking.  A true
    * value means that this pixel is set.
@@ -317,6 +329,7 @@ public class Vic
       Clock clock )
   {
     _cpu = cpu;
+    _irq = cpu.getInterruptController().createIrqLine( "VIC" );
 
     // Create this chip's array of ports.
     _ports = createPorts( _registers.length );
@@ -441,6 +454,16 @@ public class Vic
     if ( _debug )
       System.err.println( "Vic: write:" + portId + " = " + value );
 
+    // Writing one bits to the interrupt request register acknowledges the
+    // respective requests.
+    if ( portId == INTERRUPTREQUEST )
+    {
+      int request = _registers[ INTERRUPTREQUEST ] & ~value & 0x0f;
+      if ( request != 0 )
+        request |= Processor.BIT_7;
+      value = (byte)request;
+    }
+
     // Save the value written into the register.  This is always done since
     // it allows a very simple implementation of the read switch.  As long as
     // the last value written into a register is returned on the next read no
@@ -449,6 +472,11 @@ public class Vic
 
     switch ( portId )
     {
+      case INTERRUPTREQUEST:
+      case INTERRUPTMASK:
+        updateInterruptLine();
+        break;
+
       case CTRL1:
       case CTRL2:
       {
@@ -502,8 +530,6 @@ public class Vic
       case STROBEX:
       case STROBEY:
       case SPRITEENABLE:
-      case INTERRUPTREQUEST:
-      case INTERRUPTMASK:
       case SPRITESPRITECOLL:
       case SPRITEBACKCOLL:
       case EXTERIORCOL:
@@ -623,10 +649,25 @@ public class Vic
 
     // In case a bit is set in both the interrupt mask and the interrupt
     // request register generate an interrupt.
-    if ( 0 != (interruptMask & interruptReq) )
-    {
-      _cpu.IRQ();
-    }
+    updateInterruptLine();
+  }
+
+
+
+  /**
+   * Set or clear the interrupt line depending on the interrupt request and
+   * mask registers.  The line is set as long as an enabled request is not
+   * acknowledged.
+   */
+  private void updateInterruptLine()
+  {
+    int pending =
+      _registers[ INTERRUPTMASK ] & _registers[ INTERRUPTREQUEST ] & 0x0f;
+
+    if ( pending != 0 )
+      _irq.set();
+    else
+      _irq.clear();
   }
 
 
@@ -722,6 +763,47 @@ public class Vic
 
 
 
+  /*
+   * Inherit Javadoc.
+   */
+  public synchronized void saveState( DataOutput out )
+    throws IOException
+  {
+    for ( int r : _registers )
+      out.writeByte( r );
+    out.write( _colorRam );
+    out.writeByte( getPageAddress() );
+    _raster.saveState( out );
+  }
+
+
+
+  /**
+   * Read the chip's state.  The registers are written to set up the
+   * rasterer, except for the interrupt request register where a write
+   * acknowledges requests.
+   */
+  public synchronized void restoreState( DataInput in )
+    throws IOException
+  {
+    byte[] registers = new byte[ _registers.length ];
+    in.readFully( registers );
+    in.readFully( _colorRam );
+    int page = in.readUnsignedByte();
+
+    _registers[ INTERRUPTREQUEST ] = registers[ INTERRUPTREQUEST ];
+    for ( int i = 0 ; i < registers.length ; i++ )
+    {
+      if ( i != INTERRUPTREQUEST )
+        write( i, registers[ i ] );
+    }
+    setPageAddress( page );
+
+    _raster.restoreState( in );
+  }
+
+
+
   /**
    * Get the current frame color.
    *
@@ -3,60 +3,50 @@
  */
 package de.michab.simulator.mos6502;
 
-import java.util.Arrays;
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.FloatControl;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 
 import de.michab.simulator.Processor;
 
 
 
 /**
- * A single SID voice. This implementation is from JaC64 on Sourceforge. The
- * original file was http://cvs.sourceforge.net/viewcvs.py/jac64/c64/C64SID.java
- * CVS revision 1.2
- * 
+ * A single SID voice.  Holds the oscillator and envelope state of one of the
+ * three voices and computes one output sample per call.  The voice does not
+ * own any audio resources, sample generation for all voices is driven from
+ * a single loop in the <code>Sid</code>.
+ *
+ * <p>The oscillator is modelled like on the real chip as a 24 bit phase
+ * accumulator.  Sawtooth and pulse waveforms are band limited using a
+ * PolyBLEP correction that is read from a small table shared by all voices.
+ * The noise generator is the chip's 23 bit LFSR that is clocked in batches
+ * whenever bit 19 of the accumulator rose during a sample.</p>
+ *
+ * <p>The first version of this class was taken from JaC64 on Sourceforge.
+ * The original file was
+ * http://cvs.sourceforge.net/viewcvs.py/jac64/c64/C64SID.java
+ * CVS revision 1.2</p>
+ *
+ * @see de.michab.simulator.mos6502.Sid
  * @author Joakim Eriksson (joakime@sics.se)
+ * @author Michael G. Binz
  * @version $Revision: 11 $, $Date: 2005/09/17 12:30:08 $
  */
 class Voice
 {
-  // The logger for this class.
-  private final static Logger _log = 
-    Logger.getLogger( Voice.class.getName() );
-
-
-
   /**
-   * 
+   * The array of chip registers.
    */
-  private final SourceDataLine dataLine;
+  private final int[] _registers;
 
-  /**
-   * 
-   */
-  private final FloatControl volume;
 
-  /**
-   * 
-   */
-  private final int[] memory;
 
   /**
-   * This voice's base address in memory.
+   * This voice's base address in the chip registers.
    */
   private final int _sidbase;
 
-  // How is this defined?
-  private static final double FRQCONV = 0.060975609;
-
 
 
   /**
@@ -64,7 +54,6 @@ class Voice
    * @see #_waveform
    */
   private static final int WAV_TRIANGLE = Processor.BIT_4;
-//  private static final int WAV_TRIANGLE = 0x1;
 
 
 
@@ -73,7 +62,6 @@ class Voice
    * @see #_waveform
    */
   private static final int WAV_SAW = Processor.BIT_5;
-//  private static final int WAV_SAW = 0x2;
 
 
 
@@ -82,7 +70,6 @@ class Voice
    * @see #_waveform
    */
   private static final int WAV_PULSE = Processor.BIT_6;
-//  private static final int WAV_PULSE = 0x4;
 
 
 
@@ -91,12 +78,11 @@ class Voice
    * @see #_waveform
    */
   private static final int WAV_NOISE = Processor.BIT_7;
-//  private static final int WAV_NOISE = 0x8;
 
 
 
   /**
-   * Initial wave form marker. TODO Is that needed?
+   * No wave form selected.  The voice is silent.
    * @see #_waveform
    */
   private static final int WAV_NONE = 0x0;
@@ -111,7 +97,6 @@ class Voice
 
 
 
-  // Should be public when used in software synths...
   private final static int ATTACK = 1;
 
   private final static int DECAY = 2;
@@ -120,231 +105,230 @@ class Voice
 
   private final static int RELEASE = 4;
 
-  private final static int WAVE_LEN = 44000;
+
 
   /**
-   * The absolute min/max value for the precalculated waves.
+   * The accumulator is 24 bits wide.
    */
-  private final static int MAX_VAL = 100;
+  private static final int ACC_MASK = 0xffffff;
+
+
 
-  // The wavebuffers for the precalculated waves (shared between SIDs)
   /**
-   * Values from -maxval to maxval continually growing.
+   * The accumulator's most significant bit.  Used for sync and ring
+   * modulation.
    */
-  private final static byte[] sawWave = new byte[WAVE_LEN];
+  private static final int ACC_MSB = 0x800000;
 
-  private final static byte[] triangleWave = new byte[WAVE_LEN];
 
-  private final static byte[] sawTriangleWave = new byte[WAVE_LEN];
 
   /**
-   * TODO why is this twice as long as the others?  Has that impact on
-   * sound quality?
-   * Lower half is filled with -maxVal upper with maxval.
+   * The oscillator output is 12 bits wide.  This is the offset that
+   * centers the output around zero.
    */
-  private final static byte[] pulseWave = new byte[2 * WAVE_LEN];
+  private static final int WAVE_ZERO = 0x800;
 
-  private final static float[] triangleWaveRing = new float[WAVE_LEN];
 
-  private final static int GENLEN = 440;
 
-  private final byte[] buffer = new byte[GENLEN];
+  /**
+   * The width of the LFSR implementing the noise generator.
+   */
+  private static final int NOISE_MASK = 0x7fffff;
 
-  private int nextSample = 0;
 
-  private boolean _sync = false;
 
-  private boolean _ring = false;
+  /**
+   * The number of noise shift steps that can be computed at once.  The
+   * feedback taps are on bits 22 and 17, so up to eight steps can be done
+   * without feeding back bits that were shifted in during the same batch.
+   */
+  private static final int NOISE_BATCH = 8;
+
+
+
+  /**
+   * The envelope counter is held as an 8.16 fixed point value.
+   */
+  private static final int ENV_SHIFT = 16;
 
 
 
   /**
-   * 
+   * The maximum envelope value.
    */
-  private static final float GAIN_MULT_15 = (float) (20.0 / 15.0);
+  private static final int ENV_MAX = 0xff << ENV_SHIFT;
+
 
-  // Start stop ADSR stuff!! (not yet implemented, and how to do with gain?)
-  // Number of adsr "steps" (1 ms)
-  private final int time1[] = { 
-      2, 8, 16, 24, 
-      38, 56, 68, 80, 
-      100, 250, 500, 800, 
-      1000, 3000, 5000, 8000 
+
+  /**
+   * Attack times in milliseconds for the 16 possible register values.
+   */
+  private static final int[] ATTACK_MS = {
+      2, 8, 16, 24,
+      38, 56, 68, 80,
+      100, 250, 500, 800,
+      1000, 3000, 5000, 8000
   };
 
-  private final int time2[] = { 
-      6, 24, 48, 72, 
-      114, 168, 204, 240, 
+
+
+  /**
+   * Decay and release times in milliseconds for the 16 possible register
+   * values.
+   */
+  private static final int[] DECAY_MS = {
+      6, 24, 48, 72,
+      114, 168, 204, 240,
       300, 750, 1500, 2400,
-      3000, 9000, 15000, 24000 };
+      3000, 9000, 15000, 24000
+  };
 
-  // ADSR level between 0 - 1;
-  private float sidVol;
 
-  private float adsrLevel = 0;
 
-  private float adsrDelta = 0;
+  /**
+   * Per sample envelope steps for the attack rates.  Shared between all
+   * voices.
+   */
+  private static final int[] ATTACK_STEP =
+    computeEnvelopeSteps( ATTACK_MS );
+
+
 
-  private final static float adsrInterval = (float) 1.0;
+  /**
+   * Per sample envelope steps for the decay and release rates.  Shared
+   * between all voices.
+   */
+  private static final int[] DECAY_STEP =
+    computeEnvelopeSteps( DECAY_MS );
 
-  private float adsrSusLevel = 0;
 
-  //private int adsrAtt = 0;
 
-  private int adsrDec = 0;
+  /**
+   * The resolution of the PolyBLEP table.
+   */
+  private static final int BLEP_SIZE = 64;
 
-  private int adsrRel = 0;
 
-  private int adsrPos = 0;
 
-  private int adsrNextPos = 0;
+  /**
+   * The PolyBLEP residual, scaled to the 12 bit oscillator output.  Entry
+   * <code>i</code> holds the correction for a sample that is
+   * <code>i/BLEP_SIZE</code> of a phase increment away from a discontinuity.
+   * Shared between all voices.
+   */
+  private static final int[] BLEP = new int[ BLEP_SIZE + 1 ];
 
-  private int _adsrPhase = ATTACK;
 
-  private boolean soundOn = false;
 
-  // Maybe frq should not be integer?
-  private int frq = 1;
+  /**
+   * The phase accumulator.
+   */
+  private int _accumulator = 0;
 
 
 
   /**
-   * 
+   * The accumulator increment per output sample.  Computed from the
+   * frequency registers when a block of samples is prepared.
    */
-  private long _noiseReg = 0x7ffff8;
+  private int _increment = 0;
 
 
 
   /**
-   * 
+   * The accumulator value where the pulse wave goes high.
    */
-  private Voice _next;
+  private int _pulseCompare = 0;
 
 
 
   /**
-   * Create an instance.
-   * 
-   * @param mem The array of chip registers.
-   * @param sb This voice's register base address.
-   * @throws LineUnavailableException If the audio resources could not be
-   *         allocated.
+   * Set if the accumulator's most significant bit went from zero to one in
+   * the last call to <code>clock()</code>.
    */
-  Voice( int mem[], int sb )
-    throws LineUnavailableException
-  {
-    memory = mem;
-    _sidbase = sb;
+  private boolean _msbRising = false;
 
-    AudioFormat af = new AudioFormat( WAVE_LEN, 8, 1, true, false);
-    DataLine.Info dli = new DataLine.Info(SourceDataLine.class, af, 16384);
-
-    dataLine = (SourceDataLine) AudioSystem.getLine(dli);
-
-    dataLine.open(dataLine.getFormat(), 16384);
-    volume = (FloatControl)
-          dataLine.getControl(FloatControl.Type.MASTER_GAIN);
-    dataLine.start();
-
-    // Create SAW
-    //for (int i = 0; i < WAVE_LEN; i++) {
-      // Fill saw wave from -100 to 100.
-    //  sawWave[i] = (byte) val;
-    //  val = val + dval;
-    //}
-
-    // Create PULSE
-    //  for (int i = 0; i < WAVE_LEN; i++) {
-    //    pulseWave[i] = -MAX_VAL;
-    //    pulseWave[i + WAVE_LEN] = MAX_VAL;
-    //  }
-
-    // Create Triangle
-//    val = -MAX_VAL;
-//    dval = (MAX_VAL * 4) / (double) WAVE_LEN;
-//    for (int i = 0; i < WAVE_LEN / 2; i++) {
-//      triangleWave[i] = (byte) val;
-//      val = val + dval;
-//    }
-//    val = MAX_VAL;
-//    for (int i = WAVE_LEN / 2; i < WAVE_LEN; i++) {
-//      triangleWave[i] = (byte) val;
-//      val = val - dval;
-//    }
-
-    // Create sawTriangle
-//    for (int i = 0; i < WAVE_LEN; i++) {
-//      sawTriangleWave[i] = (byte) (sawWave[i] & triangleWave[i]);
-//    }
-
-    // Create Triangle Ring
-   /* val = -1.0;
-    dval = 4.0 / WAVE_LEN;
-    for (int i = 0; i < WAVE_LEN / 2; i++) {
-      triangleWaveRing[i] = (float) val;
-      val = val + dval;
-    }
-    val = 1.0;
-    for (int i = WAVE_LEN / 2; i < WAVE_LEN; i++) {
-      triangleWaveRing[i] = (float) val;
-      val = val - dval;
-    }*/
-  }
+
+
+  /**
+   * Set if the test bit is set in the control register.  This stops the
+   * oscillator.
+   */
+  private boolean _test = false;
+
+
+
+  private boolean _sync = false;
+
+  private boolean _ring = false;
 
 
 
   /**
-   * Set the reference to the next voice.
+   * The noise generator shift register.
+   */
+  private int _noise = 0x7ffff8;
+
+
+
+  /**
+   * The 12 bit noise output, recomputed after each shift.
+   */
+  private int _noiseOutput = noiseOutput( 0x7ffff8 );
+
+
+
+  /**
+   * The current envelope level.
    *
-   * @param next The reference to the next voice.
+   * @see #ENV_SHIFT
    */
-  void setNext( Voice next )
-  {
-    _next = next;
-  }
+  private int _envelope = 0;
+
+  private int _adsrPhase = RELEASE;
+
+  private int _attackStep = ATTACK_STEP[0];
+
+  private int _decayStep = DECAY_STEP[0];
+
+  private int _releaseStep = DECAY_STEP[0];
+
+  private int _sustainLevel = 0;
+
+  private boolean _gate = false;
 
 
 
   /**
-   * 
+   * The voice that is used as the source for sync and ring modulation.
    */
-  private void soundOn()
-  {
-    if (!soundOn) 
-    {
-      adsrLevel = 0;
-      adsrPos = 0;
-      int adsrAtt = time1[(memory[_sidbase + 5] & 0xf0) >> 4];
-      adsrDec = time2[(memory[_sidbase + 5] & 0x0f)];
-      adsrDelta = adsrInterval / adsrAtt;
-      adsrNextPos = adsrAtt;
-      _adsrPhase = ATTACK;      
-      soundOn = true;
-    }
-  }
+  private Voice _next;
+
+
 
-  private void soundOff()
+  /**
+   * Create an instance.
+   *
+   * @param mem The array of chip registers.
+   * @param sb This voice's register base address.
+   */
+  Voice( int mem[], int sb )
   {
-    if ( soundOn )
-    {
-      adsrRel = time2[(memory[_sidbase + 6] & 0x0f)];
-      adsrDelta = -(adsrLevel / adsrRel);
-      adsrNextPos = adsrPos + adsrRel;
-      _adsrPhase = RELEASE;
-      soundOn = false;
-    }
+    _registers = mem;
+    _sidbase = sb;
   }
 
 
 
   /**
-   * 
-   * @param vol
+   * Set the reference to the next voice.  This is the voice that
+   * synchronises or ring modulates this voice.
+   *
+   * @param next The reference to the next voice.
    */
-  void setVolume( int vol )
+  void setNext( Voice next )
   {
-    sidVol = GAIN_MULT_15 * vol;
-    volume.setValue(-40 + sidVol + 15);
+    _next = next;
   }
 
 
@@ -354,7 +338,7 @@ class Voice
    */
   public String toString()
   {
-    StringBuffer result = new StringBuffer();
+    StringBuilder result = new StringBuilder();
 
     result.append("Wave: ");
     switch (_waveform)
@@ -378,39 +362,94 @@ class Voice
         result.append("OTHER...: " + Integer.toString(_waveform, 16));
         break;
     }
-    result.append( " Frequency: " + getFrequency() ); //+ "  PWid:" + _pwid);
-    result.append( " SIDVolume:" + sidVol);
-    result.append( " ADSRLevel:" + adsrLevel);
-    result.append( " Volume:" + (sidVol + 20 * adsrLevel - 40));
-    result.append( " ADSRDelta:" + adsrDelta + " Phase:" + _adsrPhase);
+    result.append( " Frequency: " + getFrequency() );
+    result.append( " PulseWidth: " + getPulseWidth() );
+    result.append( " Envelope: " + (_envelope >> ENV_SHIFT) );
+    result.append( " Phase: " + _adsrPhase);
     if (_ring)
       result.append(" RING MODULATION");
     if (_sync)
       result.append(" SYNCHRONIZATION");
-    
+
     return result.toString();
   }
 
 
 
+  /**
+   * Write the voice's state.  Values that are computed from the registers
+   * are not written.
+   *
+   * @param out The target of the state.
+   * @throws IOException If writing failed.
+   */
+  void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeInt( _accumulator );
+    out.writeInt( _noise );
+    out.writeInt( _envelope );
+    out.writeByte( _adsrPhase );
+    out.writeBoolean( _gate );
+    out.writeBoolean( _msbRising );
+  }
+
+
+
+  /**
+   * Read the voice's state.  The registers have to be restored before.
+   *
+   * @param in The source of the state.
+   * @throws IOException If reading failed.
+   */
+  void restoreState( DataInput in )
+    throws IOException
+  {
+    int accumulator = in.readInt();
+    int noise = in.readInt();
+    int envelope = in.readInt();
+    int adsrPhase = in.readUnsignedByte();
+
+    // Set the gate first, so the control register does not start a new
+    // envelope phase.
+    _gate = in.readBoolean();
+    updateVoice( _registers[ _sidbase + 4 ] );
+
+    _accumulator = accumulator;
+    _noise = noise;
+    _noiseOutput = noiseOutput( noise );
+    _envelope = envelope;
+    _adsrPhase = adsrPhase;
+    _msbRising = in.readBoolean();
+  }
+
+
+
   /**
    * Called if the voices control register is written.
-   * TODO This may be merged with the Voice.updateSound operation.
-   * 
-   * @param data
+   *
+   * @param data The new value of the control register.
    */
   void updateVoice( int data )
   {
     _waveform = data & 0xf0;
-//    _waveform = data >> 4;
-    // Handles the test bit.
-    if ((data & Processor.BIT_3) != 0)
-      _waveform = Voice.WAV_NONE;
 
-    if ((data & Processor.BIT_0) != 0)
-      soundOn();
-    else
-      soundOff();
+    // Handles the test bit.  The oscillator is reset and stays at zero
+    // while the bit is set, the noise generator is reset.
+    _test = (data & Processor.BIT_3) != 0;
+    if ( _test )
+    {
+      _accumulator = 0;
+      _noise = NOISE_MASK;
+      _noiseOutput = noiseOutput( _noise );
+    }
+
+    boolean gate = (data & Processor.BIT_0) != 0;
+    if ( gate && ! _gate )
+      _adsrPhase = ATTACK;
+    else if ( _gate && ! gate )
+      _adsrPhase = RELEASE;
+    _gate = gate;
 
     _sync = (data & Processor.BIT_1) != 0;
     _ring = (data & Processor.BIT_2) != 0;
@@ -419,239 +458,269 @@ class Voice
 
 
   /**
-   * Update the sound machinery.
+   * Prepare the generation of a run of samples.  Reads the frequency,
+   * pulse width and envelope registers and converts them into the per
+   * sample values used by <code>clock()</code>.  Called by the
+   * <code>Sid</code> whenever register writes were applied, so writes cost
+   * nothing in the sample loop.
+   *
+   * @param cyclesPerSample The number of chip clock cycles per output
+   *        sample as a 16.16 fixed point value.
+   */
+  void prepare( long cyclesPerSample )
+  {
+    _increment = (int)((getFrequency() * cyclesPerSample) >> 16);
+    _pulseCompare = getPulseWidth() << 12;
+
+    int ad = _registers[ _sidbase + 5 ];
+    int sr = _registers[ _sidbase + 6 ];
+    _attackStep = ATTACK_STEP[ (ad >> 4) & 0xf ];
+    _decayStep = DECAY_STEP[ ad & 0xf ];
+    _sustainLevel = ((sr >> 4) & 0xf) * 0x11 << ENV_SHIFT;
+    _releaseStep = DECAY_STEP[ sr & 0xf ];
+  }
+
+
+
+  /**
+   * Advance the oscillator, noise generator and envelope by a single
+   * sample.
    */
-  void updateSound()
+  void clock()
   {
-    if (adsrPos++ == adsrNextPos)
+    if ( ! _test )
+    {
+      int previous = _accumulator;
+      int next = previous + _increment;
+      _accumulator = next & ACC_MASK;
+      _msbRising = (~previous & next & ACC_MSB) != 0;
+
+      // The noise register is clocked on each rising edge of accumulator
+      // bit 19.  Count the edges passed during this sample.
+      int shifts =
+        ((next + 0x80000) >> 20) - ((previous + 0x80000) >> 20);
+      if ( shifts > 0 )
+        shiftNoise( shifts );
+    }
+    else
+      _msbRising = false;
+
+    switch ( _adsrPhase )
     {
-      switch ( _adsrPhase )
-      {
-        case ATTACK:
+      case ATTACK:
+        _envelope += _attackStep;
+        if ( _envelope >= ENV_MAX )
         {
+          _envelope = ENV_MAX;
           _adsrPhase = DECAY;
-          // Down to sustain level?
-          int adsrSustain = (memory[_sidbase + 6] & 0xf0) >> 4;
-
-          adsrSusLevel = adsrInterval * adsrSustain / 15.0f;
-          adsrDelta = (-adsrInterval + adsrSusLevel) / adsrDec;
-          adsrNextPos += adsrDec;
-          break;
         }
-        case  DECAY:
+        break;
+
+      case DECAY:
+        _envelope -= _decayStep;
+        if ( _envelope <= _sustainLevel )
         {
+          _envelope = _sustainLevel;
           _adsrPhase = SUSTAIN;
-          adsrDelta = 0;
-          adsrNextPos = -1;
-          break;
-        }
-        case RELEASE:
-        {
-          adsrDelta = 0;
-          break;
         }
-        // TODO unclear how and if to handle the rest
-      }
+        break;
+
+      case SUSTAIN:
+        // The level follows sustain register changes only downwards.
+        if ( _envelope > _sustainLevel )
+          _envelope = _sustainLevel;
+        break;
+
+      case RELEASE:
+        _envelope -= _releaseStep;
+        if ( _envelope < 0 )
+          _envelope = 0;
+        break;
     }
+  }
+
+
 
-    adsrLevel += adsrDelta;
-    // ADSR end
+  /**
+   * Performs hard sync.  Has to be called after all voices have been
+   * clocked for the current sample.
+   */
+  void synchronize()
+  {
+    if ( _sync && _next._msbRising )
+      _accumulator = 0;
+  }
 
-    if (dataLine.available() > GENLEN)
+
+
+  /**
+   * Compute the current output sample of this voice.  This is the
+   * oscillator output centered around zero multiplied with the envelope.
+   *
+   * @return The current output sample.  The value range is about twenty
+   *         bits.
+   */
+  int output()
+  {
+    int waveform;
+
+    switch ( _waveform )
     {
-      byte[] wbuf;
-
-      frq = (int)(0.5 + getFrequency() * FRQCONV);
-      int pulseWidth = 
-        (getPulseWidth() * WAVE_LEN) / 4095;
-
-      int next_nextSample = _next.nextSample;
-
-      switch (_waveform)
-      {
-        case WAV_NONE:
-          Arrays.fill( buffer, (byte)0 );
-          break;
-        case WAV_TRIANGLE:
-          if (_ring) 
-          {
-            for (int i = 0; i < GENLEN; i++)
-            {
-              buffer[i] = (byte) (triangleWave[nextSample] * triangleWaveRing[next_nextSample]);
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample = (next_nextSample + _next.frq) % WAVE_LEN;
-            }
-          }
-          else if (!_sync) 
-          {
-            for ( int i = 0 ; i < GENLEN ; i++ )
-            {
-                buffer[i] = triangleWave[nextSample];
-                nextSample = (nextSample + frq) % WAVE_LEN;
-            }
-          }
-          else 
-          {
-            // SYNCH
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = triangleWave[nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
-            }
-          }
-          break;
-        case WAV_SAW:
-        case WAV_SAW | WAV_TRIANGLE:
-          if (_waveform == WAV_SAW)
-            wbuf = sawWave;
-          else
-            wbuf = sawTriangleWave;
-          if (!_sync) {
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = wbuf[nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-            }
-          }
-          else {
-            // SYNCH
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = wbuf[nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
-            }
-          }
-          break;
-        case WAV_PULSE:
-          if (!_sync) {
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = pulseWave[pulseWidth + nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-            }
-          }
-          else 
-          {
-            for (int i = 0; i < GENLEN; i++) 
-            {
-              buffer[i] = pulseWave[pulseWidth + nextSample];
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
-            }
-          }
-          break;
-        case WAV_PULSE | WAV_SAW:
-        case WAV_PULSE | WAV_TRIANGLE:
-        case WAV_PULSE | WAV_SAW | WAV_TRIANGLE:
-          if (_waveform == (WAV_PULSE | WAV_SAW))
-            wbuf = sawWave;
-          else if (_waveform == (WAV_PULSE | WAV_TRIANGLE)) {
-            wbuf = triangleWave;
-          }
-          else
-            wbuf = sawTriangleWave;
-
-          if (!_sync) 
-          {
-            for (int i = 0; i < GENLEN; i++) 
-            {
-              buffer[i] = (byte) (pulseWave[pulseWidth + nextSample] & wbuf[i]);
-              nextSample = (nextSample + frq) % WAVE_LEN;
-            }
-          }
-          else {
-            for (int i = 0; i < GENLEN; i++) {
-              buffer[i] = (byte) (pulseWave[pulseWidth + nextSample] & wbuf[i]);
-              nextSample = (nextSample + frq) % WAVE_LEN;
-              next_nextSample += _next.frq;
-              if (next_nextSample > WAVE_LEN) {
-                nextSample = 0;
-                next_nextSample -= WAVE_LEN;
-              }
-            }
-          }
-          break;
-
-        case WAV_NOISE:
-        case WAV_NOISE | WAV_PULSE:
-        case WAV_NOISE | WAV_TRIANGLE:
-        case WAV_NOISE | WAV_SAW:
-        case WAV_NOISE | WAV_PULSE | WAV_SAW:
-        case WAV_NOISE | WAV_TRIANGLE | WAV_SAW:
-        case WAV_NOISE | WAV_PULSE | WAV_TRIANGLE:
-        case WAV_NOISE | WAV_PULSE | WAV_TRIANGLE | WAV_SAW:
-          // Noise:
-          // The noise output is taken from intermediate bits of a 23-bit shift
-          // register which is clocked by bit 19 of the accumulator.
-          // NB! The output is actually delayed 2 cycles after bit 19 is set
-          // high.  This is not modeled.
-          //
-          // Operation: Calculate EOR result, shift register, set bit 0 =
-          // result.
-          //
-          // ----------------------->---------------------
-          // | |
-          // ----EOR---- |
-          // | | |
-          // 2 2 2 1 1 1 1 1 1 1 1 1 1 |
-          // Register bits: 2 1 0 9 8 7 6 5 4 3 2 1 0 9 8 7 6 5 4 3 2 1 0 <---
-          // | | | | | | | |
-          // OSC3 bits : 7 6 5 4 3 2 1 0
-          //
-          // Since waveform output is 12 bits the output is left-shifted 4
-          // times.
-          //
-          // Shift noise_register (according to re-sid)
-
-          int delay = WAVE_LEN / 32;
-          byte noiseData = 0;
-          for (int i = 0; i < GENLEN; i++) 
-          {
-            if (delay < 0) {
-              int bit0 = (int) ((_noiseReg >> 22) ^ (_noiseReg >> 17)) & 0x1;
-              _noiseReg <<= 1;
-              _noiseReg &= 0x7fffff;
-              _noiseReg |= bit0;
-
-              noiseData = (byte)
-                   (((_noiseReg & 0x400000) >> 15)
-                  | ((_noiseReg & 0x100000) >> 14)
-                  | ((_noiseReg & 0x010000) >> 11)
-                  | ((_noiseReg & 0x002000) >> 9)
-                  | ((_noiseReg & 0x000800) >> 8)
-                  | ((_noiseReg & 0x000080) >> 5)
-                  | ((_noiseReg & 0x000010) >> 3) 
-                  | ((_noiseReg & 0x000004) >> 2));
-
-              delay += WAVE_LEN / 32;
-            }
-            delay -= frq;
-            buffer[i] = noiseData;
-          }
-          break;
-        default:
-          _log.log( Level.SEVERE, "WAVE NOT IMPLEMENTED: " + _waveform );
-      }
-
-      // Test volume? ? vol = 0 - 1 ???
-      float floatVol = adsrLevel;
-      if (sidVol == 0)
-        adsrLevel = 0;
-      for (int i = 0; i < GENLEN; i++)
-        buffer[i] *= floatVol; // (byte) (buffer[i] * floatVol);
-
-      dataLine.write(buffer, 0, GENLEN);
+      case WAV_NONE:
+        return 0;
+
+      case WAV_TRIANGLE:
+        waveform = triangle() - WAVE_ZERO;
+        break;
+
+      case WAV_SAW:
+        waveform =
+          (_accumulator >> 12) - WAVE_ZERO - blep( _accumulator );
+        break;
+
+      case WAV_PULSE:
+        waveform = pulse();
+        break;
+
+      case WAV_NOISE:
+        waveform = _noiseOutput - WAVE_ZERO;
+        break;
+
+      default:
+        // Combined waveforms.  The real chip produces something close to
+        // the bitwise and of the single waveforms.
+        waveform = 0xfff;
+        if ( (_waveform & WAV_TRIANGLE) != 0 )
+          waveform &= triangle();
+        if ( (_waveform & WAV_SAW) != 0 )
+          waveform &= _accumulator >> 12;
+        if ( (_waveform & WAV_PULSE) != 0 && _accumulator < _pulseCompare )
+          waveform = 0;
+        if ( (_waveform & WAV_NOISE) != 0 )
+          waveform &= _noiseOutput;
+        waveform -= WAVE_ZERO;
+        break;
     }
+
+    return waveform * (_envelope >> ENV_SHIFT);
+  }
+
+
+
+  /**
+   * Compute the 12 bit triangle output including ring modulation.
+   */
+  private int triangle()
+  {
+    int msb = _accumulator;
+    if ( _ring )
+      msb ^= _next._accumulator;
+
+    int acc = (msb & ACC_MSB) != 0 ?
+      ~_accumulator :
+      _accumulator;
+
+    return (acc >> 11) & 0xfff;
+  }
+
+
+
+  /**
+   * Compute the band limited pulse output centered around zero.
+   */
+  private int pulse()
+  {
+    // The pulse is always high if the pulse width is zero.
+    if ( _pulseCompare == 0 )
+      return 0xfff - WAVE_ZERO;
+
+    int result = _accumulator < _pulseCompare ?
+      -WAVE_ZERO :
+      0xfff - WAVE_ZERO;
+
+    // Falling edge on accumulator overflow, rising edge on the compare
+    // value.
+    return result
+      - blep( _accumulator )
+      + blep( (_accumulator - _pulseCompare) & ACC_MASK );
+  }
+
+
+
+  /**
+   * Computes the PolyBLEP correction for a falling discontinuity that
+   * happens at phase zero.
+   *
+   * @param phase The phase relative to the discontinuity.
+   * @return The correction to subtract from the naive waveform.
+   */
+  private int blep( int phase )
+  {
+    int increment = _increment;
+
+    if ( phase < increment )
+      return -BLEP[ (phase * BLEP_SIZE) / increment ];
+
+    int distance = (ACC_MASK + 1) - phase;
+    if ( distance < increment )
+      return BLEP[ (distance * BLEP_SIZE) / increment ];
+
+    return 0;
+  }
+
+
+
+  /**
+   * Shift the noise register the passed number of times.
+   *
+   * @param count The number of shift operations to perform.
+   */
+  private void shiftNoise( int count )
+  {
+    int noise = _noise;
+
+    while ( count > 0 )
+    {
+      int batch = count < NOISE_BATCH ? count : NOISE_BATCH;
+
+      // Compute the feedback bits for the whole batch at once.  Bit 22 xor
+      // bit 17 is shifted in on every step.
+      int feedback =
+        ((noise >> (23 - batch)) ^ (noise >> (18 - batch))) &
+        ((1 << batch) - 1);
+
+      noise = ((noise << batch) | feedback) & NOISE_MASK;
+      count -= batch;
+    }
+
+    _noise = noise;
+    _noiseOutput = noiseOutput( noise );
+  }
+
+
+
+  /**
+   * Compute the noise waveform from the passed noise register.  The noise
+   * output is taken from intermediate bits of the shift register:
+   * <pre>
+   * Register bits: 22 20 16 13 11  7  4  2
+   * Output bits:   11 10  9  8  7  6  5  4
+   * </pre>
+   *
+   * @param noise The noise register.
+   * @return The 12 bit noise output.
+   */
+  static int noiseOutput( int noise )
+  {
+    return
+      ((noise & 0x400000) >> 11) |
+      ((noise & 0x100000) >> 10) |
+      ((noise & 0x010000) >> 7) |
+      ((noise & 0x002000) >> 5) |
+      ((noise & 0x000800) >> 4) |
+      ((noise & 0x000080) >> 1) |
+      ((noise & 0x000010) << 1) |
+      ((noise & 0x000004) << 2);
   }
 
 
@@ -663,10 +732,10 @@ class Voice
    */
   private int getFrequency()
   {
-    int hi = memory[_sidbase + 1];
+    int hi = _registers[_sidbase + 1];
     hi &= 0xff;
     hi <<= 8;
-    int lo = memory[_sidbase];
+    int lo = _registers[_sidbase];
     lo &= 0xff;
     return hi | lo;
   }
@@ -681,10 +750,10 @@ class Voice
    */
   private int getPulseWidth()
   {
-    int hi = memory[_sidbase + 3];
+    int hi = _registers[_sidbase + 3];
     hi &= 0xf;
     hi <<= 8;
-    int lo = memory[_sidbase + 2];
+    int lo = _registers[_sidbase + 2];
     lo &= 0xff;
 
     return hi | lo;
@@ -692,64 +761,34 @@ class Voice
 
 
 
-  static
+  /**
+   * Convert a table of envelope times into per sample envelope steps.
+   *
+   * @param times The times in milliseconds.
+   * @return The envelope steps.
+   */
+  private static int[] computeEnvelopeSteps( int[] times )
   {
-    int min = -MAX_VAL; // -100
-    int max = MAX_VAL; // 100
-    int span = max - min;
-    int len = sawWave.length;
-    for ( int i = 0 ; i < len ; i++ )
-    {
-      sawWave[i] = (byte)(min + ((span * i) / len));
-    }
-  }
+    int[] result = new int[ times.length ];
 
-  static
-  {
-    byte min = (byte)-MAX_VAL;
-    byte max = (byte)MAX_VAL;
-    int len = pulseWave.length / 2;
-    
-    for ( int i = 0 ; i < len ; i++ )
+    for ( int i = 0 ; i < times.length ; i++ )
     {
-      pulseWave[i] = min;
-      pulseWave[pulseWave.length-1-i] = max;
+      int samples = (times[i] * Sid.SAMPLE_RATE) / 1000;
+      result[i] = ENV_MAX / samples;
     }
-  }
 
-  static 
-  {
-    int min = -MAX_VAL; // -100
-    int max = MAX_VAL; // 100
-    int span = max - min;
-    int len = triangleWave.length / 2;
-    for ( int i = 0 ; i < len ; i++ )
-    {
-      triangleWave[i] = (byte)(min + ((span * i) / len));
-      triangleWave[triangleWave.length-1-i] = triangleWave[i];
-    }
-  }
-  
-  static
-  {
-    for (int i = 0; i < WAVE_LEN; i++) 
-    {
-      sawTriangleWave[i] = (byte) (sawWave[i] & triangleWave[i]);
-    }
+    return result;
   }
 
+
+
   static
   {
-    // Create triangle ring.
-    // TODO we do not reach the maximum.
-    float min = -1.0f;
-    float max = 1.0f;
-    float span = max - min;
-    int len = triangleWaveRing.length / 2;
-    for ( int i = 0 ; i < len ; i++ )
+    // The PolyBLEP residual is (1-x)^2 for x in [0..1].
+    for ( int i = 0 ; i <= BLEP_SIZE ; i++ )
     {
-      triangleWaveRing[i] = (min + ((span * i) / len));
-      triangleWaveRing[triangleWaveRing.length-1-i] = triangleWaveRing[i];
+      double x = 1.0 - ((double)i / BLEP_SIZE);
+      BLEP[i] = (int)(WAVE_ZERO * x * x + 0.5);
     }
   }
 }
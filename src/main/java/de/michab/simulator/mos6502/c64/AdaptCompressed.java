@@ -0,0 +1,314 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+
+
+/**
+ * <p>The base class for compressed image files.  The file is decompressed
+ * while it is read and the image found inside is handled by the factory
+ * for its type.</p>
+ *
+ * <p>Decompressed images are kept in a cache that is shared by all
+ * compressed formats.  The cache is limited in size and drops the least
+ * recently used images first.  An image is found in the cache as long as
+ * its file is not modified, so reopening a recently used file costs
+ * neither reading nor decompressing it.</p>
+ *
+ * @see AdaptGz
+ * @see AdaptZip
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+abstract class AdaptCompressed implements ImageOpener
+{
+    /**
+     * The maximum size of a decompressed image.  Protects against archives
+     * that decompress to huge sizes.
+     */
+    static final int MAX_IMAGE_SIZE = 16 * 1024 * 1024;
+
+
+
+    /**
+     * The maximum total size of the cached images.
+     */
+    private static final long CACHE_SIZE = 64 * 1024 * 1024;
+
+
+
+    /**
+     * A decompressed image.
+     */
+    static final class Image
+    {
+        private final ImageFileFactory _factory;
+        private final String _name;
+        private final ByteBuffer _content;
+
+        /**
+         * Create an instance.
+         *
+         * @param factory The factory of the image's type.
+         * @param name The image's name.
+         * @param content The image's content.
+         */
+        Image( ImageFileFactory factory, String name, byte[] content )
+        {
+            _factory = factory;
+            _name = name;
+            _content = ByteBuffer.wrap( content ).asReadOnlyBuffer();
+        }
+    }
+
+
+
+    /**
+     * Identifies a version of a file.
+     */
+    private static final class Key
+    {
+        private final String _path;
+        private final long _lastModified;
+        private final long _length;
+
+        Key( File file )
+        {
+            _path = file.getAbsolutePath();
+            _lastModified = file.lastModified();
+            _length = file.length();
+        }
+
+        @Override
+        public boolean equals( Object o )
+        {
+            if ( !( o instanceof Key ) )
+                return false;
+
+            Key k = (Key)o;
+
+            return
+                    _path.equals( k._path ) &&
+                    _lastModified == k._lastModified &&
+                    _length == k._length;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash( _path, _lastModified, _length );
+        }
+    }
+
+
+
+    /**
+     * The cached images in the order of their use, the least recently used
+     * first.
+     */
+    private static final Map<Key, Image> _cache =
+            new LinkedHashMap<Key, Image>( 16, 0.75f, true );
+
+
+
+    /**
+     * The total size of the cached images.
+     */
+    private static long _cacheSize = 0;
+
+
+
+    /**
+     * A description of the compression format.
+     */
+    private final String _description;
+
+
+
+    /**
+     * The file suffix of the compression format.
+     */
+    private final String _suffix;
+
+
+
+    /**
+     * Create an instance.
+     *
+     * @param description A description of the compression format.
+     * @param suffix The file suffix of the compression format.
+     */
+    protected AdaptCompressed( String description, String suffix )
+    {
+        _description = description;
+        _suffix = suffix.toLowerCase();
+    }
+
+
+
+    @Override
+    public String getDescription()
+    {
+        return _description;
+    }
+
+
+
+    @Override
+    public String getFilenameSuffix()
+    {
+        return _suffix;
+    }
+
+
+
+    /**
+     * Checks if the filename ends with the filename suffix.
+     */
+    @Override
+    public boolean isValid( File imageFile )
+    {
+        return imageFile.getName().toLowerCase().endsWith( _suffix );
+    }
+
+
+
+    /**
+     * Decompress an image file.
+     *
+     * @param file The file name, used to name the image.
+     * @param in The file's content.
+     * @return The image found.
+     * @throws IOException If reading failed or no image was found.
+     */
+    protected abstract Image decompress( File file, InputStream in )
+        throws IOException;
+
+
+
+    /**
+     * Read a decompressed entry.
+     *
+     * @param in The stream of the decompressed entry.
+     * @return The entry's content.
+     * @throws IOException If reading failed or the entry is too large.
+     */
+    static byte[] read( InputStream in )
+        throws IOException
+    {
+        byte[] result = in.readNBytes( MAX_IMAGE_SIZE + 1 );
+
+        if ( result.length > MAX_IMAGE_SIZE )
+            throw new IOException( "Image too large." );
+
+        return result;
+    }
+
+
+
+    /**
+     * Compressed images are only read.
+     *
+     * @see #createReadOnly(File)
+     */
+    @Override
+    public ImageFile create( File file )
+        throws IOException
+    {
+        return createReadOnly( file );
+    }
+
+
+
+    /**
+     * Creates the image file from the decompressed image.  The image file is
+     * named after the image found in the file.
+     */
+    @Override
+    public ImageFile createReadOnly( File file )
+        throws IOException
+    {
+        Image image = get( file );
+
+        return image._factory.create(
+                image._name,
+                image._content.duplicate() );
+    }
+
+
+
+    /**
+     * Get the decompressed image of a file from the cache, decompress it if
+     * it is not cached.
+     */
+    private Image get( File file )
+        throws IOException
+    {
+        Key key = new Key( file );
+
+        synchronized ( _cache )
+        {
+            Image result = _cache.get( key );
+
+            if ( result != null )
+                return result;
+        }
+
+        Image result;
+
+        try ( InputStream in =
+                new BufferedInputStream( new FileInputStream( file ) ) )
+        {
+            result = decompress( file, in );
+        }
+
+        put( key, result );
+
+        return result;
+    }
+
+
+
+    /**
+     * Add an image to the cache and drop the least recently used images
+     * that exceed the cache size.
+     */
+    private static void put( Key key, Image image )
+    {
+        int size = image._content.capacity();
+
+        if ( size > CACHE_SIZE )
+            return;
+
+        synchronized ( _cache )
+        {
+            Image old = _cache.put( key, image );
+            if ( old != null )
+                _cacheSize -= old._content.capacity();
+            _cacheSize += size;
+
+            Iterator<Image> it = _cache.values().iterator();
+            while ( _cacheSize > CACHE_SIZE )
+            {
+                _cacheSize -= it.next()._content.capacity();
+                it.remove();
+            }
+        }
+    }
+}
@@ -10,32 +10,31 @@
 package de.michab.simulator.mos6502.c64;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Vector;
 
 
 
 /**
- * Models a rudimentary 1541 needed to read the d64 file type.  Currently only
- * read access is supported.  Write access could be at least possible.
+ * Models a rudimentary 1541 needed to read the d64 file type.  Program files
+ * can be saved, other file types are only read.  The sectors are addressed
+ * by the image's <code>DiskGeometry</code>, so the other Commodore disk
+ * formats are handled by passing their geometry.
  *
+ * @see DiskGeometry
  * @author Michael Binz
  */
-final class AdaptD64
+class AdaptD64
   extends
     ImageFileFactory
 {
-  /**
-   * This is the expected bytesize for the file that is read initially.  Used
-   * for validation.
-   */
-  private static final int MAGIC_D64_FILESIZE = 174848;
-
-
-
   /**
    * Size of a sector.
    */
-  private static final int RAW_SECTOR_LENGTH = 256;
+  private static final int RAW_SECTOR_LENGTH = DiskGeometry.SECTOR_SIZE;
 
 
 
@@ -45,243 +44,231 @@ final class AdaptD64
    */
   private static final int NET_SECTOR_LENGTH = RAW_SECTOR_LENGTH - 2;
   private static final int DIR_ENTRY_SIZE = 0x20;
+  private static final int DIR_ENTRIES_PER_SECTOR = 8;
   private static final int DIR_TYPE_OFFSET = 0x02;
   private static final int DIR_NAME_OFFSET = 0x05;
-  private static final int DIR_SIZE_OFFSET = 0x1e;
   private static final int DIR_START_TRACK = 0x03;
   private static final int DIR_START_SECTOR = 0x04;
+  private static final int DIR_NAME_LENGTH = 16;
+  private static final int DIR_BLOCKS_OFFSET = 0x1e;
+
+
+
+  /**
+   * The file type of a closed program file.
+   */
+  private static final byte TYPE_PRG = (byte)0x82;
+
 
 
   /**
-   * Create an Adapter for the passed d64 file.
+   * The geometries of the images handled, told apart by their size.
+   */
+  private final DiskGeometry[] _geometries;
+
+
+
+  /**
+   * Create an Adapter for the passed d64 file.  Images with 35 or 40 tracks
+   * are handled, with or without error information.
    */
   public AdaptD64()
   {
-    super( "D64 disk image", "d64", 8 );
+    this( "D64 disk image", "d64", DiskGeometry.D64, DiskGeometry.D64_40 );
   }
 
 
 
   /**
-   * Checks if the image has the filesize that is defined for D64 files.
+   * Create an adapter for another disk format.
    *
-   * @see ImageFileFactory#isValid
+   * @param description A description of the format.
+   * @param suffix The file suffix of the format.
+   * @param geometries The geometries of the format.
    */
-  @Override
-public boolean isValid( File f )
+  protected AdaptD64(
+      String description,
+      String suffix,
+      DiskGeometry ... geometries )
   {
-    return
-      // We perform the default validity tests...
-      super.isValid( f ) &&
-      // ...and check if the filesize is the one that is defined for files of
-      // type D64.
-      (f.length() == MAGIC_D64_FILESIZE);
+    super( description, suffix, 8 );
+    _geometries = geometries;
   }
 
 
 
-  /*
-   * Inherit javadoc.
+  /**
+   * Checks if the image has a filesize that is defined for the format.
+   *
+   * @see ImageFileFactory#isValid
    */
   @Override
-public byte[][] getDirectory( byte[] image )
+  public boolean isValid( File f )
   {
-    byte[][] result = createDirectory( image );
-    return result;
+    return
+      // We perform the default validity tests...
+      super.isValid( f ) &&
+      // ...and check if the filesize is one that is defined for files of
+      // this type.
+      getGeometry( f.length() ) != null;
   }
 
 
 
-  /*
-   * Inherit javadoc.
+  /**
+   * Checks if the image has a size that is defined for the format.
+   *
+   * @see ImageFileFactory#isValid(String, ByteBuffer)
    */
   @Override
-public byte[] loadEntry( byte[] name, byte[] image )
+  protected boolean isValid( String name, ByteBuffer content )
   {
-    int dirOffset = findDirEntryFor( name, image );
-    if ( dirOffset == -1 )
-      return null;
-
-    return getFileImage( dirOffset, image );
+    return
+      super.isValid( name, content ) &&
+      getGeometry( content.limit() ) != null;
   }
 
 
 
   /**
-   * Returns the length of the file specified by the directory entry in bytes.
+   * Get the geometry of an image.
+   *
+   * @param size The size of the image.
+   * @return The geometry or <code>null</code> if the size is not defined
+   *         for the format.
    */
-  static private int getFileLength( int dirOffset, byte[] image )
+  private DiskGeometry getGeometry( long size )
   {
-    // Get the number of sectors from the dir entry.
-    int numSectors = dirSectorLength( dirOffset, image );
-    // Get the first sector offset from the dir entry.
-    int currentSector = getBlockOffset( dirStartTrack( dirOffset, image ),
-                                        dirStartSector( dirOffset, image ) );
-
-    int result = 0;
-
-    // Run along the chain of sectors...
-    while ( --numSectors > 0 )
+    for ( DiskGeometry g : _geometries )
     {
-      // ...summing up the sizes along the way.
-      currentSector = nextOffset( currentSector, image );
-      result += NET_SECTOR_LENGTH;
+      if ( g.matches( size ) )
+        return g;
     }
 
-    // In a chain of file sectors, the last chaining pair has a track of zero
-    // and a sector value that denotes the number of bytes used in the last
-    // sector.  This is added here.
-    if ( 0 == nextTrack( currentSector, image ) )
-      result += nextSector( currentSector, image );
-    else
-      // Ending up here means that the file has a problem:  What should be the
-      // last sector according to the dir entry has a valid (= non null)
-      // pointer to the next sector.  So we accept the whole sector as filled.
-      result += NET_SECTOR_LENGTH;
-
-    return result;
+    return null;
   }
 
 
 
   /**
-   * Return the specified c64 file as a byte array.  Note that this means a
-   * file that is embedded in the image file--nothing that is visible in the
-   * host operating system.
+   * Index the directory.  The directory is read along its chain
+   * of sectors, each sector holds eight entries.  Entries with a file type
+   * of zero are unused or scratched and are skipped like the 1541 does.
+   *
+   * @see ImageFileFactory#createIndex(String, ByteBuffer)
    */
-  static private byte[] getFileImage( int dirOffset, byte[] image )
+  @Override
+  public DirectoryIndex createIndex( String fileName, ByteBuffer image )
   {
-    int numSectors = dirSectorLength( dirOffset, image );
+    Vector<DirectoryIndex.Entry> entries = new Vector<DirectoryIndex.Entry>();
+    DiskGeometry g = getGeometry( image.limit() );
 
-    // Compute the size of the raw data we will return...
-    int byteLength = getFileLength( dirOffset, image );
-    // ...and allocate the result buffer accordingly.
-    byte[] result = new byte[ byteLength ];
+    if ( g == null )
+      return new DirectoryIndex( entries );
 
-    // Get the first sector offset from the dir entry.
-    int srcPosition = getBlockOffset( dirStartTrack( dirOffset, image ),
-                                      dirStartSector( dirOffset, image ) );
-    int dstPosition = 0;
+    int track = g.getDirTrack();
+    int sector = g.getDirSector();
 
-    while ( numSectors-- > 0 )
+    // A chain can't hold more sectors than the image.  This ends chains
+    // that loop.
+    for ( int i = image.limit() / RAW_SECTOR_LENGTH ; i > 0 && track != 0 ; i-- )
     {
-       // Compute the size of the chunk we have to copy.  Special case is the
-       // last sector having a track pointer of zero and where the next sector
-       // denotes the number of valid bytes within the current sector.
-       int chunkSize = NET_SECTOR_LENGTH;
-       if ( 0 == nextTrack( srcPosition, image ) )
-         chunkSize = nextSector( srcPosition, image );
-
-       // Do the copy.
-       System.arraycopy( image,
-                         srcPosition+2,
-                         result,
-                         dstPosition,
-                         chunkSize );
-
-       // Step the destination.
-       dstPosition += NET_SECTOR_LENGTH;
-       // Step to the next sector.
-       srcPosition = nextOffset( srcPosition, image );
+      int currentSector = g.getOffset( track, sector );
+
+      if ( currentSector < 0 )
+        break;
+
+      for ( int entryNum = 0 ; entryNum < DIR_ENTRIES_PER_SECTOR ; entryNum++ )
+      {
+        int currentDirEntry = currentSector + (entryNum * DIR_ENTRY_SIZE);
+
+        if ( 0 == image.get( currentDirEntry + DIR_TYPE_OFFSET ) )
+          continue;
+
+        ByteBuffer[] data = getFileImage( g, currentDirEntry, image );
+        int length = -1;
+        if ( data != null )
+        {
+          length = 0;
+          for ( ByteBuffer b : data )
+            length += b.remaining();
+        }
+
+        entries.add( new DirectoryIndex.Entry(
+            getDirEntryName( currentDirEntry, image ),
+            currentDirEntry,
+            length ) );
+      }
+
+      // Go to the next directory sector.
+      track = nextTrack( currentSector, image );
+      sector = nextSector( currentSector, image );
     }
 
-    return result;
+    return new DirectoryIndex( entries );
   }
 
 
 
   /**
-   * Looks for a directory entry for the given name in the image file.
+   * Loads an entry from the image file.
    *
-   * @return The raw offset for a found directory entry or -1 if nothing was
-   *         found.
+   * @param entry The entry to read, its location is the offset of the
+   *        entry's directory entry.
+   * @see ImageFileFactory#loadEntry(DirectoryIndex.Entry, ByteBuffer)
    */
-  private int findDirEntryFor( byte[] name, byte[] image )
+  @Override
+  public ByteBuffer[] loadEntry( DirectoryIndex.Entry entry, ByteBuffer image )
   {
-    // Track 18, sector 1 contains the dir entries.
-    int track = 18;
-    int sector = 1;
-    // Range [0..7], denotes the current directory entry.
-    int entryNum  = 0;
-    int currentSector = 0;
-    int currentDirEntry = 0;
-
-    do
-    {
-      currentSector = getBlockOffset( track, sector );
-      currentDirEntry = currentSector + (entryNum * DIR_ENTRY_SIZE);
-
-      if ( namesEqual( getDirEntryName( currentDirEntry, image ), name ) )
-        return currentDirEntry;
-
-      // Compute the directory entry position for the next loop.
-
-      // If we are not on the last dir entry...
-      if ( entryNum < 8 )
-        // ...go to the next one.
-        entryNum++;
-      else
-      {
-        // Go to the next directory sector.
-        track = nextTrack( currentSector, image );
-        sector = nextSector( currentSector, image );
-        entryNum = 0;
-      }
-
-    } while ( track != 0 );
-
-    // No success, return error code.
-    return -1;
+    return getFileImage(
+        getGeometry( image.limit() ), entry.getLocation(), image );
   }
 
 
 
   /**
-   * Create a directory listing.
+   * Return the specified c64 file as a list of the sectors' data.  Note that
+   * this means a file that is embedded in the image file--nothing that is
+   * visible in the host operating system.  The file is read along its chain
+   * of sectors like the 1541 does, the block count in the directory entry
+   * is often wrong and is not used.
    *
-   * @param image The file image to search.
+   * @return The sectors' data or <code>null</code> if the chain of sectors
+   *         is broken.
    */
-  private static byte[][] createDirectory( byte[] image )
+  static private ByteBuffer[] getFileImage(
+      DiskGeometry g, int dirOffset, ByteBuffer image )
   {
-    Vector<byte[]> directory = new Vector<byte[]>();
+    Vector<ByteBuffer> result = new Vector<ByteBuffer>();
+
+    int track = dirStartTrack( dirOffset, image );
+    int sector = dirStartSector( dirOffset, image );
 
-    // Track 18, sector 1 contains the dir entries.
-    int track = 18;
-    int sector = 1;
-    // Range [0..7], denotes the current directory entry.
-    int entryNum  = 0;
-    int currentSector = 0;
-    int currentDirEntry = 0;
+    // A chain can't hold more sectors than the image.  This ends chains
+    // that loop.
+    int maxSectors = image.limit() / RAW_SECTOR_LENGTH;
 
-    do
+    while ( track != 0 )
     {
-      currentSector = getBlockOffset( track, sector );
-      currentDirEntry = currentSector + (entryNum * DIR_ENTRY_SIZE);
+      int offset = g.getOffset( track, sector );
 
-      if ( 0 == image[ currentDirEntry + DIR_TYPE_OFFSET ] )
-        break;
+      if ( offset < 0 || result.size() == maxSectors )
+        return null;
 
-      directory.add( getDirEntryName( currentDirEntry, image ) );
+      // In the last sector of a chain the track pointer is zero and the
+      // sector pointer holds the index of the last byte used.
+      int chunkSize = NET_SECTOR_LENGTH;
+      if ( 0 == nextTrack( offset, image ) )
+        chunkSize = Math.max( 0, nextSector( offset, image ) - 1 );
 
-      // Compute the directory entry position for the next loop.
+      result.add( slice( image, offset+2, chunkSize ) );
 
-      // If we are not on the last dir entry...
-      if ( entryNum < 8 )
-        // ...go to the next one.
-        entryNum++;
-      else
-      {
-        // Go to the next directory sector.
-        track = nextTrack( currentSector, image );
-        sector = nextSector( currentSector, image );
-        entryNum = 0;
-      }
-    } while ( track != 0 );
+      // Step to the next sector.
+      track = nextTrack( offset, image );
+      sector = nextSector( offset, image );
+    }
 
-    byte[][] result = new byte[ directory.size() ][];
-    for ( int i = 0 ; i < result.length ; i++ )
-      result[i] = directory.elementAt( i );
-    return result;
+    return result.toArray( new ByteBuffer[ result.size() ] );
   }
 
 
@@ -289,7 +276,7 @@ public byte[] loadEntry( byte[] name, byte[] image )
   /**
    * Returns a directory entry's name without pad bytes.
    */
-  static private byte[] getDirEntryName( int begin, byte[] image )
+  static private byte[] getDirEntryName( int begin, ByteBuffer image )
   {
     return stripBytes( image, begin + DIR_NAME_OFFSET, begin+15, (byte)0xa0 );
   }
@@ -297,112 +284,407 @@ public byte[] loadEntry( byte[] name, byte[] image )
 
 
   /**
-   * Returns the length of the file described by the passed directory sector.
+   * Get the start track out of a directory entry.
    *
-   * @param directoryEntryOffset An integer offset pointing to a directory
-   *        sector.
+   * @param directoryEntryOffset A directory entry offset.
    * @param image The image to traverse.
    */
-  static private int dirSectorLength( int directoryEntryOffset, byte[] image )
+  static private int dirStartTrack( int directoryEntryOffset, ByteBuffer image )
   {
-    return getWordAt( directoryEntryOffset + DIR_SIZE_OFFSET, image );
+    return image.get( directoryEntryOffset + DIR_START_TRACK );
   }
 
 
 
   /**
-   * Get the start track out of a directory entry.
+   * Get the start sector out of a directory entry.
    *
    * @param directoryEntryOffset A directory entry offset.
    * @param image The image to traverse.
    */
-  static private int dirStartTrack( int directoryEntryOffset, byte[] image )
+  static private int dirStartSector( int directoryEntryOffset, ByteBuffer image )
   {
-    return image[ directoryEntryOffset + DIR_START_TRACK ];
+    return image.get( directoryEntryOffset + DIR_START_SECTOR );
   }
 
 
 
   /**
-   * Get the start sector out of a directory entry.
+   * Returns the offset of the next track.
    *
-   * @param directoryEntryOffset A directory entry offset.
    * @param image The image to traverse.
    */
-  static private int dirStartSector( int directoryEntryOffset, byte[] image )
+  static private int nextTrack( int currentSector, ByteBuffer image )
   {
-    return image[ directoryEntryOffset + DIR_START_SECTOR ];
+    // Next track is on sector offset zero.
+    return image.get( currentSector );
   }
 
 
 
   /**
-   * Get the offset of the next sector in the chain.
+   * Returns the next sector's offset.
    *
-   * @param currentSector A valid sector offset.
    * @param image The image to traverse.
    */
-  static private int nextOffset( int currentSector, byte[] image )
+  static private int nextSector( int currentSector, ByteBuffer image )
   {
-    return getBlockOffset( nextTrack( currentSector, image ),
-                           nextSector( currentSector, image ) );
+    // Next sector is on sector offset one.
+    return image.get( currentSector +1 ) & 0xff;
   }
 
 
 
   /**
-   * Returns the offset of the next track.
+   * Programs can be saved.
    *
-   * @param image The image to traverse.
+   * @see ImageFileFactory#isWritable()
    */
-  static private int nextTrack( int currentSector, byte[] image )
+  @Override
+  public boolean isWritable()
   {
-    // Next track is on sector offset zero.
-    return image[ currentSector ];
+    return true;
   }
 
 
 
   /**
-   * Returns the next sector's offset.
+   * Save a program file like the 1541 does.  The sectors are allocated in
+   * the BAM, starting on the tracks next to the directory track, and the
+   * file is entered into the first free directory entry.  The directory
+   * is extended by a sector if it is full.  A name starting with '@'
+   * replaces an existing file, a drive prefix like '0:' is ignored.
    *
-   * @param image The image to traverse.
+   * @see ImageFileFactory#saveEntry(byte[], ByteBuffer, ByteBuffer, BitSet)
    */
-  static private int nextSector( int currentSector, byte[] image )
+  @Override
+  public void saveEntry(
+      byte[] name,
+      ByteBuffer data,
+      ByteBuffer image,
+      BitSet changed )
+    throws IOException
   {
-    // Next sector is on sector offset one.
-    return image[ currentSector +1 ] & 0xff;
+    boolean replace = name.length > 0 && name[0] == '@';
+    int start = replace ? 1 : 0;
+
+    for ( int i = start ; i < name.length && i < start + 2 ; i++ )
+    {
+      if ( name[i] == ':' )
+      {
+        start = i + 1;
+        break;
+      }
+    }
+
+    int length = Math.min( name.length - start, DIR_NAME_LENGTH );
+    if ( length <= 0 )
+      throw new IOException( "Missing file name." );
+
+    byte[] fileName = new byte[ length ];
+    System.arraycopy( name, start, fileName, 0, length );
+
+    DiskGeometry g = getGeometry( image.limit() );
+    if ( g == null )
+      throw new IOException( "Unknown disk format." );
+
+    // Work on a copy, so the image is unchanged if the save fails.
+    ByteBuffer work = ByteBuffer.allocate( image.limit() );
+    work.put( image.duplicate() );
+
+    int entry = findDirEntry( g, fileName, work );
+    if ( entry >= 0 )
+    {
+      if ( ! replace )
+        throw new IOException( "File exists." );
+      scratch( g, entry, work );
+    }
+    else
+    {
+      entry = findFreeDirEntry( g, work );
+    }
+
+    int blocks = (data.remaining() + NET_SECTOR_LENGTH - 1) / NET_SECTOR_LENGTH;
+    int[] sectors = allocateFile( g, Math.max( 1, blocks ), work );
+
+    ByteBuffer source = data.duplicate();
+    for ( int i = 0 ; i < sectors.length ; i += 2 )
+    {
+      int offset = g.getOffset( sectors[i], sectors[i+1] );
+      int chunk = Math.min( source.remaining(), NET_SECTOR_LENGTH );
+
+      if ( i + 2 < sectors.length )
+      {
+        work.put( offset, (byte)sectors[i+2] );
+        work.put( offset+1, (byte)sectors[i+3] );
+      }
+      else
+      {
+        // The last sector holds the index of its last byte.
+        work.put( offset, (byte)0 );
+        work.put( offset+1, (byte)(chunk + 1) );
+      }
+
+      for ( int j = 0 ; j < NET_SECTOR_LENGTH ; j++ )
+        work.put( offset + 2 + j, j < chunk ? source.get() : 0 );
+    }
+
+    // Write the directory entry, the first two bytes of an entry belong
+    // to the sector's link.
+    for ( int i = DIR_TYPE_OFFSET ; i < DIR_ENTRY_SIZE ; i++ )
+      work.put( entry + i, (byte)0 );
+    work.put( entry + DIR_TYPE_OFFSET, TYPE_PRG );
+    work.put( entry + DIR_START_TRACK, (byte)sectors[0] );
+    work.put( entry + DIR_START_SECTOR, (byte)sectors[1] );
+    for ( int i = 0 ; i < DIR_NAME_LENGTH ; i++ )
+      work.put( entry + DIR_NAME_OFFSET + i, i < length ? fileName[i] : (byte)0xa0 );
+    work.put( entry + DIR_BLOCKS_OFFSET, (byte)(sectors.length / 2) );
+    work.put( entry + DIR_BLOCKS_OFFSET + 1, (byte)(sectors.length / 2 >> 8) );
+
+    // Take over the changed blocks.
+    for ( int i = 0 ; i < image.limit() ; i += RAW_SECTOR_LENGTH )
+    {
+      if ( ! slice( image, i, RAW_SECTOR_LENGTH ).equals(
+             slice( work, i, RAW_SECTOR_LENGTH ) ) )
+      {
+        changed.set( i / BLOCK_SIZE );
+        ByteBuffer target = image.duplicate();
+        target.position( i );
+        target.put( work.array(), i, RAW_SECTOR_LENGTH );
+      }
+    }
   }
 
 
 
   /**
-   * Computes the image offset from a track/sector number pair.
+   * Find a file's directory entry.
    *
-   * @param track The target track.
-   * @param sector The target sector.
-   * @return The offset into the image to reach the passed track/sector.
+   * @return The entry's offset or -1 if the file was not found.
    */
-  static private int getBlockOffset( int track, int sector )
+  static private int findDirEntry(
+      DiskGeometry g, byte[] name, ByteBuffer image )
   {
-    int result = sector;
+    int track = g.getDirTrack();
+    int sector = g.getDirSector();
 
-    // This is an implementation of the track/sector mappings given in the
-    // document referenced in the class comment.
-    for ( int i = 1 ; i < track ; i++ )
+    for ( int i = image.limit() / RAW_SECTOR_LENGTH ; i > 0 && track != 0 ; i-- )
     {
-      if ( i <= 17 )
-        result += 21;
-      else if ( i <= 24 )
-        result += 19;
-      else if ( i <= 30 )
-        result += 18;
-      else
-        result += 17;
+      int currentSector = g.getOffset( track, sector );
+
+      if ( currentSector < 0 )
+        break;
+
+      for ( int entryNum = 0 ; entryNum < DIR_ENTRIES_PER_SECTOR ; entryNum++ )
+      {
+        int currentDirEntry = currentSector + (entryNum * DIR_ENTRY_SIZE);
+
+        if ( 0 != image.get( currentDirEntry + DIR_TYPE_OFFSET ) &&
+             Arrays.equals(
+                 name,
+                 getDirEntryName( currentDirEntry, image ) ) )
+          return currentDirEntry;
+      }
+
+      track = nextTrack( currentSector, image );
+      sector = nextSector( currentSector, image );
+    }
+
+    return -1;
+  }
+
+
+
+  /**
+   * Find a free directory entry.  If the directory is full a sector on the
+   * directory track is added to the directory.
+   *
+   * @return The entry's offset.
+   * @throws IOException If the directory track is full.
+   */
+  static private int findFreeDirEntry( DiskGeometry g, ByteBuffer image )
+    throws IOException
+  {
+    int dirTrack = g.getDirTrack();
+    int track = dirTrack;
+    int sector = g.getDirSector();
+    int lastSector = g.getOffset( track, sector );
+
+    for ( int i = image.limit() / RAW_SECTOR_LENGTH ; i > 0 && track != 0 ; i-- )
+    {
+      int currentSector = g.getOffset( track, sector );
+
+      if ( currentSector < 0 )
+        throw new IOException( "Broken directory." );
+
+      for ( int entryNum = 0 ; entryNum < DIR_ENTRIES_PER_SECTOR ; entryNum++ )
+      {
+        int currentDirEntry = currentSector + (entryNum * DIR_ENTRY_SIZE);
+
+        if ( 0 == image.get( currentDirEntry + DIR_TYPE_OFFSET ) )
+          return currentDirEntry;
+      }
+
+      lastSector = currentSector;
+      track = nextTrack( currentSector, image );
+      sector = nextSector( currentSector, image );
+    }
+
+    // Extend the directory.
+    int last = (lastSector - g.getOffset( dirTrack, 0 )) / RAW_SECTOR_LENGTH;
+    int next = findFree( g, dirTrack, last + g.getDirInterleave(), image );
+    if ( next < 0 )
+      throw new IOException( "Directory full." );
+    setFree( g, dirTrack, next, false, image );
+
+    image.put( lastSector, (byte)dirTrack );
+    image.put( lastSector+1, (byte)next );
+
+    int result = g.getOffset( dirTrack, next );
+    for ( int i = 0 ; i < RAW_SECTOR_LENGTH ; i++ )
+      image.put( result + i, (byte)0 );
+    image.put( result + 1, (byte)0xff );
+
+    return result;
+  }
+
+
+
+  /**
+   * Delete a file and free its sectors.
+   */
+  static private void scratch( DiskGeometry g, int dirOffset, ByteBuffer image )
+  {
+    int track = dirStartTrack( dirOffset, image );
+    int sector = dirStartSector( dirOffset, image );
+
+    for ( int i = image.limit() / RAW_SECTOR_LENGTH ; i > 0 && track != 0 ; i-- )
+    {
+      int offset = g.getOffset( track, sector );
+
+      if ( offset < 0 )
+        break;
+
+      setFree( g, track, sector, true, image );
+
+      track = nextTrack( offset, image );
+      sector = nextSector( offset, image );
     }
 
-    // Result now contains the overall sector number.  Transform that into
-    // a raw offset.
-    return result * RAW_SECTOR_LENGTH;
+    image.put( dirOffset + DIR_TYPE_OFFSET, (byte)0 );
   }
+
+
+
+  /**
+   * Allocate the sectors of a file.  Tracks next to the directory track
+   * are used first, on a track the sectors are interleaved.
+   *
+   * @param count The number of sectors needed.
+   * @return The track and sector numbers in pairs.
+   * @throws IOException If the disk is full.
+   */
+  static private int[] allocateFile( DiskGeometry g, int count, ByteBuffer image )
+    throws IOException
+  {
+    int[] result = new int[ 2 * count ];
+    int allocated = 0;
+    int dirTrack = g.getDirTrack();
+
+    for ( int distance = 1 ; distance < g.getTracks() && allocated < count ; distance++ )
+    {
+      for ( int track : new int[]{ dirTrack - distance, dirTrack + distance } )
+      {
+        if ( track < 1 || track > g.getTracks() )
+          continue;
+
+        int sector = 0;
+        while ( allocated < count )
+        {
+          sector = findFree( g, track, sector, image );
+          if ( sector < 0 )
+            break;
+
+          setFree( g, track, sector, false, image );
+          result[ 2 * allocated ] = track;
+          result[ 2 * allocated + 1 ] = sector;
+          allocated++;
+
+          sector += g.getFileInterleave();
+        }
+      }
+    }
+
+    if ( allocated < count )
+      throw new IOException( "Disk full." );
+
+    return result;
+  }
+
+
+
+  /**
+   * Find a free sector on a track.
+   *
+   * @param track The track.
+   * @param start The sector to start the search at, modulo the number of
+   *        sectors on the track.
+   * @return The sector or -1 if the track is full.
+   */
+  static private int findFree(
+      DiskGeometry g, int track, int start, ByteBuffer image )
+  {
+    int sectors = g.getSectors( track );
+
+    for ( int i = 0 ; i < sectors ; i++ )
+    {
+      int sector = (start + i) % sectors;
+
+      if ( isFree( g, track, sector, image ) )
+        return sector;
+    }
+
+    return -1;
+  }
+
+
+
+  /**
+   * Check the BAM whether a sector is free.  Sectors on tracks without a
+   * BAM entry are never free.
+   */
+  static private boolean isFree(
+      DiskGeometry g, int track, int sector, ByteBuffer image )
+  {
+    int bitmap = g.getBitmapOffset( track );
+
+    if ( bitmap < 0 )
+      return false;
+
+    return (image.get( bitmap + sector / 8 ) & (1 << (sector % 8))) != 0;
+  }
+
+
+
+  /**
+   * Mark a sector in the BAM.  The track's count of free sectors is
+   * updated.
+   */
+  static private void setFree(
+      DiskGeometry g, int track, int sector, boolean free, ByteBuffer image )
+  {
+    int count = g.getFreeCountOffset( track );
+    int bitmap = g.getBitmapOffset( track );
+
+    if ( count < 0 || free == isFree( g, track, sector, image ) )
+      return;
+
+    int mask = 1 << (sector % 8);
+    int bits = image.get( bitmap + sector / 8 );
+
+    image.put( bitmap + sector / 8, (byte)(free ? bits | mask : bits & ~mask) );
+    image.put( count, (byte)(image.get( count ) + (free ? 1 : -1)) );
+  }
+
+
 }
@@ -0,0 +1,30 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+
+
+/**
+ * Loader for the d71 file type, the image of a double sided 1571 disk.  The
+ * directory and the files are handled like those of a d64 image, only the
+ * geometry differs.
+ *
+ * @see AdaptD64
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class AdaptD71 extends AdaptD64
+{
+    /**
+     * Create an instance.
+     */
+    AdaptD71()
+    {
+        super( "D71 disk image", "d71", DiskGeometry.D71 );
+    }
+}
@@ -0,0 +1,30 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+
+
+/**
+ * Loader for the d81 file type, the image of a 3.5 inch 1581 disk.  The
+ * directory and the files are handled like those of a d64 image, only the
+ * geometry differs.
+ *
+ * @see AdaptD64
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class AdaptD81 extends AdaptD64
+{
+    /**
+     * Create an instance.
+     */
+    AdaptD81()
+    {
+        super( "D81 disk image", "d81", DiskGeometry.D81 );
+    }
+}
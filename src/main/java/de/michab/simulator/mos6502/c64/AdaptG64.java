@@ -0,0 +1,373 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.logging.Logger;
+
+
+
+/**
+ * <p>Loader for the g64 file type.  A g64 image holds the GCR encoded
+ * tracks of a 1541 disk as the drive's read head sees them.  The sectors
+ * are decoded into a d64 image when the file is read, the directory and the
+ * files are then handled like those of a d64 image.</p>
+ *
+ * <p>Only the sectors written in the standard format are found, copy
+ * protection schemes are lost.  Half tracks are ignored.  Saved files are
+ * not written back to the file.</p>
+ *
+ * @see AdaptD64
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class AdaptG64 extends AdaptD64
+{
+    private static final Logger _log =
+            Logger.getLogger( AdaptG64.class.getName() );
+
+
+
+    /**
+     * The signature at the start of the file.
+     */
+    private static final byte[] SIGNATURE =
+            "GCR-1541".getBytes( StandardCharsets.US_ASCII );
+
+
+
+    private static final int HALF_TRACK_COUNT_OFFSET = 9;
+    private static final int TRACK_TABLE_OFFSET = 0x0c;
+
+
+
+    /**
+     * The minimum number of one bits of a sync mark.
+     */
+    private static final int MIN_SYNC_BITS = 10;
+
+
+
+    private static final int HEADER_ID = 0x08;
+    private static final int HEADER_LENGTH = 8;
+    private static final int DATA_ID = 0x07;
+    private static final int DATA_LENGTH = DiskGeometry.SECTOR_SIZE + 2;
+
+
+
+    /**
+     * The nybble for each 5 bit GCR code, -1 for invalid codes.
+     */
+    private static final int[] NYBBLE = new int[ 32 ];
+
+    static
+    {
+        Arrays.fill( NYBBLE, -1 );
+
+        for ( int i = 0 ; i < GcrDisk.GCR.length ; i++ )
+            NYBBLE[ GcrDisk.GCR[i] ] = i;
+    }
+
+
+
+    /**
+     * Create an instance.  The geometries are those of the decoded images.
+     */
+    AdaptG64()
+    {
+        super(
+                "G64 disk image",
+                "g64",
+                DiskGeometry.D64,
+                DiskGeometry.D64_40 );
+    }
+
+
+
+    /**
+     * Checks the file name's suffix.  The size of a g64 file does not tell
+     * its geometry.
+     */
+    @Override
+    public boolean isValid( File f )
+    {
+        return f.getName().toLowerCase().endsWith( getFilenameSuffix() );
+    }
+
+
+
+    @Override
+    protected boolean isValid( String name, ByteBuffer content )
+    {
+        if ( ! name.toLowerCase().endsWith( getFilenameSuffix() ) ||
+             content.limit() < TRACK_TABLE_OFFSET )
+            return false;
+
+        for ( int i = 0 ; i < SIGNATURE.length ; i++ )
+        {
+            if ( content.get( i ) != SIGNATURE[i] )
+                return false;
+        }
+
+        return true;
+    }
+
+
+
+    /**
+     * The file is only read.  Files saved into the decoded image are kept in
+     * memory, they are not encoded into the file.
+     *
+     * @see #createReadOnly(File)
+     */
+    @Override
+    public ImageFile create( File file )
+        throws IOException
+    {
+        return createReadOnly( file );
+    }
+
+
+
+    /**
+     * Decodes the image into a d64 image.  The directory and the files are
+     * then handled like those of a d64 image.
+     */
+    @Override
+    public ImageFile create( String name, ByteBuffer content )
+        throws IOException
+    {
+        return new DefaultImageFile(
+                this,
+                name,
+                ByteBuffer.wrap( decode( content ) ) );
+    }
+
+
+
+    /**
+     * Decode the tracks of an image.
+     *
+     * @param content The g64 image.
+     * @return The d64 image.
+     * @throws IOException If the image is broken.
+     */
+    static byte[] decode( ByteBuffer content )
+        throws IOException
+    {
+        ByteBuffer g64 = content.duplicate().order( ByteOrder.LITTLE_ENDIAN );
+
+        int halfTracks = g64.get( HALF_TRACK_COUNT_OFFSET ) & 0xff;
+        int tracks = Math.min( halfTracks / 2, DiskGeometry.D64_40.getTracks() );
+
+        if ( g64.limit() < TRACK_TABLE_OFFSET + 4 * halfTracks )
+            throw new IOException( "Broken track table." );
+
+        // Read the tracks, index zero is track one.
+        byte[][] gcr = new byte[ tracks ][];
+        for ( int i = 0 ; i < tracks ; i++ )
+        {
+            int offset = g64.getInt( TRACK_TABLE_OFFSET + 8 * i );
+
+            if ( offset == 0 )
+                continue;
+
+            if ( offset < 0 || offset + 2 > g64.limit() )
+                throw new IOException( "Broken track offset." );
+
+            int length = g64.getShort( offset ) & 0xffff;
+
+            if ( offset + 2 + length > g64.limit() )
+                throw new IOException( "Broken track length." );
+
+            gcr[i] = new byte[ length ];
+            ByteBuffer track = g64.duplicate();
+            track.position( offset + 2 );
+            track.get( gcr[i] );
+        }
+
+        DiskGeometry g = DiskGeometry.D64;
+        for ( int i = g.getTracks() ; i < tracks ; i++ )
+        {
+            if ( gcr[i] != null )
+                g = DiskGeometry.D64_40;
+        }
+
+        int sectors = g.getOffset( g.getTracks(), 0 ) /
+                DiskGeometry.SECTOR_SIZE +
+                g.getSectors( g.getTracks() );
+        byte[] result = new byte[ sectors * DiskGeometry.SECTOR_SIZE ];
+        BitSet found = new BitSet( sectors );
+
+        for ( int i = 0 ; i < g.getTracks() && i < tracks ; i++ )
+        {
+            if ( gcr[i] != null && gcr[i].length > 0 )
+                decodeTrack( gcr[i], i + 1, g, result, found );
+        }
+
+        if ( found.cardinality() < sectors )
+            _log.warning( "Sectors not found: " +
+                    (sectors - found.cardinality()) );
+
+        return result;
+    }
+
+
+
+    /**
+     * Decode the sectors of a track.  The track is circular, so it is read
+     * twice to find a sector that wraps around its end.
+     *
+     * @param gcr The track's GCR data.
+     * @param track The track number, starting with one.
+     * @param g The geometry of the decoded image.
+     * @param target The decoded image.
+     * @param found The numbers of the sectors already decoded.
+     */
+    private static void decodeTrack(
+            byte[] gcr, int track, DiskGeometry g, byte[] target, BitSet found )
+    {
+        int bits = gcr.length * 8;
+        int ones = 0;
+        int sector = -1;
+
+        for ( int pos = 0 ; pos < 2 * bits ; pos++ )
+        {
+            if ( getBit( gcr, pos ) != 0 )
+            {
+                ones++;
+                continue;
+            }
+
+            // A block starts after a sync mark.
+            if ( ones >= MIN_SYNC_BITS )
+            {
+                int id = decodeByte( gcr, pos );
+
+                if ( id == HEADER_ID )
+                {
+                    byte[] header = decodeBlock( gcr, pos, HEADER_LENGTH );
+                    sector =
+                        header == null || (header[3] & 0xff) != track ?
+                            -1 :
+                            header[2] & 0xff;
+                }
+                else if ( id == DATA_ID && sector >= 0 )
+                {
+                    storeSector(
+                            decodeBlock( gcr, pos, DATA_LENGTH ),
+                            g.getOffset( track, sector ),
+                            target,
+                            found );
+                    sector = -1;
+                }
+            }
+
+            ones = 0;
+        }
+    }
+
+
+
+    /**
+     * Store a decoded data block if its checksum is valid.
+     */
+    private static void storeSector(
+            byte[] data, int offset, byte[] target, BitSet found )
+    {
+        if ( data == null || offset < 0 )
+            return;
+
+        int block = offset / DiskGeometry.SECTOR_SIZE;
+
+        if ( found.get( block ) )
+            return;
+
+        int checksum = 0;
+        for ( int i = 1 ; i <= DiskGeometry.SECTOR_SIZE ; i++ )
+            checksum ^= data[i];
+
+        if ( (byte)checksum != data[ DATA_LENGTH-1 ] )
+            return;
+
+        System.arraycopy( data, 1, target, offset, DiskGeometry.SECTOR_SIZE );
+        found.set( block );
+    }
+
+
+
+    /**
+     * Decode a GCR encoded block.
+     *
+     * @return The block or <code>null</code> if it holds an invalid code.
+     */
+    private static byte[] decodeBlock( byte[] gcr, int pos, int length )
+    {
+        byte[] result = new byte[ length ];
+
+        for ( int i = 0 ; i < length ; i++ )
+        {
+            int b = decodeByte( gcr, pos + 10 * i );
+
+            if ( b < 0 )
+                return null;
+
+            result[i] = (byte)b;
+        }
+
+        return result;
+    }
+
+
+
+    /**
+     * Decode the ten bits of a GCR encoded byte.
+     *
+     * @return The byte or -1 if the bits hold an invalid code.
+     */
+    private static int decodeByte( byte[] gcr, int pos )
+    {
+        int high = NYBBLE[ getBits( gcr, pos, 5 ) ];
+        int low = NYBBLE[ getBits( gcr, pos + 5, 5 ) ];
+
+        if ( high < 0 || low < 0 )
+            return -1;
+
+        return (high << 4) | low;
+    }
+
+
+
+    private static int getBits( byte[] gcr, int pos, int count )
+    {
+        int result = 0;
+
+        for ( int i = 0 ; i < count ; i++ )
+            result = (result << 1) | getBit( gcr, pos + i );
+
+        return result;
+    }
+
+
+
+    /**
+     * Get a bit of the circular track.
+     */
+    private static int getBit( byte[] gcr, int pos )
+    {
+        pos %= gcr.length * 8;
+
+        return (gcr[ pos >> 3 ] >> (7 - (pos & 7))) & 1;
+    }
+}
@@ -0,0 +1,54 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+
+
+/**
+ * Loader for gzip compressed images, e.g. '.d64.gz'.  The type of the image
+ * is derived from the file name without the '.gz' suffix.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class AdaptGz extends AdaptCompressed
+{
+    /**
+     * Create an instance.
+     */
+    AdaptGz()
+    {
+        super( "Gzip compressed image", "gz" );
+    }
+
+
+
+    @Override
+    protected Image decompress( File file, InputStream in )
+        throws IOException
+    {
+        String name = file.getName();
+        name = name.substring( 0, name.length() - getFilenameSuffix().length() - 1 );
+
+        byte[] content = read( new GZIPInputStream( in ) );
+
+        ImageFileFactory factory =
+                LoadDevice.findFactoryFor( name, ByteBuffer.wrap( content ) );
+
+        if ( factory == null )
+            throw new IOException( "Type not supported: " + name );
+
+        return new Image( factory, name, content );
+    }
+}
@@ -7,6 +7,7 @@
  */
 package de.michab.simulator.mos6502.c64;
 
+import java.nio.ByteBuffer;
 
 
 /**
@@ -35,30 +36,22 @@ class AdaptP00
 
 
   /**
-   * @see ImageFileFactory#loadEntry(byte[], byte[])
+   * @see ImageFileFactory#loadEntry(DirectoryIndex.Entry, ByteBuffer)
    */
-  public byte[] loadEntry( byte[] name, byte[] image )
+  public ByteBuffer[] loadEntry( DirectoryIndex.Entry entry, ByteBuffer image )
   {
-    byte[] result = null;
-
-    byte[][] dir = getDirectory( image );
-
-    if ( namesEqual( dir[0], name ) )
-    {
-      result = new byte[ image.length - DE_CONTENT_START ];
-      System.arraycopy( image, DE_CONTENT_START, result, 0, result.length );
-      return result;
-    }
-
-    return result;
+    return new ByteBuffer[] {
+      slice( image,
+             DE_CONTENT_START,
+             image.limit() - DE_CONTENT_START ) };
   }
 
 
 
   /**
-   * @see ImageFileFactory#getDirectory(byte[])
+   * @see ImageFileFactory#getDirectory(ByteBuffer)
    */
-  public byte[][] getDirectory( byte[] image )
+  public byte[][] getDirectory( ByteBuffer image )
   {
     byte[][] result =
       new byte[][]{ stripBytes( image,
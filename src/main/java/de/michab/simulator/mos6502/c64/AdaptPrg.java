@@ -7,6 +7,8 @@
 */
 package de.michab.simulator.mos6502.c64;
 
+import java.nio.ByteBuffer;
+
 /**
  * Loader for the .prg image format.
  *
@@ -30,9 +32,9 @@ class AdaptPrg extends ImageFileFactory
    * The directory of a prg file always contains a single entry with the name
    * of the file itself.
    *
-   * @see de.michab.simulator.mos6502.c64.ImageFileFactory#getDirectory(byte[])
+   * @see de.michab.simulator.mos6502.c64.ImageFileFactory#getDirectory(ByteBuffer)
    */
-  public byte[][] getDirectory( String filename, byte[] imageFile )
+  public byte[][] getDirectory( String filename, ByteBuffer imageFile )
   {
     String name = filename.toUpperCase().substring(
         0, 
@@ -46,8 +48,8 @@ class AdaptPrg extends ImageFileFactory
   /*
    * Inherit javadoc.
    */
-  public byte[] loadEntry( byte[] name, byte[] imageFile )
+  public ByteBuffer[] loadEntry( DirectoryIndex.Entry entry, ByteBuffer imageFile )
   {
-    return imageFile;
+    return new ByteBuffer[]{ imageFile.duplicate() };
   }
 }
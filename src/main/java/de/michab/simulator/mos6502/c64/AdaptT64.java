@@ -7,6 +7,7 @@
  */
 package de.michab.simulator.mos6502.c64;
 
+import java.nio.ByteBuffer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,9 +55,9 @@ class AdaptT64
    * Return the directory for the passed image.
    *
    * @param image The byte image.
-   * @see ImageFileFactory#getDirectory( byte[] )
+   * @see ImageFileFactory#getDirectory( ByteBuffer )
    */
-  public byte[][] getDirectory( byte[] image )
+  public byte[][] getDirectory( ByteBuffer image )
   {
     byte[][] result = new byte[ getUsedDirEntries( image ) ][];
 
@@ -69,24 +70,16 @@ class AdaptT64
 
 
   /**
-   * Loads the named entry from the image file.
+   * Loads an entry from the image file.
    *
-   * @param name The name of the file to read.
+   * @param entry The entry to read, its location is the entry's index.
    * @param image The image to read from.
    * @return The requested file.
-   * @see ImageFileFactory#loadEntry( byte[], byte[] )
+   * @see ImageFileFactory#loadEntry( DirectoryIndex.Entry, ByteBuffer )
    */
-  public byte[] loadEntry( byte[] name, byte[] image )
+  public ByteBuffer[] loadEntry( DirectoryIndex.Entry entry, ByteBuffer image )
   {
-    byte[][] dir = getDirectory( image );
-
-    for ( int i = 0 ; i < dir.length ; i++ )
-    {
-      if ( namesEqual( dir[i], name ) )
-        return loadDirEntry( i, image );
-    }
-
-    return null;
+    return loadDirEntry( entry.getLocation(), image );
   }
 
 
@@ -94,43 +87,41 @@ class AdaptT64
   /**
    * Loads the directory entry at the given index.
    */
-  static private byte[] loadDirEntry( int dirEntryIdx, byte[] image )
+  static private ByteBuffer[] loadDirEntry( int dirEntryIdx, ByteBuffer image )
   {
     int currentDirEntryOffset = getDirEntryOffset( dirEntryIdx );
 
-    // Compute the size for the result array.  This is load end address minus
-    // load start address plus two bytes for the target address that has to be
-    // included in the first two bytes of the returned array (see description
-    // of FormatAdapter#getImage().
+    // Compute the size of the load image.  This is load end address minus
+    // load start address.  The target address is not part of the image but
+    // of the directory entry, it is passed in front of the image (see
+    // description of ImageFile#loadDirectoryEntry()).
     int startAdr =
       getWordAt( currentDirEntryOffset + DE_START_ADDRESS, image );
     int endAdr =
       getWordAt( currentDirEntryOffset + DE_END_ADDRESS, image );
 
-    // Create the result array.
-    byte[] result = new byte[ 2 + (endAdr - startAdr) ];
+    int length = endAdr - startAdr;
 
-    // Write the target load address.
-    result[0] = image[ currentDirEntryOffset + DE_START_ADDRESS_LO ];
-    result[1] = image[ currentDirEntryOffset + DE_START_ADDRESS_HI ];
+    // The target load address.
+    byte[] address = new byte[] {
+      image.get( currentDirEntryOffset + DE_START_ADDRESS_LO ),
+      image.get( currentDirEntryOffset + DE_START_ADDRESS_HI ) };
 
-    // Fill in the load image.
+    // The load image.
     int fromOffset =
       getDwordAt( currentDirEntryOffset + DE_IMAGE_OFFSET, image );
     // This is special processing of a known error -- see t64.txt.
     if ( endAdr == 0xc3c6 )
     {
       _log.log( _chipLogLevel, "SpecialHandling..." );
-      byte[] newResult = new byte[ 2 + (image.length - fromOffset) ];
-      newResult[0] = result[0];
-      newResult[1] = result[1];
-      _log.log( _chipLogLevel, "t64: old.len == " + result.length  );
-      _log.log( _chipLogLevel, "t64: new.len == " + newResult.length  );
-      result = newResult;
+      _log.log( _chipLogLevel, "t64: old.len == " + length  );
+      length = image.limit() - fromOffset;
+      _log.log( _chipLogLevel, "t64: new.len == " + length  );
     }
-    System.arraycopy( image, fromOffset, result, 2, result.length - 2 );
 
-    return result;
+    return new ByteBuffer[] {
+      ByteBuffer.wrap( address ),
+      slice( image, fromOffset, length ) };
   }
 
 
@@ -142,7 +133,7 @@ class AdaptT64
    *            what getDirectorySize() delivers.
    * @param image The file image.
    */
-  private static byte[] getEntryName( int idx, byte[] image )
+  private static byte[] getEntryName( int idx, ByteBuffer image )
   {
     int nameStart = getDirEntryOffset( idx ) + 0x10;
     int nameEnd = nameStart + 0x0f;
@@ -161,7 +152,7 @@ class AdaptT64
    * @param image The file image.
    * @return The number of used diretory entries.
    */
-  private static int getUsedDirEntries( byte[] image )
+  private static int getUsedDirEntries( ByteBuffer image )
   {
     int result = getWordAt( 0x24, image );
 
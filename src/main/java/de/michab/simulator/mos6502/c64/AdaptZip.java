@@ -0,0 +1,62 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+
+
+/**
+ * Loader for zip archives.  The archive is read as a stream, the first
+ * entry that holds a supported image is used.
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class AdaptZip extends AdaptCompressed
+{
+    /**
+     * Create an instance.
+     */
+    AdaptZip()
+    {
+        super( "Zip archive", "zip" );
+    }
+
+
+
+    @Override
+    protected Image decompress( File file, InputStream in )
+        throws IOException
+    {
+        ZipInputStream zip = new ZipInputStream( in );
+
+        for ( ZipEntry e = zip.getNextEntry() ; e != null ; e = zip.getNextEntry() )
+        {
+            if ( e.isDirectory() )
+                continue;
+
+            // Entries may be held in directories inside the archive.
+            String name = new File( e.getName() ).getName();
+            byte[] content = read( zip );
+
+            ImageFileFactory factory =
+                    LoadDevice.findFactoryFor( name, ByteBuffer.wrap( content ) );
+
+            if ( factory != null )
+                return new Image( factory, name, content );
+        }
+
+        throw new IOException( "No image found in " + file.getName() );
+    }
+}
@@ -18,11 +18,32 @@ import java.beans.PropertyChangeListener;
 import java.beans.PropertyChangeSupport;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import de.michab.simulator.Chip;
 import de.michab.simulator.Clock;
+import de.michab.simulator.ClockEvent;
 import de.michab.simulator.Forwarder;
+import de.michab.simulator.IdleDetector;
 import de.michab.simulator.Memory;
+import de.michab.simulator.Persistent;
 import de.michab.simulator.Processor;
 import de.michab.simulator.mos6502.Cia;
 import de.michab.simulator.mos6502.Cpu6510;
@@ -44,13 +65,19 @@ import de.michab.simulator.mos6502.Vic;
  * the display component -- has been done a call to the <code>start()</code>
  * method starts the emulation.</p>
  *
+ * <p>An emulation holds threads and has to be shut down when it is no
+ * longer used.</p>
+ *
  * @version $Revision: 403 $
  * @author Michael G. Binz
  */
 public final class C64Core
   implements
-    KeyListener, MouseListener
+    KeyListener, MouseListener, AutoCloseable
 {
+    private static final Logger _log =
+            Logger.getLogger( C64Core.class.getName() );
+
     public final static String IMAGE_NAME = "imageNameProperty";
 
     /**
@@ -79,8 +106,7 @@ public final class C64Core
 
 
 
-    private final Clock _systemClock =
-            new Clock( C64Core.PAL_TICKS_PER_SEC ); // 5 );
+    private final Clock _systemClock;
 
 
 
@@ -159,6 +185,36 @@ public final class C64Core
 
 
 
+    /**
+     * @see SaveDevice
+     */
+    private SaveDevice _sd;
+
+
+
+    /**
+     * The drive on the serial bus.  <code>null</code> if the drive is not
+     * enabled, then images are loaded by the load device only.
+     *
+     * @see #enableDrive(File)
+     */
+    private Drive1541 _drive = null;
+
+    /**
+     * The attached file, an image file or a cartridge.
+     */
+    private File _file = null;
+
+
+
+    /**
+     * The file holding the drive's ROM, <code>null</code> if the drive is
+     * not enabled.
+     */
+    private File _driveRom = null;
+
+
+
     /**
      * @see SystemInput
      */
@@ -173,6 +229,66 @@ public final class C64Core
 
 
 
+    /**
+     * The connected input device.
+     */
+    private InputDevice _inputDevice;
+
+
+
+    /**
+     * Records and replays the external inputs.
+     *
+     * @see Journal
+     */
+    private final Journal _journal;
+
+
+
+    /**
+     * The chips that are part of a snapshot by their chunk tag.  The
+     * processor holds the state of the interrupt lines that are driven by
+     * the other chips, so it is restored first.
+     */
+    private final Map<Integer, Persistent> _components =
+            new LinkedHashMap<Integer, Persistent>();
+
+
+
+    /**
+     * Keeps the recent frames for rewinding.
+     */
+    private final Rewind _rewind;
+
+
+
+    /**
+     * Writes snapshots to their channels while the emulation continues.
+     */
+    private final ExecutorService _snapshotWriter =
+            Executors.newSingleThreadExecutor( r -> {
+                Thread result = new Thread( r, "Snapshot" );
+                result.setDaemon( true );
+                return result;
+            } );
+
+
+
+    /**
+     * The snapshots scheduled but not yet taken.  Failed on shutdown.
+     */
+    private final Set<CompletableFuture<Snapshot>> _captures =
+            ConcurrentHashMap.newKeySet();
+
+
+
+    /**
+     * Set when the emulation is started.
+     */
+    private boolean _isStarted = false;
+
+
+
     /**
      *
      */
@@ -195,6 +311,42 @@ public final class C64Core
      */
     public C64Core()
     {
+        this( true );
+    }
+
+
+
+    /**
+     * Creates an instance of a Commodore 64.
+     *
+     * @param realTime If <code>true</code> the emulation is throttled to
+     *        real time.  If <code>false</code> the emulation runs as fast as
+     *        possible.  This is used for batch processing.
+     * @see #C64Core()
+     */
+    public C64Core( boolean realTime )
+    {
+        this( realTime, false );
+    }
+
+
+
+    /**
+     * Creates an instance of a Commodore 64.
+     *
+     * @param realTime If <code>true</code> the emulation is throttled to
+     *        real time.  If <code>false</code> the emulation runs as fast as
+     *        possible.  This is used for batch processing.
+     * @param headless If <code>true</code> the emulation does not open the
+     *        audio line and does not register the SID statistics, the sound
+     *        is off and discarded if switched on.  The display is only drawn
+     *        if it is shown.  Used for copies and batch processing.
+     * @see #C64Core(boolean)
+     */
+    public C64Core( boolean realTime, boolean headless )
+    {
+        _systemClock = new Clock( PAL_TICKS_PER_SEC, realTime );
+
         // Create the 64's memory.
         _memory = new C64Memory();
 
@@ -205,7 +357,13 @@ public final class C64Core
         _processor.setPortListener( 1, _memory.getAddress1Listener() );
 
         // Create the SID.
-        _sid = new Sid();
+        if ( headless )
+        {
+            _sid = new Sid( _systemClock, ( samples, offset, length ) -> {} );
+            _sid.setSoundOn( false );
+        }
+        else
+            _sid = new Sid( _systemClock );
         _memory.mapInto( _sid, SID_BASE );
 
         // Create the VIC.
@@ -216,32 +374,57 @@ public final class C64Core
             _memory.mapInto( _vic, i );
 
         // Create the CIAs;
-        _cia1 = new Cia( _processor, _systemClock );
+        _cia1 = new Cia(
+            _processor.getInterruptController().createIrqLine( "CIA-1" ),
+            _systemClock );
         _memory.mapInto( _cia1, CIA1_BASE );
         _memory.mapInto( _cia1, CIA1_BASE + 0x10 );
 
-        _cia2 = new Cia( _processor, _systemClock );
+        _cia2 = new Cia(
+            _processor.getInterruptController().createNmiLine( "CIA-2" ),
+            _systemClock );
         _memory.mapInto( _cia2, CIA2_BASE );
         // Connect the two least significant bits of cia2's port a to the video
-        // chip base address.  Bits are low active.
+        // chip base address.  Bits are low active.  Bits 3 to 7 are the
+        // serial bus, connected if a drive is enabled.
         _cia2.connectPortA( new Forwarder(){
+            private int _output = 0xff;
 
             @Override
             public void write( byte value )
             {
                 _vic.setPageAddress( ~value );
+                _output = value & 0xff;
+                if ( _drive != null )
+                    _drive.hostWrite( _output );
             }
             @Override
             public byte read()
             {
-                return (byte)~_vic.getPageAddress();
+                int result = ~_vic.getPageAddress();
+                if ( _drive != null )
+                    result = (result & 0x03) |
+                        (_output & 0x3c) |
+                        (_drive.hostRead() & 0xc0);
+                return (byte)result;
             }
         } );
 
-        setInputDevice( InputDevice.KEYBOARD );
+        connectInputDevice( InputDevice.KEYBOARD );
 
         // Finally add extensions
         addExtensions();
+
+        _journal = new Journal( _systemClock, this::applyInput );
+
+        _components.put( Snapshot.CPU, _processor );
+        _components.put( Snapshot.MEMORY, _memory );
+        _components.put( Snapshot.VIC, _vic );
+        _components.put( Snapshot.CIA1, _cia1 );
+        _components.put( Snapshot.CIA2, _cia2 );
+        _components.put( Snapshot.SID, _sid );
+
+        _rewind = new Rewind( _systemClock, _components );
     }
 
 
@@ -253,30 +436,120 @@ public final class C64Core
      */
     public boolean isImageFileValid( File file )
     {
-        return _ld.isValid( file );
+        return _ld.isValid( file ) || Cartridge.isValid( file );
     }
 
     /**
      * Attaches a file to the emulator.  This is the bound property
-     * <code>IMAGE_NAME</code>.
+     * <code>IMAGE_NAME</code>.  A cartridge file inserts the cartridge and
+     * resets the emulation, the cartridge starts at once.
      *
      * @param file The file to attach.
      */
     public void setImageFile( File file )
             throws IOException
     {
-        var oldFile = _ld.getFile();
+        var oldFile = _file;
 
         // If the old file name differs from the new one...
         if ( oldFile == null || !oldFile.equals( file ) )
         {
             // ...set the new one...
-            _ld.setFile( file );
+            if ( _journal.isActive() )
+            {
+                // Errors are reported here, the journal mounts the file on
+                // the emulation's schedule.
+                if ( Cartridge.isValid( file ) )
+                    new Cartridge( file );
+                else
+                    _ld.open( file );
+                if ( ! _journal.submit(
+                        Journal.IMAGE_FILE,
+                        Journal.checksum( file ),
+                        file.getPath().getBytes( StandardCharsets.UTF_8 ) ) )
+                    mount( file );
+            }
+            else
+                mount( file );
             // ...and fire a change event in case of success.
             _pcs.firePropertyChange( IMAGE_NAME, oldFile, file );
         }
     }
 
+    /**
+     * Mount an image file.  If the drive is enabled D64 images are inserted
+     * into the drive and loaded and saved by the drive, the load and save
+     * devices are removed from the KERNAL.  Other images are loaded by the load device.
+     * A cartridge is inserted and stays inserted until the next cartridge is
+     * mounted.
+     *
+     * @param file The image file.
+     * @throws IOException If the file can't be read.
+     */
+    private void mount( File file )
+            throws IOException
+    {
+        if ( Cartridge.isValid( file ) )
+        {
+            _memory.insert( new Cartridge( file ) );
+            _file = file;
+            performReset( false );
+            return;
+        }
+
+        _ld.setFile( file );
+        _file = file;
+
+        if ( _drive == null )
+            return;
+
+        ImageFile image = _ld.getImageFile();
+        boolean isDisk =
+                DiskGeometry.D64.matches( image.getContents() ) ||
+                DiskGeometry.D64_40.matches( image.getContents() );
+
+        _drive.insert( isDisk ? image.getContents() : null );
+
+        if ( isDisk )
+        {
+            _memory.unmap( _ld, _ld.getBaseAddress() );
+            _memory.unmap( _sd, _sd.getBaseAddress() );
+        }
+        else
+        {
+            _memory.mapInto( _ld, _ld.getBaseAddress() );
+            _memory.mapInto( _sd, _sd.getBaseAddress() );
+        }
+    }
+
+    /**
+     * Enable the emulation of a 1541 drive as device 8.  The drive runs the
+     * DOS from its ROM on its own processor, this is slower than loading by
+     * the load device but supports programs that use the drive directly,
+     * e.g. fast loaders.  Has to be called before the emulation is started.
+     *
+     * @param rom The file holding the 16k drive ROM.
+     * @throws IOException If the ROM can't be read.
+     * @throws IllegalStateException If the emulation is started or the drive
+     *         is enabled.
+     */
+    public void enableDrive( File rom )
+            throws IOException
+    {
+        if ( _isStarted || _drive != null )
+            throw new IllegalStateException();
+
+        _drive = new Drive1541(
+                Drive1541.readRom( rom ),
+                _systemClock,
+                _processor::getLocalTime );
+        _driveRom = rom;
+
+        File file = _ld.getFile();
+        if ( file != null )
+            mount( file );
+    }
+
     /**
      * Get the currently attached image file.  Bound property IMAGE_NAME.
      *
@@ -329,7 +602,9 @@ public final class C64Core
         buffer.append( ",1\rRUN\r" );
 
         // ...and write that into the 64's keyboard input buffer.
-        _systemInput.writeInput( buffer.toString().getBytes() );
+        byte[] input = buffer.toString().getBytes();
+        if ( ! _journal.submit( Journal.SYSTEM_INPUT, 0, input ) )
+            _systemInput.writeInput( input );
     }
 
     /**
@@ -342,6 +617,8 @@ public final class C64Core
         // Add image loading extensions.
         _ld = new LoadDevice( _processor, _memory );
         _memory.mapInto( _ld, _ld.getBaseAddress() );
+        _sd = new SaveDevice( _processor, _memory, _ld );
+        _memory.mapInto( _sd, _sd.getBaseAddress() );
 
         // Add the external write port into the 64's key buffer.
         _systemInput = new SystemInput( _memory );
@@ -358,6 +635,17 @@ public final class C64Core
      *             results in a reset even in case a module marker exists.
      */
     public void reset( boolean hard )
+    {
+        if ( ! _journal.submit( Journal.RESET, hard ? 1 : 0, null ) )
+            performReset( hard );
+    }
+
+    /**
+     * Perform a reset.
+     *
+     * @param hard See {@link #reset(boolean)}.
+     */
+    private void performReset( boolean hard )
     {
         // The following line prevents module autostart if a hard reset was
         // requested.
@@ -367,6 +655,9 @@ public final class C64Core
         _memory.reset();
 
         _processor.reset();
+
+        if ( _drive != null )
+            _drive.reset();
     }
 
     /**
@@ -381,11 +672,30 @@ public final class C64Core
 
     /**
      * Shutdown the emulator and release all resources held.  It is not possible
-     * to restart after <code>shutdown()</code> was called.
+     * to restart after <code>shutdown()</code> was called.  The clock is
+     * stopped, which ends the threads of the chips, the SID statistics are
+     * unregistered and the snapshot writer ends.  Snapshots not yet taken
+     * fail.
      */
     public void shutdown()
     {
+        _systemClock.stop();
+        for ( CompletableFuture<Snapshot> c : _captures )
+            c.completeExceptionally( shutDown() );
         _vic.terminate();
+        _sid.shutdown();
+        _snapshotWriter.shutdown();
+    }
+
+    /**
+     * Shutdown the emulator.
+     *
+     * @see #shutdown()
+     */
+    @Override
+    public void close()
+    {
+        shutdown();
     }
 
     /**
@@ -393,9 +703,507 @@ public final class C64Core
      */
     public void start()
     {
+        _isStarted = true;
         _systemClock.start();
     }
 
+    /**
+     * Record the external inputs into a journal.  A recorded run can be
+     * reproduced exactly by a replay of the journal.  Recording has to be
+     * started before the emulation is started.
+     *
+     * @param out The stream receiving the journal.  Closed when recording
+     *        ends.
+     * @throws IOException If writing to the stream failed.
+     * @throws IllegalStateException If the emulation is started or a
+     *         journal is active.
+     * @see #stopJournal()
+     */
+    public void record( OutputStream out )
+            throws IOException
+    {
+        if ( _isStarted )
+            throw new IllegalStateException( "Emulation is started." );
+
+        _journal.record( out );
+    }
+
+    /**
+     * Replay the inputs from a journal.  Live inputs are ignored until
+     * the replay is complete.  The replay has to be started before the
+     * emulation is started.
+     *
+     * @param in The stream holding the journal.  Closed when the replay
+     *        ends.
+     * @throws IOException If the stream holds no journal.
+     * @throws IllegalStateException If the emulation is started or a
+     *         journal is active.
+     * @see #stopJournal()
+     */
+    public void replay( InputStream in )
+            throws IOException
+    {
+        if ( _isStarted )
+            throw new IllegalStateException( "Emulation is started." );
+
+        _journal.replay( in );
+    }
+
+    /**
+     * Stop recording or replaying.  Nothing happens if no journal is
+     * active.
+     */
+    public void stopJournal()
+    {
+        _journal.close();
+    }
+
+    /**
+     * Take a snapshot of the emulation's state.  The state is copied on the
+     * emulation's schedule between two instructions, this copies the
+     * memory and the chips' registers.  If the emulation is not started
+     * the state is copied right away.  Writing the snapshot to the channel
+     * is done in the background while the emulation continues.
+     *
+     * @param channel The channel receiving the snapshot.  Not closed.
+     * @return A future that completes when the snapshot is written.
+     *         Completes exceptionally with an
+     *         <code>IllegalStateException</code> if the emulation is shut
+     *         down.
+     * @see #restoreSnapshot(ReadableByteChannel)
+     */
+    public CompletableFuture<Void> saveSnapshot( WritableByteChannel channel )
+    {
+        CompletableFuture<Void> result = new CompletableFuture<Void>();
+
+        takeSnapshot().whenComplete( ( snapshot, failure ) -> {
+            if ( failure != null )
+            {
+                result.completeExceptionally( failure );
+                return;
+            }
+
+            try
+            {
+                _snapshotWriter.execute( () -> {
+                    try
+                    {
+                        snapshot.write( channel );
+                        result.complete( null );
+                    }
+                    catch ( Exception e )
+                    {
+                        result.completeExceptionally( e );
+                    }
+                } );
+            }
+            catch ( RejectedExecutionException e )
+            {
+                result.completeExceptionally( shutDown() );
+            }
+        } );
+
+        return result;
+    }
+
+    /**
+     * Create independent copies of the emulation.  The state is copied on
+     * the emulation's schedule, this is the only time the emulation is
+     * held.  If the emulation is not started the state is copied right
+     * away, so a copy can be forked before it is started.  The copies are
+     * then created in parallel on the common pool from that state, each
+     * continues at the time the state was copied.  The copies have the
+     * same image file, cartridge and input device attached and have the
+     * drive if it is enabled.  The keys and joystick directions held down
+     * and the drive's state are not copied, a copy's drive starts from
+     * reset.
+     *
+     * <p>Each copy is a complete machine with its own memory and threads,
+     * the cost of a copy is the cost of creating an emulation.  The copies
+     * are headless, not started and run as fast as possible when started.
+     * Copies without inputs run in step with the original.  A copy has to
+     * be shut down when it is no longer used.</p>
+     *
+     * @param count The number of copies.
+     * @return A future that completes with the copies.  Completes
+     *         exceptionally if a copy could not be created or with an
+     *         <code>IllegalStateException</code> if the emulation is shut
+     *         down.
+     * @throws IllegalArgumentException If the count is negative.
+     */
+    public CompletableFuture<List<C64Core>> fork( int count )
+    {
+        if ( count < 0 )
+            throw new IllegalArgumentException( "count: " + count );
+
+        // The attached file is mounted last, so it is attached to the
+        // copies as well.
+        List<File> files = new ArrayList<File>();
+        Cartridge cartridge = _memory.getCartridge();
+        if ( cartridge != null && ! cartridge.getFile().equals( _file ) )
+            files.add( cartridge.getFile() );
+        if ( _ld.getFile() != null && ! _ld.getFile().equals( _file ) )
+            files.add( _ld.getFile() );
+        if ( _file != null )
+            files.add( _file );
+        File driveRom = _driveRom;
+        InputDevice device = _inputDevice;
+
+        return takeSnapshot().thenCompose( snapshot -> {
+            List<CompletableFuture<C64Core>> copies =
+                    new ArrayList<CompletableFuture<C64Core>>( count );
+
+            for ( int i = 0 ; i < count ; i++ )
+                copies.add( CompletableFuture.supplyAsync(
+                        () -> copy( snapshot, files, driveRom, device ) ) );
+
+            return CompletableFuture.allOf(
+                    copies.toArray( new CompletableFuture<?>[ count ] ) )
+                .whenComplete( ( v, failure ) -> {
+                    // Shut down the copies that were created.
+                    if ( failure != null )
+                        for ( CompletableFuture<C64Core> c : copies )
+                            c.thenAccept( C64Core::shutdown );
+                } )
+                .thenApply( v -> {
+                    List<C64Core> result = new ArrayList<C64Core>( count );
+                    for ( CompletableFuture<C64Core> c : copies )
+                        result.add( c.join() );
+                    return result;
+                } );
+        } );
+    }
+
+    /**
+     * Create a headless copy of the emulation.  The files are mounted
+     * before the state is restored, the reset done on inserting a
+     * cartridge is undone by the restore.
+     *
+     * @param snapshot The state to continue from.  Only read.
+     * @param files The image file and the cartridge to mount, the attached
+     *        file last.
+     * @param driveRom The drive's ROM, <code>null</code> if the drive is
+     *        not enabled.
+     * @param device The input device to connect.
+     * @return The copy, not started.
+     * @throws UncheckedIOException If the copy could not be created.
+     */
+    private static C64Core copy(
+            Snapshot snapshot,
+            List<File> files,
+            File driveRom,
+            InputDevice device )
+    {
+        C64Core result = new C64Core( false, true );
+
+        try
+        {
+            if ( driveRom != null )
+                result.enableDrive( driveRom );
+
+            for ( File c : files )
+                result.mount( c );
+
+            snapshot.restore( result._systemClock, result._components );
+        }
+        catch ( IOException e )
+        {
+            result.shutdown();
+            throw new UncheckedIOException( e );
+        }
+
+        result.connectInputDevice( device );
+        result.setSoundOn( false );
+
+        return result;
+    }
+
+    /**
+     * Copy the state of all chips into a snapshot on the emulation's
+     * schedule.  If the emulation is not started the state is copied on
+     * the calling thread.
+     *
+     * @return A future that completes with the snapshot.  Completes
+     *         exceptionally if the emulation is shut down before the state
+     *         is copied.
+     */
+    private CompletableFuture<Snapshot> takeSnapshot()
+    {
+        CompletableFuture<Snapshot> result = new CompletableFuture<Snapshot>();
+
+        if ( ! _isStarted && ! _systemClock.isStopped() )
+        {
+            try
+            {
+                result.complete( Snapshot.take( _systemClock, _components ) );
+            }
+            catch ( Exception e )
+            {
+                result.completeExceptionally( e );
+            }
+            return result;
+        }
+
+        // Added before the clock is checked, shutdown() fails the capture
+        // if the clock stops later.
+        _captures.add( result );
+        result.whenComplete( ( snapshot, failure ) -> _captures.remove( result ) );
+
+        if ( _systemClock.isStopped() )
+        {
+            result.completeExceptionally( shutDown() );
+            return result;
+        }
+
+        ClockEvent capture = new ClockEvent()
+        {
+            @Override
+            public void fire( long time )
+            {
+                try
+                {
+                    result.complete(
+                            Snapshot.take( _systemClock, _components ) );
+                }
+                catch ( Exception e )
+                {
+                    result.completeExceptionally( e );
+                }
+            }
+        };
+
+        _systemClock.schedule( capture, _systemClock.currentTime() );
+
+        return result;
+    }
+
+    /**
+     * Create the exception for operations on a shut down emulation.
+     *
+     * @return The exception.
+     */
+    private static IllegalStateException shutDown()
+    {
+        return new IllegalStateException( "Emulation is shut down." );
+    }
+
+    /**
+     * Continue the emulation from a snapshot.  The snapshot has to be
+     * restored before the emulation is started.  A journal recorded after
+     * restoring a snapshot has to be replayed after restoring the same
+     * snapshot.  A cartridge that was inserted when the snapshot was taken
+     * is read again from its file unless the same cartridge is inserted.
+     *
+     * @param channel The channel holding the snapshot.  Not closed.
+     * @throws IOException If the channel holds no valid snapshot or the
+     *         cartridge's file can't be read or changed.  If the snapshot
+     *         was read but a chunk does not match a chip, the emulation is
+     *         left partially restored.
+     * @throws IllegalStateException If the emulation is started.
+     * @see #saveSnapshot(WritableByteChannel)
+     */
+    public void restoreSnapshot( ReadableByteChannel channel )
+            throws IOException
+    {
+        if ( _isStarted )
+            throw new IllegalStateException( "Emulation is started." );
+
+        Snapshot.read( channel ).restore( _systemClock, _components );
+    }
+
+    /**
+     * Skip the ROM's cold start.  The emulation is restored at the READY
+     * prompt from a cached state.  If no state is cached yet, the emulation
+     * boots normally and its state is cached when it reaches the READY
+     * prompt, unless a cartridge is inserted by then.  Has to be called
+     * before the emulation is started.  A journal recorded after a fast
+     * boot has to be replayed after a fast boot.
+     *
+     * @return <code>true</code> if the cached state was restored,
+     *         <code>false</code> if the emulation boots normally.
+     * @throws IOException If the cached state does not match the chips.
+     *         The cache is dropped then and the emulation is left
+     *         partially restored.
+     * @throws IllegalStateException If the emulation is started.
+     * @see FastBoot
+     */
+    public boolean fastBoot()
+            throws IOException
+    {
+        if ( _isStarted )
+            throw new IllegalStateException( "Emulation is started." );
+
+        Snapshot boot = FastBoot.get();
+
+        if ( boot == null )
+        {
+            // A cartridge is part of the memory's state and would be
+            // inserted on each fast boot, a state holding one is not
+            // cached.  Cartridges are only removed by a restore, so none
+            // was inserted when the state was taken if none is now.
+            _systemInput.setReadyListener( () ->
+                takeSnapshot().thenAcceptAsync( snapshot -> {
+                    if ( _memory.getCartridge() == null )
+                        FastBoot.put( snapshot );
+                }, _snapshotWriter ) );
+            return false;
+        }
+
+        try
+        {
+            boot.restore( _systemClock, _components );
+
+            if ( _memory.getCartridge() != null )
+            {
+                _memory.insert( null );
+                throw new IOException( "Cached state holds a cartridge." );
+            }
+        }
+        catch ( IOException e )
+        {
+            FastBoot.discard();
+            throw e;
+        }
+
+        return true;
+    }
+
+    /**
+     * Start keeping the recent frames of the emulation so that it can be
+     * rewound.  A frame is kept per video frame.  If rewinding is enabled
+     * yet only the time that can be rewound is changed.
+     *
+     * @param seconds The emulated time that can be rewound.  Less is kept
+     *        if the frames exceed the memory limit.
+     * @throws IllegalArgumentException If the time is not positive.
+     * @see #rewind(int)
+     */
+    public void enableRewind( int seconds )
+    {
+        _rewind.enable( seconds );
+    }
+
+    /**
+     * Stop keeping frames and drop the frames kept.
+     */
+    public void disableRewind()
+    {
+        _rewind.disable();
+    }
+
+    /**
+     * Continue the emulation from an earlier frame.  The emulation continues
+     * running, the frames after the one rewound to are dropped.
+     *
+     * @param frames The number of frames to go back, one continues from the
+     *        latest frame.  Limited to the frames kept.
+     * @return A future that completes with the clock time the emulation
+     *         continues at.  Completes exceptionally if no frame was kept
+     *         or restoring failed.
+     * @throws IllegalArgumentException If the number of frames is not
+     *         positive.
+     * @throws IllegalStateException If a journal is active.  A rewind is
+     *         not part of the journal, so a replay would differ.
+     * @see #enableRewind(int)
+     */
+    public CompletableFuture<Long> rewind( int frames )
+    {
+        if ( frames <= 0 )
+            throw new IllegalArgumentException( "frames: " + frames );
+        if ( _journal.isActive() )
+            throw new IllegalStateException( "Journal is active." );
+
+        CompletableFuture<Long> result = new CompletableFuture<Long>();
+
+        ClockEvent restore = new ClockEvent()
+        {
+            @Override
+            public void fire( long time )
+            {
+                try
+                {
+                    result.complete( _rewind.rewind( frames ) );
+                }
+                catch ( Exception e )
+                {
+                    result.completeExceptionally( e );
+                }
+            }
+        };
+
+        _systemClock.schedule( restore, _systemClock.currentTime() );
+
+        return result;
+    }
+
+    /**
+     * Apply an input from the journal.
+     *
+     * @param type The input type.
+     * @param value The input's value.
+     * @param data The input's data.
+     */
+    private void applyInput( int type, int value, byte[] data )
+    {
+        switch ( type )
+        {
+        case Journal.KEY_PRESSED:
+            _currentKeyListener.keyPressed( createKeyEvent(
+                    KeyEvent.KEY_PRESSED, value, KeyEvent.CHAR_UNDEFINED ) );
+            break;
+
+        case Journal.KEY_RELEASED:
+            _currentKeyListener.keyReleased( createKeyEvent(
+                    KeyEvent.KEY_RELEASED, value, KeyEvent.CHAR_UNDEFINED ) );
+            break;
+
+        case Journal.KEY_TYPED:
+            _currentKeyListener.keyTyped( createKeyEvent(
+                    KeyEvent.KEY_TYPED, KeyEvent.VK_UNDEFINED, (char)value ) );
+            break;
+
+        case Journal.INPUT_DEVICE:
+            connectInputDevice( InputDevice.values()[ value ] );
+            break;
+
+        case Journal.SYSTEM_INPUT:
+            _systemInput.writeInput( data );
+            break;
+
+        case Journal.IMAGE_FILE:
+        {
+            File file = new File( new String( data, StandardCharsets.UTF_8 ) );
+            try
+            {
+                if ( Journal.checksum( file ) != value )
+                    _log.warning( "Image file differs from recording: " + file );
+                mount( file );
+            }
+            catch ( IOException e )
+            {
+                _log.log( Level.SEVERE, "Mount failed: " + file, e );
+            }
+            break;
+        }
+
+        case Journal.RESET:
+            performReset( value != 0 );
+            break;
+
+        default:
+            _log.warning( "Unknown input type: " + type );
+        }
+    }
+
+    /**
+     * Create a key event for replaying a key input.  Only the key code and
+     * the key character are evaluated by the input devices.
+     */
+    private KeyEvent createKeyEvent( int id, int keyCode, char keyChar )
+    {
+        return new KeyEvent( _vic.getComponent(), id, 0, 0, keyCode, keyChar );
+    }
+
     /**
      * Returns a reference to the emulation's video interface chip (aka VIC).
      */
@@ -436,6 +1244,18 @@ public final class C64Core
         return _memory;
     }
 
+    /**
+     * Get the idle detector of the drive.
+     *
+     * @return The idle detector, <code>null</code> if the drive is not
+     *         enabled.
+     * @see #enableDrive(File)
+     */
+    public IdleDetector getDriveIdleDetector()
+    {
+        return _drive == null ? null : _drive.getIdleDetector();
+    }
+
     private Component _display = null;
 
     /**
@@ -478,6 +1298,19 @@ public final class C64Core
      */
     public void setInputDevice( InputDevice device )
     {
+        if ( ! _journal.submit( Journal.INPUT_DEVICE, device.ordinal(), null ) )
+            connectInputDevice( device );
+    }
+
+    /**
+     * Connect an input device to the CIA.
+     *
+     * @param device One of the {@link InputDevice} enumeration elements.
+     */
+    private void connectInputDevice( InputDevice device )
+    {
+        _inputDevice = device;
+
         switch ( device )
         {
         case JOYSTICK_0:
@@ -573,7 +1406,8 @@ public final class C64Core
     @Override
     public void keyTyped(KeyEvent e)
     {
-        _currentKeyListener.keyTyped( e );
+        if ( ! _journal.submit( Journal.KEY_TYPED, e.getKeyChar(), null ) )
+            _currentKeyListener.keyTyped( e );
     }
 
     /*
@@ -582,7 +1416,8 @@ public final class C64Core
     @Override
     public void keyPressed(KeyEvent e)
     {
-        _currentKeyListener.keyPressed( e );
+        if ( ! _journal.submit( Journal.KEY_PRESSED, e.getKeyCode(), null ) )
+            _currentKeyListener.keyPressed( e );
     }
 
     /*
@@ -591,7 +1426,8 @@ public final class C64Core
     @Override
     public void keyReleased(KeyEvent e)
     {
-        _currentKeyListener.keyReleased( e );
+        if ( ! _journal.submit( Journal.KEY_RELEASED, e.getKeyCode(), null ) )
+            _currentKeyListener.keyReleased( e );
     }
 
     /* (non-Javadoc)
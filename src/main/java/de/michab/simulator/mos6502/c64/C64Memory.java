@@ -9,21 +9,29 @@ package de.michab.simulator.mos6502.c64;
 
 import de.michab.simulator.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.zip.CRC32;
 
 
 
 /**
  * Models a Commmodore 64's memory.  Emulates ROM/RAM/IO and memory banking.
+ * <p>
+ * The memory is divided into pages of 256 bytes.  For each page a table
+ * holds the array that is read, the array that is written and whether ports
+ * are visible.  The tables are updated when the memory configuration
+ * changes, i.e. on a write to address 1 or when a cartridge switches its
+ * lines or banks.  An access is a lookup in the tables.
  *
  * @version $Revision: 11 $
  * @author Michael G. Binz
  */
 final class C64Memory
   implements
-    Memory
+    Memory, Persistent
 {
   // The logger for this class.
   private final static Logger _log = 
@@ -32,12 +40,19 @@ final class C64Memory
 
 
   /**
-   * Constants for the possible memory configurations.
+   * The bits of address 1 that select the memory configuration.
    */
-  private static final int MAP_11 = 0x03; // 0000 0011
-  private static final int MAP_10 = 0x02; // 0000 0010
-//  private static final int MAP_01 = 0x01; // 0000 0001
-  private static final int MAP_00 = 0x00; // 0000 0000
+  private static final int LORAM = Processor.BIT_0;
+  private static final int HIRAM = Processor.BIT_1;
+  private static final int CHAREN = Processor.BIT_2;
+
+
+
+  /**
+   * The size of a page and the number of pages.
+   */
+  private static final int PAGE_SIZE = 0x100;
+  private static final int PAGES = 0x100;
 
 
 
@@ -125,6 +140,53 @@ final class C64Memory
 
 
 
+  /**
+   * The array read for each page and the offset that is added to an
+   * address to get the index into the array.
+   */
+  private final byte[][] _readMap = new byte[ PAGES ][];
+  private final int[] _readOffset = new int[ PAGES ];
+
+
+
+  /**
+   * The array written for each page and the offset that is added to an
+   * address to get the index into the array.
+   */
+  private final byte[][] _writeMap = new byte[ PAGES ][];
+  private final int[] _writeOffset = new int[ PAGES ];
+
+
+
+  /**
+   * Set for the pages where ports are visible.
+   */
+  private final boolean[] _portMap = new boolean[ PAGES ];
+
+
+
+  /**
+   * Read on pages that are not connected in Ultimax mode.
+   */
+  private final byte[] _unconnected = new byte[ PAGE_SIZE ];
+
+
+
+  /**
+   * Receives the writes to pages that are not connected or hold cartridge
+   * ROM in Ultimax mode.
+   */
+  private final byte[] _discard = new byte[ PAGE_SIZE ];
+
+
+
+  /**
+   * The inserted cartridge, <code>null</code> if none.
+   */
+  private Cartridge _cartridge = null;
+
+
+
   /**
    * Create one.  Nuff said.
    */
@@ -145,281 +207,351 @@ final class C64Memory
   public synchronized void reset()
   {
     // Initialise address 1.
-    _address1 = MAP_11 | Processor.BIT_2;
+    _address1 = LORAM | HIRAM | CHAREN;
     // Init ram.
     mapIntoRam( _charRom, ADR_CHAR );
+
+    if ( _cartridge != null )
+      _cartridge.reset();
+
+    updateMap();
   }
 
 
 
   /**
-   * Returns a listener being interested in the processor port 1.
+   * Insert a cartridge.  The cartridge's bank registers are mapped into
+   * the IO1 and IO2 areas.  Replaces a cartridge that is inserted.  A reset
+   * is needed to start the cartridge.
    *
-   * @return A <code>Forwarder</code> tp address 1.
+   * @param cartridge The cartridge, <code>null</code> to remove the
+   *        cartridge.
    */
-  public synchronized Forwarder getAddress1Listener()
+  public synchronized void insert( Cartridge cartridge )
   {
-    return new Forwarder(){
-      public synchronized byte read()
-      {
-        return (byte)_address1;
-      }
-      public synchronized void write( byte value )
-      {
-        _address1 = value;
-      }
-    };
+    if ( _cartridge != null )
+    {
+      _cartridge.setListener( null );
+      if ( _cartridge.getPorts() != null )
+        unmap( _cartridge, Cartridge.ADR_IO1 );
+    }
+
+    _cartridge = cartridge;
+
+    if ( _cartridge != null )
+    {
+      _cartridge.reset();
+      _cartridge.setListener( this::updateMap );
+      if ( _cartridge.getPorts() != null )
+        mapInto( _cartridge, Cartridge.ADR_IO1 );
+    }
+
+    updateMap();
   }
 
 
 
   /**
-   * Read the given memory location.  If a port is mapped for this location
-   * then this one is read instead.
+   * Get the inserted cartridge.
    *
-   * @param location The address of the memory location to read.
-   * @return The byte set at this memory address.
+   * @return The cartridge, <code>null</code> if none is inserted.
    */
-  public synchronized byte read( int location )
+  public synchronized Cartridge getCartridge()
   {
-    int map = _address1 & MAP_11;
-    boolean charen = (_address1 & Processor.BIT_2) == 0;
-
-    if ( location < ADR_BASIC )
-      return readRam( location );
-    else if ( location >= ADR_IO && location < ADR_IO + 0x1000 )
-      return readIo( location, map, charen );
-    else if ( location >= ADR_BASIC && location < ADR_BASIC + 0x2000 )
-      return readBasicRom( location, map );
-    else if ( location >= ADR_KERNAL )
-      return readKernalRom( location, map );
-    else
-      return readRam( location );
+    return _cartridge;
   }
 
 
 
   /**
-   * Write a value to a memory address.  If a port is mapped for this address
-   * the value is written to the port instead.
-   *
-   * @param location The address to write.
-   * @param value The value to write.
+   * Compute the page tables for the memory configuration selected by
+   * address 1 and the cartridge's lines.
    */
-  public synchronized void write( int location, byte value )
+  private synchronized void updateMap()
   {
-    int map = _address1 & MAP_11;
-    boolean charen = (_address1 & Processor.BIT_2) == 0;
-
-    // If the access is in the IO page.
-    if ( location < ADR_BASIC )
-      writeRam( location, value );
-    else if ( location >= ADR_IO && location < ADR_IO + 0x1000 )
-      writeIo( location, value, map, charen );
-    else if ( location >= ADR_BASIC && location < ADR_BASIC + 0x2000 )
-      writeBasicRom( location, value, map );
-    else if ( location >= ADR_KERNAL )
-      writeKernalRom( location, value, map );
-    else
-      writeRam( location, value );
+    boolean loram = (_address1 & LORAM) != 0;
+    boolean hiram = (_address1 & HIRAM) != 0;
+    boolean io = (_address1 & CHAREN) != 0;
+    boolean exrom = _cartridge != null && _cartridge.isExrom();
+    boolean game = _cartridge != null && _cartridge.isGame();
+
+    // Start with RAM, ports are visible outside of the ROM areas.
+    mapRam( 0, ADR_BASIC, true );
+    mapRam( ADR_BASIC, ADR_IO, false );
+    mapRam( 0xc000, ADR_IO, true );
+    mapRam( ADR_IO, _memory.length, false );
+
+    // Ultimax mode ignores address 1 and leaves most of the RAM
+    // unconnected.
+    if ( game && ! exrom )
+    {
+      mapUnconnected( 0x1000, ADR_IO );
+      mapCartridge( Cartridge.ADR_ROML, _cartridge.getRomL() );
+      mapIo();
+      mapCartridge( Cartridge.ADR_ROMH_ULTIMAX, _cartridge.getRomH() );
+      return;
+    }
+
+    if ( exrom && loram && hiram )
+      mapCartridge( Cartridge.ADR_ROML, _cartridge.getRomL() );
+
+    if ( exrom && game && hiram )
+      mapCartridge( Cartridge.ADR_ROMH, _cartridge.getRomH() );
+    else if ( loram && hiram )
+      mapRom( ADR_BASIC, _loRom, true );
+
+    if ( loram || hiram )
+    {
+      if ( io )
+        mapIo();
+      else
+        mapRom( ADR_CHAR, _charRom, false );
+    }
+
+    if ( hiram )
+      mapRom( ADR_KERNAL, _hiRom, true );
   }
 
 
 
-  /*
-   * Inherit docs.
+  /**
+   * Map pages for reading and writing the RAM.
    */
-  public synchronized int getVectorAt( int address )
+  private void mapRam( int from, int to, boolean ports )
   {
-    int hi = read( address+1 );
-    hi &= 0xff;
-    int lo = read( address );
-    lo &= 0xff;
-    return (hi << 8) | lo;
+    for ( int page = from / PAGE_SIZE ; page < to / PAGE_SIZE ; page++ )
+    {
+      _readMap[ page ] = _writeMap[ page ] = _memory;
+      _readOffset[ page ] = _writeOffset[ page ] = 0;
+      _portMap[ page ] = ports;
+    }
   }
 
 
 
   /**
-   * Writes into the RAM area.
-   *
-   * @param adr The address to write.
-   * @param value The value to write.
+   * Map pages for reading a system ROM.  Writes go to the RAM below.
    */
-  private void writeRam( int adr, byte value )
+  private void mapRom( int from, byte[] rom, boolean ports )
   {
-    Forwarder p = _ports[ adr ];
+    for ( int page = from / PAGE_SIZE ; page < (from + rom.length) / PAGE_SIZE ; page++ )
+    {
+      _readMap[ page ] = rom;
+      _readOffset[ page ] = -from;
+      _portMap[ page ] = ports;
+    }
+  }
 
-    if ( p != null )
-      p.write( value );
-    else
-      _memory[ adr ] = value;
+
+
+  /**
+   * Map the IO area.  Addresses without a port read and write the RAM.
+   */
+  private void mapIo()
+  {
+    mapRam( ADR_IO, ADR_IO + 0x1000, true );
   }
 
 
 
   /**
-   * Reads from the RAM area.
-   *
-   * @param adr The address to read.
+   * Map pages for reading the selected bank of a cartridge ROM.  In Ultimax
+   * mode writes are discarded, otherwise they go to the RAM below.
    */
-  private byte readRam( int adr )
+  private void mapCartridge( int from, byte[] rom )
   {
-    Forwarder p = _ports[ adr ];
+    if ( rom == null )
+      return;
+
+    boolean ultimax = _cartridge.isGame() && ! _cartridge.isExrom();
+    int offset = _cartridge.getBankOffset() - from;
 
-    if ( p != null )
-      return p.read();
-    
-    return _memory[ adr ];
+    for ( int page = from / PAGE_SIZE ; page < (from + Cartridge.BANK_SIZE) / PAGE_SIZE ; page++ )
+    {
+      _readMap[ page ] = rom;
+      _readOffset[ page ] = offset;
+      _portMap[ page ] = false;
+
+      if ( ultimax )
+      {
+        _writeMap[ page ] = _discard;
+        _writeOffset[ page ] = -page * PAGE_SIZE;
+      }
+    }
   }
 
 
 
   /**
-   * Writes into the BASIC ROM area.  Depending on the memory map settings
-   * the ports or the RAM sitting on the same addresses will be written.
-   *
-   * @param adr The address to write to.
-   * @param value The value to write.
-   * @param map The memory map setting.
+   * Map pages that are not connected.
    */
-  private void writeBasicRom( int adr, byte value, int map )
+  private void mapUnconnected( int from, int to )
   {
-    Forwarder port = _ports[ adr ];
-
-    if ( map == MAP_11 && port != null )
-      port.write( value );
-    else
-      _memory[adr] = value;
+    for ( int page = from / PAGE_SIZE ; page < to / PAGE_SIZE ; page++ )
+    {
+      _readMap[ page ] = _unconnected;
+      _writeMap[ page ] = _discard;
+      _readOffset[ page ] = _writeOffset[ page ] = -page * PAGE_SIZE;
+      _portMap[ page ] = false;
+    }
   }
 
 
 
   /**
+   * Returns a listener being interested in the processor port 1.
    *
+   * @return A <code>Forwarder</code> tp address 1.
    */
-  private byte readBasicRom( int adr, int map )
+  public synchronized Forwarder getAddress1Listener()
   {
-    Forwarder port = _ports[ adr ];
-
-    switch ( map )
-    {
-      case MAP_11:
+    return new Forwarder(){
+      public synchronized byte read()
+      {
+        return (byte)_address1;
+      }
+      public synchronized void write( byte value )
       {
-        if ( null != port )
-          return port.read();
-        return _loRom[ adr - ADR_BASIC ];
+        setAddress1( value );
       }
+    };
+  }
 
-      default:
-        return _memory[ adr ];
-    }
+
+
+  /**
+   * Set address 1 and update the memory configuration if it changed.
+   *
+   * @param value The value written.
+   */
+  private synchronized void setAddress1( byte value )
+  {
+    int changed = (_address1 ^ value) & (LORAM | HIRAM | CHAREN);
+
+    _address1 = value;
+
+    if ( changed != 0 )
+      updateMap();
   }
 
 
 
   /**
+   * Read the given memory location.  If a port is mapped for this location
+   * then this one is read instead.
    *
+   * @param location The address of the memory location to read.
+   * @return The byte set at this memory address.
    */
-  private void writeKernalRom( int adr, byte value, int map )
+  public synchronized byte read( int location )
   {
-    Forwarder port = _ports[ adr ];
+    int page = location >>> 8;
 
-    switch ( map )
+    if ( _portMap[ page ] )
     {
-      case MAP_11:
-      case MAP_10:
-        if ( null != port )
-          port.write( value );
-        else
-          _memory[ adr ] = value;
-        break;
-
-      default:
-        _memory[ adr ] = value;
-        break;
+      Forwarder p = _ports[ location ];
+
+      if ( p != null )
+        return p.read();
     }
+
+    return _readMap[ page ][ _readOffset[ page ] + location ];
   }
 
 
 
   /**
+   * Write a value to a memory address.  If a port is mapped for this address
+   * the value is written to the port instead.
    *
+   * @param location The address to write.
+   * @param value The value to write.
    */
-  private byte readKernalRom( int adr, int map )
+  public synchronized void write( int location, byte value )
   {
-    byte result;
+    int page = location >>> 8;
 
-    Forwarder port = _ports[ adr ];
-
-    switch ( map )
+    if ( _portMap[ page ] )
     {
-      case MAP_11:
-      case MAP_10:
-        if ( null != port )
-          result = port.read();
-        else
-          result = _hiRom[ adr - ADR_KERNAL ];
-        break;
-
-      default:
-        result = _memory[ adr ];
-        break;
+      Forwarder p = _ports[ location ];
+
+      if ( p != null )
+      {
+        p.write( value );
+        return;
+      }
     }
 
-    return result;
+    _writeMap[ page ][ _writeOffset[ page ] + location ] = value;
   }
 
 
 
   /**
-   * Implements a write in the IO/CHAR page.
+   * Write a block of bytes.  Runs of addresses that end up in RAM are copied
+   * in bulk, the addresses in between are written one by one.  Since a write
+   * to address 1 may change the memory configuration, the configuration is
+   * read again after each single write.
+   *
+   * @see Memory#write(int, ByteBuffer)
    */
-  private void writeIo( int adr, byte value, int map, boolean charen )
+  public synchronized int write( int location, ByteBuffer data )
   {
-    switch ( map )
+    if ( location < 0 || location + data.remaining() > _memory.length )
+      throw new IndexOutOfBoundsException( "location" );
+
+    ByteBuffer source = data.duplicate();
+
+    while ( source.hasRemaining() )
     {
-      case MAP_00:
-        _memory[ adr ] = value;
-        break;
-
-      default:
-        if ( charen )
-          _memory[ adr ] = value;
-        else if ( _ports[ adr ] != null )
-          _ports[ adr ].write( value );
-        // TODO:  this is needed because we don't have a dedicated color
-        // ram so far.
-        else
-          _memory[ adr ] = value;
+      int end = location;
+      int limit = location + source.remaining();
+      while ( end < limit && writesRam( end ) )
+        end++;
+
+      if ( end > location )
+      {
+        source.get( _memory, location, end - location );
+        location = end;
+      }
+      else
+        write( location++, source.get() );
     }
+
+    return location;
   }
 
 
 
   /**
-   * Implements a read in the IO/CHAR page.
+   * Check whether a write goes to the RAM, i.e. no port is visible at the
+   * address.  Mirrors the decoding in <code>write()</code>.
    *
-   * @param adr The address to read.
-   * @param map The memory map settings.
-   * @param charen Whether character ROM is visible or not.
-   * @return The read byte.
+   * @param adr The address to check.
+   * @return <code>true</code> if a write ends up in RAM.
    */
-  private byte readIo( int adr, int map, boolean charen )
+  private boolean writesRam( int adr )
   {
-    switch ( map )
-    {
-      case MAP_00:
-        return _memory[ adr ];
-
-      default:
-        if ( charen )
-          return _charRom[ adr - ADR_CHAR ];
-        else if ( _ports[ adr ] != null )
-          return _ports[ adr ].read();
-        else
-          return _memory[ adr ];
-    }
+    int page = adr >>> 8;
+
+    if ( _portMap[ page ] && _ports[ adr ] != null )
+      return false;
+
+    return _writeMap[ page ] == _memory;
+  }
+
+
+
+  /*
+   * Inherit docs.
+   */
+  public synchronized int getVectorAt( int address )
+  {
+    int hi = read( address+1 );
+    hi &= 0xff;
+    int lo = read( address );
+    lo &= 0xff;
+    return (hi << 8) | lo;
   }
 
 
@@ -453,6 +585,26 @@ final class C64Memory
 
 
 
+  /**
+   * Remove a chip that was mapped by <code>mapInto()</code>.  Ports that
+   * were replaced by another chip in the meantime are kept.
+   *
+   * @param chip The chip to remove.
+   * @param base The address the chip was mapped to.
+   */
+  public synchronized void unmap( Chip chip, int base )
+  {
+    Forwarder[] theChipsPorts = chip.getPorts();
+
+    for ( int i = 0 ; i < theChipsPorts.length ; i++ )
+    {
+      if ( _ports[ base + i ] == theChipsPorts[i] )
+        _ports[ base + i ] = null;
+    }
+  }
+
+
+
   /**
    * Set a <code>Forwarder</code> to the passed position.
    *
@@ -468,6 +620,83 @@ final class C64Memory
 
 
 
+  /**
+   * Write the RAM and the memory configuration.  The ROMs are not part of
+   * the state.  An inserted cartridge is identified by its file and the
+   * checksum of the file, the state of its registers follows the RAM.
+   */
+  public synchronized void saveState( DataOutput out )
+    throws IOException
+  {
+    out.writeBoolean( _cartridge != null );
+
+    if ( _cartridge != null )
+    {
+      out.writeUTF( _cartridge.getFile().getPath() );
+      out.writeInt( _cartridge.getChecksum() );
+    }
+
+    out.write( _memory );
+    out.writeByte( _address1 );
+
+    if ( _cartridge != null )
+      _cartridge.saveState( out );
+  }
+
+
+
+  /**
+   * Read the RAM and the memory configuration.  The cartridge is checked
+   * before anything is changed.  The inserted cartridge is kept if its
+   * checksum matches, otherwise the cartridge is read from the file that
+   * was recorded.  A cartridge that is inserted but was not when the state
+   * was saved is removed.
+   *
+   * @throws IOException If the cartridge can't be read or its file
+   *         changed.
+   */
+  public synchronized void restoreState( DataInput in )
+    throws IOException
+  {
+    Cartridge cartridge = null;
+
+    if ( in.readBoolean() )
+    {
+      File file = new File( in.readUTF() );
+      int checksum = in.readInt();
+
+      if ( _cartridge != null && _cartridge.getChecksum() == checksum )
+        cartridge = _cartridge;
+      else
+      {
+        try
+        {
+          cartridge = new Cartridge( file );
+        }
+        catch ( IOException e )
+        {
+          throw new IOException( "Cartridge not readable: " + file, e );
+        }
+
+        if ( cartridge.getChecksum() != checksum )
+          throw new IOException( "Cartridge changed: " + file );
+      }
+    }
+
+    if ( cartridge != _cartridge )
+      insert( cartridge );
+
+    in.readFully( _memory );
+    _address1 = in.readUnsignedByte();
+
+    if ( _cartridge != null )
+      _cartridge.restoreState( in );
+
+    updateMap();
+  }
+
+
+
   /*
    * Inherit Javadoc.
    */
@@ -495,6 +724,25 @@ final class C64Memory
 
 
 
+  /**
+   * Compute a checksum of the BASIC, KERNAL and character ROMs.  Used to
+   * identify state that depends on the ROMs.
+   *
+   * @return The CRC-32 of the ROMs' contents.
+   */
+  static int getRomChecksum()
+  {
+    CRC32 result = new CRC32();
+
+    result.update( _loRom );
+    result.update( _hiRom );
+    result.update( _charRom );
+
+    return (int)result.getValue();
+  }
+
+
+
   /**
    * Creates a byte array and reads the resource for the passed name into it.
    * This is used for reading the ROM contents.
@@ -0,0 +1,525 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import de.michab.simulator.Chip;
+import de.michab.simulator.Persistent;
+import de.michab.simulator.Port;
+
+
+
+/**
+ * <p>A cartridge read from a CRT file.  The cartridge drives the EXROM and
+ * GAME lines that select the memory configuration and provides the ROM
+ * banks seen at ROML ($8000) and ROMH ($a000, or $e000 in Ultimax mode).
+ * The memory asks the cartridge for the lines and the visible banks each
+ * time the configuration changes.</p>
+ *
+ * <p>Supported are normal 8k, 16k and Ultimax cartridges and the bank
+ * switching Ocean and Magic Desk cartridges.  These select an 8k bank by a
+ * write to the IO1 area at $de00.</p>
+ *
+ * @see C64Memory#insert(Cartridge)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Cartridge
+    implements
+        Chip, Persistent
+{
+    private static final Logger _log =
+            Logger.getLogger( Cartridge.class.getName() );
+
+    /**
+     * The file suffix of CRT files.
+     */
+    private static final String SUFFIX = ".crt";
+
+    /**
+     * The signature at the start of a CRT file.
+     */
+    private static final byte[] SIGNATURE =
+            "C64 CARTRIDGE   ".getBytes( StandardCharsets.US_ASCII );
+
+    /**
+     * The signature of a chip packet.
+     */
+    private static final byte[] CHIP_SIGNATURE =
+            "CHIP".getBytes( StandardCharsets.US_ASCII );
+
+    private static final int HEADER_LENGTH_OFFSET = 0x10;
+    private static final int HARDWARE_TYPE_OFFSET = 0x16;
+    private static final int EXROM_OFFSET = 0x18;
+    private static final int GAME_OFFSET = 0x19;
+    private static final int NAME_OFFSET = 0x20;
+    private static final int NAME_LENGTH = 0x20;
+    private static final int MIN_HEADER_LENGTH = 0x40;
+    private static final int CHIP_HEADER_LENGTH = 0x10;
+
+    /**
+     * The largest file accepted.
+     */
+    private static final int MAX_FILE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * The size of a ROM bank.
+     */
+    static final int BANK_SIZE = 0x2000;
+
+    private static final int MAX_BANKS = 64;
+
+    static final int ADR_ROML = 0x8000;
+    static final int ADR_ROMH = 0xa000;
+    static final int ADR_ROMH_ULTIMAX = 0xe000;
+
+    /**
+     * The start of the IO1 and IO2 areas.
+     */
+    static final int ADR_IO1 = 0xde00;
+
+    /**
+     * The hardware types supported.
+     */
+    private enum Type
+    {
+        NORMAL( 0 ),
+        OCEAN( 5 ),
+        MAGIC_DESK( 19 );
+
+        private final int _id;
+
+        Type( int id )
+        {
+            _id = id;
+        }
+
+        static Type get( int id )
+            throws IOException
+        {
+            for ( Type t : values() )
+            {
+                if ( t._id == id )
+                    return t;
+            }
+
+            throw new IOException( "Cartridge type not supported: " + id );
+        }
+    }
+
+    private final Type _type;
+
+    /**
+     * The CRT file.
+     */
+    private final File _file;
+
+    /**
+     * The CRC-32 of the file's contents.
+     */
+    private final int _checksum;
+
+    private final String _name;
+
+    /**
+     * The state of the lines.  <code>true</code> if the line is pulled low,
+     * i.e. active.
+     */
+    private final boolean _exrom;
+    private final boolean _game;
+
+    /**
+     * The ROM banks seen at ROML and ROMH, <code>null</code> if the
+     * cartridge has no such ROM.  The banks of a bank switching cartridge
+     * are held in a single array that is seen at both locations.
+     */
+    private final byte[] _romL;
+    private final byte[] _romH;
+
+    /**
+     * The number of banks.
+     */
+    private final int _banks;
+
+    /**
+     * The ports at IO1 and IO2, <code>null</code> if the cartridge has no
+     * registers.
+     */
+    private final Port[] _ports;
+
+    /**
+     * The selected bank.
+     */
+    private int _bank = 0;
+
+    /**
+     * Set if a Magic Desk cartridge removed itself from the memory.
+     */
+    private boolean _disabled = false;
+
+    /**
+     * Called when the lines or the visible banks change.
+     */
+    private Runnable _listener = null;
+
+    /**
+     * Check whether a file is a CRT file.
+     *
+     * @param file The file to check.
+     * @return <code>true</code> if the file's name has the CRT suffix.
+     */
+    static boolean isValid( File file )
+    {
+        return file.getName().toLowerCase().endsWith( SUFFIX );
+    }
+
+    /**
+     * Read a cartridge from a CRT file.
+     *
+     * @param file The CRT file.
+     * @throws IOException If the file can't be read or holds a cartridge
+     *         that is not supported.
+     */
+    Cartridge( File file )
+        throws IOException
+    {
+        if ( file.length() > MAX_FILE_SIZE )
+            throw new IOException( "File too large." );
+
+        _file = file;
+
+        byte[] content = Files.readAllBytes( file.toPath() );
+
+        CRC32 crc = new CRC32();
+        crc.update( content );
+        _checksum = (int)crc.getValue();
+
+        ByteBuffer crt = ByteBuffer.wrap( content );
+
+        if ( ! startsWith( crt, 0, SIGNATURE ) ||
+             crt.limit() < MIN_HEADER_LENGTH )
+            throw new IOException( "Not a CRT file." );
+
+        _type = Type.get( crt.getShort( HARDWARE_TYPE_OFFSET ) & 0xffff );
+        _exrom = crt.get( EXROM_OFFSET ) == 0;
+        _game = crt.get( GAME_OFFSET ) == 0;
+
+        byte[] name = new byte[ NAME_LENGTH ];
+        crt.duplicate().position( NAME_OFFSET ).get( name );
+        _name = new String( name, StandardCharsets.ISO_8859_1 ).trim();
+
+        byte[] romL = null;
+        byte[] romH = null;
+        int banks = 0;
+
+        // Some files hold a header length that is too small.
+        int pos = Math.max( MIN_HEADER_LENGTH, crt.getInt( HEADER_LENGTH_OFFSET ) );
+
+        while ( pos + CHIP_HEADER_LENGTH <= crt.limit() )
+        {
+            if ( ! startsWith( crt, pos, CHIP_SIGNATURE ) )
+                throw new IOException( "Broken chip packet." );
+
+            int length = crt.getInt( pos + 4 );
+            int bank = crt.getShort( pos + 10 ) & 0xffff;
+            int address = crt.getShort( pos + 12 ) & 0xffff;
+            int size = crt.getShort( pos + 14 ) & 0xffff;
+            int data = pos + CHIP_HEADER_LENGTH;
+
+            if ( length < CHIP_HEADER_LENGTH + size ||
+                 data + size > crt.limit() )
+                throw new IOException( "Broken chip packet." );
+
+            if ( _type != Type.NORMAL )
+            {
+                if ( bank >= MAX_BANKS )
+                    throw new IOException( "Bank not supported: " + bank );
+
+                if ( romL == null )
+                    romL = new byte[ MAX_BANKS * BANK_SIZE ];
+
+                copy( crt, data, size, romL, bank, address );
+                banks = Math.max( banks, bank + 1 );
+            }
+            else if ( bank == 0 && getBankAddress( address ) == ADR_ROML )
+            {
+                romL = new byte[ BANK_SIZE ];
+                copy( crt, data, size, romL, 0, address );
+
+                // A 16k chip holds ROML and ROMH.
+                if ( size > BANK_SIZE )
+                {
+                    romH = new byte[ BANK_SIZE ];
+                    copy(
+                            crt,
+                            data + BANK_SIZE,
+                            size - BANK_SIZE,
+                            romH,
+                            0,
+                            ADR_ROMH );
+                }
+            }
+            else if ( bank == 0 &&
+                      (getBankAddress( address ) == ADR_ROMH ||
+                       getBankAddress( address ) == ADR_ROMH_ULTIMAX) )
+            {
+                romH = new byte[ BANK_SIZE ];
+                copy( crt, data, size, romH, 0, address );
+            }
+            else
+                _log.warning( "Ignored chip at " +
+                        Integer.toHexString( address ) + ", bank " + bank );
+
+            pos += length;
+        }
+
+        if ( _type != Type.NORMAL )
+        {
+            if ( romL == null )
+                throw new IOException( "No ROM found." );
+
+            romL = Arrays.copyOf( romL, banks * BANK_SIZE );
+            romH = romL;
+        }
+
+        _romL = romL;
+        _romH = romH;
+        _banks = Math.max( 1, banks );
+
+        if ( _type == Type.NORMAL )
+            _ports = null;
+        else
+        {
+            _ports = new Port[ 0x200 ];
+            for ( int i = 0 ; i < _ports.length ; i++ )
+                _ports[i] = new Port( this, i );
+        }
+
+        _log.info( "Cartridge: " + _name + ", " + _type );
+    }
+
+    private static boolean startsWith( ByteBuffer b, int pos, byte[] signature )
+    {
+        if ( pos + signature.length > b.limit() )
+            return false;
+
+        for ( int i = 0 ; i < signature.length ; i++ )
+        {
+            if ( b.get( pos + i ) != signature[i] )
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Get the start address of the bank that holds an address.
+     */
+    private static int getBankAddress( int address )
+    {
+        return address & ~(BANK_SIZE - 1);
+    }
+
+    /**
+     * Copy a chip into a bank at the chip's address.  A chip smaller than a
+     * bank is seen repeatedly across the bank, since the cartridge does not
+     * decode the address lines above the chip's size.  A 4k chip at $f000
+     * is also seen at $e000.
+     */
+    private static void copy(
+            ByteBuffer from,
+            int pos,
+            int length,
+            byte[] to,
+            int bank,
+            int address )
+    {
+        length = Math.min( length, BANK_SIZE );
+
+        int base = bank * BANK_SIZE;
+        int offset = address & (BANK_SIZE - 1);
+        int step = Integer.bitCount( length ) == 1 ? length : BANK_SIZE;
+
+        for ( int start = 0 ; start < BANK_SIZE ; start += step )
+        {
+            for ( int i = 0 ; i < length ; i++ )
+                to[ base + ((offset + start + i) & (BANK_SIZE - 1)) ] =
+                        from.get( pos + i );
+        }
+    }
+
+    /**
+     * Get the cartridge's name.
+     *
+     * @return The name from the CRT file.
+     */
+    String getName()
+    {
+        return _name;
+    }
+
+    /**
+     * Get the CRT file the cartridge was read from.
+     *
+     * @return The file.
+     */
+    File getFile()
+    {
+        return _file;
+    }
+
+    /**
+     * Get the checksum of the CRT file.  Identifies the cartridge in a
+     * snapshot.
+     *
+     * @return The CRC-32 of the file's contents.
+     */
+    int getChecksum()
+    {
+        return _checksum;
+    }
+
+    /**
+     * Set the listener that is called when the lines or the visible banks
+     * change.
+     *
+     * @param listener The listener, <code>null</code> to remove it.
+     */
+    void setListener( Runnable listener )
+    {
+        _listener = listener;
+    }
+
+    /**
+     * Get the state of the EXROM line.
+     *
+     * @return <code>true</code> if the line is active.
+     */
+    boolean isExrom()
+    {
+        return _exrom && ! _disabled;
+    }
+
+    /**
+     * Get the state of the GAME line.
+     *
+     * @return <code>true</code> if the line is active.
+     */
+    boolean isGame()
+    {
+        return _game && ! _disabled;
+    }
+
+    /**
+     * Get the ROM seen at ROML.
+     *
+     * @return The ROM, <code>null</code> if there is none.
+     * @see #getBankOffset()
+     */
+    byte[] getRomL()
+    {
+        return _romL;
+    }
+
+    /**
+     * Get the ROM seen at ROMH.
+     *
+     * @return The ROM, <code>null</code> if there is none.
+     * @see #getBankOffset()
+     */
+    byte[] getRomH()
+    {
+        return _romH;
+    }
+
+    /**
+     * Get the offset of the selected bank in the ROMs.
+     *
+     * @return The offset.
+     */
+    int getBankOffset()
+    {
+        return _bank * BANK_SIZE;
+    }
+
+    @Override
+    public Port[] getPorts()
+    {
+        return _ports;
+    }
+
+    /**
+     * Reads of IO1 and IO2 see no data.
+     */
+    @Override
+    public byte read( int port )
+    {
+        return 0;
+    }
+
+    /**
+     * A write to IO1 selects the bank.  Bit 7 removes a Magic Desk
+     * cartridge from the memory.
+     */
+    @Override
+    public void write( int port, byte value )
+    {
+        if ( port >= 0x100 )
+            return;
+
+        _bank = (value & 0x3f) % _banks;
+
+        if ( _type == Type.MAGIC_DESK )
+            _disabled = (value & 0x80) != 0;
+
+        changed();
+    }
+
+    @Override
+    public void reset()
+    {
+        _bank = 0;
+        _disabled = false;
+
+        changed();
+    }
+
+    private void changed()
+    {
+        if ( _listener != null )
+            _listener.run();
+    }
+
+    @Override
+    public void saveState( DataOutput out )
+        throws IOException
+    {
+        out.writeByte( _bank );
+        out.writeBoolean( _disabled );
+    }
+
+    @Override
+    public void restoreState( DataInput in )
+        throws IOException
+    {
+        _bank = in.readUnsignedByte() % _banks;
+        _disabled = in.readBoolean();
+
+        changed();
+    }
+}
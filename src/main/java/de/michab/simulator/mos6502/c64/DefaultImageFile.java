@@ -7,6 +7,9 @@
  */
 package de.michab.simulator.mos6502.c64;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
 
 
 /**
@@ -23,9 +26,25 @@ class DefaultImageFile
     ImageFile
 {
   /**
-   * The image file's raw content.
+   * The image file's raw content.  Replaced by a writable copy when the
+   * image is changed.
    */
-  private final byte[] _image;
+  private ByteBuffer _image;
+
+
+
+  /**
+   * True if <code>_image</code> is the writable copy.
+   */
+  private boolean _isCopy = false;
+
+
+
+  /**
+   * Writes the changes to the image file.  <code>null</code> if the changes
+   * are kept in memory only.
+   */
+  private final ImageWriter _writer;
 
 
 
@@ -45,6 +64,13 @@ class DefaultImageFile
 
 
 
+  /**
+   * The image's directory.
+   */
+  private DirectoryIndex _index;
+
+
+
   /**
    * Create an instance.
    *
@@ -52,11 +78,33 @@ class DefaultImageFile
    * @param name The name of the file for display purposes.
    * @param contents The actual image.
    */
-  DefaultImageFile( ImageFileFactory iff, String name, byte[] contents )
+  DefaultImageFile( ImageFileFactory iff, String name, ByteBuffer contents )
+  {
+    this( iff, name, contents, null );
+  }
+
+
+
+  /**
+   * Create an instance whose changes are written to its file.
+   *
+   * @param iff The factory to use to decode the contents.
+   * @param name The name of the file for display purposes.
+   * @param contents The actual image.
+   * @param writer Writes the changes, <code>null</code> if the changes are
+   *        kept in memory only.
+   */
+  DefaultImageFile(
+      ImageFileFactory iff,
+      String name,
+      ByteBuffer contents,
+      ImageWriter writer )
   {
     _imageFileFactory = iff;
     _filename = name;
     _image = contents;
+    _writer = writer;
+    _index = iff.createIndex( name, contents );
   }
 
 
@@ -95,9 +143,19 @@ class DefaultImageFile
   /**
    * Access the image file's directory.
    */
-  public byte[][] getDirectory()
+  public synchronized byte[][] getDirectory()
   {
-    return _imageFileFactory.getDirectory( _filename, _image );
+    return _index.getNames();
+  }
+
+
+
+  /*
+   * ImageFile#getContents()
+   */
+  public synchronized ByteBuffer getContents()
+  {
+    return _image.asReadOnlyBuffer();
   }
 
 
@@ -105,8 +163,41 @@ class DefaultImageFile
   /*
    * ImageFile#loadDirectoryEntry(byte[])
    */
-  public byte[] loadDirectoryEntry( byte[] fileName )
+  public synchronized ByteBuffer[] loadDirectoryEntry( byte[] fileName )
+  {
+    DirectoryIndex.Entry entry = _index.find( fileName );
+
+    if ( entry == null )
+      return null;
+
+    return _imageFileFactory.loadEntry( entry, _image );
+  }
+
+
+
+  /*
+   * ImageFile#saveDirectoryEntry(byte[], ByteBuffer)
+   */
+  public synchronized void saveDirectoryEntry( byte[] fileName, ByteBuffer data )
+    throws IOException
   {
-    return _imageFileFactory.loadEntry( fileName, _image );
+    if ( ! _imageFileFactory.isWritable() )
+      throw new IOException( "Read only image." );
+
+    // Copy on the first write, the loaded entries keep the original.
+    if ( ! _isCopy )
+    {
+      ByteBuffer copy = ByteBuffer.allocate( _image.limit() );
+      copy.put( _image.duplicate() );
+      _image = copy.clear();
+      _isCopy = true;
+    }
+
+    BitSet changed = new BitSet();
+    _imageFileFactory.saveEntry( fileName, data, _image, changed );
+    _index = _imageFileFactory.createIndex( _filename, _image );
+
+    if ( _writer != null )
+      _writer.changed( _image, changed );
   }
 }
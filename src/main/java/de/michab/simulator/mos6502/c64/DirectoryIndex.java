@@ -0,0 +1,273 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * <p>The immutable directory of an image file.  Built once when the image
+ * file is opened, so neither listing the directory nor looking up a file
+ * parses the image again.</p>
+ *
+ * <p>Names without wildcards are looked up in a hash map.  Patterns with
+ * wildcards are matched against a trie of the names.  Each node of the trie
+ * knows the first entry below it, so a pattern that ends with an asterisk
+ * is resolved in the length of the pattern.</p>
+ *
+ * @see ImageFileFactory#createIndex(String, ByteBuffer)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class DirectoryIndex
+{
+    /**
+     * An entry of the directory.
+     */
+    static final class Entry
+    {
+        private final byte[] _name;
+        private final int _location;
+        private final int _length;
+
+        /**
+         * Create an instance.
+         *
+         * @param name The entry's name.
+         * @param location Locates the entry's data in the image file.  The
+         *        meaning is defined by the image file factory.
+         * @param length The length of the entry's data in bytes, -1 if
+         *        unknown.
+         */
+        Entry( byte[] name, int location, int length )
+        {
+            _name = name.clone();
+            _location = location;
+            _length = length;
+        }
+
+        /**
+         * Get the entry's name.
+         *
+         * @return A copy of the name.
+         */
+        byte[] getName()
+        {
+            return _name.clone();
+        }
+
+        /**
+         * Get the location of the entry's data in the image file.
+         *
+         * @return The location as defined by the image file factory.
+         */
+        int getLocation()
+        {
+            return _location;
+        }
+
+        /**
+         * Get the length of the entry's data.
+         *
+         * @return The length in bytes, -1 if unknown.
+         */
+        int getLength()
+        {
+            return _length;
+        }
+    }
+
+    /**
+     * A node of the name trie.
+     */
+    private static final class Node
+    {
+        /**
+         * The nodes for the next character of the names.
+         */
+        final Map<Byte, Node> _children = new HashMap<Byte, Node>( 4 );
+
+        /**
+         * The index of the first entry whose name ends at this node, -1 if
+         * none.
+         */
+        int _terminal = -1;
+
+        /**
+         * The index of the first entry whose name starts with the node's
+         * prefix, -1 if none.
+         */
+        int _first = -1;
+    }
+
+    private static final byte WILDCARD_ANY = '*';
+    private static final byte WILDCARD_ONE = '?';
+
+    /**
+     * The entries in directory order.
+     */
+    private final Entry[] _entries;
+
+    /**
+     * The index of the first entry by name.
+     */
+    private final Map<ByteBuffer, Integer> _byName =
+            new HashMap<ByteBuffer, Integer>();
+
+    private final Node _root = new Node();
+
+    /**
+     * Create an instance.
+     *
+     * @param entries The entries in directory order.
+     */
+    DirectoryIndex( List<Entry> entries )
+    {
+        _entries = entries.toArray( new Entry[ entries.size() ] );
+
+        // The entries are added in directory order, so the first index set
+        // on a node is the first entry.
+        for ( int i = 0 ; i < _entries.length ; i++ )
+        {
+            byte[] name = _entries[i]._name;
+
+            _byName.putIfAbsent( ByteBuffer.wrap( name ), i );
+
+            Node node = _root;
+            if ( node._first < 0 )
+                node._first = i;
+            for ( byte c : name )
+            {
+                node = node._children.computeIfAbsent( c, k -> new Node() );
+                if ( node._first < 0 )
+                    node._first = i;
+            }
+            if ( node._terminal < 0 )
+                node._terminal = i;
+        }
+    }
+
+    /**
+     * Get the names of the entries.
+     *
+     * @return The names in directory order.
+     */
+    byte[][] getNames()
+    {
+        byte[][] result = new byte[ _entries.length ][];
+
+        for ( int i = 0 ; i < result.length ; i++ )
+            result[i] = _entries[i].getName();
+
+        return result;
+    }
+
+    /**
+     * Find the first entry whose name matches a pattern.  This implements
+     * the 64's file name comparison.  A name matches
+     * o if it contains the same bytes and has the same length.
+     * o if it contains the same bytes up to the position where the pattern
+     *   has an asterisk.
+     * o if it differs only in byte positions where the pattern contains a
+     *   '?'.
+     * An empty pattern matches all names.
+     *
+     * @param pattern The pattern.
+     * @return The first matching entry in directory order, <code>null</code>
+     *         if none matches.
+     */
+    Entry find( byte[] pattern )
+    {
+        int result;
+
+        if ( pattern.length == 0 )
+            result = _entries.length > 0 ? 0 : -1;
+        else if ( hasWildcards( pattern ) )
+            result = match( _root, pattern, 0 );
+        else
+            result = _byName.getOrDefault( ByteBuffer.wrap( pattern ), -1 );
+
+        return result < 0 ? null : _entries[ result ];
+    }
+
+    /**
+     * Match the rest of a pattern below a trie node.
+     *
+     * @param node The node reached by the pattern so far.
+     * @param pattern The pattern.
+     * @param i The index of the next pattern byte.
+     * @return The index of the first matching entry, -1 if none.
+     */
+    private static int match( Node node, byte[] pattern, int i )
+    {
+        if ( i == pattern.length )
+            return node._terminal;
+
+        byte c = pattern[i];
+
+        if ( c == WILDCARD_ANY )
+            return node._first;
+
+        if ( c != WILDCARD_ONE )
+        {
+            Node child = node._children.get( c );
+            return child == null ? -1 : match( child, pattern, i+1 );
+        }
+
+        // A question mark matches any byte.  It also matches past the end of
+        // a name, such a name still matches if an asterisk follows.
+        int result = endsBeforeAsterisk( pattern, i+1 ) ? node._terminal : -1;
+
+        for ( Node child : node._children.values() )
+            result = first( result, match( child, pattern, i+1 ) );
+
+        return result;
+    }
+
+    /**
+     * Check whether an asterisk follows in a pattern with only question
+     * marks in between.
+     */
+    private static boolean endsBeforeAsterisk( byte[] pattern, int i )
+    {
+        for ( ; i < pattern.length ; i++ )
+        {
+            if ( pattern[i] == WILDCARD_ANY )
+                return true;
+            if ( pattern[i] != WILDCARD_ONE )
+                return false;
+        }
+
+        return false;
+    }
+
+    private static int first( int a, int b )
+    {
+        if ( a < 0 )
+            return b;
+        if ( b < 0 )
+            return a;
+
+        return Math.min( a, b );
+    }
+
+    private static boolean hasWildcards( byte[] pattern )
+    {
+        for ( byte c : pattern )
+        {
+            if ( c == WILDCARD_ANY || c == WILDCARD_ONE )
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,285 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.nio.ByteBuffer;
+
+
+
+/**
+ * <p>The layout of a Commodore disk image: the number of sectors on each
+ * track, the location of the directory and of the BAM.  The offset of each
+ * track in the image is computed once, so addressing a sector is a table
+ * lookup.</p>
+ *
+ * <p>An image may be followed by error information, one byte per sector.
+ * The error information is ignored.</p>
+ *
+ * @see AdaptD64
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class DiskGeometry
+{
+    /**
+     * The size of a sector.
+     */
+    static final int SECTOR_SIZE = 256;
+
+    /**
+     * The disk formats.
+     */
+    private enum Layout { D64, D71, D81 }
+
+    /**
+     * A 1541 disk.
+     */
+    static final DiskGeometry D64 = new DiskGeometry( Layout.D64, 35 );
+
+    /**
+     * A 1541 disk with 40 tracks.  The BAM of the extra tracks is not
+     * standardized, files are only saved on the first 35 tracks.
+     */
+    static final DiskGeometry D64_40 = new DiskGeometry( Layout.D64, 40 );
+
+    /**
+     * A double sided 1571 disk.
+     */
+    static final DiskGeometry D71 = new DiskGeometry( Layout.D71, 70 );
+
+    /**
+     * A 1581 disk.
+     */
+    static final DiskGeometry D81 = new DiskGeometry( Layout.D81, 80 );
+
+    private final Layout _layout;
+
+    /**
+     * The number of the first sector of each track, indexed by the track
+     * number.  The entry following the last track holds the number of
+     * sectors on the disk.
+     */
+    private final int[] _trackStart;
+
+    /**
+     * Create an instance.
+     *
+     * @param layout The disk format.
+     * @param tracks The number of tracks.
+     */
+    private DiskGeometry( Layout layout, int tracks )
+    {
+        _layout = layout;
+        _trackStart = new int[ tracks + 2 ];
+
+        for ( int t = 1 ; t <= tracks ; t++ )
+            _trackStart[ t+1 ] = _trackStart[ t ] + computeSectors( t );
+    }
+
+    /**
+     * Compute the number of sectors on a track.
+     */
+    private int computeSectors( int track )
+    {
+        if ( _layout == Layout.D81 )
+            return 40;
+
+        // The second side of a 1571 disk repeats the first.
+        if ( track > 35 && _layout == Layout.D71 )
+            track -= 35;
+
+        if ( track <= 17 )
+            return 21;
+        if ( track <= 24 )
+            return 19;
+        if ( track <= 30 )
+            return 18;
+
+        return 17;
+    }
+
+    /**
+     * Get the number of tracks.
+     *
+     * @return The number of tracks.
+     */
+    int getTracks()
+    {
+        return _trackStart.length - 2;
+    }
+
+    /**
+     * Get the number of sectors on a track.
+     *
+     * @param track The track number, starting with one.
+     * @return The number of sectors, zero if the disk has no such track.
+     */
+    int getSectors( int track )
+    {
+        if ( track < 1 || track > getTracks() )
+            return 0;
+
+        return _trackStart[ track+1 ] - _trackStart[ track ];
+    }
+
+    /**
+     * Get the offset of a sector in the image.
+     *
+     * @param track The track number, starting with one.
+     * @param sector The sector number, starting with zero.
+     * @return The offset or -1 if the disk has no such sector.
+     */
+    int getOffset( int track, int sector )
+    {
+        if ( sector < 0 || sector >= getSectors( track ) )
+            return -1;
+
+        return (_trackStart[ track ] + sector) * SECTOR_SIZE;
+    }
+
+    /**
+     * Check whether an image has this geometry.  The image may be followed
+     * by error information.
+     *
+     * @param size The size of the image.
+     * @return <code>true</code> if the size matches.
+     */
+    boolean matches( long size )
+    {
+        int sectors = _trackStart[ _trackStart.length-1 ];
+
+        return
+                size == (long)sectors * SECTOR_SIZE ||
+                size == (long)sectors * (SECTOR_SIZE + 1);
+    }
+
+    /**
+     * Check whether an image has this geometry.
+     *
+     * @param image The image.
+     * @return <code>true</code> if the size matches.
+     * @see #matches(long)
+     */
+    boolean matches( ByteBuffer image )
+    {
+        return matches( image.limit() );
+    }
+
+    /**
+     * Get the directory track.
+     *
+     * @return The track holding the BAM and the directory.
+     */
+    int getDirTrack()
+    {
+        return _layout == Layout.D81 ? 40 : 18;
+    }
+
+    /**
+     * Get the first sector of the directory.
+     *
+     * @return The sector on the directory track.
+     */
+    int getDirSector()
+    {
+        return _layout == Layout.D81 ? 3 : 1;
+    }
+
+    /**
+     * Get the sector interleave of the directory.
+     *
+     * @return The interleave.
+     */
+    int getDirInterleave()
+    {
+        return _layout == Layout.D81 ? 1 : 3;
+    }
+
+    /**
+     * Get the sector interleave of files.
+     *
+     * @return The interleave.
+     */
+    int getFileInterleave()
+    {
+        switch ( _layout )
+        {
+        case D71:
+            return 6;
+        case D81:
+            return 1;
+        default:
+            return 10;
+        }
+    }
+
+    /**
+     * Get the offset of a track's count of free sectors in the BAM.
+     *
+     * @param track The track number, starting with one.
+     * @return The offset or -1 if the track has no BAM entry.
+     */
+    int getFreeCountOffset( int track )
+    {
+        if ( track < 1 || track > getTracks() )
+            return -1;
+
+        switch ( _layout )
+        {
+        case D81:
+            return getD81Entry( track );
+
+        case D71:
+            if ( track > 35 )
+                return getOffset( 18, 0 ) + 0xdd + track - 36;
+            return getOffset( 18, 0 ) + 4 * track;
+
+        default:
+            return track > 35 ? -1 : getOffset( 18, 0 ) + 4 * track;
+        }
+    }
+
+    /**
+     * Get the offset of a track's bitmap in the BAM.  A set bit marks a
+     * free sector, the bits of sector zero to seven are in the first byte
+     * starting with the least significant bit.
+     *
+     * @param track The track number, starting with one.
+     * @return The offset or -1 if the track has no BAM entry.
+     */
+    int getBitmapOffset( int track )
+    {
+        if ( track < 1 || track > getTracks() )
+            return -1;
+
+        switch ( _layout )
+        {
+        case D81:
+            return getD81Entry( track ) + 1;
+
+        case D71:
+            if ( track > 35 )
+                return getOffset( 53, 0 ) + 3 * (track - 36);
+            return getOffset( 18, 0 ) + 4 * track + 1;
+
+        default:
+            return track > 35 ? -1 : getOffset( 18, 0 ) + 4 * track + 1;
+        }
+    }
+
+    /**
+     * The 1581 BAM is held on two sectors with 40 tracks each.
+     */
+    private int getD81Entry( int track )
+    {
+        return
+                getOffset( 40, track <= 40 ? 1 : 2 ) +
+                0x10 +
+                6 * ((track - 1) % 40);
+    }
+}
@@ -0,0 +1,621 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+import de.michab.simulator.Clock;
+import de.michab.simulator.ClockEvent;
+import de.michab.simulator.Forwarder;
+import de.michab.simulator.IdleDetector;
+import de.michab.simulator.Memory;
+import de.michab.simulator.Processor;
+import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.Via;
+
+
+
+/**
+ * <p>A 1541 floppy drive on the serial IEC bus.  The drive runs the DOS ROM
+ * on its own processor with the two VIAs: VIA 1 connects the bus, VIA 2
+ * the disk mechanics.  The disk is a <code>GcrDisk</code> built from a D64
+ * image.</p>
+ *
+ * <p>The drive does not run on a thread of its own.  It is driven by the
+ * host: each time the host accesses the bus the drive first executes up to
+ * the host processor's time, so the host sees the bus exactly as written by
+ * the drive at that time.  A clock event lets the drive catch up once per
+ * frame if the host does not access the bus.  The drive runs at 1 MHz, the
+ * host's clock ticks are converted.</p>
+ *
+ * <p>While the drive waits in the DOS main loop with the motor off and the
+ * bus was quiet for a while, the drive's time and timers are advanced
+ * without executing anything.  The host asserting ATN wakes the drive by
+ * an interrupt.</p>
+ *
+ * @see GcrDisk
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Drive1541
+    extends ClockEvent
+{
+    private static final Logger _log =
+            Logger.getLogger( Drive1541.class.getName() );
+
+    /**
+     * The size of the DOS ROM.
+     */
+    static final int ROM_SIZE = 0x4000;
+
+    /**
+     * The drive's clock in cycles per second.
+     */
+    private static final long CYCLES_PER_SECOND = 1000000;
+
+    /**
+     * The number of cycles the bus has to be quiet before the drive may
+     * idle.
+     */
+    private static final long IDLE_CYCLES = CYCLES_PER_SECOND;
+
+    /**
+     * The DOS main loop, the drive waits there for the bus and for jobs.
+     */
+    private static final int IDLE_LOOP_START = 0xebe7;
+    private static final int IDLE_LOOP_END = 0xec9d;
+
+    /**
+     * The size of the drive's RAM.
+     */
+    private static final int RAM_SIZE = 0x800;
+
+    /**
+     * The base addresses of the VIAs.  Each is mirrored over 1 KB.
+     */
+    private static final int VIA1_BASE = 0x1800;
+    private static final int VIA2_BASE = 0x1c00;
+
+    /**
+     * VIA 1 port B lines.
+     */
+    private static final int BUS_DATA_IN = Processor.BIT_0;
+    private static final int BUS_DATA_OUT = Processor.BIT_1;
+    private static final int BUS_CLK_IN = Processor.BIT_2;
+    private static final int BUS_CLK_OUT = Processor.BIT_3;
+    private static final int BUS_ATNA = Processor.BIT_4;
+    private static final int BUS_ATN_IN = Processor.BIT_7;
+
+    /**
+     * VIA 2 port B lines.
+     */
+    private static final int DISK_STEPPER = Processor.BIT_0 | Processor.BIT_1;
+    private static final int DISK_MOTOR = Processor.BIT_2;
+    private static final int DISK_WRITE_ENABLE = Processor.BIT_4;
+    private static final int DISK_DENSITY_SHIFT = 5;
+    private static final int DISK_SYNC = Processor.BIT_7;
+
+    /**
+     * Host CIA 2 port A lines.
+     */
+    private static final int HOST_ATN_OUT = Processor.BIT_3;
+    private static final int HOST_CLK_OUT = Processor.BIT_4;
+    private static final int HOST_DATA_OUT = Processor.BIT_5;
+    private static final int HOST_CLK_IN = Processor.BIT_6;
+    private static final int HOST_DATA_IN = Processor.BIT_7;
+
+    private final Clock _clock;
+
+    /**
+     * The host clock ticks between the catch up events.
+     */
+    private final int _syncTicks;
+
+    /**
+     * Returns the host processor's time.
+     */
+    private final LongSupplier _hostTime;
+
+    private final byte[] _rom;
+    private final byte[] _ram = new byte[ RAM_SIZE ];
+
+    private final Cpu6510 _cpu;
+    private final Via _via1;
+    private final Via _via2;
+
+    /**
+     * The drive's time in cycles.
+     */
+    private long _time;
+
+    /**
+     * The host time the drive executed up to and the remainder of the
+     * conversion into drive cycles.
+     */
+    private long _hostSynced;
+    private long _hostRemainder;
+
+    /**
+     * Detects the drive waiting in its main loop.
+     */
+    private final IdleDetector _idle =
+            new IdleDetector( IDLE_LOOP_START, IDLE_LOOP_END, IDLE_CYCLES );
+
+    /**
+     * The lines pulled low by the host.
+     */
+    private boolean _atn;
+    private boolean _clk;
+    private boolean _data;
+
+    /**
+     * The disk, <code>null</code> if none is inserted.
+     */
+    private GcrDisk _disk;
+
+    /**
+     * The position of the head in half tracks.  Track one is at two.
+     */
+    private int _halfTrack = 2 * 18;
+
+    /**
+     * The position of the disk under the head, the index of the current
+     * byte in the track and the cycles until the next byte.
+     */
+    private int _position;
+    private int _byteCycles;
+
+    /**
+     * Create an instance.  The drive starts executing when the clock is
+     * started.
+     *
+     * @param rom The DOS ROM.
+     * @param clock The host's clock.
+     * @param hostTime Returns the host processor's time.  Has to be
+     *        monotonic unless the emulation is rewound.
+     * @throws IllegalArgumentException If the ROM has the wrong size.
+     */
+    Drive1541( byte[] rom, Clock clock, LongSupplier hostTime )
+    {
+        if ( rom.length != ROM_SIZE )
+            throw new IllegalArgumentException( "ROM size: " + rom.length );
+
+        _rom = rom.clone();
+        _clock = clock;
+        _hostTime = hostTime;
+        _syncTicks = (int)(clock.getResolution() / Rewind.FRAMES_PER_SECOND);
+
+        _cpu = new Cpu6510( new DriveMemory() );
+        _via1 = new Via(
+                _cpu.getInterruptController().createIrqLine( "VIA-1" ),
+                "VIA-1" );
+        _via2 = new Via(
+                _cpu.getInterruptController().createIrqLine( "VIA-2" ),
+                "VIA-2" );
+
+        _via1.connectPortB( new Forwarder()
+        {
+            @Override
+            public byte read()
+            {
+                return (byte)readLines();
+            }
+
+            @Override
+            public void write( byte value )
+            {
+                _idle.activity( _time );
+            }
+        } );
+        _via2.connectPortA( new Forwarder()
+        {
+            @Override
+            public byte read()
+            {
+                byte[] track = getTrack();
+                return track == null ? 0 : track[ _position % track.length ];
+            }
+
+            @Override
+            public void write( byte value )
+            {
+            }
+        } );
+        _via2.connectPortB( new Forwarder()
+        {
+            private int _stepper;
+
+            @Override
+            public byte read()
+            {
+                return (byte)(DISK_WRITE_ENABLE | (isSync() ? 0 : DISK_SYNC));
+            }
+
+            @Override
+            public void write( byte value )
+            {
+                int stepper = value & DISK_STEPPER;
+
+                if ( stepper == ((_stepper + 1) & DISK_STEPPER) )
+                    _halfTrack = Math.min( _halfTrack + 1, 2 * 42 );
+                else if ( stepper == ((_stepper - 1) & DISK_STEPPER) )
+                    _halfTrack = Math.max( _halfTrack - 1, 2 );
+
+                _stepper = stepper;
+            }
+        } );
+
+        _hostSynced = hostTime.getAsLong();
+        reset();
+
+        clock.schedule( this, _hostSynced + _syncTicks );
+    }
+
+    /**
+     * Read the DOS ROM from a file.
+     *
+     * @param file The file.
+     * @return The ROM.
+     * @throws IOException If the file can't be read or has the wrong size.
+     */
+    static byte[] readRom( File file )
+            throws IOException
+    {
+        byte[] result = Files.readAllBytes( file.toPath() );
+
+        if ( result.length != ROM_SIZE )
+            throw new IOException( "Not a 1541 ROM: " + file );
+
+        return result;
+    }
+
+    /**
+     * Reset the drive.  The host's reset line is connected to the drive.
+     */
+    synchronized void reset()
+    {
+        sync();
+
+        _via1.reset();
+        _via2.reset();
+        _cpu.reset();
+        _idle.activity( _time );
+    }
+
+    /**
+     * Insert a disk.
+     *
+     * @param image The D64 image, <code>null</code> to remove the disk.
+     * @throws IOException If the image is not a D64 image.
+     */
+    synchronized void insert( ByteBuffer image )
+            throws IOException
+    {
+        sync();
+
+        _disk = image == null ? null : new GcrDisk( image );
+        _position = 0;
+
+        _log.fine( "Disk " + (_disk == null ? "removed." : "inserted.") );
+    }
+
+    /**
+     * Called by the host when it writes its bus lines.
+     *
+     * @param port The host's CIA 2 port A output.
+     */
+    synchronized void hostWrite( int port )
+    {
+        sync();
+
+        boolean atn = (port & HOST_ATN_OUT) != 0;
+        boolean clk = (port & HOST_CLK_OUT) != 0;
+        boolean data = (port & HOST_DATA_OUT) != 0;
+
+        if ( atn != _atn || clk != _clk || data != _data )
+            _idle.activity( _time );
+
+        _atn = atn;
+        _clk = clk;
+        _data = data;
+
+        // ATN is inverted to CA1, asserting ATN raises CA1.
+        _via1.setCa1( atn );
+    }
+
+    /**
+     * Called by the host when it reads its bus lines.
+     *
+     * @return The host's CIA 2 port A input lines, all other bits are set.
+     */
+    synchronized int hostRead()
+    {
+        sync();
+
+        // The host's inputs are not inverted.
+        int result = 0xff;
+        if ( isClkLow() )
+            result &= ~HOST_CLK_IN;
+        if ( isDataLow() )
+            result &= ~HOST_DATA_IN;
+
+        return result;
+    }
+
+    /**
+     * Catch up with the host once per frame.
+     */
+    @Override
+    public synchronized void fire( long time )
+    {
+        sync();
+    }
+
+    /**
+     * Execute up to the host's time.
+     */
+    private void sync()
+    {
+        long host = _hostTime.getAsLong();
+
+        // The host's time went back, the emulation was rewound.
+        if ( host < _hostSynced )
+        {
+            _hostSynced = host;
+            _hostRemainder = 0;
+        }
+
+        long ticks =
+                (host - _hostSynced) * CYCLES_PER_SECOND + _hostRemainder;
+        long target = _time + ticks / _clock.getResolution();
+        _hostRemainder = ticks % _clock.getResolution();
+        _hostSynced = host;
+
+        _clock.schedule( this, host + _syncTicks );
+
+        if ( isIdle() )
+        {
+            skip( target - _time );
+            return;
+        }
+
+        while ( _time < target )
+        {
+            int cycles = _cpu.step();
+
+            _via1.tick( cycles );
+            _via2.tick( cycles );
+            rotate( cycles );
+
+            _time += cycles;
+        }
+    }
+
+    /**
+     * Check whether the drive waits for the host.  The host wakes the drive
+     * by asserting ATN, this needs the ATN interrupt to be enabled.
+     */
+    private boolean isIdle()
+    {
+        return
+                ! _atn &&
+                (_via2.getPortB() & DISK_MOTOR) == 0 &&
+                _via1.isCa1Enabled() &&
+                _idle.isIdle( _cpu.getPC(), _time );
+    }
+
+    /**
+     * Advance the drive's time without executing.  The timers run on, the
+     * disk does not turn with the motor off.
+     *
+     * @param cycles The cycles to skip.
+     */
+    private void skip( long cycles )
+    {
+        _idle.skipped( cycles );
+        _time += cycles;
+
+        while ( cycles > 0 )
+        {
+            int step = (int)Math.min( cycles, Integer.MAX_VALUE );
+            _via1.tick( step );
+            _via2.tick( step );
+            cycles -= step;
+        }
+    }
+
+    /**
+     * Get the drive's idle detector.
+     *
+     * @return The idle detector.
+     */
+    IdleDetector getIdleDetector()
+    {
+        return _idle;
+    }
+
+    /**
+     * Compute the lines read on VIA 1 port B.
+     */
+    private int readLines()
+    {
+        // The inputs are inverted.  The device number jumpers are closed
+        // for device 8.
+        int result = 0;
+        if ( isDataLow() )
+            result |= BUS_DATA_IN;
+        if ( isClkLow() )
+            result |= BUS_CLK_IN;
+        if ( _atn )
+            result |= BUS_ATN_IN;
+
+        return result;
+    }
+
+    /**
+     * Check whether the host or the drive pull the CLK line low.
+     */
+    private boolean isClkLow()
+    {
+        return _clk || (_via1.getPortB() & BUS_CLK_OUT) != 0;
+    }
+
+    /**
+     * Check whether the host or the drive pull the DATA line low.  The
+     * drive pulls DATA while ATN is asserted and not acknowledged by ATNA,
+     * and while ATNA is set without ATN.
+     */
+    private boolean isDataLow()
+    {
+        int drive = _via1.getPortB();
+
+        return
+                _data ||
+                (drive & BUS_DATA_OUT) != 0 ||
+                _atn != ((drive & BUS_ATNA) != 0);
+    }
+
+    /**
+     * Get the track under the head.
+     *
+     * @return The track or <code>null</code> if there is no data.
+     */
+    private byte[] getTrack()
+    {
+        if ( _disk == null || (_halfTrack & 1) != 0 )
+            return null;
+
+        return _disk.getTrack( _halfTrack / 2 );
+    }
+
+    /**
+     * Check whether the head is on a sync mark, i.e. on a run of one bits.
+     */
+    private boolean isSync()
+    {
+        byte[] track = getTrack();
+
+        if ( track == null )
+            return false;
+
+        int position = _position % track.length;
+
+        if ( track[ position ] != (byte)0xff )
+            return false;
+
+        int previous = position == 0 ? track.length - 1 : position - 1;
+
+        return track[ previous ] == (byte)0xff;
+    }
+
+    /**
+     * Rotate the disk.  Each byte reaching the head signals byte ready, in
+     * write mode the byte on VIA 2 port A is written.
+     *
+     * @param cycles The cycles passed.
+     */
+    private void rotate( int cycles )
+    {
+        int control = _via2.getPortB();
+
+        if ( (control & DISK_MOTOR) == 0 )
+            return;
+
+        byte[] track = getTrack();
+
+        if ( track == null )
+            return;
+
+        _byteCycles -= cycles;
+
+        if ( _byteCycles > 0 )
+            return;
+
+        // The density bits select the bit rate, 26 to 32 cycles per byte.
+        int zone = (control >> DISK_DENSITY_SHIFT) & 0x3;
+        _byteCycles += 32 - 2 * zone;
+
+        _position = (_position + 1) % track.length;
+
+        // CB2 low selects write mode.  Otherwise no byte is ready while the
+        // head is on a sync mark.
+        if ( ! _via2.getCb2() )
+            track[ _position ] = (byte)_via2.getPortA();
+        else if ( isSync() )
+            return;
+
+        // Byte ready pulses CA1 and, if enabled by CA2, the SO pin.
+        _via2.setCa1( false );
+        _via2.setCa1( true );
+        if ( _via2.getCa2() )
+            _cpu.setOverflow();
+    }
+
+    /**
+     * The drive's address space.
+     */
+    private final class DriveMemory
+        implements Memory
+    {
+        @Override
+        public byte read( int address )
+        {
+            if ( address < VIA1_BASE )
+                return _ram[ address & (RAM_SIZE - 1) ];
+            if ( address < VIA2_BASE )
+                return _via1.read( address & 0xf );
+            if ( address < 0x2000 )
+                return _via2.read( address & 0xf );
+            if ( address >= 0x8000 )
+                return _rom[ address & (ROM_SIZE - 1) ];
+
+            // Open bus.
+            return (byte)(address >> 8);
+        }
+
+        @Override
+        public void write( int address, byte value )
+        {
+            if ( address < VIA1_BASE )
+                _ram[ address & (RAM_SIZE - 1) ] = value;
+            else if ( address < VIA2_BASE )
+                _via1.write( address & 0xf, value );
+            else if ( address < 0x2000 )
+                _via2.write( address & 0xf, value );
+        }
+
+        @Override
+        public void set( Forwarder f, int where )
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getSize()
+        {
+            return 0x10000;
+        }
+
+        @Override
+        public byte[] getRawMemory()
+        {
+            return _ram;
+        }
+
+        @Override
+        public int getVectorAt( int adr )
+        {
+            return (read( adr ) & 0xff) | ((read( adr + 1 ) & 0xff) << 8);
+        }
+    }
+}
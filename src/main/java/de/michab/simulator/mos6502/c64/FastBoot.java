@@ -0,0 +1,135 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+
+
+/**
+ * <p>Caches the state of the emulation at the READY prompt after a reset.
+ * Restoring that state skips the ROM's cold start.  The state is held in
+ * memory for all instances of the process and in a file in the temporary
+ * directory for later processes.  The file name holds the checksum of the
+ * ROMs, since the state depends on them.</p>
+ *
+ * @see C64Core#fastBoot()
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class FastBoot
+{
+    private static final Logger _log =
+            Logger.getLogger( FastBoot.class.getName() );
+
+    /**
+     * The cached state, <code>null</code> if not loaded yet.
+     */
+    private static Snapshot _snapshot;
+
+    private FastBoot()
+    {
+        throw new AssertionError();
+    }
+
+    /**
+     * Get the cached state.
+     *
+     * @return The state or <code>null</code> if none is cached.
+     */
+    static synchronized Snapshot get()
+    {
+        if ( _snapshot != null )
+            return _snapshot;
+
+        File file = getFile();
+
+        if ( ! file.exists() )
+            return null;
+
+        try ( FileChannel channel = FileChannel.open( file.toPath() ) )
+        {
+            _snapshot = Snapshot.read( channel );
+        }
+        catch ( IOException e )
+        {
+            _log.log( Level.WARNING, "Ignored boot state: " + file, e );
+        }
+
+        return _snapshot;
+    }
+
+    /**
+     * Cache a state.  The file is replaced as a whole, so that concurrent
+     * processes never read a partially written file.
+     *
+     * @param snapshot The state at the READY prompt.
+     */
+    static synchronized void put( Snapshot snapshot )
+    {
+        _snapshot = snapshot;
+
+        File file = getFile();
+        File temp = null;
+
+        try
+        {
+            temp = File.createTempFile(
+                    "route64", null, file.getParentFile() );
+
+            try ( FileChannel channel = FileChannel.open(
+                    temp.toPath(), StandardOpenOption.WRITE ) )
+            {
+                snapshot.write( channel );
+            }
+
+            Files.move(
+                    temp.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        }
+        catch ( IOException e )
+        {
+            _log.log( Level.WARNING, "Writing boot state failed: " + file, e );
+
+            if ( temp != null )
+                temp.delete();
+        }
+    }
+
+    /**
+     * Drop the cached state, e.g. if it could not be restored.
+     */
+    static synchronized void discard()
+    {
+        _snapshot = null;
+
+        if ( ! getFile().delete() )
+            _log.warning( "Could not delete boot state: " + getFile() );
+    }
+
+    /**
+     * Get the file holding the state for the current ROMs.
+     */
+    private static File getFile()
+    {
+        return new File(
+                System.getProperty( "java.io.tmpdir" ),
+                String.format(
+                        "route64-boot-%08x.r64s",
+                        C64Memory.getRomChecksum() ) );
+    }
+}
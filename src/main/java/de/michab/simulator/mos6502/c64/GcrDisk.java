@@ -0,0 +1,201 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+
+
+/**
+ * <p>The surface of a 1541 disk, built from a D64 image.  Each track holds
+ * its sectors as the 1541 writes them: a sync mark, the GCR encoded header
+ * block, a gap, another sync mark and the GCR encoded data block, followed
+ * by a gap.  The tracks are as long as a track written at the track's
+ * standard speed zone.</p>
+ *
+ * <p>The tracks can be written by the drive.  The changes are not written
+ * back to the image.</p>
+ *
+ * @see Drive1541
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class GcrDisk
+{
+    /**
+     * The number of tracks in a D64 image.
+     */
+    static final int TRACKS = 35;
+
+    /**
+     * The size of an image without error information.
+     */
+    private static final int IMAGE_SIZE = 174848;
+
+    /**
+     * The 5 bit GCR code for each nybble.
+     */
+    static final int[] GCR = {
+            0x0a, 0x0b, 0x12, 0x13, 0x0e, 0x0f, 0x16, 0x17,
+            0x09, 0x19, 0x1a, 0x1b, 0x0d, 0x1d, 0x1e, 0x15 };
+
+    private static final int SYNC_LENGTH = 5;
+    private static final int HEADER_GAP = 9;
+    private static final byte GAP = 0x55;
+
+    /**
+     * The number of bytes of a track in each speed zone at the standard
+     * rotation speed.  Zone 3 is the fastest, used by the outer tracks.
+     */
+    private static final int[] TRACK_BYTES = { 6250, 6666, 7142, 7692 };
+
+    /**
+     * The tracks, index zero is track one.
+     */
+    private final byte[][] _tracks = new byte[ TRACKS ][];
+
+    /**
+     * Create an instance.
+     *
+     * @param image The D64 image.
+     * @throws IOException If the image is too short.
+     */
+    GcrDisk( ByteBuffer image )
+            throws IOException
+    {
+        if ( image.limit() < IMAGE_SIZE )
+            throw new IOException( "Not a D64 image." );
+
+        // The disk id is held in the BAM.
+        int bam = DiskGeometry.D64.getOffset( 18, 0 );
+        int id1 = image.get( bam + 0xa2 ) & 0xff;
+        int id2 = image.get( bam + 0xa3 ) & 0xff;
+
+        for ( int track = 1 ; track <= TRACKS ; track++ )
+            _tracks[ track-1 ] = encodeTrack( image, track, id1, id2 );
+    }
+
+    /**
+     * Get a track.
+     *
+     * @param track The track number starting with one.
+     * @return The track's GCR data or <code>null</code> if the disk has no
+     *         such track.  Changes write to the track.
+     */
+    byte[] getTrack( int track )
+    {
+        if ( track < 1 || track > TRACKS )
+            return null;
+
+        return _tracks[ track-1 ];
+    }
+
+    /**
+     * Get the speed zone of a track.
+     *
+     * @param track The track number starting with one.
+     * @return The zone as set on the drive's density bits.
+     */
+    static int getSpeedZone( int track )
+    {
+        if ( track <= 17 )
+            return 3;
+        if ( track <= 24 )
+            return 2;
+        if ( track <= 30 )
+            return 1;
+
+        return 0;
+    }
+
+    /**
+     * Encode a track.
+     */
+    private static byte[] encodeTrack(
+            ByteBuffer image, int track, int id1, int id2 )
+    {
+        int sectors = DiskGeometry.D64.getSectors( track );
+        byte[] result = new byte[ TRACK_BYTES[ getSpeedZone( track ) ] ];
+        Arrays.fill( result, GAP );
+
+        // 5 sync, 10 header, gap, 5 sync, 325 data.
+        int sectorSize = SYNC_LENGTH + 10 + HEADER_GAP + SYNC_LENGTH + 325;
+        int gap = (result.length - sectors * sectorSize) / sectors;
+
+        int pos = 0;
+        for ( int sector = 0 ; sector < sectors ; sector++ )
+        {
+            byte[] header = {
+                    0x08,
+                    (byte)(sector ^ track ^ id2 ^ id1),
+                    (byte)sector,
+                    (byte)track,
+                    (byte)id2,
+                    (byte)id1,
+                    0x0f,
+                    0x0f };
+
+            pos = sync( result, pos );
+            pos = encode( header, result, pos );
+            pos += HEADER_GAP;
+
+            byte[] data = new byte[ 260 ];
+            data[0] = 0x07;
+            int offset = DiskGeometry.D64.getOffset( track, sector );
+            int checksum = 0;
+            for ( int i = 0 ; i < 256 ; i++ )
+            {
+                data[i+1] = image.get( offset + i );
+                checksum ^= data[i+1];
+            }
+            data[257] = (byte)checksum;
+
+            pos = sync( result, pos );
+            pos = encode( data, result, pos );
+            pos += gap;
+        }
+
+        return result;
+    }
+
+    private static int sync( byte[] track, int pos )
+    {
+        Arrays.fill( track, pos, pos + SYNC_LENGTH, (byte)0xff );
+
+        return pos + SYNC_LENGTH;
+    }
+
+    /**
+     * GCR encode a block.  Each four bytes are encoded into five.
+     *
+     * @param block The block, its length a multiple of four.
+     * @param track The target track.
+     * @param pos The position in the track.
+     * @return The position following the encoded block.
+     */
+    private static int encode( byte[] block, byte[] track, int pos )
+    {
+        for ( int i = 0 ; i < block.length ; i += 4 )
+        {
+            long bits = 0;
+
+            for ( int j = 0 ; j < 4 ; j++ )
+            {
+                int b = block[i+j] & 0xff;
+                bits = (bits << 10) | (GCR[ b >> 4 ] << 5) | GCR[ b & 0xf ];
+            }
+
+            for ( int j = 4 ; j >= 0 ; j-- )
+                track[ pos++ ] = (byte)(bits >> (8 * j));
+        }
+
+        return pos;
+    }
+}
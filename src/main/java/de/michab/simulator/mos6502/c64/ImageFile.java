@@ -7,6 +7,8 @@
  */
 package de.michab.simulator.mos6502.c64;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -49,12 +51,26 @@ interface ImageFile
 
 
 
+  /**
+   * Access the image file's content.  For a compressed file this is the
+   * decompressed image.
+   *
+   * @return A read only view of the content.
+   */
+  public ByteBuffer getContents();
+
+
+
   /**
    * <p>Returns the image for the specified file name.  It is up to the adapter
    * to support an empty or null name.  A null return array signals that the
    * specified file could not be found.</p>
    *
-   * <p>The first two bytes in the returned array designate a memory address
+   * <p>The image is returned as a gather list of buffers that are read in
+   * order, each from its position to its limit.  The buffers are views of
+   * the image file where possible, so nothing is copied.</p>
+   *
+   * <p>The first two bytes in the returned image designate a memory address
    * where the file should be loaded to when the secondary load address was not
    * zero (as in <code>LOAD "X",8,1</code>).  If the secondary address was not
    * specified (as in <code>LOAD "X",8</code>) or was zero (as in
@@ -67,5 +83,19 @@ interface ImageFile
    * @return The image as to be mapped into memory.  A null return value means
    *         that the image wasn't found.
    */
-  public byte[] loadDirectoryEntry( byte[] fileName );
+  public ByteBuffer[] loadDirectoryEntry( byte[] fileName );
+
+
+
+  /**
+   * Save a file into the image.  The image is changed in memory, the image
+   * file is written in the background if it is writable.
+   *
+   * @param fileName The name of the file as given to the KERNAL.
+   * @param data The file's data, the first two bytes hold the load address.
+   * @throws IOException If the image type does not support saving or the
+   *         file can't be saved.
+   */
+  public void saveDirectoryEntry( byte[] fileName, ByteBuffer data )
+    throws IOException;
 }
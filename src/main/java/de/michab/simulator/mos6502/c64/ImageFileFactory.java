@@ -8,8 +8,14 @@
 package de.michab.simulator.mos6502.c64;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 
 /**
  * <p>Represents the base class to specialise for a file format that the
@@ -30,8 +36,17 @@ import java.io.IOException;
  * @version $Revision: 11 $
  * @author Michael G. Binz
  */
-abstract class ImageFileFactory
+abstract class ImageFileFactory implements ImageOpener
 {
+    /**
+     * The size of the blocks that changes to an image are tracked in.
+     *
+     * @see #saveEntry(byte[], ByteBuffer, ByteBuffer, BitSet)
+     */
+    static final int BLOCK_SIZE = 256;
+
+
+
     /**
      * Holds a human presentable name for this image format or null.
      */
@@ -82,6 +97,7 @@ abstract class ImageFileFactory
      *
      * @return A description of this <code>ImageFileFactory</code>.
      */
+    @Override
     public String getDescription()
     {
         return _description;
@@ -96,6 +112,7 @@ abstract class ImageFileFactory
      * @return The suffix of files that can be handled by this
      *         <code>ImageFileFactory</code>.
      */
+    @Override
     public String getFilenameSuffix()
     {
         return _suffix;
@@ -108,7 +125,8 @@ abstract class ImageFileFactory
      * by this interface.  This default implementation checks if the file is
      * readable, exists and if the filename ends with the filename suffix.
      */
-    protected boolean isValid( File imageFile )
+    @Override
+    public boolean isValid( File imageFile )
     {
         String lowerName = imageFile.getName().toLowerCase();
 
@@ -116,22 +134,173 @@ abstract class ImageFileFactory
                 lowerName.endsWith( getFilenameSuffix() );
     }
 
+
+
+    /**
+     * Checks if the passed content is a valid image of the type that is
+     * represented by this interface.  This is used for images that are not
+     * held in a file of their own, e.g. in an archive.  This default
+     * implementation checks if the name ends with the filename suffix.
+     *
+     * @param name The name of the image.
+     * @param content The content of the image.
+     * @return <code>true</code> if the image can be handled.
+     */
+    protected boolean isValid( String name, ByteBuffer content )
+    {
+        return
+                name.toLowerCase().endsWith( getFilenameSuffix() );
+    }
+
     /**
      * Creates an ImageFile from a file.  The created image file encapsulates the
-     * passed file and allows access to the files contained in the image.
+     * passed file and allows access to the files contained in the image.  A
+     * file that is only read is mapped into memory, so it is read on demand
+     * and its content is not held on the heap.
      */
+    @Override
     public ImageFile create( File file )
         throws IOException
     {
-        try ( var is = new FileInputStream( file ) )
+        if ( ! isWritable() || ! file.canWrite() )
+            return createReadOnly( file );
+
+        // Complete a save that is pending or was interrupted.
+        ImageWriter writer = ImageWriter.get( file );
+        writer.prepare();
+
+        return new DefaultImageFile(
+                this,
+                file.getName(),
+                read( file ),
+                writer );
+    }
+
+
+
+    /**
+     * Creates an ImageFile from a file that is only read.  Unlike
+     * <code>create(File)</code> a pending save is not completed and
+     * nothing can be saved, the file is never changed.  Formats that read
+     * their files differently override this.
+     *
+     * @param file The image file.
+     * @return The image file.
+     * @throws IOException If the image can't be read.
+     * @see #create(File)
+     */
+    @Override
+    public ImageFile createReadOnly( File file )
+        throws IOException
+    {
+        // A writable format's file may be replaced by its writer.
+        return create(
+                file.getName(),
+                isWritable() ? read( file ) : map( file ) );
+    }
+
+
+
+    /**
+     * Creates an ImageFile from an image that is not held in a file of its
+     * own, e.g. an image found in an archive.  Formats that are converted
+     * when they are read override this.
+     *
+     * @param name The name of the image.
+     * @param content The content of the image.
+     * @return The image file.
+     * @throws IOException If the image can't be read.
+     */
+    public ImageFile create( String name, ByteBuffer content )
+        throws IOException
+    {
+        return new DefaultImageFile( this, name, content );
+    }
+
+
+
+    /**
+     * Check whether entries can be saved into images of this type.  This
+     * default implementation returns <code>false</code>.
+     *
+     * @return <code>true</code> if <code>saveEntry()</code> is supported.
+     * @see #saveEntry(byte[], ByteBuffer, ByteBuffer, BitSet)
+     */
+    public boolean isWritable()
+    {
+        return false;
+    }
+
+
+
+    /**
+     * Save an entry into an image.  The image is changed in place.  This
+     * default implementation does not support saving.
+     *
+     * @param name The entry's name as given to the KERNAL.
+     * @param data The entry's data, starting with the load address.
+     * @param imageFile The writable content of the image file.
+     * @param changed Receives the numbers of the changed blocks of
+     *        <code>BLOCK_SIZE</code> bytes.
+     * @throws IOException If the entry can't be saved.  The image is not
+     *         changed in this case.
+     * @see #isWritable()
+     */
+    public void saveEntry(
+            byte[] name,
+            ByteBuffer data,
+            ByteBuffer imageFile,
+            BitSet changed )
+        throws IOException
+    {
+        throw new IOException( "Read only image." );
+    }
+
+
+
+    /**
+     * Read a file into the heap.  Used for files that may be replaced while
+     * they are open, a file that is mapped into memory can't be replaced on
+     * all platforms.
+     *
+     * @param file The file to read.
+     * @return The file's content, read only.
+     * @throws IOException If the file can't be read.
+     * @see ImageWriter
+     */
+    static ByteBuffer read( File file )
+        throws IOException
+    {
+        return ByteBuffer.wrap(
+                Files.readAllBytes( file.toPath() ) ).asReadOnlyBuffer();
+    }
+
+
+
+    /**
+     * Map a file into memory.
+     *
+     * @param file The file to map.
+     * @return The file's content.  The mapping stays valid after the file's
+     *         channel is closed.
+     * @throws IOException If the file can't be read or is too large.
+     */
+    static ByteBuffer map( File file )
+        throws IOException
+    {
+        try ( var channel = FileChannel.open( file.toPath() ) )
         {
-            return new DefaultImageFile(
-                    this,
-                    file.getName(),
-                    is.readAllBytes() );
+            long size = channel.size();
+
+            if ( size > Integer.MAX_VALUE )
+                throw new IOException( "File too large: " + file );
+
+            return channel.map( MapMode.READ_ONLY, 0, size );
         }
     }
 
+
+
     /**
      * Returns the device number for the given format.
      *
@@ -151,11 +320,11 @@ abstract class ImageFileFactory
      *
      * @param imageFile The content of the image file.
      * @return The directory of the image file.
-     * @see ImageFileFactory#getDirectory(String, byte[])
+     * @see ImageFileFactory#getDirectory(String, ByteBuffer)
      * @throws InternalError If neither this nor the other
      * <code>getDirectory()</code> operation is overridden.
      */
-    public byte[][] getDirectory( byte[] imageFile )
+    public byte[][] getDirectory( ByteBuffer imageFile )
     {
         throw new InternalError( "getDirectory()" );
     }
@@ -171,9 +340,9 @@ abstract class ImageFileFactory
      * @param fileName The name of the image file.
      * @param imageFile The content of the image file.
      * @return The directory of the image file.
-     * @see ImageFileFactory#getDirectory(byte[])
+     * @see ImageFileFactory#getDirectory(ByteBuffer)
      */
-    public byte[][] getDirectory( String fileName, byte[] imageFile )
+    public byte[][] getDirectory( String fileName, ByteBuffer imageFile )
     {
         return getDirectory( imageFile );
     }
@@ -181,42 +350,41 @@ abstract class ImageFileFactory
 
 
     /**
-     * @see ImageFile#loadDirectoryEntry(byte[])
+     * Create the directory index of the passed image.  Called once when the
+     * image file is opened.  This default implementation indexes the names
+     * returned by <code>getDirectory()</code>, the location of an entry is
+     * its position in the directory.  The length is unknown.
+     *
+     * @param fileName The name of the image file.
+     * @param imageFile The content of the image file.
+     * @return The directory index.
+     * @see ImageFileFactory#getDirectory(String, ByteBuffer)
      */
-    public abstract byte[] loadEntry( byte[] name, byte[] imageFile );
+    public DirectoryIndex createIndex( String fileName, ByteBuffer imageFile )
+    {
+        byte[][] names = getDirectory( fileName, imageFile );
+        List<DirectoryIndex.Entry> entries =
+                new ArrayList<DirectoryIndex.Entry>( names.length );
 
+        for ( int i = 0 ; i < names.length ; i++ )
+            entries.add( new DirectoryIndex.Entry( names[i], i, -1 ) );
 
+        return new DirectoryIndex( entries );
+    }
 
-    /**
-     * This implements the 64s filename comparison algorithm.  This includes the
-     * '*' and '?' wildcards.  File names are equal
-     * o if they contain the same bytes and have the same length.
-     * o if they contain the same bytes upto the position where the pattern has
-     *   an asterisk.
-     * o if they differ only in byte positions where the pattern contains a '?'.
-     */
-    protected boolean namesEqual( byte[] fullname, byte[] pattern )
-    {
-        // With empty patterns we accept everything.
-        if ( pattern.length == 0 )
-            return true;
 
-        for ( int i = 0 ; i < pattern.length ; i++ )
-        {
-            if ( pattern[i] == '*' )
-                return true;
-            else if ( pattern[i] == '?' )
-                ;
-            else if ( (fullname.length > i) &&  (fullname[i] == pattern[i]) )
-                ;
-            else
-                return false;
-        }
 
-        // Finally check if the lengths differ,  content is equal up to pattern
-        // length.
-        return fullname.length == pattern.length;
-    }
+    /**
+     * Load an entry of the directory index.
+     *
+     * @param entry The entry to load.
+     * @param imageFile The content of the image file.
+     * @return The entry's data as described for
+     *         {@link ImageFile#loadDirectoryEntry(byte[])}.
+     * @see ImageFileFactory#createIndex(String, ByteBuffer)
+     */
+    public abstract ByteBuffer[] loadEntry(
+            DirectoryIndex.Entry entry, ByteBuffer imageFile );
 
 
 
@@ -228,11 +396,11 @@ abstract class ImageFileFactory
      * @return The word at the specified position as an integer.  Only the lower
      *         16 bit of the integer are used, the upper 16 bit are zero.
      */
-    public static int getWordAt( int offset, byte[] image )
+    public static int getWordAt( int offset, ByteBuffer image )
     {
-        int hi = image[ offset+1 ] & 0xff;
+        int hi = image.get( offset+1 ) & 0xff;
         hi <<= 8;
-        int lo = image[ offset ] & 0xff;
+        int lo = image.get( offset ) & 0xff;
 
         return hi | lo;
     }
@@ -246,7 +414,7 @@ abstract class ImageFileFactory
      * @param image The image to be read.
      * @return The double word at the specified position as an integer.
      */
-    public static int getDwordAt( int offset, byte[] image )
+    public static int getDwordAt( int offset, ByteBuffer image )
     {
         int hi16 = getWordAt( offset + 2, image ) & 0xffff;
         hi16 <<= 16;
@@ -269,7 +437,7 @@ abstract class ImageFileFactory
      */
     public static final byte[] stripBytes( byte[] array, byte toStrip )
     {
-        return stripBytes( array, 0, array.length-1, toStrip );
+        return stripBytes( ByteBuffer.wrap( array ), 0, array.length-1, toStrip );
     }
 
 
@@ -278,31 +446,52 @@ abstract class ImageFileFactory
      * Takes a byte array subset and removes all leading and trailing occurences
      * of the specified byte value from the array.
      *
-     * @param array The array containing the data to strip.
-     * @param startIdx The start index into the array.
-     * @param endIdx The end index into the array.
+     * @param array The buffer containing the data to strip.
+     * @param startIdx The start index into the buffer.
+     * @param endIdx The end index into the buffer.
      * @param toStrip The character that is to strip.
      * @return A newly allocated array that is of size end index minus start
      *         index minus number of leading and trailing strip characters.
      */
     public static final byte[] stripBytes(
-            byte[] array,
+            ByteBuffer array,
             int startIdx,
             int endIdx,
             byte toStrip )
     {
-        if ( startIdx > endIdx || endIdx > (array.length-1) || startIdx < 0 )
+        if ( startIdx > endIdx || endIdx > (array.limit()-1) || startIdx < 0 )
             throw new IllegalArgumentException();
 
         // Find the index of the first character in the result string.
-        for ( ; startIdx  <= endIdx && toStrip == array[startIdx] ; startIdx++ )
+        for ( ; startIdx  <= endIdx && toStrip == array.get( startIdx ) ; startIdx++ )
             ;
         // Find the index of the last character in the result string.
-        for ( ; endIdx >= startIdx && toStrip == array[endIdx] ; endIdx-- )
+        for ( ; endIdx >= startIdx && toStrip == array.get( endIdx ) ; endIdx-- )
             ;
 
         byte[] result = new byte[ (endIdx - startIdx) +1 ];
-        System.arraycopy( array, startIdx, result, 0, result.length );
+        for ( int i = 0 ; i < result.length ; i++ )
+            result[i] = array.get( startIdx + i );
         return result;
     }
+
+
+
+    /**
+     * Get a view of a part of an image.  Nothing is copied.
+     *
+     * @param image The image.
+     * @param offset The offset of the part.
+     * @param length The length of the part.  Limited to the end of the image.
+     * @return A buffer holding the part from position zero.
+     */
+    public static ByteBuffer slice( ByteBuffer image, int offset, int length )
+    {
+        ByteBuffer result = image.duplicate();
+
+        result.position( offset );
+        result.limit( offset + Math.min( length, image.limit() - offset ) );
+
+        return result.slice();
+    }
 }
@@ -0,0 +1,70 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.File;
+import java.io.IOException;
+
+
+
+/**
+ * <p>Opens the image files of a type.  Each <code>ImageFileFactory</code>
+ * opens the files of its format.  Compressed files are opened by
+ * decompressing them and handing the image found to the factory of its
+ * type, they have no format of their own.</p>
+ *
+ * @see LoadDevice#findOpenerFor(File)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+interface ImageOpener
+{
+    /**
+     * Get the a name for the type of image file that can be displayed in
+     * the user interface.
+     *
+     * @return A description of the type.
+     */
+    String getDescription();
+
+    /**
+     * Get a file name suffix for the type of image file.
+     *
+     * @return The suffix of the files that can be opened.
+     */
+    String getFilenameSuffix();
+
+    /**
+     * Checks if the passed file can be opened.
+     *
+     * @param imageFile The file to check.
+     * @return <code>true</code> if the file can be opened.
+     */
+    boolean isValid( File imageFile );
+
+    /**
+     * Open an image file.  Entries can be saved into images that are
+     * writable.
+     *
+     * @param file The image file.
+     * @return The image file.
+     * @throws IOException If the image can't be read.
+     */
+    ImageFile create( File file )
+        throws IOException;
+
+    /**
+     * Open an image file that is only read.  The file is never changed.
+     *
+     * @param file The image file.
+     * @return The image file.
+     * @throws IOException If the image can't be read.
+     */
+    ImageFile createReadOnly( File file )
+        throws IOException;
+}
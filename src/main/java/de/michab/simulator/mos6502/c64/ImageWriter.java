@@ -0,0 +1,385 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+
+/**
+ * <p>Writes the changes of an image to its file in the background, so that
+ * a save does not wait for the disk.  Changes are collected for a short
+ * time and written as one batch.</p>
+ *
+ * <p>A batch is first written to a journal next to the image file that
+ * holds the changed blocks.  Then the complete image is written to a
+ * temporary file that replaces the image file.  The journal is removed
+ * when the image file is replaced.  If writing is interrupted the image
+ * file is unchanged, a complete journal is applied when the image file is
+ * opened the next time.  A batch that fails is joined with the next batch
+ * and written again later.</p>
+ *
+ * <p>There is a single writer per image file, so that an image file that
+ * is opened again sees the changes that are not written yet.</p>
+ *
+ * @see DefaultImageFile#saveDirectoryEntry(byte[], ByteBuffer)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class ImageWriter
+{
+    private static final Logger _log =
+            Logger.getLogger( ImageWriter.class.getName() );
+
+    /**
+     * The journal's magic number, 'R64J'.
+     */
+    private static final int MAGIC = 0x5236344a;
+
+    /**
+     * The suffix added to the image file's name for the journal.
+     */
+    private static final String JOURNAL_SUFFIX = ".journal";
+
+    /**
+     * The time changes are collected before they are written.
+     */
+    private static final long BATCH_DELAY_MS = 1000;
+
+    /**
+     * The time before a batch that could not be written is written again.
+     */
+    private static final long RETRY_DELAY_MS = 10000;
+
+    /**
+     * Writes the batches of all images.  Pending batches are written when
+     * the virtual machine exits.
+     */
+    private static final ScheduledExecutorService _executor =
+            Executors.newSingleThreadScheduledExecutor( r -> {
+                Thread result = new Thread( r, "Image writer" );
+                result.setDaemon( true );
+                return result;
+            } );
+
+    static
+    {
+        Runtime.getRuntime().addShutdownHook( new Thread( () -> {
+            _executor.shutdown();
+            try
+            {
+                _executor.awaitTermination( 10, TimeUnit.SECONDS );
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+            }
+        } ) );
+    }
+
+    /**
+     * The writers by the canonical path of their image file.
+     */
+    private static final Map<File, ImageWriter> _writers =
+            new HashMap<File, ImageWriter>();
+
+    /**
+     * The image file.
+     */
+    private final File _file;
+
+    /**
+     * The journal file.
+     */
+    private final File _journal;
+
+    /**
+     * The image to write, <code>null</code> if nothing is pending.
+     */
+    private byte[] _pending = null;
+
+    /**
+     * The blocks changed since the last batch.
+     */
+    private final BitSet _changed = new BitSet();
+
+    /**
+     * The scheduled batch, <code>null</code> if none is scheduled.
+     */
+    private ScheduledFuture<?> _scheduled = null;
+
+    /**
+     * Held while the image file or the journal is written.
+     */
+    private final Object _fileLock = new Object();
+
+    /**
+     * Create an instance.
+     *
+     * @param file The image file.
+     */
+    private ImageWriter( File file )
+    {
+        _file = file;
+        _journal = getJournal( _file );
+    }
+
+    /**
+     * Get the writer of an image file.
+     *
+     * @param file The image file.
+     * @return The writer.
+     * @throws IOException If the file's canonical path can't be computed.
+     */
+    static ImageWriter get( File file )
+            throws IOException
+    {
+        File canonical = file.getCanonicalFile();
+
+        synchronized ( _writers )
+        {
+            return _writers.computeIfAbsent( canonical, ImageWriter::new );
+        }
+    }
+
+    /**
+     * Bring the image file up to date before it is read.  A pending batch
+     * is written, a journal left by an interrupted write is applied.
+     *
+     * @throws IOException If the image file can't be written.
+     */
+    void prepare()
+            throws IOException
+    {
+        synchronized ( _fileLock )
+        {
+            write();
+            recover( _file, _journal );
+        }
+    }
+
+    /**
+     * Add changes to the next batch.  Copies the image, so this is cheap
+     * enough for the emulation's thread.
+     *
+     * @param image The changed image.
+     * @param changed The numbers of the changed blocks.
+     */
+    synchronized void changed( ByteBuffer image, BitSet changed )
+    {
+        byte[] copy = new byte[ image.limit() ];
+        image.duplicate().clear().get( copy );
+
+        _pending = copy;
+        _changed.or( changed );
+
+        if ( _scheduled == null )
+            _scheduled = _executor.schedule(
+                    this::write,
+                    BATCH_DELAY_MS,
+                    TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Write the pending batch.
+     */
+    private void write()
+    {
+        synchronized ( _fileLock )
+        {
+            byte[] image;
+            BitSet changed;
+
+            synchronized ( this )
+            {
+                image = _pending;
+                changed = (BitSet)_changed.clone();
+                _pending = null;
+                _changed.clear();
+                _scheduled = null;
+            }
+
+            if ( image == null )
+                return;
+
+            try
+            {
+                writeJournal( image, changed );
+                replace( _file, image );
+                _journal.delete();
+            }
+            catch ( IOException e )
+            {
+                _log.log( Level.SEVERE, "Writing failed: " + _file, e );
+                retry( image, changed );
+            }
+        }
+    }
+
+    /**
+     * Return a batch that could not be written to the next batch, so that
+     * its changes are not lost.  A newer image holds the changes already.
+     */
+    private synchronized void retry( byte[] image, BitSet changed )
+    {
+        if ( _pending == null )
+            _pending = image;
+        _changed.or( changed );
+
+        if ( _scheduled != null )
+            return;
+
+        try
+        {
+            _scheduled = _executor.schedule(
+                    this::write,
+                    RETRY_DELAY_MS,
+                    TimeUnit.MILLISECONDS );
+        }
+        catch ( RejectedExecutionException e )
+        {
+            // The virtual machine exits.
+            _log.severe( "Changes lost: " + _file );
+        }
+    }
+
+    /**
+     * Write the changed blocks to the journal.  The journal ends with a
+     * checksum, so an incomplete journal is detected.
+     */
+    private void writeJournal( byte[] image, BitSet changed )
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+
+        out.writeInt( MAGIC );
+        out.writeInt( image.length );
+        out.writeInt( changed.cardinality() );
+
+        for ( int i = changed.nextSetBit( 0 ) ; i >= 0 ; i = changed.nextSetBit( i+1 ) )
+        {
+            out.writeInt( i );
+            out.write( image, i * ImageFileFactory.BLOCK_SIZE, ImageFileFactory.BLOCK_SIZE );
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update( bytes.toByteArray() );
+        out.writeLong( crc.getValue() );
+
+        try ( FileOutputStream file = new FileOutputStream( _journal ) )
+        {
+            bytes.writeTo( file );
+            file.getFD().sync();
+        }
+    }
+
+    /**
+     * Apply a journal that was left by an interrupted write.  A journal that
+     * is incomplete is removed, its image file was not changed.
+     *
+     * @param file The image file.
+     * @param journal The image file's journal.
+     * @throws IOException If the image file can't be written.
+     */
+    private static void recover( File file, File journal )
+            throws IOException
+    {
+        if ( ! journal.exists() )
+            return;
+
+        byte[] bytes = Files.readAllBytes( journal.toPath() );
+        byte[] image = Files.readAllBytes( file.toPath() );
+
+        try ( DataInputStream in =
+                new DataInputStream( new ByteArrayInputStream( bytes ) ) )
+        {
+            CRC32 crc = new CRC32();
+            crc.update( bytes, 0, Math.max( 0, bytes.length - Long.BYTES ) );
+
+            if ( bytes.length < Long.BYTES ||
+                 ByteBuffer.wrap( bytes, bytes.length - Long.BYTES, Long.BYTES )
+                     .getLong() != crc.getValue() ||
+                 in.readInt() != MAGIC ||
+                 in.readInt() != image.length )
+            {
+                _log.warning( "Dropped incomplete journal: " + journal );
+                journal.delete();
+                return;
+            }
+
+            for ( int i = in.readInt() ; i > 0 ; i-- )
+            {
+                int block = in.readInt();
+                in.readFully(
+                        image,
+                        block * ImageFileFactory.BLOCK_SIZE,
+                        ImageFileFactory.BLOCK_SIZE );
+            }
+        }
+
+        replace( file, image );
+        journal.delete();
+
+        _log.info( "Recovered saved data: " + file );
+    }
+
+    /**
+     * Replace a file's content as a whole.
+     */
+    private static void replace( File file, byte[] content )
+            throws IOException
+    {
+        File temp = File.createTempFile(
+                "route64", null, file.getAbsoluteFile().getParentFile() );
+
+        try
+        {
+            try ( FileOutputStream out = new FileOutputStream( temp ) )
+            {
+                out.write( content );
+                out.getFD().sync();
+            }
+
+            Files.move(
+                    temp.toPath(),
+                    file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+
+    private static File getJournal( File file )
+    {
+        return new File( file.getPath() + JOURNAL_SUFFIX );
+    }
+}
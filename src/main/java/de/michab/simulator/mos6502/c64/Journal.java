@@ -0,0 +1,442 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import de.michab.simulator.Clock;
+import de.michab.simulator.ClockEvent;
+
+
+
+/**
+ * <p>Records the external inputs of an emulation into a binary journal and
+ * replays them.  Since the emulation itself is deterministic a replay
+ * reproduces a recorded run exactly.</p>
+ *
+ * <p>While recording, inputs are not applied on the thread they arrive on
+ * but queued.  A clock event fires every <code>tick</code> cycles on the
+ * emulation's schedule, applies the queued inputs and writes them to the
+ * journal with the cycle they took effect.  A replay fires the same events
+ * and applies the inputs from the journal instead.  Live inputs are dropped
+ * while replaying.</p>
+ *
+ * <p>The journal is a header followed by entries.  Each entry holds the
+ * number of ticks since the previous entry, the input type, an integer
+ * value and optional data.  Integers are written as variable length
+ * quantities.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Journal
+    extends ClockEvent
+{
+    private static final Logger _log =
+            Logger.getLogger( Journal.class.getName() );
+
+    /**
+     * Input types.
+     */
+    static final int KEY_PRESSED = 1;
+    static final int KEY_RELEASED = 2;
+    static final int KEY_TYPED = 3;
+    static final int INPUT_DEVICE = 4;
+    static final int SYSTEM_INPUT = 5;
+    static final int IMAGE_FILE = 6;
+    static final int RESET = 7;
+
+    /**
+     * Marks the end of the journal.
+     */
+    private static final int END = 0;
+
+    /**
+     * The journal's magic number, 'R64J'.
+     */
+    private static final int MAGIC = 0x5236344a;
+
+    /**
+     * The journal format version.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Receives the inputs to apply.
+     */
+    interface Target
+    {
+        /**
+         * Apply an input to the emulation.  Called on the emulation's
+         * schedule.
+         *
+         * @param type The input type.
+         * @param value The input's value.
+         * @param data The input's data, an empty array if none.
+         */
+        void apply( int type, int value, byte[] data );
+    }
+
+    /**
+     * A single journal entry.
+     */
+    private static final class Entry
+    {
+        final int _type;
+        final int _value;
+        final byte[] _data;
+        long _time;
+
+        Entry( int type, int value, byte[] data )
+        {
+            _type = type;
+            _value = value;
+            _data = data != null ? data : new byte[0];
+        }
+    }
+
+    private enum Mode { OFF, RECORD, REPLAY };
+
+    private volatile Mode _mode = Mode.OFF;
+
+    private final Clock _clock;
+
+    private final Target _target;
+
+    /**
+     * The number of cycles between two input events.  Replays use the
+     * value from the journal.
+     */
+    private int _tick;
+
+    /**
+     * The inputs waiting for the next tick while recording.
+     */
+    private final ConcurrentLinkedQueue<Entry> _pending =
+            new ConcurrentLinkedQueue<Entry>();
+
+    private DataOutputStream _out;
+
+    private DataInputStream _in;
+
+    /**
+     * The next entry to apply while replaying.
+     */
+    private Entry _next;
+
+    /**
+     * The time of the last entry written or read.
+     */
+    private long _lastTime;
+
+    /**
+     * Create an instance.
+     *
+     * @param clock The system clock.
+     * @param target Receives the inputs to apply.
+     */
+    Journal( Clock clock, Target target )
+    {
+        _clock = clock;
+        _target = target;
+        _tick = (int)(clock.getResolution() / 1000);
+    }
+
+    /**
+     * Start recording.
+     *
+     * @param out The stream receiving the journal.
+     * @throws IOException If the header could not be written.
+     */
+    synchronized void record( OutputStream out )
+            throws IOException
+    {
+        checkOff();
+
+        _out = new DataOutputStream( new BufferedOutputStream( out ) );
+        _out.writeInt( MAGIC );
+        _out.writeInt( VERSION );
+        _out.writeInt( _tick );
+        _out.flush();
+
+        _lastTime = 0;
+        start( Mode.RECORD );
+    }
+
+    /**
+     * Start a replay.
+     *
+     * @param in The stream holding the journal.
+     * @throws IOException If the stream holds no journal.
+     */
+    synchronized void replay( InputStream in )
+            throws IOException
+    {
+        checkOff();
+
+        _in = new DataInputStream( new BufferedInputStream( in ) );
+
+        if ( _in.readInt() != MAGIC )
+            throw new IOException( "Not a journal." );
+        if ( _in.readInt() != VERSION )
+            throw new IOException( "Unsupported journal version." );
+
+        _tick = _in.readInt();
+        if ( _tick <= 0 )
+            throw new IOException( "Invalid tick." );
+
+        _lastTime = 0;
+        _next = readEntry();
+
+        start( Mode.REPLAY );
+    }
+
+    /**
+     * Stop recording or replaying.  A recorded journal is terminated and
+     * the stream is closed.
+     */
+    synchronized void close()
+    {
+        Mode mode = _mode;
+        _mode = Mode.OFF;
+        _clock.cancel( this );
+
+        try
+        {
+            if ( mode == Mode.RECORD )
+            {
+                VariableLength.write( _out, 0 );
+                _out.writeByte( END );
+                _out.close();
+            }
+            else if ( mode == Mode.REPLAY )
+                _in.close();
+        }
+        catch ( IOException e )
+        {
+            _log.log( Level.WARNING, "Closing journal failed.", e );
+        }
+
+        _pending.clear();
+        _out = null;
+        _in = null;
+        _next = null;
+    }
+
+    /**
+     * Check whether inputs have to be passed to the journal.
+     *
+     * @return <code>true</code> if recording or replaying.
+     */
+    boolean isActive()
+    {
+        return _mode != Mode.OFF;
+    }
+
+    /**
+     * Pass an input to the journal.  While recording the input is applied
+     * on the next tick.  While replaying the input is dropped.
+     *
+     * @param type The input type.
+     * @param value The input's value.
+     * @param data The input's data, may be <code>null</code>.
+     * @return <code>false</code> if the journal is not active.  In that
+     *         case the caller has to apply the input.
+     */
+    boolean submit( int type, int value, byte[] data )
+    {
+        Mode mode = _mode;
+
+        if ( mode == Mode.RECORD )
+            _pending.add( new Entry( type, value, data ) );
+        else if ( mode == Mode.REPLAY && _log.isLoggable( Level.FINE ) )
+            _log.fine( "Input dropped: " + type );
+
+        return mode != Mode.OFF;
+    }
+
+    /**
+     * Called by the clock on each tick.
+     */
+    @Override
+    public synchronized void fire( long time )
+    {
+        try
+        {
+            if ( _mode == Mode.RECORD )
+                recordTick( time );
+            else if ( _mode == Mode.REPLAY )
+                replayTick( time );
+        }
+        catch ( IOException e )
+        {
+            _log.log( Level.SEVERE, "Journal failed.", e );
+            close();
+        }
+
+        if ( _mode != Mode.OFF )
+            _clock.schedule( this, time + _tick );
+    }
+
+    /**
+     * Compute a checksum of a file's contents.  Used to make sure that a
+     * replay mounts the same image file that was recorded.
+     *
+     * @param file The file.
+     * @return The CRC-32 of the file's contents.
+     * @throws IOException If the file can't be read.
+     */
+    static int checksum( File file )
+            throws IOException
+    {
+        CRC32 crc = new CRC32();
+
+        try ( InputStream in = new FileInputStream( file ) )
+        {
+            byte[] buffer = new byte[ 8192 ];
+
+            for ( int n = in.read( buffer ) ; n > 0 ; n = in.read( buffer ) )
+                crc.update( buffer, 0, n );
+        }
+
+        return (int)crc.getValue();
+    }
+
+    /**
+     * Apply and write the pending inputs.
+     *
+     * @param time The current time.
+     * @throws IOException If writing failed.
+     */
+    private void recordTick( long time )
+            throws IOException
+    {
+        Entry entry = _pending.poll();
+
+        if ( entry == null )
+            return;
+
+        for ( ; entry != null ; entry = _pending.poll() )
+        {
+            writeEntry( time, entry );
+            _target.apply( entry._type, entry._value, entry._data );
+        }
+
+        // Make sure the journal is complete up to here if the emulation
+        // crashes.
+        _out.flush();
+    }
+
+    /**
+     * Apply the inputs recorded for the passed time.  The replay ends with
+     * the journal.
+     *
+     * @param time The current time.
+     * @throws IOException If reading failed.
+     */
+    private void replayTick( long time )
+            throws IOException
+    {
+        while ( _next != null && _next._time <= time )
+        {
+            Entry entry = _next;
+            _next = readEntry();
+            _target.apply( entry._type, entry._value, entry._data );
+        }
+
+        if ( _next == null )
+        {
+            _log.info( "Replay complete." );
+            close();
+        }
+    }
+
+    /**
+     * Enter a recording or replay mode and schedule the first tick.
+     *
+     * @param mode The new mode.
+     */
+    private void start( Mode mode )
+    {
+        _mode = mode;
+
+        long now = _clock.currentTime();
+        _clock.schedule( this, now - (now % _tick) + _tick );
+    }
+
+    /**
+     * Ensure that neither recording nor replaying is active.
+     */
+    private void checkOff()
+    {
+        if ( _mode != Mode.OFF )
+            throw new IllegalStateException( "Journal is active." );
+    }
+
+    private void writeEntry( long time, Entry entry )
+            throws IOException
+    {
+        VariableLength.write( _out, (time - _lastTime) / _tick );
+        _lastTime = time;
+
+        _out.writeByte( entry._type );
+        VariableLength.write( _out, entry._value & 0xffffffffL );
+        VariableLength.write( _out, entry._data.length );
+        _out.write( entry._data );
+    }
+
+    /**
+     * Read the next entry.
+     *
+     * @return The entry or <code>null</code> at the end of the journal.
+     * @throws IOException If reading failed.
+     */
+    private Entry readEntry()
+            throws IOException
+    {
+        long ticks;
+
+        try
+        {
+            ticks = VariableLength.read( _in );
+        }
+        catch ( EOFException e )
+        {
+            // A journal that was not closed ends here.
+            return null;
+        }
+
+        int type = _in.readUnsignedByte();
+        if ( type == END )
+            return null;
+
+        int value = (int)VariableLength.read( _in );
+        byte[] data = new byte[ (int)VariableLength.read( _in ) ];
+        _in.readFully( data );
+
+        Entry result = new Entry( type, value, data );
+        _lastTime += ticks * _tick;
+        result._time = _lastTime;
+
+        return result;
+    }
+
+}
@@ -0,0 +1,446 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+
+
+/**
+ * <p>A catalog of the image files in a library of directories.  Scanning a
+ * directory opens each image file that a factory accepts, reads its
+ * directory and computes a checksum of its content.  Directories and files
+ * are scanned in parallel on the common fork join pool.  The results are
+ * kept in a catalog file, so a later scan only opens the files whose
+ * modification time or size changed.</p>
+ *
+ * <p>The checksum of a compressed file is computed over the decompressed
+ * image.  The catalog is held in memory and searched there, so a search does
+ * not touch the image files.</p>
+ *
+ * @see LoadDevice#findOpenerFor(File)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class Library
+{
+    private static final Logger _log =
+            Logger.getLogger( Library.class.getName() );
+
+    /**
+     * The catalog's magic number, 'R64L'.
+     */
+    private static final int MAGIC = 0x5236344c;
+
+    /**
+     * The catalog format version.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * An image file in the library.
+     */
+    public static final class Title
+    {
+        private final File _file;
+        private final long _lastModified;
+        private final long _size;
+        private final int _checksum;
+        private final byte[][] _directory;
+
+        /**
+         * The lower case text searched, the file name and the directory
+         * entries separated by line feeds.
+         */
+        private final String _text;
+
+        private Title(
+                File file,
+                long lastModified,
+                long size,
+                int checksum,
+                byte[][] directory )
+        {
+            _file = file;
+            _lastModified = lastModified;
+            _size = size;
+            _checksum = checksum;
+            _directory = directory;
+
+            StringBuilder text = new StringBuilder( file.getName() );
+            for ( byte[] name : directory )
+                text.append( '\n' ).append( toString( name ) );
+            _text = text.toString().toLowerCase( Locale.ROOT );
+        }
+
+        /**
+         * Get the image file.
+         *
+         * @return The image file.
+         */
+        public File getFile()
+        {
+            return _file;
+        }
+
+        /**
+         * Get the CRC32 of the image file's content.  Identical images in
+         * different files have the same checksum.
+         *
+         * @return The checksum.
+         */
+        public int getChecksum()
+        {
+            return _checksum;
+        }
+
+        /**
+         * Get the directory of the image file.
+         *
+         * @return The directory entries.  Empty if the image file could not
+         *         be read.
+         */
+        public byte[][] getDirectory()
+        {
+            byte[][] result = new byte[ _directory.length ][];
+
+            for ( int i = 0 ; i < result.length ; i++ )
+                result[i] = _directory[i].clone();
+
+            return result;
+        }
+
+        /**
+         * Check whether the catalog data is still valid for the file.
+         */
+        private boolean isCurrent( File file )
+        {
+            return
+                    _lastModified == file.lastModified() &&
+                    _size == file.length();
+        }
+
+        private static String toString( byte[] name )
+        {
+            return new String( name, StandardCharsets.ISO_8859_1 );
+        }
+    }
+
+    /**
+     * The catalog file.
+     */
+    private final File _catalog;
+
+    /**
+     * The titles by their file.
+     */
+    private final Map<File, Title> _titles =
+            new ConcurrentHashMap<File, Title>();
+
+    /**
+     * Create an instance.  The catalog is read if the file exists.  A
+     * catalog that can't be read is ignored, it is replaced by the next
+     * scan.
+     *
+     * @param catalog The catalog file.
+     */
+    public Library( File catalog )
+    {
+        _catalog = Objects.requireNonNull( catalog );
+
+        if ( ! catalog.exists() )
+            return;
+
+        try
+        {
+            read();
+        }
+        catch ( IOException e )
+        {
+            _log.log( Level.WARNING, "Ignored catalog: " + catalog, e );
+            _titles.clear();
+        }
+    }
+
+    /**
+     * Scan a directory and its subdirectories in the background.  Titles
+     * below the directory whose files were removed are dropped.  The catalog
+     * file is written when the scan completes.
+     *
+     * @param directory The directory to scan.
+     * @return The number of image files that were opened because they are
+     *         new or changed.  Completes exceptionally if writing the catalog
+     *         failed.
+     */
+    public CompletableFuture<Integer> scan( File directory )
+    {
+        File root = directory.getAbsoluteFile();
+
+        return CompletableFuture.supplyAsync( () ->
+        {
+            Set<File> found = ConcurrentHashMap.newKeySet();
+            int result = new ScanTask( root, found ).invoke();
+
+            String prefix = root.getPath() + File.separator;
+            _titles.keySet().removeIf( f ->
+                    f.getPath().startsWith( prefix ) && ! found.contains( f ) );
+
+            try
+            {
+                write();
+            }
+            catch ( IOException e )
+            {
+                throw new UncheckedIOException( e );
+            }
+
+            return result;
+        },
+        ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * Find the titles whose file name or directory contains a text.  The
+     * case is ignored.
+     *
+     * @param text The text to search for.  An empty text finds all titles.
+     * @return The titles found, sorted by their file.
+     */
+    public List<Title> search( String text )
+    {
+        String lower = text.toLowerCase( Locale.ROOT );
+        List<Title> result = new ArrayList<Title>();
+
+        for ( Title t : _titles.values() )
+        {
+            if ( t._text.contains( lower ) )
+                result.add( t );
+        }
+
+        result.sort( Comparator.comparing( Title::getFile ) );
+
+        return result;
+    }
+
+    /**
+     * Get the number of titles.
+     *
+     * @return The number of image files in the catalog.
+     */
+    public int size()
+    {
+        return _titles.size();
+    }
+
+    /**
+     * Scans a directory, forking a task for each subdirectory and image file.
+     * Computes the number of image files opened.
+     */
+    @SuppressWarnings("serial")
+    private final class ScanTask extends RecursiveTask<Integer>
+    {
+        private final File _file;
+        private final Set<File> _found;
+
+        ScanTask( File file, Set<File> found )
+        {
+            _file = file;
+            _found = found;
+        }
+
+        @Override
+        protected Integer compute()
+        {
+            if ( _file.isFile() )
+                return index( _file, _found ) ? 1 : 0;
+
+            File[] files = _file.listFiles();
+
+            if ( files == null )
+                return 0;
+
+            List<ScanTask> tasks = new ArrayList<ScanTask>( files.length );
+            for ( File f : files )
+            {
+                if ( f.isDirectory() || LoadDevice.findOpenerFor( f ) != null )
+                    tasks.add( new ScanTask( f, _found ) );
+            }
+
+            int result = 0;
+            for ( ScanTask t : ForkJoinTask.invokeAll( tasks ) )
+                result += t.join();
+
+            return result;
+        }
+    }
+
+    /**
+     * Add an image file to the catalog unless the catalog is current.
+     *
+     * @param file The image file.
+     * @param found Receives the file.
+     * @return <code>true</code> if the file was opened.
+     */
+    private boolean index( File file, Set<File> found )
+    {
+        found.add( file );
+
+        Title title = _titles.get( file );
+
+        if ( title != null && title.isCurrent( file ) )
+            return false;
+
+        long lastModified = file.lastModified();
+        int checksum = 0;
+        byte[][] directory = new byte[0][];
+
+        try
+        {
+            // Opened read only, indexing must not complete a pending save.
+            ImageFile image =
+                    LoadDevice.findOpenerFor( file ).createReadOnly( file );
+
+            CRC32 crc = new CRC32();
+            crc.update( image.getContents() );
+            checksum = (int)crc.getValue();
+
+            directory = image.getDirectory();
+        }
+        catch ( IOException | RuntimeException e )
+        {
+            // Kept with an empty directory, so that it is not opened again
+            // until it changes.
+            _log.log( Level.FINE, "Unreadable image: " + file, e );
+        }
+
+        _titles.put(
+                file,
+                new Title(
+                        file,
+                        lastModified,
+                        file.length(),
+                        checksum,
+                        directory ) );
+
+        return true;
+    }
+
+    /**
+     * Read the catalog file.
+     */
+    private void read()
+            throws IOException
+    {
+        try ( DataInputStream in = new DataInputStream(
+                new BufferedInputStream( new FileInputStream( _catalog ) ) ) )
+        {
+            if ( in.readInt() != MAGIC )
+                throw new IOException( "Not a catalog." );
+            if ( in.readInt() != VERSION )
+                throw new IOException( "Unsupported catalog version." );
+
+            for ( int i = in.readInt() ; i > 0 ; i-- )
+            {
+                File file = new File( in.readUTF() );
+                long lastModified = in.readLong();
+                long size = in.readLong();
+                int checksum = in.readInt();
+                byte[][] directory = new byte[ in.readUnsignedShort() ][];
+
+                for ( int j = 0 ; j < directory.length ; j++ )
+                {
+                    directory[j] = new byte[ in.readUnsignedShort() ];
+                    in.readFully( directory[j] );
+                }
+
+                _titles.put(
+                        file,
+                        new Title(
+                                file,
+                                lastModified,
+                                size,
+                                checksum,
+                                directory ) );
+            }
+        }
+    }
+
+    /**
+     * Write the catalog file.  The file is replaced as a whole, so that a
+     * failed write keeps the previous catalog.
+     */
+    private synchronized void write()
+            throws IOException
+    {
+        List<Title> titles = new ArrayList<Title>( _titles.values() );
+        File temp = File.createTempFile(
+                "route64", null, _catalog.getAbsoluteFile().getParentFile() );
+
+        try
+        {
+            try ( DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream( new FileOutputStream( temp ) ) ) )
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeInt( titles.size() );
+
+                for ( Title t : titles )
+                {
+                    out.writeUTF( t._file.getPath() );
+                    out.writeLong( t._lastModified );
+                    out.writeLong( t._size );
+                    out.writeInt( t._checksum );
+                    out.writeShort( t._directory.length );
+
+                    for ( byte[] name : t._directory )
+                    {
+                        out.writeShort( name.length );
+                        out.write( name );
+                    }
+                }
+            }
+
+            Files.move(
+                    temp.toPath(),
+                    _catalog.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE );
+        }
+        finally
+        {
+            temp.delete();
+        }
+    }
+}
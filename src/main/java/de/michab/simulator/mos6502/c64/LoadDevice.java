@@ -9,6 +9,7 @@ package de.michab.simulator.mos6502.c64;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.michab.simulator.Memory;
 import de.michab.simulator.mos6502.Cpu6510;
@@ -63,13 +64,25 @@ class LoadDevice
      * The available file format factories.  TODO has to be configurable or
      * fully automatic.
      */
-    private final ImageFileFactory[] _factories = new ImageFileFactory[] {
+    private static final ImageFileFactory[] _factories = new ImageFileFactory[] {
             new AdaptD64(),
+            new AdaptD71(),
+            new AdaptD81(),
+            new AdaptG64(),
             new AdaptT64(),
             new AdaptP00(),
             new AdaptPrg()
     };
 
+    /**
+     * The available compressed formats, the images inside are handled by
+     * the file format factories.
+     */
+    private static final ImageOpener[] _compressed = new ImageOpener[] {
+            new AdaptGz(),
+            new AdaptZip()
+    };
+
     /**
      * Create an instance.
      *
@@ -107,10 +120,10 @@ class LoadDevice
         }
 
         // Try to load the image.
-        byte[] image = _imageFile.loadDirectoryEntry( getLoadName( m ) );
+        ByteBuffer[] image = _imageFile.loadDirectoryEntry( getFileName( m ) );
 
         // Check if we got an image.
-        if ( null != image && image.length >= 2 )
+        if ( null != image && getLength( image ) >= 2 )
         {
             // Yes, load was successful.  Compute the memory target address.
             int destinationAddress;
@@ -127,15 +140,23 @@ class LoadDevice
             {
                 // In the other case load to the address specified by the first byte
                 // pair in the image.
-                int lo = image[0] & 0xff;
-                int hi = image[1] & 0xff;
+                int lo = getByte( image, 0 ) & 0xff;
+                int hi = getByte( image, 1 ) & 0xff;
                 destinationAddress = (hi << 8) | lo;
             }
 
             // Now perform the copy.  Copying starts at index 2 since the first two
             // bytes are occupied by the load address (see above).
-            for ( int i = 2 ; i < image.length ; i++ )
-                m.write( destinationAddress++, image[i] );
+            int skip = 2;
+            for ( ByteBuffer b : image )
+            {
+                ByteBuffer source = b.duplicate();
+                int skipped = Math.min( skip, source.remaining() );
+                source.position( source.position() + skipped );
+                skip -= skipped;
+
+                destinationAddress = m.write( destinationAddress, source );
+            }
             // Set the end address in x/y registers.
             --destinationAddress;
             _processor.setX( destinationAddress  );
@@ -151,19 +172,80 @@ class LoadDevice
     }
 
     /**
-     * Looks up an ImageFileFactory that is able to handle the passed file.  If
-     * no factory is found <code>null</code> is returned.
-     * @param f The file we need a factory for handling.
-     * @return A factory that can handle the passed file.  If no factory is found
+     * Get the number of bytes in a gather list.
+     *
+     * @param image The gather list.
+     * @return The number of bytes remaining in all buffers.
+     */
+    private static int getLength( ByteBuffer[] image )
+    {
+        int result = 0;
+
+        for ( ByteBuffer b : image )
+            result += b.remaining();
+
+        return result;
+    }
+
+    /**
+     * Get a byte from a gather list.
+     *
+     * @param image The gather list.
+     * @param index The index of the byte.  Has to be less than the
+     *        list's length.
+     * @return The byte.
+     */
+    private static byte getByte( ByteBuffer[] image, int index )
+    {
+        for ( ByteBuffer b : image )
+        {
+            if ( index < b.remaining() )
+                return b.get( b.position() + index );
+
+            index -= b.remaining();
+        }
+
+        throw new IndexOutOfBoundsException( "index" );
+    }
+
+    /**
+     * Looks up an ImageOpener that is able to handle the passed file.  If
+     * none is found <code>null</code> is returned.
+     * @param f The file we need an opener for handling.
+     * @return An opener that can handle the passed file.  If none is found
      *         <code>null</code> is returned.
      */
-    private ImageFileFactory findFactoryFor( File f )
+    static ImageOpener findOpenerFor( File f )
     {
         for ( int i = 0 ; i < _factories.length ; i++ )
         {
             if ( _factories[i].isValid( f ) )
                 return _factories[i];
         }
+        for ( int i = 0 ; i < _compressed.length ; i++ )
+        {
+            if ( _compressed[i].isValid( f ) )
+                return _compressed[i];
+        }
+        return null;
+    }
+
+    /**
+     * Looks up an ImageFileFactory that is able to handle the passed image.
+     * Images that are themselves compressed are not handled.
+     *
+     * @param name The name of the image.
+     * @param content The content of the image.
+     * @return A factory that can handle the image.  If no factory is found
+     *         <code>null</code> is returned.
+     */
+    static ImageFileFactory findFactoryFor( String name, ByteBuffer content )
+    {
+        for ( int i = 0 ; i < _factories.length ; i++ )
+        {
+            if ( _factories[i].isValid( name, content ) )
+                return _factories[i];
+        }
         return null;
     }
 
@@ -172,8 +254,8 @@ class LoadDevice
      */
     boolean isValid( File f )
     {
-        // See if we can find a factory for loading.
-        return null != findFactoryFor( f );
+        // See if we can find an opener for loading.
+        return null != findOpenerFor( f );
     }
 
     /**
@@ -184,14 +266,28 @@ class LoadDevice
     void setFile( File f )
             throws IOException
     {
-        ImageFileFactory factory = findFactoryFor( f );
+        _imageFile = open( f );
 
-        if ( factory == null )
-            throw new IOException( "Type not supported." );
+        _file = f;
+    }
 
-        _imageFile = factory.create( f );
+    /**
+     * Open an image file without attaching it.
+     *
+     * @param f The file to open.
+     * @return The image file.
+     * @throws IOException If the file can't be read or its type is not
+     *         supported.
+     */
+    ImageFile open( File f )
+            throws IOException
+    {
+        ImageOpener opener = findOpenerFor( f );
 
-        _file = f;
+        if ( opener == null )
+            throw new IOException( "Type not supported." );
+
+        return opener.create( f );
     }
 
     /**
@@ -225,6 +321,16 @@ class LoadDevice
         return result;
     }
 
+    /**
+     * Returns the currently opened image.
+     *
+     * @return The image or <code>null</code> if no image file is attached.
+     */
+    ImageFile getImageFile()
+    {
+        return _imageFile;
+    }
+
     /**
      * Returns the currently attached image file.
      *
@@ -265,10 +371,10 @@ class LoadDevice
     }
 
     /**
-     * Read the name of the file to load.  The implementation uses c64 zeropage
-     * addresses 0xb7 (length of name) and 0xbb/bc (pointer to name).
+     * Read the name of the file to load or save.  The implementation uses c64
+     * zeropage addresses 0xb7 (length of name) and 0xbb/bc (pointer to name).
      */
-    private byte[] getLoadName( Memory m )
+    static byte[] getFileName( Memory m )
     {
         int length = m.read( 0xb7 );
         byte[] result = new byte[ length ];
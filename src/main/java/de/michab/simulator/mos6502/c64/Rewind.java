@@ -0,0 +1,373 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import de.michab.simulator.Clock;
+import de.michab.simulator.ClockEvent;
+import de.michab.simulator.Persistent;
+
+
+
+/**
+ * <p>Keeps the recent states of the emulation so that it can be rewound.
+ * A clock event takes a snapshot on each frame.  Only the latest snapshot
+ * is kept as a whole, each older frame is kept as the delta to the frame
+ * that followed it.  The frames are held in a ring that is limited by
+ * the number of frames and by the bytes used.</p>
+ *
+ * <p>A delta holds the exclusive or of the two states for each chunk of
+ * the snapshot.  Since the exclusive or is symmetric the same delta turns
+ * the newer into the older state.  Only the 256 byte pages that differ are
+ * stored, run length encoded: runs of zero bytes are skipped and the non
+ * zero bytes are stored literally.  A chunk whose length changed, e.g. the
+ * SID's write queue, is stored as a whole.  Numbers are written as
+ * variable length quantities.</p>
+ *
+ * @see Snapshot
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Rewind
+    extends ClockEvent
+{
+    private static final Logger _log =
+            Logger.getLogger( Rewind.class.getName() );
+
+    /**
+     * The number of frames taken per second of emulated time.
+     */
+    static final int FRAMES_PER_SECOND = 50;
+
+    /**
+     * The maximum number of bytes used by the deltas.
+     */
+    private static final int MAX_BYTES = 8 << 20;
+
+    /**
+     * The size of the pages compared.
+     */
+    private static final int PAGE_SIZE = 256;
+
+    /**
+     * Chunk encodings.
+     */
+    private static final int RAW = 0;
+    private static final int DELTA = 1;
+
+    /**
+     * A frame that is kept as the delta to the frame that followed it.
+     */
+    private static final class Frame
+    {
+        final long _time;
+        final byte[] _delta;
+
+        Frame( long time, byte[] delta )
+        {
+            _time = time;
+            _delta = delta;
+        }
+    }
+
+    private final Clock _clock;
+
+    /**
+     * The components that are part of a frame by their chunk tag.
+     */
+    private final Map<Integer, Persistent> _components;
+
+    /**
+     * The number of cycles per frame.
+     */
+    private final int _frameCycles;
+
+    /**
+     * The older frames, the oldest first.
+     */
+    private final ArrayDeque<Frame> _frames = new ArrayDeque<Frame>();
+
+    /**
+     * The latest frame.  <code>null</code> if no frame was taken.
+     */
+    private Snapshot _current;
+
+    /**
+     * The maximum number of frames kept including the latest one.  Zero if
+     * disabled.
+     */
+    private int _maxFrames;
+
+    /**
+     * The number of bytes used by the deltas.
+     */
+    private long _bytes;
+
+    /**
+     * Create an instance.  Frames are taken when enabled.
+     *
+     * @param clock The system clock.
+     * @param components The components that are part of a frame by their
+     *        chunk tag.
+     */
+    Rewind( Clock clock, Map<Integer, Persistent> components )
+    {
+        _clock = clock;
+        _components = components;
+        _frameCycles = (int)(clock.getResolution() / FRAMES_PER_SECOND);
+    }
+
+    /**
+     * Start taking frames.  If already enabled only the number of frames
+     * kept is changed.
+     *
+     * @param seconds The emulated time that can be rewound.
+     * @throws IllegalArgumentException If the time is not positive.
+     */
+    synchronized void enable( int seconds )
+    {
+        if ( seconds <= 0 )
+            throw new IllegalArgumentException( "seconds: " + seconds );
+
+        boolean wasEnabled = _maxFrames > 0;
+        _maxFrames = seconds * FRAMES_PER_SECOND;
+        trim();
+
+        if ( ! wasEnabled )
+            _clock.schedule( this, _clock.currentTime() );
+    }
+
+    /**
+     * Stop taking frames and drop the frames taken.
+     */
+    synchronized void disable()
+    {
+        _maxFrames = 0;
+        _clock.cancel( this );
+        _frames.clear();
+        _current = null;
+        _bytes = 0;
+    }
+
+    /**
+     * Get the number of frames that can be rewound.
+     *
+     * @return The number of frames including the latest one.
+     */
+    synchronized int getFrameCount()
+    {
+        return _current == null ? 0 : _frames.size() + 1;
+    }
+
+    /**
+     * Called by the clock on each frame.
+     */
+    @Override
+    public synchronized void fire( long time )
+    {
+        if ( _maxFrames == 0 )
+            return;
+
+        try
+        {
+            Snapshot next = Snapshot.take( _clock, _components );
+
+            if ( _current != null )
+            {
+                byte[] delta = encode( next, _current );
+                _frames.addLast( new Frame( _current.getTime(), delta ) );
+                _bytes += delta.length;
+            }
+
+            _current = next;
+            trim();
+        }
+        catch ( IOException e )
+        {
+            _log.log( Level.SEVERE, "Taking frame failed.", e );
+            disable();
+            return;
+        }
+
+        _clock.schedule( this, time + _frameCycles );
+    }
+
+    /**
+     * Continue the emulation from an earlier frame.  The frames after it
+     * are dropped.  Has to be called from a clock event.
+     *
+     * @param frames The number of frames to go back, one continues from the
+     *        latest frame.  Limited to the number of frames kept.
+     * @return The clock time the emulation continues at.
+     * @throws IllegalStateException If no frame was taken.
+     * @throws IOException If restoring the frame failed.  The emulation is
+     *         left partially restored and rewinding is disabled then.
+     */
+    synchronized long rewind( int frames )
+            throws IOException
+    {
+        if ( _current == null )
+            throw new IllegalStateException( "No frames." );
+
+        for ( int i = 1 ; i < frames && ! _frames.isEmpty() ; i++ )
+        {
+            Frame frame = _frames.pollLast();
+            _bytes -= frame._delta.length;
+            _current = decode( _current, frame );
+        }
+
+        try
+        {
+            _current.restore( _clock, _components );
+        }
+        catch ( IOException e )
+        {
+            disable();
+            throw e;
+        }
+
+        long result = _current.getTime();
+
+        _clock.cancel( this );
+        _clock.schedule( this, result + _frameCycles );
+
+        return result;
+    }
+
+    /**
+     * Drop the oldest frames until both limits are met.
+     */
+    private void trim()
+    {
+        while ( ! _frames.isEmpty() &&
+                (_frames.size() >= _maxFrames || _bytes > MAX_BYTES) )
+            _bytes -= _frames.pollFirst()._delta.length;
+    }
+
+    /**
+     * Compute the delta that turns a frame into an older one.
+     *
+     * @param newer The newer frame.
+     * @param older The older frame.
+     * @return The delta.
+     */
+    private static byte[] encode( Snapshot newer, Snapshot older )
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+
+        for ( int tag : older.getTags() )
+        {
+            byte[] o = older.getChunk( tag );
+            byte[] n = newer.getChunk( tag );
+
+            out.writeInt( tag );
+
+            if ( n == null || n.length != o.length )
+            {
+                out.write( RAW );
+                VariableLength.write( out, o.length );
+                out.write( o, 0, o.length );
+                continue;
+            }
+
+            out.write( DELTA );
+
+            for ( int page = 0 ; page * PAGE_SIZE < o.length ; page++ )
+            {
+                int start = page * PAGE_SIZE;
+                int end = Math.min( start + PAGE_SIZE, o.length );
+
+                if ( Arrays.mismatch( o, start, end, n, start, end ) < 0 )
+                    continue;
+
+                VariableLength.write( out, page + 1 );
+
+                for ( int i = start ; i < end ; )
+                {
+                    int zeros = i;
+                    while ( zeros < end && o[zeros] == n[zeros] )
+                        zeros++;
+                    int literals = zeros;
+                    while ( literals < end && o[literals] != n[literals] )
+                        literals++;
+
+                    VariableLength.write( out, zeros - i );
+                    VariableLength.write( out, literals - zeros );
+                    for ( int j = zeros ; j < literals ; j++ )
+                        out.write( o[j] ^ n[j] );
+
+                    i = literals;
+                }
+            }
+
+            VariableLength.write( out, 0 );
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Apply a delta.  The arrays of the passed snapshot are reused.
+     *
+     * @param newer The newer frame.
+     * @param frame The delta to the older frame.
+     * @return The older frame.
+     */
+    private static Snapshot decode( Snapshot newer, Frame frame )
+            throws IOException
+    {
+        Snapshot result = new Snapshot( frame._time );
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream( frame._delta ) );
+
+        while ( in.available() > 0 )
+        {
+            int tag = in.readInt();
+
+            if ( in.readByte() == RAW )
+            {
+                byte[] chunk = new byte[ (int)VariableLength.read( in ) ];
+                in.readFully( chunk );
+                result.setChunk( tag, chunk );
+                continue;
+            }
+
+            byte[] chunk = newer.getChunk( tag );
+
+            for ( int page = (int)VariableLength.read( in ) ;
+                  page > 0 ;
+                  page = (int)VariableLength.read( in ) )
+            {
+                int end = Math.min( page * PAGE_SIZE, chunk.length );
+
+                for ( int i = (page - 1) * PAGE_SIZE ; i < end ; )
+                {
+                    i += (int)VariableLength.read( in );
+                    for ( int count = (int)VariableLength.read( in ) ; count > 0 ; count-- )
+                        chunk[i++] ^= in.readByte();
+                }
+            }
+
+            result.setChunk( tag, chunk );
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,149 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+
+import de.michab.simulator.Memory;
+import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.Extension;
+
+
+
+/**
+ * An extension responsible for patching the save logic into the emulator.
+ * Is patched onto the 64 ROM's save vector at 0xffd8 and saves into the
+ * image file that is attached to the <code>LoadDevice</code>.
+ *
+ * @see LoadDevice
+ * @see ImageFile#saveDirectoryEntry(byte[], ByteBuffer)
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+class SaveDevice
+    extends Extension
+{
+    private static final Logger _log =
+            Logger.getLogger( SaveDevice.class.getName() );
+
+    /**
+     * The address whose execution will trigger this extension.
+     */
+    private static final int SAVE_VECTOR = 0xffd8;
+
+    /**
+     * The processor responsible for activating this extension.
+     */
+    private final Cpu6510 _processor;
+
+    /**
+     * Holds the attached image file.
+     */
+    private final LoadDevice _loadDevice;
+
+    /**
+     * Create an instance.
+     *
+     * @param p The emulation's processor.
+     * @param m The emulation's memory.
+     * @param loadDevice Holds the image file to save into.
+     */
+    public SaveDevice( Cpu6510 p, Memory m, LoadDevice loadDevice )
+    {
+        super( m );
+        _processor = p;
+        _loadDevice = loadDevice;
+    }
+
+    /*
+     * @see Extension#getBaseAddress
+     */
+    @Override
+    public int getBaseAddress()
+    {
+        return SAVE_VECTOR;
+    }
+
+    /**
+     * The main entry point of this extension.  The accu holds the zero page
+     * address of the start address, x/y hold the end address.  The end
+     * address is not saved.
+     */
+    @Override
+    public void extensionCalled( Memory m )
+    {
+        ImageFile imageFile = _loadDevice.getImageFile();
+
+        if ( imageFile == null )
+        {
+            postSaveFailed( LoadDevice.C64_DEVICE_NOT_PRESENT );
+            return;
+        }
+
+        byte[] name = LoadDevice.getFileName( m );
+
+        if ( name.length == 0 )
+        {
+            postSaveFailed( LoadDevice.C64_MISSING_FILE_NAME );
+            return;
+        }
+
+        int start = m.getVectorAt( _processor.getAccu() );
+        int end = (_processor.getY() << 8) | _processor.getX();
+
+        if ( end <= start )
+        {
+            postSaveFailed( LoadDevice.C64_NOT_OUTPUT_FILE );
+            return;
+        }
+
+        // The file starts with its load address.
+        byte[] data = new byte[ end - start + 2 ];
+        data[0] = (byte)start;
+        data[1] = (byte)(start >> 8);
+        System.arraycopy( m.getRawMemory(), start, data, 2, end - start );
+
+        try
+        {
+            imageFile.saveDirectoryEntry( name, ByteBuffer.wrap( data ) );
+        }
+        catch ( IOException e )
+        {
+            _log.warning( "Save failed: " + e.getMessage() );
+            postSaveFailed( LoadDevice.C64_NOT_OUTPUT_FILE );
+            return;
+        }
+
+        postSaveSuccess();
+    }
+
+    /**
+     * Called in case a save succeeded.
+     */
+    private void postSaveSuccess()
+    {
+        int status = _processor.getStatusRegister();
+        status &= (~Cpu6510.STATUS_FLAG_CARRY);
+        _processor.setStatusRegister( (byte)status );
+    }
+
+    /**
+     * Called in case a save failed.  Provides the needed error settings to the
+     * 64's operation system.
+     */
+    private void postSaveFailed( int errorCode )
+    {
+        int status = _processor.getStatusRegister();
+        status |= Cpu6510.STATUS_FLAG_CARRY;
+        _processor.setStatusRegister( (byte)status );
+
+        _processor.setAccu( errorCode );
+    }
+}
@@ -0,0 +1,509 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GNU public license
+ * Copyright © 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import de.michab.simulator.Clock;
+import de.michab.simulator.Forwarder;
+import de.michab.simulator.mos6502.Cia;
+import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.SampleSink;
+import de.michab.simulator.mos6502.Sid;
+
+
+
+/**
+ * <p>A stripped down machine that plays PSID tunes.  Only the processor,
+ * the memory, the first CIA and the SID are emulated.  There is no video
+ * chip, no keyboard and no load device.  The clock is not synchronised with
+ * real time, so a tune is rendered as fast as the host allows.</p>
+ *
+ * <p>The tune is mapped into memory with the ROMs switched off.  A small
+ * driver is placed in memory that calls the tune's init routine and then
+ * calls the play routine from the CIA timer interrupt, either at the PAL
+ * frame rate or with the timer speed the tune selects.</p>
+ *
+ * <p>Tunes with a play address of zero are supported if they install their
+ * own interrupt handler in the hardware vector.  RSID tunes need the full
+ * machine and are rejected.</p>
+ *
+ * <p>A player holds threads and has to be closed when it is no longer
+ * used.</p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+public final class SidPlayer
+    implements AutoCloseable
+{
+    /**
+     * The PAL frame rate.
+     */
+    private static final int FRAMES_PER_SEC = 50;
+
+
+
+    /**
+     * The timer value used for tunes with CIA timer speed as long as the
+     * tune's init routine does not set a different one.
+     */
+    private static final int DEFAULT_CIA_SPEED = 0x4025;
+
+
+
+    /**
+     * The default address of the driver code.  This is the cassette
+     * buffer.
+     */
+    private static final int DRIVER_BASE = 0x0334;
+
+
+
+    /**
+     * The value written to the processor port.  Maps RAM everywhere except
+     * the IO area.
+     */
+    private static final int MEMORY_CONFIGURATION = 0x35;
+
+
+
+    private static final int SID_BASE = 0xd400;
+    private static final int CIA1_BASE = 0xdc00;
+
+
+
+    private final C64Memory _memory;
+    private final Cpu6510 _processor;
+    private final Cia _cia1;
+    private final Sid _sid;
+
+
+
+    /**
+     * The clock driving the player.  Runs as fast as possible.
+     */
+    private final Clock _clock =
+            new Clock( C64Core.PAL_TICKS_PER_SEC, false );
+
+
+
+    /**
+     * The player's own clock client.  Stops the emulation when the
+     * requested time is reached.
+     */
+    private final Clock.ClockHandle _stopper;
+
+
+
+    /**
+     * The time the emulation runs to in clock cycles.
+     */
+    private long _target = 0;
+
+
+
+    /**
+     * Set as soon as the clock has been started.
+     */
+    private boolean _started = false;
+
+
+
+    private final String _name;
+    private final String _author;
+    private final String _released;
+    private final int _songs;
+    private final int _startSong;
+
+
+
+    /**
+     * Create a player for the start song of a tune.
+     *
+     * @param psid The contents of a PSID file.
+     * @param sink The sink receiving the rendered samples.
+     * @throws IOException If the passed data is not a valid PSID tune.
+     */
+    public SidPlayer( byte[] psid, SampleSink sink )
+            throws IOException
+    {
+        this( psid, 0, sink );
+    }
+
+
+
+    /**
+     * Create a player.
+     *
+     * @param psid The contents of a PSID file.
+     * @param song The number of the song to play starting at one.  If zero
+     *        is passed the tune's start song is played.
+     * @param sink The sink receiving the rendered samples.
+     * @throws IOException If the passed data is not a valid PSID tune.
+     */
+    public SidPlayer( byte[] psid, int song, SampleSink sink )
+            throws IOException
+    {
+        if ( psid.length < 0x76 )
+            throw new IOException( "Not a PSID file." );
+
+        String magic = new String( psid, 0, 4, StandardCharsets.US_ASCII );
+        if ( "RSID".equals( magic ) )
+            throw new IOException( "RSID tunes are not supported." );
+        if ( ! "PSID".equals( magic ) )
+            throw new IOException( "Not a PSID file." );
+
+        int version = getWord( psid, 0x04 );
+        int dataOffset = getWord( psid, 0x06 );
+        int loadAddress = getWord( psid, 0x08 );
+        int initAddress = getWord( psid, 0x0a );
+        int playAddress = getWord( psid, 0x0c );
+        _songs = getWord( psid, 0x0e );
+        _startSong = getWord( psid, 0x10 );
+        long speed =
+            ((long)getWord( psid, 0x12 ) << 16) | getWord( psid, 0x14 );
+
+        _name = getString( psid, 0x16 );
+        _author = getString( psid, 0x36 );
+        _released = getString( psid, 0x56 );
+
+        if ( dataOffset >= psid.length )
+            throw new IOException( "Corrupt PSID file." );
+
+        // A load address of zero means that the load address is held in the
+        // first two bytes of the data, like in a program file.
+        if ( loadAddress == 0 )
+        {
+            loadAddress =
+                (psid[dataOffset] & 0xff) |
+                ((psid[dataOffset+1] & 0xff) << 8);
+            dataOffset += 2;
+        }
+
+        if ( initAddress == 0 )
+            initAddress = loadAddress;
+
+        if ( song == 0 )
+            song = _startSong;
+        if ( song < 1 || song > _songs )
+            throw new IOException( "No song " + song + " in tune." );
+
+        // The driver goes into the area the tune declares as free.
+        int driverBase = DRIVER_BASE;
+        if ( version >= 2 && psid.length > 0x79 )
+        {
+            int startPage = psid[0x78] & 0xff;
+            if ( startPage != 0 && startPage != 0xff )
+                driverBase = startPage << 8;
+        }
+
+        boolean ciaSpeed = song <= 32 && (speed & (1L << (song-1))) != 0;
+
+        _memory = new C64Memory();
+
+        // Map the tune into memory.
+        byte[] raw = _memory.getRawMemory();
+        int length = Math.min( psid.length - dataOffset, 0x10000 - loadAddress );
+        System.arraycopy( psid, dataOffset, raw, loadAddress, length );
+
+        writeDriver(
+            raw,
+            driverBase,
+            initAddress,
+            playAddress,
+            song - 1,
+            ciaSpeed ?
+                DEFAULT_CIA_SPEED :
+                C64Core.PAL_TICKS_PER_SEC / FRAMES_PER_SEC );
+
+        // Switch off the ROMs.  This has to be done before the processor is
+        // created since the processor reads the reset vector on creation.
+        Forwarder address1 = _memory.getAddress1Listener();
+        address1.write( (byte)MEMORY_CONFIGURATION );
+
+        _processor = new Cpu6510( _memory, _clock );
+        _memory.mapInto( _processor, 0 );
+        _processor.setPortListener( 1, address1 );
+
+        _sid = new Sid( _clock, sink );
+        _memory.mapInto( _sid, SID_BASE );
+
+        _cia1 = new Cia(
+            _processor.getInterruptController().createIrqLine( "CIA-1" ),
+            _clock );
+        _memory.mapInto( _cia1, CIA1_BASE );
+        _memory.mapInto( _cia1, CIA1_BASE + 0x10 );
+
+        _stopper = _clock.register();
+        Thread stopper = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                stop();
+            }
+        }, "SidPlayer" );
+        stopper.setDaemon( true );
+        stopper.start();
+    }
+
+
+
+    /**
+     * Render the tune for the passed time.  The call returns as soon as the
+     * emulation reached the requested time and the samples up to that time
+     * have been passed to the sink.  Subsequent calls continue the tune.
+     * Returns immediately after the player was closed.
+     *
+     * @param milliseconds The emulated time to render.
+     */
+    public synchronized void render( long milliseconds )
+    {
+        _target += milliseconds * C64Core.PAL_TICKS_PER_SEC / 1000;
+        notifyAll();
+
+        if ( ! _started )
+        {
+            _started = true;
+            _clock.start();
+        }
+
+        while ( _stopper.currentLocalTime() < _target && ! _clock.isStopped() )
+        {
+            try
+            {
+                wait();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+
+
+    /**
+     * Stop the player.  The clock is stopped, which ends the threads of the
+     * processor, the SID and the stopper, and the SID is shut down.  A
+     * closed player renders nothing.
+     */
+    @Override
+    public synchronized void close()
+    {
+        _clock.stop();
+        _sid.shutdown();
+        notifyAll();
+    }
+
+
+
+    /**
+     * The body of the stopper thread.  Advances in steps of a frame.  If
+     * the target time is reached the thread waits for a new target.  Since
+     * the stopper then holds the earliest time of all clock clients the
+     * emulation as a whole is stopped.  Ends when the player is closed.
+     */
+    private void stop()
+    {
+        _stopper.prepare();
+
+        int frame = C64Core.PAL_TICKS_PER_SEC / FRAMES_PER_SEC;
+
+        while ( ! _stopper.isStopped() )
+        {
+            long remaining;
+
+            synchronized ( this )
+            {
+                while ( _stopper.currentLocalTime() >= _target &&
+                        ! _stopper.isStopped() )
+                {
+                    notifyAll();
+
+                    try
+                    {
+                        wait();
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        return;
+                    }
+                }
+
+                if ( _stopper.isStopped() )
+                    return;
+
+                remaining = _target - _stopper.currentLocalTime();
+            }
+
+            _stopper.advance( (int)Math.min( frame, remaining ) );
+        }
+    }
+
+
+
+    /**
+     * Get the tune's name.
+     *
+     * @return The tune's name.
+     */
+    public String getName()
+    {
+        return _name;
+    }
+
+
+
+    /**
+     * Get the tune's author.
+     *
+     * @return The tune's author.
+     */
+    public String getAuthor()
+    {
+        return _author;
+    }
+
+
+
+    /**
+     * Get the tune's release information.
+     *
+     * @return The tune's release information.
+     */
+    public String getReleased()
+    {
+        return _released;
+    }
+
+
+
+    /**
+     * Get the number of songs in the tune.
+     *
+     * @return The number of songs.
+     */
+    public int getSongs()
+    {
+        return _songs;
+    }
+
+
+
+    /**
+     * Get the tune's default song.
+     *
+     * @return The number of the default song starting at one.
+     */
+    public int getStartSong()
+    {
+        return _startSong;
+    }
+
+
+
+    /**
+     * Write the driver code and the hardware vectors.  The reset vector
+     * points to the driver's init part that programs CIA 1, calls the
+     * tune's init routine and then loops.  The interrupt vector points to
+     * the driver's interrupt handler that calls the play routine.
+     *
+     * @param memory The raw memory.
+     * @param base The address of the driver code.
+     * @param init The tune's init address.
+     * @param play The tune's play address.  May be zero.
+     * @param song The song number starting at zero.
+     * @param speed The initial CIA 1 timer A value.
+     */
+    private static void writeDriver(
+            byte[] memory,
+            int base,
+            int init,
+            int play,
+            int song,
+            int speed )
+    {
+        int pc = base;
+
+        // SEI; LDX #$ff; TXS
+        pc = put( memory, pc, 0x78, 0xa2, 0xff, 0x9a );
+        // LDA #<speed; STA $dc04; LDA #>speed; STA $dc05
+        pc = put( memory, pc, 0xa9, speed & 0xff, 0x8d, 0x04, 0xdc );
+        pc = put( memory, pc, 0xa9, speed >> 8, 0x8d, 0x05, 0xdc );
+        // LDA #$81; STA $dc0d; LDA #$11; STA $dc0e
+        pc = put( memory, pc, 0xa9, 0x81, 0x8d, 0x0d, 0xdc );
+        pc = put( memory, pc, 0xa9, 0x11, 0x8d, 0x0e, 0xdc );
+        // LDA #song; JSR init; CLI
+        pc = put( memory, pc, 0xa9, song );
+        pc = put( memory, pc, 0x20, init & 0xff, init >> 8, 0x58 );
+        // JMP *
+        pc = put( memory, pc, 0x4c, pc & 0xff, pc >> 8 );
+
+        int irq = pc;
+        // PHA; TXA; PHA; TYA; PHA
+        pc = put( memory, pc, 0x48, 0x8a, 0x48, 0x98, 0x48 );
+        // JSR play
+        if ( play != 0 )
+            pc = put( memory, pc, 0x20, play & 0xff, play >> 8 );
+        // LDA $dc0d; PLA; TAY; PLA; TAX; PLA
+        pc = put( memory, pc, 0xad, 0x0d, 0xdc, 0x68, 0xa8, 0x68, 0xaa, 0x68 );
+
+        int rti = pc;
+        // RTI
+        pc = put( memory, pc, 0x40 );
+
+        put( memory, Cpu6510.NMI_VECTOR, rti & 0xff, rti >> 8 );
+        put( memory, Cpu6510.RESET_VECTOR, base & 0xff, base >> 8 );
+        put( memory, Cpu6510.IRQ_VECTOR, irq & 0xff, irq >> 8 );
+    }
+
+
+
+    /**
+     * Write a sequence of bytes into memory.
+     *
+     * @param memory The raw memory.
+     * @param address The address to write to.
+     * @param bytes The bytes to write.
+     * @return The address following the written bytes.
+     */
+    private static int put( byte[] memory, int address, int ... bytes )
+    {
+        for ( int b : bytes )
+            memory[ address++ ] = (byte)b;
+
+        return address;
+    }
+
+
+
+    /**
+     * Read a big endian word from the PSID header.
+     */
+    private static int getWord( byte[] data, int offset )
+    {
+        return ((data[offset] & 0xff) << 8) | (data[offset+1] & 0xff);
+    }
+
+
+
+    /**
+     * Read a zero terminated string from the PSID header.
+     */
+    private static String getString( byte[] data, int offset )
+    {
+        int length = 0;
+        while ( length < 32 && data[offset+length] != 0 )
+            length++;
+
+        return new String( data, offset, length, StandardCharsets.ISO_8859_1 );
+    }
+}
@@ -0,0 +1,345 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import de.michab.simulator.Clock;
+import de.michab.simulator.Persistent;
+
+
+
+/**
+ * <p>A snapshot of the state of the emulation.  Taking a snapshot only
+ * copies the state of the components into memory, writing it to a channel
+ * is a separate step that can run while the emulation continues.</p>
+ *
+ * <p>The snapshot is a header followed by chunks.  The header holds the
+ * format's magic number and version and the clock time the snapshot was
+ * taken.  Each chunk holds a tag, the length of the chunk's data and the
+ * state of a single component.  The chunks end with a chunk with the tag
+ * zero.  Unknown chunks are skipped on reading.</p>
+ *
+ * @see de.michab.simulator.Persistent
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class Snapshot
+{
+    /**
+     * Chunk tags.
+     */
+    static final int MEMORY = 0x4d454d20; // 'MEM '
+    static final int CPU = 0x43505520; // 'CPU '
+    static final int VIC = 0x56494320; // 'VIC '
+    static final int CIA1 = 0x43494131; // 'CIA1'
+    static final int CIA2 = 0x43494132; // 'CIA2'
+    static final int SID = 0x53494420; // 'SID '
+
+    /**
+     * Marks the end of the chunks.
+     */
+    private static final int END = 0;
+
+    /**
+     * The snapshot's magic number, 'R64S'.
+     */
+    private static final int MAGIC = 0x52363453;
+
+    /**
+     * The snapshot format version.
+     */
+    private static final int VERSION = 2;
+
+    /**
+     * The size of the header and of a chunk header in bytes.
+     */
+    private static final int HEADER_SIZE = 16;
+    private static final int CHUNK_HEADER_SIZE = 8;
+
+    /**
+     * The maximum chunk size accepted on reading.
+     */
+    private static final int MAX_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The clock time the snapshot was taken.
+     */
+    private final long _time;
+
+    /**
+     * The chunks' data by tag.
+     */
+    private final Map<Integer, byte[]> _chunks =
+            new LinkedHashMap<Integer, byte[]>();
+
+    /**
+     * Create an empty snapshot.
+     *
+     * @param time The clock time the snapshot is taken.
+     */
+    Snapshot( long time )
+    {
+        _time = time;
+    }
+
+    /**
+     * Take a snapshot of the passed components.  Has to be called from a
+     * clock event.
+     *
+     * @param clock The system clock.
+     * @param components The components by chunk tag.
+     * @return The snapshot.
+     * @throws IOException If a component failed to write its state.
+     */
+    static Snapshot take( Clock clock, Map<Integer, Persistent> components )
+            throws IOException
+    {
+        Snapshot result = new Snapshot( clock.currentTime() );
+
+        for ( Map.Entry<Integer, Persistent> c : components.entrySet() )
+            result.save( c.getKey(), c.getValue() );
+
+        return result;
+    }
+
+    /**
+     * Set the clock to the snapshot's time and restore the passed
+     * components in their order.  Has to be called before the clock is
+     * started or from a clock event.
+     *
+     * @param clock The system clock.
+     * @param components The components by chunk tag.
+     * @throws IOException If a chunk is missing or does not match its
+     *         component.
+     */
+    void restore( Clock clock, Map<Integer, Persistent> components )
+            throws IOException
+    {
+        clock.setTime( _time );
+
+        for ( Map.Entry<Integer, Persistent> c : components.entrySet() )
+            restore( c.getKey(), c.getValue() );
+    }
+
+    /**
+     * Get the clock time the snapshot was taken.
+     *
+     * @return The clock time.
+     */
+    long getTime()
+    {
+        return _time;
+    }
+
+    /**
+     * Add the state of a component.
+     *
+     * @param tag The chunk's tag.
+     * @param component The component.
+     * @throws IOException If the component failed to write its state.
+     */
+    void save( int tag, Persistent component )
+            throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream( bytes );
+
+        component.saveState( out );
+        out.flush();
+
+        _chunks.put( tag, bytes.toByteArray() );
+    }
+
+    /**
+     * Restore the state of a component.
+     *
+     * @param tag The chunk's tag.
+     * @param component The component.
+     * @throws IOException If the snapshot holds no chunk for the tag or the
+     *         chunk's data does not match the component's state.
+     */
+    void restore( int tag, Persistent component )
+            throws IOException
+    {
+        byte[] data = _chunks.get( tag );
+
+        if ( data == null )
+            throw new IOException( "Missing chunk: " + tagName( tag ) );
+
+        DataInputStream in =
+                new DataInputStream( new ByteArrayInputStream( data ) );
+
+        try
+        {
+            component.restoreState( in );
+        }
+        catch ( EOFException e )
+        {
+            throw new IOException( "Chunk too short: " + tagName( tag ), e );
+        }
+
+        if ( in.available() != 0 )
+            throw new IOException( "Chunk too long: " + tagName( tag ) );
+    }
+
+    /**
+     * Get the tags of the chunks in the snapshot.
+     *
+     * @return The tags in the order the chunks were added.
+     */
+    Set<Integer> getTags()
+    {
+        return _chunks.keySet();
+    }
+
+    /**
+     * Get a chunk's data.
+     *
+     * @param tag The chunk's tag.
+     * @return The data or <code>null</code> if there is no such chunk.
+     */
+    byte[] getChunk( int tag )
+    {
+        return _chunks.get( tag );
+    }
+
+    /**
+     * Set a chunk's data.
+     *
+     * @param tag The chunk's tag.
+     * @param data The data.
+     */
+    void setChunk( int tag, byte[] data )
+    {
+        _chunks.put( tag, data );
+    }
+
+    /**
+     * Write the snapshot.
+     *
+     * @param channel The target channel.  Not closed.
+     * @throws IOException If writing failed.
+     */
+    void write( WritableByteChannel channel )
+            throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate( HEADER_SIZE );
+        header.putInt( MAGIC );
+        header.putInt( VERSION );
+        header.putLong( _time );
+        header.flip();
+        writeFully( channel, header );
+
+        for ( Map.Entry<Integer, byte[]> c : _chunks.entrySet() )
+        {
+            writeChunkHeader( channel, c.getKey(), c.getValue().length );
+            writeFully( channel, ByteBuffer.wrap( c.getValue() ) );
+        }
+
+        writeChunkHeader( channel, END, 0 );
+    }
+
+    /**
+     * Read a snapshot.
+     *
+     * @param channel The source channel.  Not closed.
+     * @return The snapshot.
+     * @throws IOException If reading failed or the channel holds no
+     *         snapshot.
+     */
+    static Snapshot read( ReadableByteChannel channel )
+            throws IOException
+    {
+        ByteBuffer header = readFully( channel, HEADER_SIZE );
+
+        if ( header.getInt() != MAGIC )
+            throw new IOException( "Not a snapshot." );
+        if ( header.getInt() != VERSION )
+            throw new IOException( "Unsupported snapshot version." );
+
+        Snapshot result = new Snapshot( header.getLong() );
+
+        while ( true )
+        {
+            ByteBuffer chunkHeader = readFully( channel, CHUNK_HEADER_SIZE );
+            int tag = chunkHeader.getInt();
+            int length = chunkHeader.getInt();
+
+            if ( tag == END )
+                return result;
+            if ( length < 0 || length > MAX_CHUNK_SIZE )
+                throw new IOException( "Invalid chunk: " + tagName( tag ) );
+
+            result._chunks.put( tag, readFully( channel, length ).array() );
+        }
+    }
+
+    private static void writeChunkHeader(
+            WritableByteChannel channel, int tag, int length )
+            throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate( CHUNK_HEADER_SIZE );
+        buffer.putInt( tag );
+        buffer.putInt( length );
+        buffer.flip();
+        writeFully( channel, buffer );
+    }
+
+    private static void writeFully( WritableByteChannel channel, ByteBuffer buffer )
+            throws IOException
+    {
+        while ( buffer.hasRemaining() )
+            channel.write( buffer );
+    }
+
+    /**
+     * Read the passed number of bytes.
+     *
+     * @return A buffer holding the bytes, ready for reading.
+     * @throws EOFException If the channel ended before.
+     */
+    private static ByteBuffer readFully( ReadableByteChannel channel, int length )
+            throws IOException
+    {
+        ByteBuffer result = ByteBuffer.allocate( length );
+
+        while ( result.hasRemaining() )
+        {
+            if ( channel.read( result ) < 0 )
+                throw new EOFException( "Snapshot truncated." );
+        }
+
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Convert a tag into its four character name for messages.
+     */
+    private static String tagName( int tag )
+    {
+        char[] result = new char[ 4 ];
+
+        for ( int i = 0 ; i < result.length ; i++ )
+            result[i] = (char)((tag >>> (24 - 8 * i)) & 0xff);
+
+        return new String( result );
+    }
+}
@@ -9,6 +9,7 @@ package de.michab.simulator.mos6502.c64;
 
 import de.michab.simulator.*;
 import de.michab.simulator.mos6502.*;
+import java.nio.ByteBuffer;
 
 
 
@@ -66,6 +67,13 @@ class SystemInput
 
 
 
+  /**
+   * Called once when the ROM waits for input the next time.
+   */
+  private volatile Runnable _readyListener;
+
+
+
   /**
    * Creates an instance.
    * 
@@ -107,6 +115,16 @@ class SystemInput
    */
   public void extensionCalled( Memory m )
   {
+    // The input is written on the next call, so the listener sees the
+    // empty key buffer.
+    Runnable readyListener = _readyListener;
+    if ( readyListener != null )
+    {
+      _readyListener = null;
+      readyListener.run();
+      return;
+    }
+
     // If the buffer is empty -- leave.
     if ( null == _buffer )
       return;
@@ -123,9 +141,9 @@ class SystemInput
     if ( numToWrite > KEY_BUFFER_SIZE )
       numToWrite = KEY_BUFFER_SIZE;
 
-    System.arraycopy( _buffer,
-                      _currentBufferIndex,
-                      rawMemory, KEY_BUFFER, numToWrite );
+    m.write(
+        KEY_BUFFER,
+        ByteBuffer.wrap( _buffer, _currentBufferIndex, numToWrite ) );
     rawMemory[ZP_NUMKEYS]=(byte)numToWrite;
 
     _currentBufferIndex += numToWrite;
@@ -144,4 +162,19 @@ class SystemInput
     _currentBufferIndex = 0;
     _buffer = toWrite;
   }
+
+
+
+  /**
+   * Set a listener that is called once when the ROM waits for input the
+   * next time, e.g. at the READY prompt after a reset.  The listener is
+   * called on the processor's thread within a memory access.  Pending input
+   * is not written to the key buffer before the ROM asks for input again.
+   *
+   * @param listener The listener, <code>null</code> to remove the listener.
+   */
+  void setReadyListener( Runnable listener )
+  {
+    _readyListener = listener;
+  }
 }
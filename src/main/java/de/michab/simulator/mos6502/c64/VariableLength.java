@@ -0,0 +1,73 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.simulator.mos6502.c64;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+
+
+/**
+ * Writes and reads non-negative numbers as variable length quantities.
+ * Seven bits are written per byte, the least significant bits first.  The
+ * high bit marks that more bytes follow.  Small numbers take a single byte.
+ *
+ * @see Journal
+ * @see Rewind
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+final class VariableLength
+{
+    private VariableLength()
+    {
+        throw new AssertionError();
+    }
+
+    /**
+     * Write a number.
+     *
+     * @param out The target.
+     * @param value The non-negative number.
+     * @throws IOException If writing failed.
+     */
+    static void write( DataOutput out, long value )
+            throws IOException
+    {
+        while ( value > 0x7f )
+        {
+            out.writeByte( (int)(value & 0x7f) | 0x80 );
+            value >>>= 7;
+        }
+
+        out.writeByte( (int)value );
+    }
+
+    /**
+     * Read a number.
+     *
+     * @param in The source.
+     * @return The number.
+     * @throws IOException If reading failed.
+     */
+    static long read( DataInput in )
+            throws IOException
+    {
+        long result = 0;
+
+        for ( int shift = 0 ; ; shift += 7 )
+        {
+            int b = in.readUnsignedByte();
+            result |= (long)(b & 0x7f) << shift;
+
+            if ( (b & 0x80) == 0 )
+                return result;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/* $Id$
+ *
+ * Project: Route64
+ *
+ * Released under GPL (GNU public license)
+ * Copyright (c) 2000-2026 Michael G. Binz
+ */
+package de.michab.utils.tools;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+
+import de.michab.simulator.IdleDetector;
+import de.michab.simulator.mos6502.Cpu6510;
+import de.michab.simulator.mos6502.c64.C64Core;
+
+
+
+/**
+ * Measures the cost of the emulated 1541 drive.  Loads a program through
+ * the drive without real time throttling and reports the emulation speed,
+ * once with the drive's idle detection disabled and once enabled.  Each
+ * run uses a headless emulation that is shut down afterwards.  The fast
+ * boot state is cached by an untimed boot before the first run.
+ *
+ * <p>The drive's ROM is not part of the repository.  The measurement the
+ * idle detection was built for, a title with a fast loader run on the real
+ * 1541 ROM, has not been done yet.</p>
+ *
+ * <p>Usage: <code>DriveBenchmark &lt;1541 ROM&gt; &lt;D64 image&gt;
+ * &lt;file name&gt; [&lt;emulated seconds&gt;]</code></p>
+ *
+ * @version $Revision$
+ * @author Michael G. Binz
+ */
+class DriveBenchmark
+{
+    private static final int DEFAULT_SECONDS = 60;
+
+    /**
+     * The emulated seconds after which the ROM's cold start is done and
+     * the boot state is cached.
+     */
+    private static final int BOOT_SECONDS = 3;
+
+    /**
+     * Boot once without timing, so that the timed runs start from the
+     * cached boot state.
+     */
+    private static void cacheBootState()
+        throws Exception
+    {
+        try ( C64Core core = new C64Core( false, true ) )
+        {
+            if ( core.fastBoot() )
+                return;
+
+            Cpu6510 cpu = (Cpu6510)core.getCpu();
+            long end = (long)BOOT_SECONDS * C64Core.PAL_TICKS_PER_SEC;
+
+            core.start();
+
+            while ( cpu.getLocalTime() < end )
+                Thread.sleep( 10 );
+        }
+    }
+
+    /**
+     * Run the emulation once.
+     *
+     * @return The host milliseconds used.
+     */
+    private static long run(
+            File rom,
+            File image,
+            String name,
+            int seconds,
+            boolean idleDetection )
+        throws Exception
+    {
+        IdleDetector idle;
+        long result;
+
+        try ( C64Core core = new C64Core( false, true ) )
+        {
+            core.enableDrive( rom );
+            idle = core.getDriveIdleDetector();
+            idle.setEnabled( idleDetection );
+            if ( ! core.fastBoot() )
+                System.out.println( "Boot state not cached, booting." );
+            core.setImageFile( image );
+
+            Cpu6510 cpu = (Cpu6510)core.getCpu();
+            long end = cpu.getLocalTime() +
+                    (long)seconds * C64Core.PAL_TICKS_PER_SEC;
+
+            long start = System.nanoTime();
+            core.start();
+            core.load( name.getBytes( StandardCharsets.ISO_8859_1 ) );
+
+            while ( cpu.getLocalTime() < end )
+                Thread.sleep( 10 );
+
+            result = (System.nanoTime() - start) / 1000000;
+        }
+
+        System.out.printf(
+                "idle detection %-3s  %6d ms  %5.1fx real time  " +
+                "%5.1f%% of drive time skipped%n",
+                idleDetection ? "on" : "off",
+                result,
+                seconds * 1000.0 / result,
+                idle.getSkipped() / (seconds * 10000.0) );
+
+        return result;
+    }
+
+    public static void main( String[] argv )
+        throws Exception
+    {
+        if ( argv.length < 3 )
+        {
+            System.out.println(
+                    "Usage: DriveBenchmark <1541 ROM> <D64 image> " +
+                    "<file name> [<emulated seconds>]" );
+            System.exit( 1 );
+        }
+
+        File rom = new File( argv[0] );
+        File image = new File( argv[1] );
+        String name = argv[2];
+        int seconds = argv.length > 3 ?
+                Integer.parseInt( argv[3] ) :
+                DEFAULT_SECONDS;
+
+        cacheBootState();
+
+        long off = run( rom, image, name, seconds, false );
+        long on = run( rom, image, name, seconds, true );
+
+        System.out.printf( "Speedup %.2f%n", (double)off / on );
+    }
+}
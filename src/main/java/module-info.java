@@ -16,4 +16,5 @@ module route64
 
     requires java.desktop;
     requires java.logging;
+    requires java.management;
 }